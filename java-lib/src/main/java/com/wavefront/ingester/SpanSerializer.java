@@ -1,9 +1,10 @@
 package com.wavefront.ingester;
 
-import org.apache.commons.lang.StringUtils;
-
+import java.util.List;
 import java.util.function.Function;
 
+import javax.annotation.Nullable;
+
 import wavefront.report.Annotation;
 import wavefront.report.Span;
 
@@ -19,37 +20,93 @@ public class SpanSerializer implements Function<Span, String> {
     return spanToString(span);
   }
 
-  private static String quote = "\"";
-  private static String escapedQuote = "\\\"";
+  private static final char QUOTE = '"';
 
-  private static String escapeQuotes(String raw) {
-    return StringUtils.replace(raw, quote, escapedQuote);
+  /**
+   * Append a quoted string, escaping quotes only if there are any.
+   */
+  private static void appendQuoted(StringBuilder sb, @Nullable String raw) {
+    sb.append(QUOTE);
+    if (raw == null) {
+      sb.append((String) null);
+    } else {
+      int quoteIndex = raw.indexOf(QUOTE);
+      if (quoteIndex < 0) {
+        sb.append(raw);
+      } else {
+        int start = 0;
+        do {
+          sb.append(raw, start, quoteIndex).append('\\').append(QUOTE);
+          start = quoteIndex + 1;
+          quoteIndex = raw.indexOf(QUOTE, start);
+        } while (quoteIndex >= 0);
+        sb.append(raw, start, raw.length());
+      }
+    }
+    sb.append(QUOTE);
   }
 
-  static String spanToString(Span span) {
-    StringBuilder sb = new StringBuilder(quote)
-        .append(escapeQuotes(span.getName())).append(quote).append(' ');
+  /**
+   * Append a span's string representation to a buffer, without creating any intermediate strings.
+   *
+   * @param span span to serialize.
+   * @param sb   buffer to append to.
+   */
+  public static void appendSpan(Span span, StringBuilder sb) {
+    appendQuoted(sb, span.getName());
+    sb.append(' ');
     if (span.getSource() != null) {
-      sb.append("source=").append(quote).append(escapeQuotes(span.getSource())).append(quote).append(' ');
+      sb.append("source=");
+      appendQuoted(sb, span.getSource());
+      sb.append(' ');
     }
     if (span.getSpanId() != null) {
-      sb.append("spanId=").append(quote).append(escapeQuotes(span.getSpanId())).append(quote).append(' ');
+      sb.append("spanId=");
+      appendQuoted(sb, span.getSpanId());
+      sb.append(' ');
     }
     if (span.getTraceId() != null) {
-      sb.append("traceId=").append(quote).append(escapeQuotes(span.getTraceId())).append(quote);
+      sb.append("traceId=");
+      appendQuoted(sb, span.getTraceId());
     }
-    if (span.getAnnotations() != null) {
-      for (Annotation entry : span.getAnnotations()) {
-        sb.append(' ').append(quote).append(escapeQuotes(entry.getKey())).append(quote)
-            .append("=")
-            .append(quote).append(escapeQuotes(entry.getValue())).append(quote);
+    List<Annotation> annotations = span.getAnnotations();
+    if (annotations != null) {
+      for (Annotation entry : annotations) {
+        sb.append(' ');
+        appendQuoted(sb, entry.getKey());
+        sb.append('=');
+        appendQuoted(sb, entry.getValue());
       }
     }
     sb.append(' ')
         .append(span.getStartMillis())
         .append(' ')
         .append(span.getDuration());
+  }
+
+  static String spanToString(Span span) {
+    StringBuilder sb = new StringBuilder(estimateLength(span));
+    appendSpan(span, sb);
     return sb.toString();
   }
-}
 
+  /**
+   * Estimate serialized length, so that the buffer doesn't need to grow unless there are quotes to escape.
+   */
+  private static int estimateLength(Span span) {
+    // quotes, separators, field names, timestamp and duration
+    int length = 80 + length(span.getName()) + length(span.getSource()) + length(span.getSpanId()) +
+        length(span.getTraceId());
+    List<Annotation> annotations = span.getAnnotations();
+    if (annotations != null) {
+      for (Annotation entry : annotations) {
+        length += 6 + length(entry.getKey()) + length(entry.getValue());
+      }
+    }
+    return length;
+  }
+
+  private static int length(@Nullable String s) {
+    return s == null ? 4 : s.length();
+  }
+}
@@ -82,4 +82,27 @@ public class SpanSerializerTest {
     assertEquals("\"testSpanName2\" source=\"spanSource\" spanId=\"4217104a-690d-4927-baff-d9aa779414c2\" " +
         "traceId=\"d5355bf7-fc8d-48d1-b761-75b170f396e0\" 1532012145123456 1111111", serializer.apply(span));
   }
+
+  @Test
+  public void testAppendSpan() {
+    Span span = Span.newBuilder()
+        .setCustomer("dummy")
+        .setSpanId("4217104a-690d-4927-baff-d9aa779414c2")
+        .setTraceId("d5355bf7-fc8d-48d1-b761-75b170f396e0")
+        .setName("test\"Span\"Name")
+        .setSource("span\"Source")
+        .setStartMillis(1532012145123456L)
+        .setDuration(1111111L)
+        .setAnnotations(ImmutableList.of(new Annotation("tag\"k1", "tagv1\"")))
+        .build();
+    StringBuilder sb = new StringBuilder("first\n");
+    SpanSerializer.appendSpan(span, sb);
+    sb.append('\n');
+    SpanSerializer.appendSpan(span, sb);
+    String expected = "\"test\\\"Span\\\"Name\" source=\"span\\\"Source\" " +
+        "spanId=\"4217104a-690d-4927-baff-d9aa779414c2\" traceId=\"d5355bf7-fc8d-48d1-b761-75b170f396e0\" " +
+        "\"tag\\\"k1\"=\"tagv1\\\"\" 1532012145123456 1111111";
+    assertEquals("first\n" + expected + "\n" + expected, sb.toString());
+    assertEquals(expected, serializer.apply(span));
+  }
 }
@@ -27,6 +27,8 @@ import com.wavefront.agent.logsharvesting.InteractiveLogsTester;
 import com.wavefront.agent.preprocessor.AgentPreprocessorConfiguration;
 import com.wavefront.agent.preprocessor.PointLineBlacklistRegexFilter;
 import com.wavefront.agent.preprocessor.PointLineWhitelistRegexFilter;
+import com.wavefront.agent.preprocessor.PreprocessorConfigReloader;
+import com.wavefront.agent.preprocessor.PreprocessorProfiler;
 import com.wavefront.api.WavefrontAPI;
 import com.wavefront.api.agent.AgentConfiguration;
 import com.wavefront.api.agent.Constants;
@@ -103,6 +105,7 @@ import java.util.stream.IntStream;
 
 import javax.annotation.Nullable;
 import javax.management.NotificationEmitter;
+import javax.management.ObjectName;
 import javax.net.ssl.HttpsURLConnection;
 import javax.ws.rs.ClientErrorException;
 import javax.ws.rs.ForbiddenException;
@@ -245,6 +248,22 @@ public abstract class AbstractAgent {
       description = "Max number of histograms to send to Wavefront in one flush (Default: no limit)")
   protected Integer histogramAccumulatorFlushMaxBatchSize = -1;
 
+  @Parameter(
+      names = {"--histogramAccumulatorPressureThreshold"},
+      description = "Accumulator size, as a multiple of the configured accumulator size, at which the accumulator " +
+          "switches to degraded mode (reduced compression for new bins, early dispatch). Bins dispatched early are " +
+          "kept in memory (within histogramAccumulatorSpillSize) until their regular dispatch time, so data received " +
+          "for them later is re-sent merged with the data already sent; bins that don't fit are counted as " +
+          "histogram.accumulator.dispatched_early_untracked, and late data for them replaces the data already sent " +
+          "(Default: 2.0)")
+  protected double histogramAccumulatorPressureThreshold = 2.0d;
+
+  @Parameter(
+      names = {"--histogramAccumulatorSpillSize"},
+      description = "Max number of histograms to keep in memory when the accumulator runs out of space, or when " +
+          "they are dispatched early in degraded mode (Default: 10000)")
+  protected Integer histogramAccumulatorSpillSize = 10000;
+
   @Parameter(
       names = {"--histogramReceiveBufferFlushInterval"},
       description = "Interval to send received points to the processing queue in millis (Default: 100)")
@@ -455,6 +474,15 @@ public abstract class AbstractAgent {
       "persisted to disk. (Default: true)")
   protected boolean persistMessagesCompression = true;
 
+  @Parameter(names = {"--histogramMappedQueue"}, description = "Use memory-mapped segment files instead of Tape " +
+      "for histogram samples persisted to disk. Existing Tape files are migrated on startup, switching back " +
+      "to Tape doesn't migrate samples that are still queued. Experimental. (Default: false)")
+  protected boolean histogramMappedQueue = false;
+
+  @Parameter(names = {"--histogramMappedQueueSegmentSize"}, description = "Size of memory-mapped segment files for " +
+      "histogram samples persisted to disk, in bytes. Default: 33554432")
+  protected Integer histogramMappedQueueSegmentSize = 32 * 1024 * 1024;
+
   @Parameter(
       names = {"--persistAccumulator"},
       description = "Whether the accumulator should persist to disk")
@@ -555,6 +583,10 @@ public abstract class AbstractAgent {
       "on for jaeger thrift formatted data over TChannel protocol. Defaults to none.")
   protected String traceJaegerListenerPorts;
 
+  @Parameter(names = {"--traceJaegerGrpcListenerPorts"}, description = "Comma-separated list of ports on which to " +
+      "listen on for jaeger protobuf formatted data over gRPC (Jaeger collector API). Defaults to none.")
+  protected String traceJaegerGrpcListenerPorts;
+
   @Parameter(names = {"--traceZipkinListenerPorts"}, description = "Comma-separated list of ports on which to listen " +
           "on for zipkin trace data over HTTP. Defaults to none.")
   protected String traceZipkinListenerPorts;
@@ -571,6 +603,48 @@ public abstract class AbstractAgent {
       "ignoring other sampling configuration. Defaults to false" )
   protected boolean traceAlwaysSampleErrors = false;
 
+  @Parameter(names = {"--traceAdaptiveSamplingSpansPerSecond"}, description = "Sample spans so that each " +
+      "application/service/operation gets at most this many spans per second, adjusting sampling rates to " +
+      "observed traffic every few seconds. Applied on top of traceSamplingRate and traceSamplingDuration. " +
+      "Defaults to 0 (disabled).")
+  protected double traceAdaptiveSamplingSpansPerSecond = 0.0d;
+
+  @Parameter(names = {"--traceAdaptiveSamplingPolicyFile"}, description = "File with adaptive sampling budgets " +
+      "(spans per second) per service (<application>/<service>=budget) or per operation " +
+      "(<application>/<service>/<operation>=budget), and a default budget (default=budget). Reloaded when " +
+      "modified, without restarting listeners.")
+  protected String traceAdaptiveSamplingPolicyFile = null;
+
+  @Parameter(names = {"--traceTailSamplingWaitSeconds"}, description = "Buffer spans by trace and make sampling " +
+      "decisions for complete traces, once no new spans have been received for a trace for this number of seconds. " +
+      "Traces with errors, high latency or rare operations are always kept, other traces are sampled according to " +
+      "traceSamplingRate and traceSamplingDuration. Defaults to 0 (sample spans as they arrive).")
+  protected Integer traceTailSamplingWaitSeconds = 0;
+
+  @Parameter(names = {"--traceTailSamplingLatencyMillis"}, description = "Always keep traces with total latency " +
+      "at or above this number of milliseconds when tail sampling is enabled. Defaults to 0 (disabled).")
+  protected Long traceTailSamplingLatencyMillis = 0L;
+
+  @Parameter(names = {"--traceTailSamplingRareOperationThreshold"}, description = "Always keep traces with a " +
+      "service/operation that has been seen fewer than this number of times in the current minute when tail " +
+      "sampling is enabled. Defaults to 0 (disabled).")
+  protected Integer traceTailSamplingRareOperationThreshold = 0;
+
+  @Parameter(names = {"--traceTailSamplingMaxSpans"}, description = "Max number of spans to buffer per port when " +
+      "tail sampling is enabled. Once reached, spans are sampled as they arrive. Default: 100000")
+  protected Integer traceTailSamplingMaxSpans = 100000;
+
+  @Parameter(names = {"--traceShardingPeers"}, description = "Comma-separated list of relay listener addresses " +
+      "(host:port) of all proxies sharing trace data, including this one. When set, spans are forwarded to the " +
+      "proxy that owns their trace, so that all spans of a trace are sampled by the same proxy. Requires " +
+      "--traceShardingSelf and a relay listener port on every proxy, as well as the same trace listener ports " +
+      "on every proxy for forwarded spans to share tail sampling decisions with the spans received directly.")
+  protected String traceShardingPeers = null;
+
+  @Parameter(names = {"--traceShardingSelf"}, description = "Relay listener address (host:port) of this proxy, " +
+      "as it appears in --traceShardingPeers.")
+  protected String traceShardingSelf = null;
+
   @Parameter(names = {"--pushRelayListenerPorts"}, description = "Comma-separated list of ports on which to listen " +
       "on for proxy chaining data. For internal use. Defaults to none.")
   protected String pushRelayListenerPorts;
@@ -636,6 +710,68 @@ public abstract class AbstractAgent {
   @Parameter(names = {"--preprocessorConfigFile"}, description = "Optional YAML file with additional configuration options for filtering and pre-processing points")
   protected String preprocessorConfigFile = null;
 
+  @Parameter(names = {"--preprocessorMatchCacheSize"}, description = "Max number of distinct metric/source/tag values " +
+      "to cache match results for, per preprocessor rule. Only rules without {{...}} placeholders are cached. " +
+      "Default: 0 (disabled)")
+  protected Integer preprocessorMatchCacheSize = 0;
+
+  @Parameter(names = {"--preprocessorConfigReloadSeconds"}, description = "How often (in seconds) to check " +
+      "preprocessorConfigFile for changes and reload rules without restarting listeners. Set to 0 to disable. " +
+      "Default: 5")
+  protected Integer preprocessorConfigReloadSeconds = 5;
+
+  @Parameter(names = {"--preprocessorProfilerSampleRate"}, description = "Time 1 in N preprocessor rule " +
+      "invocations and log per-rule latency, selectivity and suggested filter order every 5 minutes. Can be " +
+      "changed at runtime through the com.wavefront.agent:type=PreprocessorProfiler MBean. Rule CPU time " +
+      "(cpu_nanos metrics) is estimated from sampled invocations, 1 in 64 while profiling is disabled. " +
+      "Default: 0 (disabled)")
+  protected Integer preprocessorProfilerSampleRate = 0;
+
+  @Parameter(names = {"--preprocessorThreads"}, description = "Number of worker threads per Wavefront/trace " +
+      "listener port to run preprocessor rules and decoding on, instead of running them on network I/O threads. " +
+      "Recommended for expensive preprocessor rule sets. Default: 0 (process inline)")
+  protected Integer preprocessorThreads = 0;
+
+  @Parameter(names = {"--preprocessorMaxPendingLines"}, description = "Max number of received lines per port " +
+      "waiting to be processed by preprocessor threads before listeners stop reading from client connections. " +
+      "Only applies when preprocessorThreads is set. Default: 100000")
+  protected Integer preprocessorMaxPendingLines = 100000;
+
+  @Parameter(names = {"--dedupWindowSeconds"}, description = "Drop exact duplicate points (same metric, source, " +
+      "point tags, timestamp and value) received on the same port within this many seconds, e.g. caused by client " +
+      "retries. Set to 0 to disable. Default: 0")
+  protected Integer dedupWindowSeconds = 0;
+
+  @Parameter(names = {"--dedupExpectedPoints"}, description = "Expected number of distinct points per port per " +
+      "dedupWindowSeconds, used to size duplicate detection filters. Memory use is about 2 * 1.44 * " +
+      "log2(1/dedupFalsePositiveRate) bits per point. Default: 1000000")
+  protected Long dedupExpectedPoints = 1000000L;
+
+  @Parameter(names = {"--dedupFalsePositiveRate"}, description = "Probability of a point being mistakenly " +
+      "dropped as a duplicate, as long as no more than dedupExpectedPoints are received per window. " +
+      "Default: 0.000001")
+  protected Double dedupFalsePositiveRate = 0.000001d;
+
+  @Parameter(names = {"--rollupMaxSeries"}, description = "Max number of series per port aggregated by rollup " +
+      "preprocessor rules at once. Points for new series over this limit are sent as is. Default: 100000")
+  protected Integer rollupMaxSeries = 100000;
+
+  @Parameter(names = {"--traceDedupWindowSeconds"}, description = "Drop duplicate spans (same trace ID, span ID, " +
+      "source, start time, duration and span kind) received on the same port within this many seconds, e.g. caused " +
+      "by client retries. Set to 0 to disable. Default: 0")
+  protected Integer traceDedupWindowSeconds = 0;
+
+  @Parameter(names = {"--traceDedupExpectedSpans"}, description = "Expected number of distinct spans per port per " +
+      "traceDedupWindowSeconds, used to size duplicate detection tables. Memory use is 43-86 bytes per span, as " +
+      "tables are sized in powers of two. Default: 1000000")
+  protected Long traceDedupExpectedSpans = 1000000L;
+
+  @Parameter(names = {"--traceDerivedHistogramsInAccumulator"}, description = "Accumulate span duration histograms " +
+      "derived from Jaeger and Zipkin spans in the minute histogram accumulator (configured with histogramMinute* " +
+      "settings), instead of a separate in-memory reporter. Enables the minute accumulator even if " +
+      "histogramMinuteListenerPorts is not set. Defaults to false.")
+  protected boolean traceDerivedHistogramsInAccumulator = false;
+
   @Parameter(names = {"--dataBackfillCutoffHours"}, description = "The cut-off point for what is considered a valid timestamp for back-dated points. Default is 8760 (1 year)")
   protected Integer dataBackfillCutoffHours = 8760;
 
@@ -845,9 +981,29 @@ public abstract class AbstractAgent {
     }
 
     if (preprocessorConfigFile != null) {
+      PreprocessorConfigReloader reloader = new PreprocessorConfigReloader(preprocessors,
+          new File(preprocessorConfigFile));
       FileInputStream stream = new FileInputStream(preprocessorConfigFile);
+      preprocessors.setMatchCacheSize(preprocessorMatchCacheSize);
       preprocessors.loadFromStream(stream);
       logger.info("Preprocessor configuration loaded from " + preprocessorConfigFile);
+      if (preprocessorConfigReloadSeconds > 0) {
+        agentConfigurationExecutor.scheduleWithFixedDelay(reloader, preprocessorConfigReloadSeconds,
+            preprocessorConfigReloadSeconds, TimeUnit.SECONDS);
+      }
+      PreprocessorProfiler profiler = preprocessors.getProfiler();
+      profiler.setSampleRate(preprocessorProfilerSampleRate);
+      try {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(profiler,
+            new ObjectName("com.wavefront.agent:type=PreprocessorProfiler"));
+      } catch (Exception e) {
+        logger.log(Level.WARNING, "Unable to register preprocessor profiler MBean", e);
+      }
+      agentConfigurationExecutor.scheduleWithFixedDelay(() -> {
+        if (profiler.getSampleRate() > 0) {
+          logger.info("Preprocessor profiler report:\n" + profiler.getReport());
+        }
+      }, 5, 5, TimeUnit.MINUTES);
     }
   }
 
@@ -902,6 +1058,10 @@ public abstract class AbstractAgent {
           histogramAccumulatorFlushInterval).longValue();
       histogramAccumulatorFlushMaxBatchSize = config.getNumber("histogramAccumulatorFlushMaxBatchSize",
           histogramAccumulatorFlushMaxBatchSize).intValue();
+      histogramAccumulatorPressureThreshold = Double.parseDouble(config.getRawProperty(
+          "histogramAccumulatorPressureThreshold", String.valueOf(histogramAccumulatorPressureThreshold)).trim());
+      histogramAccumulatorSpillSize = config.getNumber("histogramAccumulatorSpillSize",
+          histogramAccumulatorSpillSize).intValue();
       histogramReceiveBufferFlushInterval = config.getNumber("histogramReceiveBufferFlushInterval",
           histogramReceiveBufferFlushInterval).intValue();
       histogramProcessingQueueScanInterval = config.getNumber("histogramProcessingQueueScanInterval",
@@ -912,6 +1072,9 @@ public abstract class AbstractAgent {
       persistMessages = config.getBoolean("persistMessages", persistMessages);
       persistMessagesCompression = config.getBoolean("persistMessagesCompression",
           persistMessagesCompression);
+      histogramMappedQueue = config.getBoolean("histogramMappedQueue", histogramMappedQueue);
+      histogramMappedQueueSegmentSize = config.getNumber("histogramMappedQueueSegmentSize",
+          histogramMappedQueueSegmentSize).intValue();
 
       // Histogram: deprecated settings - fall back for backwards compatibility
       if (config.isDefined("avgHistogramKeyBytes")) {
@@ -942,7 +1105,7 @@ public abstract class AbstractAgent {
           histogramMinuteCompression, 20, 1000).shortValue();
       histogramMinuteAvgKeyBytes = config.getNumber("histogramMinuteAvgKeyBytes", histogramMinuteAvgKeyBytes).
           intValue();
-      histogramMinuteAvgDigestBytes = 32 + histogramMinuteCompression * 7;
+      histogramMinuteAvgDigestBytes = 32 + histogramMinuteCompression * 5;
       histogramMinuteAvgDigestBytes = config.getNumber("histogramMinuteAvgDigestBytes",
           histogramMinuteAvgDigestBytes).intValue();
       histogramMinuteAccumulatorSize = config.getNumber("histogramMinuteAccumulatorSize",
@@ -956,7 +1119,7 @@ public abstract class AbstractAgent {
       histogramHourCompression = config.getNumber("histogramHourCompression",
           histogramHourCompression, 20, 1000).shortValue();
       histogramHourAvgKeyBytes = config.getNumber("histogramHourAvgKeyBytes", histogramHourAvgKeyBytes).intValue();
-      histogramHourAvgDigestBytes = 32 + histogramHourCompression * 7;
+      histogramHourAvgDigestBytes = 32 + histogramHourCompression * 5;
       histogramHourAvgDigestBytes = config.getNumber("histogramHourAvgDigestBytes", histogramHourAvgDigestBytes).
           intValue();
       histogramHourAccumulatorSize = config.getNumber("histogramHourAccumulatorSize", histogramHourAccumulatorSize).
@@ -970,7 +1133,7 @@ public abstract class AbstractAgent {
       histogramDayCompression = config.getNumber("histogramDayCompression",
           histogramDayCompression, 20, 1000).shortValue();
       histogramDayAvgKeyBytes = config.getNumber("histogramDayAvgKeyBytes", histogramDayAvgKeyBytes).intValue();
-      histogramDayAvgDigestBytes = 32 + histogramDayCompression * 7;
+      histogramDayAvgDigestBytes = 32 + histogramDayCompression * 5;
       histogramDayAvgDigestBytes = config.getNumber("histogramDayAvgDigestBytes", histogramDayAvgDigestBytes).
           intValue();
       histogramDayAccumulatorSize = config.getNumber("histogramDayAccumulatorSize", histogramDayAccumulatorSize).
@@ -984,7 +1147,7 @@ public abstract class AbstractAgent {
       histogramDistCompression = config.getNumber("histogramDistCompression",
           histogramDistCompression, 20, 1000).shortValue();
       histogramDistAvgKeyBytes = config.getNumber("histogramDistAvgKeyBytes", histogramDistAvgKeyBytes).intValue();
-      histogramDistAvgDigestBytes = 32 + histogramDistCompression * 7;
+      histogramDistAvgDigestBytes = 32 + histogramDistCompression * 5;
       histogramDistAvgDigestBytes = config.getNumber("histogramDistAvgDigestBytes", histogramDistAvgDigestBytes).
           intValue();
       histogramDistAccumulatorSize = config.getNumber("histogramDistAccumulatorSize", histogramDistAccumulatorSize).
@@ -1031,13 +1194,46 @@ public abstract class AbstractAgent {
       picklePorts = config.getString("picklePorts", picklePorts);
       traceListenerPorts = config.getString("traceListenerPorts", traceListenerPorts);
       traceJaegerListenerPorts = config.getString("traceJaegerListenerPorts", traceJaegerListenerPorts);
+      traceJaegerGrpcListenerPorts = config.getString("traceJaegerGrpcListenerPorts",
+          traceJaegerGrpcListenerPorts);
       traceZipkinListenerPorts = config.getString("traceZipkinListenerPorts", traceZipkinListenerPorts);
       traceSamplingRate = Double.parseDouble(config.getRawProperty("traceSamplingRate",
           String.valueOf(traceSamplingRate)).trim());
       traceSamplingDuration = config.getNumber("traceSamplingDuration", traceSamplingDuration).intValue();
+      traceAdaptiveSamplingSpansPerSecond = Double.parseDouble(config.getRawProperty(
+          "traceAdaptiveSamplingSpansPerSecond", String.valueOf(traceAdaptiveSamplingSpansPerSecond)).trim());
+      traceAdaptiveSamplingPolicyFile = config.getString("traceAdaptiveSamplingPolicyFile",
+          traceAdaptiveSamplingPolicyFile);
+      traceTailSamplingWaitSeconds = config.getNumber("traceTailSamplingWaitSeconds",
+          traceTailSamplingWaitSeconds).intValue();
+      traceTailSamplingLatencyMillis = config.getNumber("traceTailSamplingLatencyMillis",
+          traceTailSamplingLatencyMillis).longValue();
+      traceTailSamplingRareOperationThreshold = config.getNumber("traceTailSamplingRareOperationThreshold",
+          traceTailSamplingRareOperationThreshold).intValue();
+      traceTailSamplingMaxSpans = config.getNumber("traceTailSamplingMaxSpans", traceTailSamplingMaxSpans).intValue();
+      traceShardingPeers = config.getString("traceShardingPeers", traceShardingPeers);
+      traceShardingSelf = config.getString("traceShardingSelf", traceShardingSelf);
       pushRelayListenerPorts = config.getString("pushRelayListenerPorts", pushRelayListenerPorts);
       bufferFile = config.getString("buffer", bufferFile);
       preprocessorConfigFile = config.getString("preprocessorConfigFile", preprocessorConfigFile);
+      preprocessorMatchCacheSize = config.getNumber("preprocessorMatchCacheSize",
+          preprocessorMatchCacheSize).intValue();
+      preprocessorConfigReloadSeconds = config.getNumber("preprocessorConfigReloadSeconds",
+          preprocessorConfigReloadSeconds).intValue();
+      preprocessorProfilerSampleRate = config.getNumber("preprocessorProfilerSampleRate",
+          preprocessorProfilerSampleRate).intValue();
+      preprocessorThreads = config.getNumber("preprocessorThreads", preprocessorThreads).intValue();
+      preprocessorMaxPendingLines = config.getNumber("preprocessorMaxPendingLines",
+          preprocessorMaxPendingLines).intValue();
+      dedupWindowSeconds = config.getNumber("dedupWindowSeconds", dedupWindowSeconds).intValue();
+      dedupExpectedPoints = config.getNumber("dedupExpectedPoints", dedupExpectedPoints).longValue();
+      dedupFalsePositiveRate = Double.parseDouble(config.getRawProperty("dedupFalsePositiveRate",
+          String.valueOf(dedupFalsePositiveRate)).trim());
+      rollupMaxSeries = config.getNumber("rollupMaxSeries", rollupMaxSeries).intValue();
+      traceDedupWindowSeconds = config.getNumber("traceDedupWindowSeconds", traceDedupWindowSeconds).intValue();
+      traceDedupExpectedSpans = config.getNumber("traceDedupExpectedSpans", traceDedupExpectedSpans).longValue();
+      traceDerivedHistogramsInAccumulator = config.getBoolean("traceDerivedHistogramsInAccumulator",
+          traceDerivedHistogramsInAccumulator);
       dataBackfillCutoffHours = config.getNumber("dataBackfillCutoffHours", dataBackfillCutoffHours).intValue();
       dataPrefillCutoffHours = config.getNumber("dataPrefillCutoffHours", dataPrefillCutoffHours).intValue();
       filebeatPort = config.getNumber("filebeatPort", filebeatPort).intValue();
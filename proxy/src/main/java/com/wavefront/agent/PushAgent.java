@@ -8,7 +8,7 @@ import com.google.common.collect.ImmutableMap;
 
 import com.squareup.tape.ObjectQueue;
 import com.tdunning.math.stats.AgentDigest;
-import com.tdunning.math.stats.AgentDigest.AgentDigestMarshaller;
+import com.tdunning.math.stats.AgentDigest.AgentDigestCompactMarshaller;
 import com.uber.tchannel.api.TChannel;
 import com.uber.tchannel.channels.Connection;
 import com.wavefront.agent.channel.CachingGraphiteHostAnnotator;
@@ -17,7 +17,11 @@ import com.wavefront.agent.channel.IdleStateEventHandler;
 import com.wavefront.agent.channel.PlainTextOrHttpFrameDecoder;
 import com.wavefront.agent.config.ConfigurationException;
 import com.wavefront.agent.formatter.GraphiteFormatter;
+import com.wavefront.agent.handlers.HandlerKey;
 import com.wavefront.agent.handlers.InternalProxyWavefrontClient;
+import com.wavefront.agent.handlers.ReportPointDeduplicator;
+import com.wavefront.agent.handlers.ReportPointRollup;
+import com.wavefront.agent.handlers.SpanDeduplicator;
 import com.wavefront.agent.handlers.ReportableEntityHandlerFactory;
 import com.wavefront.agent.handlers.ReportableEntityHandlerFactoryImpl;
 import com.wavefront.agent.handlers.SenderTaskFactory;
@@ -31,26 +35,35 @@ import com.wavefront.agent.histogram.Utils.HistogramKey;
 import com.wavefront.agent.histogram.Utils.HistogramKeyMarshaller;
 import com.wavefront.agent.histogram.accumulator.AccumulationCache;
 import com.wavefront.agent.histogram.accumulator.AccumulationTask;
+import com.wavefront.agent.histogram.accumulator.AccumulatorPressureMonitor;
+import com.wavefront.agent.histogram.accumulator.BatchingAccumulator;
+import com.wavefront.agent.histogram.tape.MappedQueueDeck;
 import com.wavefront.agent.histogram.tape.TapeDeck;
 import com.wavefront.agent.histogram.tape.TapeStringListConverter;
 import com.wavefront.agent.listeners.ChannelByteArrayHandler;
 import com.wavefront.agent.listeners.DataDogPortUnificationHandler;
 import com.wavefront.agent.listeners.JsonMetricsEndpoint;
+import com.wavefront.agent.listeners.LineProcessingPipeline;
 import com.wavefront.agent.listeners.OpenTSDBPortUnificationHandler;
 import com.wavefront.agent.listeners.RelayPortUnificationHandler;
 import com.wavefront.agent.listeners.WavefrontPortUnificationHandler;
 import com.wavefront.agent.listeners.WriteHttpJsonMetricsEndpoint;
+import com.wavefront.agent.listeners.tracing.JaegerGrpcCollectorHandler;
 import com.wavefront.agent.listeners.tracing.JaegerThriftCollectorHandler;
 import com.wavefront.agent.listeners.tracing.TracePortUnificationHandler;
+import com.wavefront.agent.listeners.tracing.TraceShardRouter;
 import com.wavefront.agent.listeners.tracing.ZipkinPortUnificationHandler;
 import com.wavefront.agent.logsharvesting.FilebeatIngester;
 import com.wavefront.agent.logsharvesting.LogsIngester;
 import com.wavefront.agent.logsharvesting.RawLogsIngester;
 import com.wavefront.agent.preprocessor.ReportPointAddPrefixTransformer;
 import com.wavefront.agent.preprocessor.ReportPointTimestampInRangeFilter;
+import com.wavefront.agent.sampler.AdaptiveSampler;
 import com.wavefront.agent.sampler.SpanSamplerUtils;
+import com.wavefront.agent.sampler.TailSampler;
 import com.wavefront.api.agent.AgentConfiguration;
 import com.wavefront.api.agent.Constants;
+import com.wavefront.common.Clock;
 import com.wavefront.common.NamedThreadFactory;
 import com.wavefront.common.TaggedMetricName;
 import com.wavefront.data.ReportableEntityType;
@@ -93,13 +106,16 @@ import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 import java.util.logging.Level;
 
 import javax.annotation.Nullable;
 
+import io.grpc.netty.shaded.io.grpc.netty.NettyServerBuilder;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelInboundHandler;
 import io.netty.channel.ChannelInitializer;
@@ -120,7 +136,10 @@ import static com.google.common.base.Preconditions.checkArgument;
 public class PushAgent extends AbstractAgent {
 
   protected final List<Thread> managedThreads = new ArrayList<>();
+  protected final List<LineProcessingPipeline> managedPipelines = new ArrayList<>();
   protected final IdentityHashMap<ChannelOption<?>, Object> childChannelOptions = new IdentityHashMap<>();
+  // tail samplers of trace listeners by handle, shared with the relay listener for spans forwarded by peers
+  protected final Map<String, TailSampler> tailSamplers = new ConcurrentHashMap<>();
   protected ScheduledExecutorService histogramExecutor;
   protected ScheduledExecutorService histogramScanExecutor;
   protected ScheduledExecutorService histogramFlushExecutor;
@@ -129,6 +148,10 @@ public class PushAgent extends AbstractAgent {
   protected CachingGraphiteHostAnnotator remoteHostAnnotator;
   protected SenderTaskFactory senderTaskFactory;
   protected ReportableEntityHandlerFactory handlerFactory;
+  @Nullable
+  protected AdaptiveSampler adaptiveSampler;
+  @Nullable
+  protected BatchingAccumulator spanDurationAccumulator;
 
   public static void main(String[] args) throws IOException {
     // Start the ssh daemon
@@ -162,7 +185,10 @@ public class PushAgent extends AbstractAgent {
     remoteHostAnnotator = new CachingGraphiteHostAnnotator(customSourceTags, disableRdnsLookup);
     senderTaskFactory = new SenderTaskFactoryImpl(agentAPI, agentId, pushRateLimiter,
         pushFlushInterval, pushFlushMaxPoints, pushMemoryBufferLimit);
-    handlerFactory = new ReportableEntityHandlerFactoryImpl(senderTaskFactory, pushBlockedSamples, flushThreads);
+    handlerFactory = new ReportableEntityHandlerFactoryImpl(senderTaskFactory, pushBlockedSamples, flushThreads,
+        this::createRollup, this::createDeduplicator, this::createSpanDeduplicator);
+    // send points aggregated by rollup rules and flush handler buffers to the queue before the proxy exits
+    shutdownTasks.add(0, handlerFactory::shutdown);
 
     if (pushListenerPorts != null) {
       Iterable<String> ports = Splitter.on(",").omitEmptyStrings().trimResults().split(pushListenerPorts);
@@ -190,8 +216,10 @@ public class PushAgent extends AbstractAgent {
           Collections.emptyIterator() :
           Splitter.on(",").omitEmptyStrings().trimResults().split(histogramDistListenerPorts).iterator();
 
+      // span duration histograms can use the minute accumulator without any minute ports
+      boolean minuteAccumulatorEnabled = histMinPorts.hasNext() || traceDerivedHistogramsInAccumulator;
       int activeHistogramAggregationTypes = (histDayPorts.hasNext() ? 1 : 0) + (histHourPorts.hasNext() ? 1 : 0) +
-          (histMinPorts.hasNext() ? 1 : 0) + (histDistPorts.hasNext() ? 1 : 0);
+          (minuteAccumulatorEnabled ? 1 : 0) + (histDistPorts.hasNext() ? 1 : 0);
       if (activeHistogramAggregationTypes > 0) { /*Histograms enabled*/
         histogramExecutor = Executors.newScheduledThreadPool(1 + activeHistogramAggregationTypes,
             new NamedThreadFactory("histogram-service"));
@@ -219,19 +247,27 @@ public class PushAgent extends AbstractAgent {
             getFlushTasks(Constants.PUSH_FORMAT_HISTOGRAM, "histogram ports"));
 
         // Input queue factory
-        TapeDeck<List<String>> accumulatorDeck = new TapeDeck<>(
-            persistMessagesCompression
-                ? TapeStringListConverter.getCompressionEnabledInstance()
-                : TapeStringListConverter.getDefaultInstance(),
-            persistMessages);
+        Function<File, ObjectQueue<List<String>>> accumulatorDeck;
+        if (persistMessages && histogramMappedQueue) {
+          MappedQueueDeck mappedQueueDeck = new MappedQueueDeck(histogramMappedQueueSegmentSize);
+          shutdownTasks.add(mappedQueueDeck::close);
+          accumulatorDeck = mappedQueueDeck::getTape;
+        } else {
+          accumulatorDeck = new TapeDeck<>(
+              persistMessagesCompression
+                  ? TapeStringListConverter.getCompressionEnabledInstance()
+                  : TapeStringListConverter.getDefaultInstance(),
+              persistMessages)::getTape;
+        }
 
         Decoder<String> distributionDecoder = new HistogramDecoder("unknown");
         Decoder<String> graphiteDecoder = new GraphiteDecoder("unknown", customSourceTags);
-        if (histMinPorts.hasNext()) {
-          startHistogramListeners(histMinPorts, graphiteDecoder, histogramHandler, accumulatorDeck,
-              Utils.Granularity.MINUTE, histogramMinuteFlushSecs, histogramMinuteAccumulators,
-              histogramMinuteMemoryCache, baseDirectory, histogramMinuteAccumulatorSize, histogramMinuteAvgKeyBytes,
-              histogramMinuteAvgDigestBytes, histogramMinuteCompression);
+        if (minuteAccumulatorEnabled) {
+          AccumulationCache minuteAccumulator = startHistogramListeners(histMinPorts, graphiteDecoder,
+              histogramHandler, accumulatorDeck, Utils.Granularity.MINUTE, histogramMinuteFlushSecs,
+              histogramMinuteAccumulators, histogramMinuteMemoryCache, baseDirectory, histogramMinuteAccumulatorSize,
+              histogramMinuteAvgKeyBytes, histogramMinuteAvgDigestBytes, histogramMinuteCompression);
+          spanDurationAccumulator = createSpanDurationAccumulator(minuteAccumulator);
         }
 
         if (histHourPorts.hasNext()) {
@@ -288,19 +324,7 @@ public class PushAgent extends AbstractAgent {
       );
     }
     if (dataDogJsonPorts != null) {
-      HttpClient httpClient = HttpClientBuilder.create().
-          useSystemProperties().
-          setUserAgent(httpUserAgent).
-          setConnectionTimeToLive(1, TimeUnit.MINUTES).
-          setRetryHandler(new DefaultHttpRequestRetryHandler(httpAutoRetries, true)).
-          setDefaultRequestConfig(
-              RequestConfig.custom().
-                  setContentCompressionEnabled(true).
-                  setRedirectsEnabled(true).
-                  setConnectTimeout(httpConnectTimeout).
-                  setConnectionRequestTimeout(httpConnectTimeout).
-                  setSocketTimeout(httpRequestTimeout).build()).
-          build();
+      HttpClient httpClient = createHttpClient();
 
       Splitter.on(",").omitEmptyStrings().trimResults().split(dataDogJsonPorts).forEach(
           strPort -> startDataDogListener(strPort, handlerFactory, httpClient)
@@ -311,6 +335,7 @@ public class PushAgent extends AbstractAgent {
     Sampler durationSampler = SpanSamplerUtils.getDurationSampler(traceSamplingDuration);
     List<Sampler> samplers = SpanSamplerUtils.fromSamplers(rateSampler, durationSampler);
     Sampler compositeSampler = new CompositeSampler(samplers);
+    adaptiveSampler = createAdaptiveSampler();
     if (traceListenerPorts != null) {
       Splitter.on(",").omitEmptyStrings().trimResults().split(traceListenerPorts).forEach(
           strPort -> startTraceListener(strPort, handlerFactory, compositeSampler)
@@ -322,9 +347,15 @@ public class PushAgent extends AbstractAgent {
                 new InternalProxyWavefrontClient(handlerFactory, strPort), compositeSampler)
       );
     }
+    if (traceJaegerGrpcListenerPorts != null) {
+      Splitter.on(",").omitEmptyStrings().trimResults().split(traceJaegerGrpcListenerPorts).forEach(
+          strPort -> startTraceJaegerGrpcListener(strPort, handlerFactory,
+              new InternalProxyWavefrontClient(handlerFactory, strPort), compositeSampler)
+      );
+    }
     if (pushRelayListenerPorts != null) {
       Splitter.on(",").omitEmptyStrings().trimResults().split(pushRelayListenerPorts).forEach(
-          strPort -> startRelayListener(strPort, handlerFactory)
+          strPort -> startRelayListener(strPort, handlerFactory, compositeSampler)
       );
     }
     if (traceZipkinListenerPorts != null) {
@@ -565,7 +596,11 @@ public class PushAgent extends AbstractAgent {
 
 
     ChannelHandler channelHandler = new TracePortUnificationHandler(strPort, tokenAuthenticator,
-        new SpanDecoder("unknown"), preprocessors.forPort(strPort), handlerFactory, sampler, traceAlwaysSampleErrors);
+        new SpanDecoder("unknown"), preprocessors.forPort(strPort), handlerFactory, sampler, traceAlwaysSampleErrors).
+        withTailSampler(createTailSampler(strPort, handlerFactory, sampler)).
+        withAdaptiveSampler(adaptiveSampler).
+        withShardRouter(createTraceShardRouter(strPort)).
+        withLineProcessingPipeline(createLineProcessingPipeline(strPort));
 
     startAsManagedThread(new TcpIngester(createInitializer(channelHandler, strPort), port)
         .withChildChannelOptions(childChannelOptions), "listener-plaintext-trace-" + port);
@@ -590,7 +625,11 @@ public class PushAgent extends AbstractAgent {
         server.
             makeSubChannel("jaeger-collector", Connection.Direction.IN).
             register("Collector::submitBatches", new JaegerThriftCollectorHandler(strPort, handlerFactory,
-                wfSender, traceDisabled, preprocessors.forPort(strPort), sampler, traceAlwaysSampleErrors));
+                wfSender, traceDisabled, preprocessors.forPort(strPort), sampler, traceAlwaysSampleErrors).
+                withDurationAccumulator(spanDurationAccumulator).
+                withTailSampler(createTailSampler(strPort, handlerFactory, sampler)).
+                withAdaptiveSampler(adaptiveSampler).
+                withShardRouter(createTraceShardRouter(strPort)));
         server.listen().channel().closeFuture().sync();
         server.shutdown(false);
       } catch (InterruptedException e) {
@@ -604,6 +643,44 @@ public class PushAgent extends AbstractAgent {
     logger.info("listening on port: " + strPort + " for trace data (Jaeger format)");
   }
 
+  protected void startTraceJaegerGrpcListener(
+      String strPort,
+      ReportableEntityHandlerFactory handlerFactory,
+      @Nullable WavefrontSender wfSender,
+      Sampler sampler) {
+    if (tokenAuthenticator.authRequired()) {
+      logger.warning("Port: " + strPort + " is not compatible with HTTP authentication, ignoring");
+      return;
+    }
+    final int port = Integer.parseInt(strPort);
+    startAsManagedThread(() -> {
+      activeListeners.inc();
+      io.grpc.Server server = null;
+      try {
+        server = NettyServerBuilder.forPort(port).
+            addService(new JaegerGrpcCollectorHandler(new JaegerThriftCollectorHandler(strPort, handlerFactory,
+                wfSender, traceDisabled, preprocessors.forPort(strPort), sampler, traceAlwaysSampleErrors).
+                withDurationAccumulator(spanDurationAccumulator).
+                withTailSampler(createTailSampler(strPort, handlerFactory, sampler)).
+                withAdaptiveSampler(adaptiveSampler).
+                withShardRouter(createTraceShardRouter(strPort)))).
+            build().
+            start();
+        server.awaitTermination();
+      } catch (InterruptedException e) {
+        logger.info("Listener on port " + strPort + " shut down.");
+      } catch (Exception e) {
+        logger.log(Level.SEVERE, "Jaeger gRPC trace collector exception", e);
+      } finally {
+        if (server != null) {
+          server.shutdownNow();
+        }
+        activeListeners.dec();
+      }
+    }, "listener-jaeger-grpc-" + strPort);
+    logger.info("listening on port: " + strPort + " for trace data (Jaeger gRPC format)");
+  }
+
   protected void startTraceZipkinListener(
       String strPort,
       ReportableEntityHandlerFactory handlerFactory,
@@ -611,7 +688,11 @@ public class PushAgent extends AbstractAgent {
       Sampler sampler) {
     final int port = Integer.parseInt(strPort);
     ChannelHandler channelHandler = new ZipkinPortUnificationHandler(strPort, handlerFactory, wfSender, traceDisabled,
-        preprocessors.forPort(strPort), sampler, traceAlwaysSampleErrors);
+        preprocessors.forPort(strPort), sampler, traceAlwaysSampleErrors).
+        withDurationAccumulator(spanDurationAccumulator).
+        withTailSampler(createTailSampler(strPort, handlerFactory, sampler)).
+        withAdaptiveSampler(adaptiveSampler).
+        withShardRouter(createTraceShardRouter(strPort));
     startAsManagedThread(new TcpIngester(createInitializer(channelHandler, strPort), port).
         withChildChannelOptions(childChannelOptions), "listener-zipkin-trace-" + port);
     logger.info("listening on port: " + strPort + " for trace data (Zipkin format)");
@@ -636,13 +717,15 @@ public class PushAgent extends AbstractAgent {
         ReportableEntityType.HISTOGRAM, new ReportPointDecoderWrapper(new HistogramDecoder("unknown")));
     WavefrontPortUnificationHandler wavefrontPortUnificationHandler = new WavefrontPortUnificationHandler(strPort,
         tokenAuthenticator, decoders, handlerFactory, hostAnnotator, preprocessors.forPort(strPort));
+    wavefrontPortUnificationHandler.withLineProcessingPipeline(createLineProcessingPipeline(strPort));
     startAsManagedThread(
         new TcpIngester(createInitializer(wavefrontPortUnificationHandler, strPort), port).
             withChildChannelOptions(childChannelOptions), "listener-graphite-" + port);
   }
 
   @VisibleForTesting
-  protected void startRelayListener(String strPort, ReportableEntityHandlerFactory handlerFactory) {
+  protected void startRelayListener(String strPort, ReportableEntityHandlerFactory handlerFactory,
+                                    Sampler sampler) {
     final int port = Integer.parseInt(strPort);
 
     if (prefix != null && !prefix.isEmpty()) {
@@ -653,32 +736,42 @@ public class PushAgent extends AbstractAgent {
 
     Map<ReportableEntityType, ReportableEntityDecoder> decoders = ImmutableMap.of(
         ReportableEntityType.POINT, getDecoderInstance(),
-        ReportableEntityType.HISTOGRAM, new ReportPointDecoderWrapper(new HistogramDecoder("unknown")));
-    ChannelHandler channelHandler = new RelayPortUnificationHandler(strPort, tokenAuthenticator, decoders,
-        handlerFactory, preprocessors.forPort(strPort));
+        ReportableEntityType.HISTOGRAM, new ReportPointDecoderWrapper(new HistogramDecoder("unknown")),
+        ReportableEntityType.TRACE, new SpanDecoder("unknown"));
+    RelayPortUnificationHandler channelHandler = new RelayPortUnificationHandler(strPort, tokenAuthenticator,
+        decoders, handlerFactory, preprocessors.forPort(strPort));
+    if (traceShardingPeers != null) {
+      // accept spans forwarded by other proxies in the fleet
+      channelHandler.withTraceSampling(sampler, traceAlwaysSampleErrors,
+          tailSamplers::get).withAdaptiveSampler(adaptiveSampler);
+    }
     startAsManagedThread(
         new TcpIngester(createInitializer(channelHandler, strPort), port).
             withChildChannelOptions(childChannelOptions), "listener-relay-" + port);
   }
 
-  protected void startHistogramListeners(Iterator<String> ports, Decoder<String> decoder, PointHandler pointHandler,
-                                         TapeDeck<List<String>> receiveDeck, @Nullable Utils.Granularity granularity,
-                                         int flushSecs, int fanout, boolean memoryCacheEnabled, File baseDirectory,
-                                         Long accumulatorSize, int avgKeyBytes, int avgDigestBytes, short compression) {
+  @Nullable
+  protected AccumulationCache startHistogramListeners(Iterator<String> ports, Decoder<String> decoder,
+                                                      PointHandler pointHandler,
+                                                      Function<File, ObjectQueue<List<String>>> receiveDeck,
+                                                      @Nullable Utils.Granularity granularity,
+                                                      int flushSecs, int fanout, boolean memoryCacheEnabled,
+                                                      File baseDirectory, Long accumulatorSize, int avgKeyBytes,
+                                                      int avgDigestBytes, short compression) {
     if (tokenAuthenticator.authRequired()) {
       logger.warning("Histograms are not compatible with HTTP authentication, ignoring");
-      return;
+      return null;
     }
     String listenerBinType = Utils.Granularity.granularityToString(granularity);
     // Accumulator
-    MapLoader<HistogramKey, AgentDigest, HistogramKeyMarshaller, AgentDigestMarshaller> mapLoader = new MapLoader<>(
+    MapLoader<HistogramKey, AgentDigest, HistogramKeyMarshaller, AgentDigestCompactMarshaller> mapLoader = new MapLoader<>(
         HistogramKey.class,
         AgentDigest.class,
         accumulatorSize,
         avgKeyBytes,
         avgDigestBytes,
         HistogramKeyMarshaller.get(),
-        AgentDigestMarshaller.get(),
+        AgentDigestCompactMarshaller.get(),
         persistAccumulator);
 
     File accumulationFile = new File(baseDirectory, "accumulator." + listenerBinType);
@@ -706,7 +799,13 @@ public class PushAgent extends AbstractAgent {
         TimeUnit.SECONDS);
 
     AccumulationCache cachedAccumulator = new AccumulationCache(accumulator,
-        (memoryCacheEnabled ? accumulatorSize : 0), null);
+        (memoryCacheEnabled ? accumulatorSize : 0), histogramAccumulatorSpillSize, null);
+
+    // Switch to degraded mode when running out of space
+    histogramExecutor.scheduleWithFixedDelay(new AccumulatorPressureMonitor(cachedAccumulator, granularity,
+            accumulatorSize, histogramAccumulatorPressureThreshold, TimeUnit.SECONDS.toMillis(flushSecs) / 2,
+            System::currentTimeMillis),
+        10, 10, TimeUnit.SECONDS);
 
     // Schedule write-backs
     histogramExecutor.scheduleWithFixedDelay(
@@ -749,7 +848,7 @@ public class PushAgent extends AbstractAgent {
       logger.info("listening on port: " + port + " for histogram samples, accumulating to the " +
           listenerBinType);
     });
-
+    return cachedAccumulator;
   }
 
   /**
@@ -762,7 +861,7 @@ public class PushAgent extends AbstractAgent {
       AccumulationCache accumulationCache,
       File directory,
       @Nullable Utils.Granularity granularity,
-      TapeDeck<List<String>> receiveDeck,
+      Function<File, ObjectQueue<List<String>>> receiveDeck,
       long timeToLiveMillis,
       int fanout,
       short compression) {
@@ -772,7 +871,7 @@ public class PushAgent extends AbstractAgent {
 
     for (int i = 0; i < fanout; ++i) {
       File tapeFile = new File(directory, "Port_" + portAsString + "_" + i);
-      ObjectQueue<List<String>> receiveTape = receiveDeck.getTape(tapeFile);
+      ObjectQueue<List<String>> receiveTape = receiveDeck.apply(tapeFile);
 
       // Set-up scanner
       AccumulationTask scanTask = new AccumulationTask(
@@ -890,6 +989,112 @@ public class PushAgent extends AbstractAgent {
     thread.start();
   }
 
+  protected ReportPointRollup createRollup(String handle) {
+    return new ReportPointRollup(handle, rollupMaxSeries, preprocessors.rollupRulesFor(handle));
+  }
+
+  @Nullable
+  protected ReportPointDeduplicator createDeduplicator(String handle) {
+    if (dedupWindowSeconds <= 0) return null;
+    ReportPointDeduplicator deduplicator = new ReportPointDeduplicator(handle,
+        TimeUnit.SECONDS.toMillis(dedupWindowSeconds), dedupExpectedPoints, dedupFalsePositiveRate, Clock.now());
+    logger.info("Duplicate point detection enabled for " + handle + ", using " +
+        (deduplicator.sizeInBytes() / 1024) + "KB");
+    return deduplicator;
+  }
+
+  @Nullable
+  protected SpanDeduplicator createSpanDeduplicator(String handle) {
+    if (traceDedupWindowSeconds <= 0) return null;
+    SpanDeduplicator deduplicator = new SpanDeduplicator(handle, TimeUnit.SECONDS.toMillis(traceDedupWindowSeconds),
+        traceDedupExpectedSpans, Clock.now());
+    logger.info("Duplicate span detection enabled for " + handle + ", using " +
+        (deduplicator.sizeInBytes() / 1024) + "KB");
+    return deduplicator;
+  }
+
+  @Nullable
+  @SuppressWarnings("unchecked")
+  protected TailSampler createTailSampler(String strPort, ReportableEntityHandlerFactory handlerFactory,
+                                          Sampler sampler) {
+    if (traceTailSamplingWaitSeconds <= 0) return null;
+    TailSampler tailSampler = new TailSampler(strPort,
+        handlerFactory.getHandler(HandlerKey.of(ReportableEntityType.TRACE, strPort)), sampler,
+        TimeUnit.SECONDS.toMillis(traceTailSamplingWaitSeconds), traceTailSamplingLatencyMillis,
+        traceTailSamplingRareOperationThreshold, traceTailSamplingMaxSpans, Clock.now());
+    tailSampler.start();
+    // report spans of buffered traces before handler buffers are flushed on shutdown
+    shutdownTasks.add(0, tailSampler::shutdown);
+    // spans forwarded by other proxies for this listener are sampled together with the ones it receives directly
+    tailSamplers.put(strPort, tailSampler);
+    logger.info("Tail-based trace sampling enabled for " + strPort);
+    return tailSampler;
+  }
+
+  @Nullable
+  protected AdaptiveSampler createAdaptiveSampler() {
+    if (traceAdaptiveSamplingSpansPerSecond <= 0 && traceAdaptiveSamplingPolicyFile == null) return null;
+    AdaptiveSampler sampler = new AdaptiveSampler(traceAdaptiveSamplingSpansPerSecond,
+        traceAdaptiveSamplingPolicyFile == null ? null : new File(traceAdaptiveSamplingPolicyFile), Clock.now());
+    sampler.start();
+    logger.info("Adaptive trace sampling enabled");
+    return sampler;
+  }
+
+  @Nullable
+  protected BatchingAccumulator createSpanDurationAccumulator(@Nullable AccumulationCache minuteAccumulator) {
+    if (!traceDerivedHistogramsInAccumulator || minuteAccumulator == null) return null;
+    // up to 256 durations per series are merged into the accumulator at once
+    BatchingAccumulator accumulator = new BatchingAccumulator(minuteAccumulator, Utils.Granularity.MINUTE,
+        histogramMinuteCompression, TimeUnit.SECONDS.toMillis(histogramMinuteFlushSecs), 256);
+    histogramExecutor.scheduleWithFixedDelay(accumulator, 1, 1, TimeUnit.SECONDS);
+    // merge buffered samples before the accumulator itself is flushed on shutdown
+    shutdownTasks.add(0, accumulator);
+    logger.info("Span duration histograms are accumulated in the minute histogram accumulator");
+    return accumulator;
+  }
+
+  @Nullable
+  protected TraceShardRouter createTraceShardRouter(String strPort) {
+    if (traceShardingPeers == null) return null;
+    List<String> peers = Splitter.on(",").omitEmptyStrings().trimResults().splitToList(traceShardingPeers);
+    if (traceShardingSelf == null || !peers.contains(traceShardingSelf)) {
+      logger.severe("traceShardingSelf must be one of traceShardingPeers, trace sharding disabled for " + strPort);
+      return null;
+    }
+    TraceShardRouter shardRouter = new TraceShardRouter(strPort, peers, traceShardingSelf, createHttpClient());
+    shardRouter.start();
+    // process queued spans locally before tail samplers are shut down
+    shutdownTasks.add(0, shardRouter::shutdown);
+    logger.info("Trace sharding enabled for " + strPort + " across " + peers.size() + " proxies");
+    return shardRouter;
+  }
+
+  protected HttpClient createHttpClient() {
+    return HttpClientBuilder.create().
+        useSystemProperties().
+        setUserAgent(httpUserAgent).
+        setConnectionTimeToLive(1, TimeUnit.MINUTES).
+        setRetryHandler(new DefaultHttpRequestRetryHandler(httpAutoRetries, true)).
+        setDefaultRequestConfig(
+            RequestConfig.custom().
+                setContentCompressionEnabled(true).
+                setRedirectsEnabled(true).
+                setConnectTimeout(httpConnectTimeout).
+                setConnectionRequestTimeout(httpConnectTimeout).
+                setSocketTimeout(httpRequestTimeout).build()).
+        build();
+  }
+
+  @Nullable
+  protected LineProcessingPipeline createLineProcessingPipeline(String strPort) {
+    if (preprocessorThreads <= 0) return null;
+    LineProcessingPipeline pipeline = new LineProcessingPipeline(strPort, preprocessorThreads,
+        preprocessorMaxPendingLines);
+    managedPipelines.add(pipeline);
+    return pipeline;
+  }
+
   @Override
   public void stopListeners() {
     for (Thread thread : managedThreads) {
@@ -900,5 +1105,9 @@ public class PushAgent extends AbstractAgent {
         // ignore
       }
     }
+    // process lines received before listeners were stopped
+    for (LineProcessingPipeline pipeline : managedPipelines) {
+      pipeline.shutdown(TimeUnit.SECONDS.toMillis(10));
+    }
   }
 }
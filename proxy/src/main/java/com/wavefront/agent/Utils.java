@@ -17,6 +17,7 @@ public abstract class Utils {
 
   private static final Pattern patternUuid = Pattern.compile(
       "(\\w{8})(\\w{4})(\\w{4})(\\w{4})(\\w{12})");
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
 
   /**
    * A lazy initialization wrapper for {@code Supplier}
@@ -71,4 +72,33 @@ public abstract class Utils {
     }
     return addHyphensToUuid(StringUtils.leftPad(id, 32, '0'));
   }
-}
\ No newline at end of file
+
+  /**
+   * Formats a UUID given as two longs in 8-4-4-4-12 (rfc4122) format. Produces the same result as
+   * {@code new UUID(mostSigBits, leastSigBits).toString()}, without creating intermediate objects.
+   *
+   * @param mostSigBits  most significant 64 bits of the UUID.
+   * @param leastSigBits least significant 64 bits of the UUID.
+   * @return a UUID string.
+   */
+  public static String toUuidString(long mostSigBits, long leastSigBits) {
+    char[] chars = new char[36];
+    writeHex(chars, 0, mostSigBits >>> 32, 8);
+    chars[8] = '-';
+    writeHex(chars, 9, mostSigBits >>> 16, 4);
+    chars[13] = '-';
+    writeHex(chars, 14, mostSigBits, 4);
+    chars[18] = '-';
+    writeHex(chars, 19, leastSigBits >>> 48, 4);
+    chars[23] = '-';
+    writeHex(chars, 24, leastSigBits, 12);
+    return new String(chars);
+  }
+
+  private static void writeHex(char[] chars, int offset, long value, int digits) {
+    for (int i = offset + digits - 1; i >= offset; i--) {
+      chars[i] = HEX_DIGITS[(int) (value & 0xF)];
+      value >>>= 4;
+    }
+  }
+}
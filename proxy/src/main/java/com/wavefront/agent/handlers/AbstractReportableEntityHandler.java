@@ -200,6 +200,13 @@ abstract class AbstractReportableEntityHandler<T> implements ReportableEntityHan
     return receivedStats.stream().mapToLong(i -> i).sum() / 300;
   }
 
+  /**
+   * Flush items buffered in sender tasks to the queue, so that they are not lost on shutdown.
+   */
+  void shutdown() {
+    senderTasks.forEach(SenderTask::drainBuffersToQueue);
+  }
+
   protected SenderTask getTask() {
     // roundrobin all tasks, skipping the worst one (usually with the highest number of points)
     int nextTaskId = (int)(roundRobinCounter.getAndIncrement() % senderTasks.size());
@@ -0,0 +1,137 @@
+package com.wavefront.agent.handlers;
+
+import com.google.common.base.Preconditions;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import com.wavefront.common.TaggedMetricName;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+
+import wavefront.report.ReportPoint;
+
+/**
+ * Detects exact duplicate points (same metric, source, point tags, timestamp and value) received within a time
+ * window, e.g. from client or load balancer retries.
+ * <p/>
+ * Point fingerprints are stored in two bloom filters: the current one and the previous one, rotated every
+ * {@code windowMillis}, so a duplicate is detected if it arrives within {@code windowMillis} (and up to twice
+ * that) of the original point. Memory use is fixed and depends on the expected number of distinct points per
+ * window and the false positive rate (the probability of dropping a point that is not a duplicate). Once more
+ * points than expected are received in a window, the false positive rate goes up.
+ * <p/>
+ * Only points with numeric values are checked, histograms are never considered duplicates.
+ */
+public class ReportPointDeduplicator {
+  private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
+  private final long windowMillis;
+  private final long expectedPoints;
+  private final double falsePositiveRate;
+  private volatile Generation generation;
+  private final Counter duplicateCounter;
+
+  /**
+   * @param handle            handle/port number (for metrics).
+   * @param windowMillis      how long to remember points for, in milliseconds.
+   * @param expectedPoints    expected number of distinct points per window.
+   * @param falsePositiveRate desired probability of a point being mistakenly considered a duplicate.
+   * @param now               current time in millis.
+   */
+  public ReportPointDeduplicator(String handle, long windowMillis, long expectedPoints, double falsePositiveRate,
+                                 long now) {
+    Preconditions.checkArgument(windowMillis > 0, "windowMillis must be positive");
+    Preconditions.checkArgument(expectedPoints > 0, "expectedPoints must be positive");
+    Preconditions.checkArgument(falsePositiveRate > 0 && falsePositiveRate < 1,
+        "falsePositiveRate must be between 0 and 1");
+    this.windowMillis = windowMillis;
+    this.expectedPoints = expectedPoints;
+    this.falsePositiveRate = falsePositiveRate;
+    this.generation = new Generation(newFilter(), newFilter(), now + windowMillis);
+    this.duplicateCounter = Metrics.newCounter(new TaggedMetricName("points", "duplicates", "port", handle));
+  }
+
+  /**
+   * Check whether the point is a duplicate of a point seen within the window, and remember it.
+   *
+   * @param point point to check.
+   * @param now   current time in millis.
+   * @return true if the point is a duplicate and should be dropped.
+   */
+  public boolean isDuplicate(@Nonnull ReportPoint point, long now) {
+    if (!(point.getValue() instanceof Number)) {
+      return false;
+    }
+    Generation current = generation;
+    if (now >= current.expiresAt) {
+      current = rotate(now);
+    }
+    long fingerprint = fingerprint(point);
+    if (current.previous.mightContain(fingerprint) || !current.current.put(fingerprint)) {
+      duplicateCounter.inc();
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * @return estimated memory used by both filters, in bytes.
+   */
+  public long sizeInBytes() {
+    // optimal number of bits per filter: -n * ln(p) / ln(2)^2
+    return 2 * (long) Math.ceil(-expectedPoints * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)) / 8);
+  }
+
+  private synchronized Generation rotate(long now) {
+    // filters are large, make sure only one thread allocates a new one
+    Generation current = generation;
+    if (now >= current.expiresAt) {
+      // if nothing was received for over a window, the current filter is too old to keep as well
+      current = new Generation(now >= current.expiresAt + windowMillis ? newFilter() : current.current,
+          newFilter(), now + windowMillis);
+      generation = current;
+    }
+    return current;
+  }
+
+  private BloomFilter<Long> newFilter() {
+    return BloomFilter.create(Funnels.longFunnel(), expectedPoints, falsePositiveRate);
+  }
+
+  private static long fingerprint(ReportPoint point) {
+    Hasher hasher = HASH_FUNCTION.newHasher().
+        putUnencodedChars(point.getMetric()).putChar('\0').
+        putUnencodedChars(point.getHost()).putChar('\0').
+        putLong(point.getTimestamp()).
+        putDouble(((Number) point.getValue()).doubleValue());
+    long fingerprint = hasher.hash().asLong();
+    Map<String, String> annotations = point.getAnnotations();
+    if (annotations != null) {
+      for (Map.Entry<String, String> tag : annotations.entrySet()) {
+        // tag order doesn't matter for point identity, combine tag hashes commutatively
+        fingerprint += HASH_FUNCTION.newHasher().putUnencodedChars(tag.getKey()).putChar('=').
+            putUnencodedChars(tag.getValue()).hash().asLong() * 0x9E3779B97F4A7C15L;
+      }
+    }
+    return fingerprint;
+  }
+
+  private static class Generation {
+    private final BloomFilter<Long> previous;
+    private final BloomFilter<Long> current;
+    private final long expiresAt;
+
+    Generation(BloomFilter<Long> previous, BloomFilter<Long> current, long expiresAt) {
+      this.previous = previous;
+      this.current = current;
+      this.expiresAt = expiresAt;
+    }
+  }
+}
@@ -17,6 +17,8 @@ import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.annotation.Nullable;
+
 import wavefront.report.ReportPoint;
 
 import static com.wavefront.data.Validation.validatePoint;
@@ -36,6 +38,10 @@ class ReportPointHandlerImpl extends AbstractReportableEntityHandler<ReportPoint
   private final Counter attemptedCounter;
   private final Counter queuedCounter;
   private final Histogram receivedPointLag;
+  @Nullable
+  private final ReportPointRollup rollup;
+  @Nullable
+  private final ReportPointDeduplicator deduplicator;
 
   private boolean logData = false;
   private final double logSampleRate;
@@ -56,6 +62,23 @@ class ReportPointHandlerImpl extends AbstractReportableEntityHandler<ReportPoint
   ReportPointHandlerImpl(final String handle,
                          final int blockedItemsPerBatch,
                          final Collection<SenderTask> senderTasks) {
+    this(handle, blockedItemsPerBatch, senderTasks, null, null);
+  }
+
+  /**
+   * Create new instance.
+   *
+   * @param handle               handle/port number
+   * @param blockedItemsPerBatch controls sample rate of how many blocked points are written into the main log file.
+   * @param senderTasks          sender tasks
+   * @param rollup               optional rollup stage, aggregated points are emitted once a second.
+   * @param deduplicator         optional duplicate point detector, duplicates are dropped.
+   */
+  ReportPointHandlerImpl(final String handle,
+                         final int blockedItemsPerBatch,
+                         final Collection<SenderTask> senderTasks,
+                         @Nullable final ReportPointRollup rollup,
+                         @Nullable final ReportPointDeduplicator deduplicator) {
     super(ReportableEntityType.POINT, handle, blockedItemsPerBatch, new ReportPointSerializer(), senderTasks);
     String logPointsProperty = System.getProperty("wavefront.proxy.logpoints");
     this.logPointsFlag = logPointsProperty != null && logPointsProperty.equalsIgnoreCase("true");
@@ -69,13 +92,30 @@ class ReportPointHandlerImpl extends AbstractReportableEntityHandler<ReportPoint
 
     this.statisticOutputExecutor.scheduleAtFixedRate(this::printStats, 10, 10, TimeUnit.SECONDS);
     this.statisticOutputExecutor.scheduleAtFixedRate(this::printTotal, 1, 1, TimeUnit.MINUTES);
+    this.rollup = rollup;
+    this.deduplicator = deduplicator;
+    if (rollup != null) {
+      this.statisticOutputExecutor.scheduleAtFixedRate(this::flushRollup, 1, 1, TimeUnit.SECONDS);
+    }
   }
 
   @Override
   @SuppressWarnings("unchecked")
   void reportInternal(ReportPoint point) {
     validatePoint(point, handle, Validation.Level.NUMERIC_ONLY);
+    receivedCounter.inc();
+    receivedPointLag.update(Clock.now() - point.getTimestamp());
 
+    if (deduplicator != null && deduplicator.isDuplicate(point, Clock.now())) {
+      return;
+    }
+    if (rollup != null && rollup.absorb(point, Clock.now())) {
+      return;
+    }
+    send(point);
+  }
+
+  private void send(ReportPoint point) {
     String strPoint = serializer.apply(point);
 
     refreshValidPointsLoggerState();
@@ -88,8 +128,28 @@ class ReportPointHandlerImpl extends AbstractReportableEntityHandler<ReportPoint
       validPointsLogger.info(strPoint);
     }
     getTask().add(strPoint);
-    receivedCounter.inc();
-    receivedPointLag.update(Clock.now() - point.getTimestamp());
+  }
+
+  private void flushRollup() {
+    // nothing to do until rollup rules are configured, but keep flushing what's left after they are removed
+    if (rollup.size() == 0 && !rollup.hasRules()) return;
+    try {
+      rollup.flush(Clock.now(), this::send);
+    } catch (Exception e) {
+      logger.log(Level.WARNING, "[" + this.handle + "] Unexpected error while flushing aggregated points", e);
+    }
+  }
+
+  /**
+   * Send aggregated points that haven't been sent yet before flushing sender tasks to the queue.
+   */
+  @Override
+  void shutdown() {
+    if (rollup != null) {
+      statisticOutputExecutor.shutdownNow();
+      rollup.flushAll(this::send);
+    }
+    super.shutdown();
   }
 
   private void refreshValidPointsLoggerState() {
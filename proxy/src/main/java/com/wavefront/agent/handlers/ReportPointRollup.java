@@ -0,0 +1,259 @@
+package com.wavefront.agent.handlers;
+
+import com.google.common.base.Preconditions;
+
+import com.wavefront.agent.preprocessor.ReportPointRollupRule;
+import com.wavefront.common.TaggedMetricName;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import javax.annotation.Nonnull;
+
+import wavefront.report.ReportPoint;
+
+/**
+ * Aggregates scalar points per series (metric, source and point tags) over a time window and emits one point per
+ * series per window, to reduce the number of points sent upstream for metrics that are reported more often than
+ * needed.
+ * <p/>
+ * Points are bucketed by their timestamp (aligned to the rule's window) and emitted with the bucket start
+ * timestamp once the bucket has ended and no points for it have been received for a grace period. Emitted buckets
+ * are remembered for another window, so that points arriving after the bucket has been emitted are dropped (and
+ * counted), instead of starting a new partial aggregate that would overwrite the emitted value. Aggregation state is
+ * kept in a concurrent table with per-bucket locking; when the table is full, points pass through unaggregated.
+ * <p/>
+ * Rules are looked up for every point, so they can be replaced at any time (e.g. when preprocessor rules are
+ * reloaded), series that are already being aggregated are emitted according to the rule they started with.
+ */
+public class ReportPointRollup {
+  /**
+   * How long to wait for late points after the bucket has ended, and after the last point for the bucket.
+   */
+  static final long GRACE_PERIOD_MILLIS = 5000;
+
+  private final int maxSeries;
+  private final Map<SeriesKey, Aggregate> table = new ConcurrentHashMap<>();
+  private final Supplier<List<ReportPointRollupRule>> rules;
+  private final Counter overflowCounter;
+  private final Counter emittedCounter;
+  private final Counter lateCounter;
+
+  /**
+   * @param handle    handle/port number (for metrics).
+   * @param maxSeries max number of series to aggregate at once.
+   * @param rules     supplier of current rollup rules, first matching rule applies.
+   */
+  public ReportPointRollup(String handle, int maxSeries, @Nonnull Supplier<List<ReportPointRollupRule>> rules) {
+    Preconditions.checkArgument(maxSeries > 0, "maxSeries must be positive");
+    this.maxSeries = maxSeries;
+    this.rules = Preconditions.checkNotNull(rules);
+    this.overflowCounter = Metrics.newCounter(new TaggedMetricName("rollup", "points-not-aggregated",
+        "port", handle));
+    this.emittedCounter = Metrics.newCounter(new TaggedMetricName("rollup", "points-emitted", "port", handle));
+    this.lateCounter = Metrics.newCounter(new TaggedMetricName("rollup", "points-dropped-late", "port", handle));
+  }
+
+  /**
+   * Check whether any rollup rules are configured.
+   *
+   * @return true if there are rules
+   */
+  public boolean hasRules() {
+    return !rules.get().isEmpty();
+  }
+
+  /**
+   * Add a point to the aggregation table if there is a matching rule.
+   *
+   * @param point point to aggregate.
+   * @param now   current time in millis.
+   * @return true if the point has been absorbed (or dropped, if its bucket has already been emitted) and
+   *         shouldn't be sent on its own.
+   */
+  public boolean absorb(@Nonnull ReportPoint point, long now) {
+    List<ReportPointRollupRule> currentRules = rules.get();
+    if (currentRules.isEmpty() || !(point.getValue() instanceof Number)) {
+      return false;
+    }
+    ReportPointRollupRule rule = null;
+    for (ReportPointRollupRule candidate : currentRules) {
+      if (candidate.matches(point.getMetric())) {
+        rule = candidate;
+        break;
+      }
+    }
+    if (rule == null) {
+      return false;
+    }
+    SeriesKey key = new SeriesKey(point, point.getTimestamp() / rule.getWindowMillis());
+    if (table.size() >= maxSeries && !table.containsKey(key)) {
+      overflowCounter.inc();
+      return false;
+    }
+    final ReportPointRollupRule matchedRule = rule;
+    boolean[] late = new boolean[1];
+    table.compute(key, (k, aggregate) -> {
+      if (aggregate == null) {
+        aggregate = new Aggregate(point, matchedRule);
+      }
+      if (aggregate.emittedMillis != NOT_EMITTED) {
+        late[0] = true;
+      } else {
+        aggregate.add(point, now);
+      }
+      return aggregate;
+    });
+    if (late[0]) {
+      lateCounter.inc();
+    } else {
+      rule.getRuleMetrics().incrementRuleAppliedCounter();
+    }
+    return true;
+  }
+
+  /**
+   * Emit aggregated points for buckets that have ended, and forget buckets that were emitted more than a window ago.
+   *
+   * @param now  current time in millis.
+   * @param sink receives aggregated points.
+   */
+  public void flush(long now, Consumer<ReportPoint> sink) {
+    for (SeriesKey key : table.keySet()) {
+      ReportPoint[] emitted = new ReportPoint[1];
+      table.computeIfPresent(key, (k, aggregate) -> {
+        long windowMillis = aggregate.rule.getWindowMillis();
+        if (aggregate.emittedMillis != NOT_EMITTED) {
+          return now - aggregate.emittedMillis >= windowMillis ? null : aggregate;
+        }
+        long bucketStart = k.bucket * windowMillis;
+        if (now >= bucketStart + windowMillis + GRACE_PERIOD_MILLIS &&
+            now - aggregate.lastSeenMillis >= GRACE_PERIOD_MILLIS) {
+          emitted[0] = aggregate.toPoint(bucketStart);
+          aggregate.emittedMillis = now;
+        }
+        return aggregate;
+      });
+      if (emitted[0] != null) {
+        emittedCounter.inc();
+        sink.accept(emitted[0]);
+      }
+    }
+  }
+
+  /**
+   * Emit all aggregated points that haven't been emitted yet, regardless of window, and clear the table.
+   *
+   * @param sink receives aggregated points.
+   */
+  public void flushAll(Consumer<ReportPoint> sink) {
+    for (SeriesKey key : table.keySet()) {
+      Aggregate aggregate = table.remove(key);
+      if (aggregate != null && aggregate.emittedMillis == NOT_EMITTED) {
+        emittedCounter.inc();
+        sink.accept(aggregate.toPoint(key.bucket * aggregate.rule.getWindowMillis()));
+      }
+    }
+  }
+
+  /**
+   * @return number of buckets currently tracked (being aggregated or recently emitted).
+   */
+  public int size() {
+    return table.size();
+  }
+
+  private static class SeriesKey {
+    private final String metric;
+    private final String host;
+    private final Map<String, String> annotations;
+    private final long bucket;
+    private final int hashCode;
+
+    SeriesKey(ReportPoint point, long bucket) {
+      this.metric = point.getMetric();
+      this.host = point.getHost();
+      this.annotations = point.getAnnotations() == null ? Collections.emptyMap() : point.getAnnotations();
+      this.bucket = bucket;
+      this.hashCode = Objects.hash(metric, host, annotations, bucket);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+      SeriesKey that = (SeriesKey) o;
+      return bucket == that.bucket && metric.equals(that.metric) && Objects.equals(host, that.host) &&
+          annotations.equals(that.annotations);
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+  }
+
+  private static final long NOT_EMITTED = Long.MIN_VALUE;
+
+  private static class Aggregate {
+    private final ReportPoint template;
+    private final ReportPointRollupRule rule;
+    private long lastSeenMillis;
+    private long emittedMillis = NOT_EMITTED;
+    private long count = 0;
+    private double sum = 0;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+    private double last;
+    private long lastTimestamp = Long.MIN_VALUE;
+
+    Aggregate(ReportPoint template, ReportPointRollupRule rule) {
+      this.template = template;
+      this.rule = rule;
+    }
+
+    void add(ReportPoint point, long now) {
+      lastSeenMillis = now;
+      double value = ((Number) point.getValue()).doubleValue();
+      count++;
+      sum += value;
+      min = Math.min(min, value);
+      max = Math.max(max, value);
+      if (point.getTimestamp() >= lastTimestamp) {
+        last = value;
+        lastTimestamp = point.getTimestamp();
+      }
+    }
+
+    ReportPoint toPoint(long timestamp) {
+      Object value;
+      switch (rule.getAggregation()) {
+        case SUM:
+          value = sum;
+          break;
+        case MIN:
+          value = min;
+          break;
+        case MAX:
+          value = max;
+          break;
+        case AVG:
+          value = sum / count;
+          break;
+        case COUNT:
+          value = count;
+          break;
+        default:
+          value = last;
+      }
+      return ReportPoint.newBuilder(template).setTimestamp(timestamp).setValue(value).build();
+    }
+  }
+}
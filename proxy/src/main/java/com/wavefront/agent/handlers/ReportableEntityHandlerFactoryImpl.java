@@ -2,8 +2,11 @@ package com.wavefront.agent.handlers;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.function.Function;
 import java.util.logging.Logger;
 
+import javax.annotation.Nullable;
+
 /**
  * Caching factory for {@link ReportableEntityHandler} objects. Makes sure there's only one handler
  * for each {@link HandlerKey}, which makes it possible to spin up handlers on demand at runtime,
@@ -21,6 +24,12 @@ public class ReportableEntityHandlerFactoryImpl implements ReportableEntityHandl
   private final SenderTaskFactory senderTaskFactory;
   private final int blockedItemsPerBatch;
   private final int defaultFlushThreads;
+  @Nullable
+  private final Function<String, ReportPointRollup> rollupProvider;
+  @Nullable
+  private final Function<String, ReportPointDeduplicator> deduplicatorProvider;
+  @Nullable
+  private final Function<String, SpanDeduplicator> spanDeduplicatorProvider;
 
   /**
    * Create new instance.
@@ -32,15 +41,43 @@ public class ReportableEntityHandlerFactoryImpl implements ReportableEntityHandl
   public ReportableEntityHandlerFactoryImpl(final SenderTaskFactory senderTaskFactory,
                                             final int blockedItemsPerBatch,
                                             final int defaultFlushThreads) {
+    this(senderTaskFactory, blockedItemsPerBatch, defaultFlushThreads, null, null, null);
+  }
+
+  /**
+   * Create new instance.
+   *
+   * @param senderTaskFactory    SenderTaskFactory instance used to create SenderTasks for new handlers
+   * @param blockedItemsPerBatch controls sample rate of how many blocked points are written into the main log file.
+   * @param defaultFlushThreads  control fanout for SenderTasks.
+   * @param rollupProvider       optional lookup of rollup stages for point handlers by handle.
+   * @param deduplicatorProvider optional factory of duplicate point detectors for point handlers by handle.
+   * @param spanDeduplicatorProvider optional factory of duplicate span detectors for span handlers by handle.
+   */
+  public ReportableEntityHandlerFactoryImpl(final SenderTaskFactory senderTaskFactory,
+                                            final int blockedItemsPerBatch,
+                                            final int defaultFlushThreads,
+                                            @Nullable final Function<String, ReportPointRollup> rollupProvider,
+                                            @Nullable final Function<String, ReportPointDeduplicator>
+                                                deduplicatorProvider,
+                                            @Nullable final Function<String, SpanDeduplicator>
+                                                spanDeduplicatorProvider) {
     this.senderTaskFactory = senderTaskFactory;
     this.blockedItemsPerBatch = blockedItemsPerBatch;
     this.defaultFlushThreads = defaultFlushThreads;
+    this.rollupProvider = rollupProvider;
+    this.deduplicatorProvider = deduplicatorProvider;
+    this.spanDeduplicatorProvider = spanDeduplicatorProvider;
   }
 
   public ReportableEntityHandler getHandler(HandlerKey handlerKey) {
     return handlers.computeIfAbsent(handlerKey, k -> {
       switch (handlerKey.getEntityType()) {
         case POINT:
+          return new ReportPointHandlerImpl(handlerKey.getHandle(), blockedItemsPerBatch,
+              senderTaskFactory.createSenderTasks(handlerKey, defaultFlushThreads),
+              rollupProvider == null ? null : rollupProvider.apply(handlerKey.getHandle()),
+              deduplicatorProvider == null ? null : deduplicatorProvider.apply(handlerKey.getHandle()));
         case HISTOGRAM:
           return new ReportPointHandlerImpl(handlerKey.getHandle(), blockedItemsPerBatch,
               senderTaskFactory.createSenderTasks(handlerKey, defaultFlushThreads));
@@ -49,7 +86,8 @@ public class ReportableEntityHandlerFactoryImpl implements ReportableEntityHandl
               senderTaskFactory.createSenderTasks(handlerKey, SOURCE_TAGS_NUM_THREADS));
         case TRACE:
           return new SpanHandlerImpl(handlerKey.getHandle(), blockedItemsPerBatch,
-              senderTaskFactory.createSenderTasks(handlerKey, defaultFlushThreads));
+              senderTaskFactory.createSenderTasks(handlerKey, defaultFlushThreads),
+              spanDeduplicatorProvider == null ? null : spanDeduplicatorProvider.apply(handlerKey.getHandle()));
         default:
           throw new IllegalArgumentException("Unexpected entity type " + handlerKey.getEntityType().name() +
               " for " + handlerKey.getHandle());
@@ -58,6 +96,10 @@ public class ReportableEntityHandlerFactoryImpl implements ReportableEntityHandl
   }
 
   public void shutdown() {
-    //
+    for (ReportableEntityHandler handler : handlers.values()) {
+      if (handler instanceof AbstractReportableEntityHandler) {
+        ((AbstractReportableEntityHandler) handler).shutdown();
+      }
+    }
   }
 }
@@ -0,0 +1,223 @@
+package com.wavefront.agent.handlers;
+
+import com.google.common.base.Preconditions;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import com.wavefront.common.TaggedMetricName;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import javax.annotation.Nonnull;
+
+import wavefront.report.Annotation;
+import wavefront.report.Span;
+
+import static com.google.common.base.Strings.nullToEmpty;
+
+/**
+ * Detects duplicate spans (identical spans, with the same trace ID and span ID) received within a time window, e.g.
+ * when Zipkin or Jaeger clients retry a batch.
+ * <p/>
+ * Spans are identified by a 128-bit fingerprint of their trace ID, span ID, source, start time, duration and span
+ * kind, stored in two open-addressed hash tables: the current one and the previous one, rotated every
+ * {@code windowMillis}, so a duplicate is detected if it arrives within {@code windowMillis} (and up to twice that)
+ * of the original span. Each table is split into stripes with their own locks to keep contention low. Memory use is
+ * fixed and depends on the expected number of distinct spans per window; once a stripe is full, new spans in it are
+ * let through without being remembered.
+ */
+public class SpanDeduplicator {
+  private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+  private static final int STRIPES = 64;
+  private static final double MAX_LOAD_FACTOR = 0.75;
+  private static final int MIN_SLOTS_PER_STRIPE = 16;
+  private static final String SPAN_KIND_TAG = "span.kind";
+
+  private final long windowMillis;
+  private final int slotsPerStripe;
+  private volatile Generation generation;
+  private final Counter duplicateCounter;
+  private final Counter overflowCounter;
+
+  /**
+   * @param handle        handle/port number (for metrics).
+   * @param windowMillis  how long to remember spans for, in milliseconds.
+   * @param expectedSpans expected number of distinct spans per window.
+   * @param now           current time in millis.
+   */
+  public SpanDeduplicator(String handle, long windowMillis, long expectedSpans, long now) {
+    Preconditions.checkArgument(windowMillis > 0, "windowMillis must be positive");
+    Preconditions.checkArgument(expectedSpans > 0, "expectedSpans must be positive");
+    long minSlots = (long) Math.ceil(expectedSpans / MAX_LOAD_FACTOR / STRIPES);
+    Preconditions.checkArgument(minSlots <= 1 << 26, "expectedSpans is too large");
+    int slots = Integer.highestOneBit((int) Math.max(MIN_SLOTS_PER_STRIPE, minSlots));
+    this.slotsPerStripe = slots < minSlots ? slots << 1 : slots;
+    this.windowMillis = windowMillis;
+    this.generation = new Generation(new Table(slotsPerStripe), new Table(slotsPerStripe), now + windowMillis);
+    this.duplicateCounter = Metrics.newCounter(new TaggedMetricName("spans", "duplicates", "port", handle));
+    this.overflowCounter = Metrics.newCounter(new TaggedMetricName("spans", "dedup-table-full", "port", handle));
+  }
+
+  /**
+   * Check whether the span is a duplicate of a span seen within the window, and remember it.
+   *
+   * @param span span to check.
+   * @param now  current time in millis.
+   * @return true if the span is a duplicate and should be dropped.
+   */
+  public boolean isDuplicate(@Nonnull Span span, long now) {
+    Generation current = generation;
+    if (now >= current.expiresAt) {
+      current = rotate(now);
+    }
+    ByteBuffer fingerprint = ByteBuffer.wrap(fingerprint(span)).order(ByteOrder.LITTLE_ENDIAN);
+    long hi = fingerprint.getLong(0);
+    long lo = fingerprint.getLong(8);
+    if (hi == 0 && lo == 0) {
+      // zero marks an empty slot
+      lo = 1;
+    }
+    int stripe = (int) (hi >>> 58); // top 6 bits select one of 64 stripes
+    if (current.previous.stripes[stripe].contains(hi, lo)) {
+      duplicateCounter.inc();
+      return true;
+    }
+    switch (current.current.stripes[stripe].add(hi, lo)) {
+      case PRESENT:
+        duplicateCounter.inc();
+        return true;
+      case FULL:
+        overflowCounter.inc();
+        return false;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Spans are identified by trace and span IDs, but the client and server halves of an RPC share both in Zipkin's
+   * shared span model, so fields that differ between them are hashed as well.
+   */
+  private static byte[] fingerprint(Span span) {
+    Hasher hasher = HASH_FUNCTION.newHasher().
+        putUnencodedChars(nullToEmpty(span.getTraceId())).putChar('\0').
+        putUnencodedChars(nullToEmpty(span.getSpanId())).putChar('\0').
+        putUnencodedChars(nullToEmpty(span.getSource())).putChar('\0').
+        putLong(span.getStartMillis()).
+        putLong(span.getDuration());
+    if (span.getAnnotations() != null) {
+      for (Annotation annotation : span.getAnnotations()) {
+        if (SPAN_KIND_TAG.equals(annotation.getKey())) {
+          hasher.putUnencodedChars(nullToEmpty(annotation.getValue()));
+          break;
+        }
+      }
+    }
+    return hasher.hash().asBytes();
+  }
+
+  /**
+   * @return memory used by both tables, in bytes.
+   */
+  public long sizeInBytes() {
+    return 2L * STRIPES * slotsPerStripe * 2 * Long.BYTES;
+  }
+
+  private synchronized Generation rotate(long now) {
+    Generation current = generation;
+    if (now >= current.expiresAt) {
+      // reuse the oldest table instead of allocating a new one
+      Table recycled = current.previous;
+      recycled.clear();
+      if (now >= current.expiresAt + windowMillis) {
+        // if nothing was received for over a window, the current table is too old to keep as well
+        current.current.clear();
+      }
+      current = new Generation(current.current, recycled, now + windowMillis);
+      generation = current;
+    }
+    return current;
+  }
+
+  private enum AddResult {
+    ADDED, PRESENT, FULL
+  }
+
+  private static class Table {
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    Table(int slotsPerStripe) {
+      for (int i = 0; i < STRIPES; i++) {
+        stripes[i] = new Stripe(slotsPerStripe);
+      }
+    }
+
+    void clear() {
+      for (Stripe stripe : stripes) {
+        stripe.clear();
+      }
+    }
+  }
+
+  private static class Stripe {
+    // fingerprint halves stored in adjacent elements
+    private final long[] slots;
+    private final int mask;
+    private final int maxSize;
+    private int size = 0;
+
+    Stripe(int numSlots) {
+      this.slots = new long[numSlots * 2];
+      this.mask = numSlots - 1;
+      this.maxSize = (int) (numSlots * MAX_LOAD_FACTOR);
+    }
+
+    synchronized boolean contains(long hi, long lo) {
+      for (int i = (int) lo & mask; ; i = (i + 1) & mask) {
+        long slotHi = slots[i * 2];
+        long slotLo = slots[i * 2 + 1];
+        if (slotHi == hi && slotLo == lo) return true;
+        if (slotHi == 0 && slotLo == 0) return false;
+      }
+    }
+
+    synchronized AddResult add(long hi, long lo) {
+      for (int i = (int) lo & mask; ; i = (i + 1) & mask) {
+        long slotHi = slots[i * 2];
+        long slotLo = slots[i * 2 + 1];
+        if (slotHi == hi && slotLo == lo) return AddResult.PRESENT;
+        if (slotHi == 0 && slotLo == 0) {
+          if (size >= maxSize) return AddResult.FULL;
+          slots[i * 2] = hi;
+          slots[i * 2 + 1] = lo;
+          size++;
+          return AddResult.ADDED;
+        }
+      }
+    }
+
+    synchronized void clear() {
+      if (size > 0) {
+        Arrays.fill(slots, 0);
+        size = 0;
+      }
+    }
+  }
+
+  private static class Generation {
+    private final Table previous;
+    private final Table current;
+    private final long expiresAt;
+
+    Generation(Table previous, Table current, long expiresAt) {
+      this.previous = previous;
+      this.current = current;
+      this.expiresAt = expiresAt;
+    }
+  }
+}
@@ -1,6 +1,7 @@
 package com.wavefront.agent.handlers;
 
 import com.wavefront.agent.SharedMetricsRegistry;
+import com.wavefront.common.Clock;
 import com.wavefront.data.ReportableEntityType;
 import com.wavefront.ingester.SpanSerializer;
 import com.yammer.metrics.Metrics;
@@ -15,6 +16,8 @@ import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.annotation.Nullable;
+
 import wavefront.report.Span;
 
 /**
@@ -29,9 +32,14 @@ public class SpanHandlerImpl extends AbstractReportableEntityHandler<Span> {
   private static final Logger validTracesLogger = Logger.getLogger("RawValidSpans");
   private static final Random RANDOM = new Random();
   private static SharedMetricsRegistry metricsRegistry = SharedMetricsRegistry.getInstance();
+  private static final int MAX_REUSED_BUFFER_SIZE = 65536;
+  // spans are serialized into a per-thread buffer, so the only allocation per span is the resulting string
+  private static final ThreadLocal<StringBuilder> SPAN_BUFFER = ThreadLocal.withInitial(() -> new StringBuilder(1024));
 
   private final Counter attemptedCounter;
   private final Counter queuedCounter;
+  @Nullable
+  private final SpanDeduplicator deduplicator;
 
   private boolean logData = false;
   private final double logSampleRate;
@@ -47,6 +55,21 @@ public class SpanHandlerImpl extends AbstractReportableEntityHandler<Span> {
   SpanHandlerImpl(final String handle,
                   final int blockedItemsPerBatch,
                   final Collection<SenderTask> sendDataTasks) {
+    this(handle, blockedItemsPerBatch, sendDataTasks, null);
+  }
+
+  /**
+   * Create new instance.
+   *
+   * @param handle               handle / port number.
+   * @param blockedItemsPerBatch controls sample rate of how many blocked points are written into the main log file.
+   * @param sendDataTasks        sender tasks.
+   * @param deduplicator         optional duplicate span detector, duplicates are dropped.
+   */
+  SpanHandlerImpl(final String handle,
+                  final int blockedItemsPerBatch,
+                  final Collection<SenderTask> sendDataTasks,
+                  @Nullable final SpanDeduplicator deduplicator) {
     super(ReportableEntityType.TRACE, handle, blockedItemsPerBatch, new SpanSerializer(), sendDataTasks);
 
     String logTracesSampleRateProperty = System.getProperty("wavefront.proxy.logspans.sample-rate");
@@ -58,12 +81,25 @@ public class SpanHandlerImpl extends AbstractReportableEntityHandler<Span> {
 
     this.statisticOutputExecutor.scheduleAtFixedRate(this::printStats, 10, 10, TimeUnit.SECONDS);
     this.statisticOutputExecutor.scheduleAtFixedRate(this::printTotal, 1, 1, TimeUnit.MINUTES);
+    this.deduplicator = deduplicator;
   }
 
   @Override
   @SuppressWarnings("unchecked")
   protected void reportInternal(Span span) {
-    String strSpan = serializer.apply(span);
+    receivedCounter.inc();
+    // drop duplicates before paying for serialization
+    if (deduplicator != null && deduplicator.isDuplicate(span, Clock.now())) {
+      return;
+    }
+    StringBuilder buffer = SPAN_BUFFER.get();
+    buffer.setLength(0);
+    SpanSerializer.appendSpan(span, buffer);
+    String strSpan = buffer.toString();
+    if (buffer.capacity() > MAX_REUSED_BUFFER_SIZE) {
+      // don't hold on to buffers grown by unusually large spans
+      SPAN_BUFFER.remove();
+    }
 
     refreshValidDataLoggerState();
 
@@ -73,7 +109,6 @@ public class SpanHandlerImpl extends AbstractReportableEntityHandler<Span> {
       validTracesLogger.info(strSpan);
     }
     getTask().add(strSpan);
-    receivedCounter.inc();
   }
 
   private void refreshValidDataLoggerState() {
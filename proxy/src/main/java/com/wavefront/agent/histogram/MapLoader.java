@@ -6,12 +6,14 @@ import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.wavefront.common.NamedThreadFactory;
 
 import net.openhft.chronicle.hash.serialization.BytesReader;
 import net.openhft.chronicle.hash.serialization.BytesWriter;
 import net.openhft.chronicle.hash.serialization.SizedReader;
 import net.openhft.chronicle.hash.serialization.SizedWriter;
 import net.openhft.chronicle.map.ChronicleMap;
+import net.openhft.chronicle.map.MapSegmentContext;
 import net.openhft.chronicle.map.VanillaChronicleMap;
 
 import java.io.BufferedReader;
@@ -21,6 +23,11 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -91,6 +98,33 @@ public class MapLoader<K, V, KM extends BytesReader<K> & BytesWriter<K>, VM exte
           writer.close();
         }
 
+        /**
+         * Copies all entries from one map to another, processing segments of the source map in parallel.
+         */
+        private void migrate(ChronicleMap<K, V> source, ChronicleMap<K, V> target) throws Exception {
+          int segments = source.segments();
+          int threads = Math.max(1, Math.min(segments, Runtime.getRuntime().availableProcessors()));
+          ExecutorService executor = Executors.newFixedThreadPool(threads,
+              new NamedThreadFactory("accumulator-migration"));
+          try {
+            List<Future<?>> futures = new ArrayList<>(segments);
+            for (int i = 0; i < segments; i++) {
+              final int segment = i;
+              futures.add(executor.submit(() -> {
+                try (MapSegmentContext<K, V, ?> context = source.segmentContext(segment)) {
+                  context.forEachSegmentEntry(entry -> target.put(entry.key().getUsing(null),
+                      entry.value().getUsing(null)));
+                }
+              }));
+            }
+            for (Future<?> future : futures) {
+              future.get();
+            }
+          } finally {
+            executor.shutdown();
+          }
+        }
+
         @Override
         public ChronicleMap<K, V> load(@NotNull File file) throws Exception {
           if (!doPersist) {
@@ -128,12 +162,10 @@ public class MapLoader<K, V, KM extends BytesReader<K> & BytesWriter<K>, VM exte
 
                   if (toMigrate.size() > 0) {
                     logger.info(originalFile.getName() + " starting data migration (" + toMigrate.size() + " records)");
-                    for (K key : toMigrate.keySet()) {
-                      result.put(key, toMigrate.get(key));
-                    }
-                    toMigrate.close();
+                    migrate(toMigrate, result);
                     logger.info(originalFile.getName() + " data migration finished");
                   }
+                  toMigrate.close();
 
                   saveSettings(newSettings, settingsFile);
                   oldFile.delete();
@@ -122,11 +122,26 @@ public final class Utils {
    */
   public static HistogramKey makeKey(ReportPoint point, Granularity granularity) {
     Preconditions.checkNotNull(point);
+    return makeKey(point.getMetric(), point.getHost(), point.getAnnotations(), point.getTimestamp(), granularity);
+  }
+
+  /**
+   * Generates a {@link HistogramKey} for a time series and {@link Granularity}.
+   *
+   * @param metric          metric name
+   * @param source          source name
+   * @param tags            point tags
+   * @param timestampMillis epoch time in milliseconds, determines the bin
+   * @param granularity     bin granularity
+   * @return the key
+   */
+  public static HistogramKey makeKey(String metric, @Nullable String source, @Nullable Map<String, String> tags,
+                                     long timestampMillis, Granularity granularity) {
     Preconditions.checkNotNull(granularity);
 
     String[] annotations = null;
-    if (point.getAnnotations() != null) {
-      List<Map.Entry<String, String>> keyOrderedTags = point.getAnnotations().entrySet()
+    if (tags != null) {
+      List<Map.Entry<String, String>> keyOrderedTags = tags.entrySet()
           .stream().sorted(Comparator.comparing(Map.Entry::getKey)).collect(Collectors.toList());
       annotations = new String[keyOrderedTags.size() * 2];
       for (int i = 0; i < keyOrderedTags.size(); ++i) {
@@ -137,9 +152,9 @@ public final class Utils {
 
     return new HistogramKey(
         (byte) granularity.ordinal(),
-        granularity.getBinId(point.getTimestamp()),
-        point.getMetric(),
-        point.getHost(),
+        granularity.getBinId(timestampMillis),
+        metric,
+        source,
         annotations
     );
   }
@@ -12,16 +12,25 @@ import com.tdunning.math.stats.AgentDigest;
 import com.tdunning.math.stats.TDigest;
 import com.wavefront.agent.histogram.TimeProvider;
 import com.wavefront.agent.histogram.Utils;
+import com.wavefront.common.NamedThreadFactory;
 import com.yammer.metrics.Metrics;
 import com.yammer.metrics.core.Counter;
 import com.yammer.metrics.core.MetricName;
 
+import net.openhft.chronicle.map.ChronicleMap;
+import net.openhft.chronicle.map.MapSegmentContext;
+
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiFunction;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.annotation.Nonnull;
@@ -45,9 +54,43 @@ public class AccumulationCache {
       new MetricName("histogram.accumulator.cache", "", "flushed"));
   private final Counter cacheOverflowCounter = Metrics.newCounter(
       new MetricName("histogram.accumulator.cache", "", "size_exceeded"));
+  private final Counter spilledCounter = Metrics.newCounter(
+      new MetricName("histogram.accumulator", "", "spilled"));
+  private final Counter dispatchedEarlyCounter = Metrics.newCounter(
+      new MetricName("histogram.accumulator", "", "dispatched_early"));
+  private final Counter dispatchedEarlyMergedCounter = Metrics.newCounter(
+      new MetricName("histogram.accumulator", "", "dispatched_early_merged"));
+  private final Counter dispatchedEarlyUntrackedCounter = Metrics.newCounter(
+      new MetricName("histogram.accumulator", "", "dispatched_early_untracked"));
   private final Cache<HistogramKey, AgentDigest> cache;
   private final ConcurrentMap<HistogramKey, AgentDigest> backingStore;
 
+  /**
+   * Secondary in-memory store for digests that could not be written to the backing store because it ran out of
+   * space. Entries are merged back in when the corresponding bin is dispatched.
+   */
+  private final ConcurrentMap<HistogramKey, AgentDigest> spillStore = new ConcurrentHashMap<>();
+  private final long spillCapacity;
+
+  /**
+   * Degraded mode (set by {@link AccumulatorPressureMonitor}): new bins are created with reduced compression and bins
+   * are dispatched up to dispatchAheadMillis early.
+   */
+  private volatile boolean degraded = false;
+  private volatile long dispatchAheadMillis = 0;
+
+  /**
+   * Bins dispatched before their dispatch time (in degraded mode), kept in memory until then. If a bin receives more
+   * data in the meantime, the digest that has already been shipped is merged into the re-opened bin when that is
+   * dispatched, so the second point for the same key and timestamp is a superset of the first one rather than a
+   * partial digest replacing it. Limited to the spill store's spare capacity; bins that can't be tracked are counted
+   * as dispatched_early_untracked, and any data they receive later replaces what has been shipped for them.
+   */
+  private final ConcurrentMap<HistogramKey, AgentDigest> dispatchedEarly = new ConcurrentHashMap<>();
+  /**
+   * Time of the current dispatch cycle, used to tell early dispatches apart from regular ones.
+   */
+  private volatile long dispatchCycleMillis = Long.MAX_VALUE;
 
   /**
    * In-memory index for dispatch timestamps to avoid iterating the backing store map, which is an expensive
@@ -57,23 +100,41 @@ public class AccumulationCache {
 
   /**
    * Constructs a new AccumulationCache instance around {@code backingStore} and builds an in-memory index maintaining
-   * dispatch times in milliseconds for all HistogramKeys in backingStore
+   * dispatch times in milliseconds for all HistogramKeys in backingStore (in the background for a ChronicleMap).
+   * Setting cacheSize to 0 disables in-memory caching so the cache only maintains the dispatch time index.
+   *
+   * @param backingStore a {@code ConcurrentMap} storing AgentDigests
+   * @param cacheSize maximum size of the cache
+   * @param ticker a nanosecond-precision time source
+   */
+  public AccumulationCache(
+      final ConcurrentMap<HistogramKey, AgentDigest> backingStore,
+      final long cacheSize,
+      @Nullable Ticker ticker) {
+    this(backingStore, cacheSize, 0, ticker, null);
+  }
+
+  /**
+   * Constructs a new AccumulationCache instance around {@code backingStore} and builds an in-memory index maintaining
+   * dispatch times in milliseconds for all HistogramKeys in backingStore (in the background for a ChronicleMap).
    * Setting cacheSize to 0 disables in-memory caching so the cache only maintains the dispatch time index.
    *
    * @param backingStore a {@code ConcurrentMap} storing AgentDigests
    * @param cacheSize maximum size of the cache
+   * @param spillCapacity maximum number of digests to hold in memory when backing store overflows
    * @param ticker a nanosecond-precision time source
    */
   public AccumulationCache(
       final ConcurrentMap<HistogramKey, AgentDigest> backingStore,
       final long cacheSize,
+      final long spillCapacity,
       @Nullable Ticker ticker) {
-    this(backingStore, cacheSize, ticker, null);
+    this(backingStore, cacheSize, spillCapacity, ticker, null);
   }
 
   /**
    * Constructs a new AccumulationCache instance around {@code backingStore} and builds an in-memory index maintaining
-   * dispatch times in milliseconds for all HistogramKeys in backingStore
+   * dispatch times in milliseconds for all HistogramKeys in backingStore (in the background for a ChronicleMap).
    * Setting cacheSize to 0 disables in-memory caching so the cache only maintains the dispatch time index.
    *
    * @param backingStore a {@code ConcurrentMap} storing AgentDigests
@@ -87,10 +148,34 @@ public class AccumulationCache {
       final long cacheSize,
       @Nullable Ticker ticker,
       @Nullable Runnable onFailure) {
+    this(backingStore, cacheSize, 0, ticker, onFailure);
+  }
+
+  /**
+   * Constructs a new AccumulationCache instance around {@code backingStore} and builds an in-memory index maintaining
+   * dispatch times in milliseconds for all HistogramKeys in backingStore (in the background for a ChronicleMap).
+   * Setting cacheSize to 0 disables in-memory caching so the cache only maintains the dispatch time index.
+   *
+   * @param backingStore a {@code ConcurrentMap} storing AgentDigests
+   * @param cacheSize maximum size of the cache
+   * @param spillCapacity maximum number of digests to hold in memory when backing store overflows
+   * @param ticker a nanosecond-precision time source
+   * @param onFailure a {@code Runnable} that is invoked when backing store and spill store overflow
+   */
+  @VisibleForTesting
+  protected AccumulationCache(
+      final ConcurrentMap<HistogramKey, AgentDigest> backingStore,
+      final long cacheSize,
+      final long spillCapacity,
+      @Nullable Ticker ticker,
+      @Nullable Runnable onFailure) {
     this.backingStore = backingStore;
+    this.spillCapacity = spillCapacity;
     this.keyIndex = new ConcurrentHashMap<>(backingStore.size());
     final Runnable failureHandler = onFailure == null ? new AccumulationCacheMonitor() : onFailure;
-    if (backingStore.size() > 0) {
+    if (backingStore instanceof ChronicleMap) {
+      buildIndexInBackground((ChronicleMap<HistogramKey, AgentDigest>) backingStore);
+    } else if (backingStore.size() > 0) {
       logger.info("Started: Indexing histogram accumulator");
       for (Map.Entry<HistogramKey, AgentDigest> entry : this.backingStore.entrySet()) {
         keyIndex.put(entry.getKey(), entry.getValue().getDispatchTimeMillis());
@@ -131,7 +216,9 @@ public class AccumulationCache {
               });
             } catch (IllegalStateException e) {
               if (e.getMessage().contains("Attempt to allocate")) {
-                failureHandler.run();
+                if (!spill(key, value)) {
+                  failureHandler.run();
+                }
               } else {
                 throw e;
               }
@@ -140,6 +227,45 @@ public class AccumulationCache {
         }).build();
   }
 
+  /**
+   * Builds the dispatch time index for a persisted backing store without blocking startup. Segments are indexed in
+   * parallel, and each task decodes into a single reusable digest instance, so no per-entry value objects are
+   * allocated. Keys that are not indexed yet are simply not considered for dispatch until their segment is processed.
+   *
+   * @param map persisted backing store
+   */
+  private void buildIndexInBackground(final ChronicleMap<HistogramKey, AgentDigest> map) {
+    if (map.size() == 0) {
+      return;
+    }
+    final int segments = map.segments();
+    final int threads = Math.max(1, Math.min(segments, Runtime.getRuntime().availableProcessors()));
+    final AtomicInteger remaining = new AtomicInteger(segments);
+    final long startMillis = System.currentTimeMillis();
+    ExecutorService executor = Executors.newFixedThreadPool(threads,
+        new NamedThreadFactory("histogram-accumulator-index"));
+    logger.info("Started: Indexing histogram accumulator (" + map.size() + " entries, " + threads + " threads)");
+    for (int i = 0; i < segments; i++) {
+      final int segment = i;
+      executor.submit(() -> {
+        try (MapSegmentContext<HistogramKey, AgentDigest, ?> context = map.segmentContext(segment)) {
+          final AgentDigest[] holder = new AgentDigest[1];
+          context.forEachSegmentEntry(entry -> {
+            holder[0] = entry.value().getUsing(holder[0]);
+            keyIndex.merge(entry.key().getUsing(null), holder[0].getDispatchTimeMillis(), Math::min);
+          });
+        } catch (Exception e) {
+          logger.log(Level.SEVERE, "Failed indexing histogram accumulator segment " + segment, e);
+        }
+        if (remaining.decrementAndGet() == 0) {
+          logger.info("Finished: Indexing histogram accumulator (" + keyIndex.size() + " keys in " +
+              (System.currentTimeMillis() - startMillis) + " ms)");
+        }
+      });
+    }
+    executor.shutdown();
+  }
+
   @VisibleForTesting
   Cache<HistogramKey, AgentDigest> getCache() {
     return cache;
@@ -178,7 +304,7 @@ public class AccumulationCache {
     cache.asMap().compute(key, (k, v) -> {
       if (v == null) {
         binCreatedCounter.inc();
-        AgentDigest t = new AgentDigest(compression, System.currentTimeMillis() + ttlMillis);
+        AgentDigest t = new AgentDigest(effectiveCompression(compression), System.currentTimeMillis() + ttlMillis);
         keyIndex.compute(key, (k1, v1) -> (
             v1 != null && v1 < t.getDispatchTimeMillis() ? v1 : t.getDispatchTimeMillis()
         ));
@@ -207,7 +333,7 @@ public class AccumulationCache {
     cache.asMap().compute(key, (k, v) -> {
       if (v == null) {
         binCreatedCounter.inc();
-        AgentDigest t = new AgentDigest(compression, System.currentTimeMillis() + ttlMillis);
+        AgentDigest t = new AgentDigest(effectiveCompression(compression), System.currentTimeMillis() + ttlMillis);
         keyIndex.compute(key, (k1, v1) -> (
             v1 != null && v1 < t.getDispatchTimeMillis() ? v1 : t.getDispatchTimeMillis()));
         mergeHistogram(t, value);
@@ -228,6 +354,13 @@ public class AccumulationCache {
    * @return an iterator over "ripe" digests ready to be shipped
    */
   public Iterator<HistogramKey> getRipeDigestsIterator(TimeProvider clock) {
+    long now = clock.millisSinceEpoch();
+    dispatchCycleMillis = now;
+    if (!dispatchedEarly.isEmpty()) {
+      // bins that have not been re-opened by now would have been dispatched as is anyway
+      dispatchedEarly.entrySet().removeIf(entry -> entry.getValue().getDispatchTimeMillis() < now &&
+          !keyIndex.containsKey(entry.getKey()));
+    }
     return new Iterator<HistogramKey>() {
       private final Iterator<Map.Entry<HistogramKey, Long>> indexIterator = keyIndex.entrySet().iterator();
       private HistogramKey nextHistogramKey;
@@ -236,7 +369,7 @@ public class AccumulationCache {
       public boolean hasNext() {
         while (indexIterator.hasNext()) {
           Map.Entry<Utils.HistogramKey, Long> entry = indexIterator.next();
-          if (entry.getValue() < clock.millisSinceEpoch()) {
+          if (entry.getValue() < clock.millisSinceEpoch() + dispatchAheadMillis) {
             nextHistogramKey = entry.getKey();
             return true;
           }
@@ -258,7 +391,9 @@ public class AccumulationCache {
 
   /**
    * Attempts to compute a mapping for the specified key and its current mapped value
-   * (or null if there is no current mapping).
+   * (or null if there is no current mapping). Spilled data for the key is merged into the current value first, as
+   * well as data that has already been dispatched early for the key. If the function removes a value before its
+   * dispatch time, the value is tracked as dispatched early.
    *
    * @param key               key with which the specified value is to be associated
    * @param remappingFunction the function to compute a value
@@ -266,7 +401,50 @@ public class AccumulationCache {
    */
   public AgentDigest compute(HistogramKey key, BiFunction<? super HistogramKey,? super AgentDigest,
       ? extends AgentDigest> remappingFunction) {
-    return backingStore.compute(key, remappingFunction);
+    if (spillStore.isEmpty() && dispatchedEarly.isEmpty() && dispatchAheadMillis == 0) {
+      return backingStore.compute(key, remappingFunction);
+    }
+    AgentDigest spilled = spillStore.remove(key);
+    // spilled data is safe once it's merged into a digest that stays in the backing store or has been handed off
+    AtomicBoolean spilledRetained = new AtomicBoolean(spilled == null);
+    try {
+      return backingStore.compute(key, (k, v) -> {
+        AgentDigest digest = merge(v, spilled);
+        if (v != null) spilledRetained.set(true);
+        if (digest != null) {
+          AgentDigest shipped = dispatchedEarly.remove(k);
+          if (shipped != null) {
+            digest.add(shipped);
+            dispatchedEarlyMergedCounter.inc();
+          }
+        }
+        AgentDigest result = remappingFunction.apply(k, digest);
+        spilledRetained.set(true);
+        if (result == null && digest != null && digest.getDispatchTimeMillis() >= dispatchCycleMillis) {
+          dispatchedEarlyCounter.inc();
+          if (dispatchedEarly.size() + spillStore.size() < spillCapacity) {
+            dispatchedEarly.put(k, digest);
+          } else {
+            dispatchedEarlyUntrackedCounter.inc();
+          }
+        }
+        return result;
+      });
+    } catch (RuntimeException e) {
+      if (!spilledRetained.get()) {
+        spillStore.merge(key, spilled, AccumulationCache::merge);
+      }
+      throw e;
+    }
+  }
+
+  @Nullable
+  private static AgentDigest merge(@Nullable AgentDigest digest, @Nullable AgentDigest other) {
+    if (digest == null) return other;
+    if (other != null) {
+      digest.add(other);
+    }
+    return digest;
   }
 
   /**
@@ -278,6 +456,46 @@ public class AccumulationCache {
     return backingStore.size();
   }
 
+  /**
+   * Returns the number of digests held in the spill store.
+   *
+   * @return number of spilled digests
+   */
+  public long getSpillSize() {
+    return spillStore.size();
+  }
+
+  /**
+   * Enables or disables degraded mode.
+   *
+   * @param degraded whether the accumulator is under memory pressure
+   * @param dispatchAheadMillis how early bins may be dispatched while degraded
+   */
+  void setDegraded(boolean degraded, long dispatchAheadMillis) {
+    this.degraded = degraded;
+    this.dispatchAheadMillis = degraded ? dispatchAheadMillis : 0;
+  }
+
+  boolean isDegraded() {
+    return degraded;
+  }
+
+  private short effectiveCompression(short compression) {
+    return degraded ? (short) Math.max(20, compression / 2) : compression;
+  }
+
+  private boolean spill(HistogramKey key, AgentDigest value) {
+    if (spillStore.size() >= spillCapacity && !spillStore.containsKey(key)) {
+      return false;
+    }
+    spillStore.merge(key, value, (digestA, digestB) -> {
+      digestA.add(digestB);
+      return digestA;
+    });
+    spilledCounter.inc();
+    return true;
+  }
+
   private static void mergeHistogram(final TDigest target, final Histogram source) {
     List<Double> means = source.getBins();
     List<Integer> counts = source.getCounts();
@@ -0,0 +1,114 @@
+package com.wavefront.agent.histogram.accumulator;
+
+import com.google.common.base.Preconditions;
+
+import com.wavefront.agent.histogram.TimeProvider;
+import com.wavefront.agent.histogram.Utils;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.MetricName;
+
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+/**
+ * Periodically checks accumulator occupancy and switches the {@link AccumulationCache} into degraded mode (reduced
+ * compression for new bins, early dispatch) when it gets close to capacity or has started spilling.
+ * <p/>
+ * Reports occupancy (accumulator size relative to the configured size), projected time until the pressure threshold
+ * is reached at the current growth rate, spill store size and degraded state under histogram.accumulator.[type].
+ */
+public class AccumulatorPressureMonitor implements Runnable {
+  private static final Logger logger = Logger.getLogger(AccumulatorPressureMonitor.class.getCanonicalName());
+
+  /**
+   * Leave degraded mode only once occupancy drops this far below the threshold to avoid flapping.
+   */
+  private static final double HYSTERESIS = 0.9;
+
+  private final AccumulationCache cache;
+  private final String binType;
+  private final long capacity;
+  private final double threshold;
+  private final long dispatchAheadMillis;
+  private final TimeProvider clock;
+
+  private volatile double occupancy = 0;
+  private volatile long projectedOverflowSecs = -1;
+  private long lastSize = -1;
+  private long lastCheckMillis;
+
+  /**
+   * @param cache               accumulator to monitor.
+   * @param granularity         accumulator granularity (null for distributions).
+   * @param capacity            configured accumulator size (number of entries).
+   * @param threshold           occupancy (as a multiple of capacity) at which to switch to degraded mode.
+   * @param dispatchAheadMillis how early bins may be dispatched while degraded.
+   * @param clock               a millisecond-precision epoch time source.
+   */
+  public AccumulatorPressureMonitor(AccumulationCache cache, @Nullable Utils.Granularity granularity, long capacity,
+                                    double threshold, long dispatchAheadMillis, TimeProvider clock) {
+    Preconditions.checkArgument(capacity > 0, "capacity must be positive");
+    Preconditions.checkArgument(threshold > 0, "threshold must be positive");
+    this.cache = cache;
+    this.binType = Utils.Granularity.granularityToString(granularity);
+    this.capacity = capacity;
+    this.threshold = threshold;
+    this.dispatchAheadMillis = dispatchAheadMillis;
+    this.clock = clock;
+
+    String metricNamespace = "histogram.accumulator." + binType;
+    Metrics.newGauge(new MetricName(metricNamespace, "", "occupancy"), new Gauge<Double>() {
+      @Override
+      public Double value() {
+        return occupancy;
+      }
+    });
+    Metrics.newGauge(new MetricName(metricNamespace, "", "projected_overflow_seconds"), new Gauge<Long>() {
+      @Override
+      public Long value() {
+        return projectedOverflowSecs;
+      }
+    });
+    Metrics.newGauge(new MetricName(metricNamespace, "", "spill_size"), new Gauge<Long>() {
+      @Override
+      public Long value() {
+        return cache.getSpillSize();
+      }
+    });
+    Metrics.newGauge(new MetricName(metricNamespace, "", "degraded"), new Gauge<Integer>() {
+      @Override
+      public Integer value() {
+        return cache.isDegraded() ? 1 : 0;
+      }
+    });
+  }
+
+  @Override
+  public void run() {
+    long size = cache.size();
+    long now = clock.millisSinceEpoch();
+    occupancy = (double) size / capacity;
+
+    if (lastSize >= 0 && now > lastCheckMillis && size > lastSize) {
+      double growthPerSec = (size - lastSize) * 1000d / (now - lastCheckMillis);
+      projectedOverflowSecs = Math.max(0, (long) ((capacity * threshold - size) / growthPerSec));
+    } else {
+      projectedOverflowSecs = -1;
+    }
+    lastSize = size;
+    lastCheckMillis = now;
+
+    boolean spilling = cache.getSpillSize() > 0;
+    if (!cache.isDegraded() && (occupancy >= threshold || spilling)) {
+      cache.setDegraded(true, dispatchAheadMillis);
+      logger.warning("Histogram " + binType + " accumulator is under memory pressure (size: " + size +
+          ", configured size: " + capacity + ", spilled: " + cache.getSpillSize() + "), switching to degraded mode " +
+          "(reduced compression for new bins, early dispatch). Please consider increasing accumulator size.");
+    } else if (cache.isDegraded() && occupancy < threshold * HYSTERESIS && !spilling) {
+      cache.setDegraded(false, 0);
+      logger.info("Histogram " + binType + " accumulator is back to normal mode (size: " + size + ")");
+    }
+  }
+}
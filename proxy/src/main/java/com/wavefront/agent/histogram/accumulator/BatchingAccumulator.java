@@ -0,0 +1,189 @@
+package com.wavefront.agent.histogram.accumulator;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+
+import com.wavefront.agent.histogram.TimeProvider;
+import com.wavefront.agent.histogram.Utils;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.MetricName;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import wavefront.report.Histogram;
+import wavefront.report.HistogramType;
+
+/**
+ * Adapter for feeding individual samples (e.g. span durations) into an {@link AccumulationCache}. Samples are
+ * buffered per time series and merged into the cache in batches, as weighted samples (identical values are collapsed
+ * into one centroid), so the cache is only updated once per batch instead of once per sample. Batches are merged
+ * when they are full, when a sample for the next bin arrives, or when the task runs.
+ */
+public class BatchingAccumulator implements Runnable {
+  private static final Logger logger = Logger.getLogger(BatchingAccumulator.class.getCanonicalName());
+  private static final int INITIAL_BATCH_CAPACITY = 8;
+
+  private final AccumulationCache digests;
+  private final Utils.Granularity granularity;
+  private final short compression;
+  private final long ttlMillis;
+  private final int maxBatchSize;
+  private final TimeProvider clock;
+  private final Queue<Series> pending = new ConcurrentLinkedQueue<>();
+
+  private final Counter sampleCounter;
+  private final Counter batchCounter;
+
+  /**
+   * @param digests      accumulator to merge samples into.
+   * @param granularity  bin granularity.
+   * @param compression  compression level for new bins.
+   * @param ttlMillis    time-to-dispatch for new bins.
+   * @param maxBatchSize maximum number of samples to buffer per time series.
+   */
+  public BatchingAccumulator(AccumulationCache digests, Utils.Granularity granularity, short compression,
+                             long ttlMillis, int maxBatchSize) {
+    this(digests, granularity, compression, ttlMillis, maxBatchSize, System::currentTimeMillis);
+  }
+
+  @VisibleForTesting
+  BatchingAccumulator(AccumulationCache digests, Utils.Granularity granularity, short compression, long ttlMillis,
+                      int maxBatchSize, TimeProvider clock) {
+    Preconditions.checkNotNull(granularity, "granularity must be specified");
+    Preconditions.checkArgument(maxBatchSize > 0, "maxBatchSize must be positive");
+    this.digests = digests;
+    this.granularity = granularity;
+    this.compression = compression;
+    this.ttlMillis = ttlMillis;
+    this.maxBatchSize = maxBatchSize;
+    this.clock = clock;
+
+    String metricNamespace = "histogram.accumulator." + Utils.Granularity.granularityToString(granularity);
+    this.sampleCounter = Metrics.newCounter(new MetricName(metricNamespace, "", "batched_samples"));
+    this.batchCounter = Metrics.newCounter(new MetricName(metricNamespace, "", "batches_merged"));
+  }
+
+  /**
+   * Create a buffer for a time series. Series are not tracked once their samples are merged, so callers are
+   * expected to keep (or cache) them.
+   *
+   * @param metric metric name.
+   * @param source source name.
+   * @param tags   point tags.
+   * @return time series to add samples to.
+   */
+  public Series newSeries(@Nonnull String metric, @Nullable String source, @Nullable Map<String, String> tags) {
+    return new Series(metric, source, tags == null ? null : ImmutableMap.copyOf(tags));
+  }
+
+  /**
+   * Merge all buffered samples into the accumulator.
+   */
+  @Override
+  public void run() {
+    try {
+      Series series;
+      while ((series = pending.poll()) != null) {
+        series.flush();
+      }
+    } catch (Exception e) {
+      logger.log(Level.SEVERE, "Error merging batched samples into the histogram accumulator", e);
+    }
+  }
+
+  /**
+   * Samples for a single time series, buffered until merged into the accumulator.
+   */
+  public class Series {
+    private final String metric;
+    @Nullable
+    private final String source;
+    @Nullable
+    private final Map<String, String> tags;
+    private double[] samples = new double[INITIAL_BATCH_CAPACITY];
+    private int size = 0;
+    private long batchTimestamp;
+    private boolean queued = false;
+
+    private Series(String metric, @Nullable String source, @Nullable Map<String, String> tags) {
+      this.metric = metric;
+      this.source = source;
+      this.tags = tags;
+    }
+
+    /**
+     * Add a sample to the current bin.
+     *
+     * @param value sample value.
+     */
+    public void add(double value) {
+      add(value, clock.millisSinceEpoch());
+    }
+
+    @VisibleForTesting
+    synchronized void add(double value, long timestamp) {
+      if (size > 0 && granularity.getBinId(timestamp) != granularity.getBinId(batchTimestamp)) {
+        merge();
+      }
+      if (size == 0) {
+        batchTimestamp = timestamp;
+        if (!queued) {
+          queued = true;
+          pending.add(this);
+        }
+      }
+      if (size == samples.length) {
+        samples = Arrays.copyOf(samples, Math.min(samples.length * 2, maxBatchSize));
+      }
+      samples[size++] = value;
+      sampleCounter.inc();
+      if (size >= maxBatchSize) {
+        merge();
+      }
+    }
+
+    private synchronized void flush() {
+      queued = false;
+      if (size > 0) {
+        merge();
+      }
+    }
+
+    private void merge() {
+      Arrays.sort(samples, 0, size);
+      List<Double> bins = new ArrayList<>();
+      List<Integer> counts = new ArrayList<>();
+      for (int i = 0; i < size; ) {
+        double value = samples[i];
+        int count = 1;
+        while (++i < size && samples[i] == value) {
+          count++;
+        }
+        bins.add(value);
+        counts.add(count);
+      }
+      Histogram histogram = Histogram.newBuilder().
+          setType(HistogramType.TDIGEST).
+          setDuration(granularity.getInMillis()).
+          setBins(bins).
+          setCounts(counts).
+          build();
+      size = 0;
+      digests.put(Utils.makeKey(metric, source, tags, batchTimestamp, granularity), histogram, compression,
+          ttlMillis);
+      batchCounter.inc();
+    }
+  }
+}
@@ -0,0 +1,419 @@
+package com.wavefront.agent.histogram.tape;
+
+import com.google.common.base.Preconditions;
+
+import com.squareup.tape.ObjectQueue;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.MetricName;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * {@link ObjectQueue} of line batches backed by a chain of memory-mapped segment files, used as a replacement for
+ * Tape's {@code FileObjectQueue} for histogram ingestion.
+ * <p/>
+ * Each batch is appended as a single record and published to the consumer with one volatile write, so producers only
+ * synchronize among themselves and the consumer never takes a lock. Only one consumer (the accumulation task) is
+ * supported per queue. Durability relies on the OS page cache (i.e. data survives a proxy crash, but is not fsync'ed).
+ * <p/>
+ * Segment layout: magic (4 bytes), reserved (4 bytes), consumer offset (8 bytes), then records of
+ * [record length (4 bytes)][line count (4 bytes)]{[line length (4 bytes)][utf-8 bytes]}. A record length of 0 marks
+ * the end of written data, -1 marks a segment that has been rolled over.
+ */
+public class MappedLineQueue implements ObjectQueue<List<String>>, Closeable {
+  private static final Logger logger = Logger.getLogger(MappedLineQueue.class.getCanonicalName());
+
+  public static final int DEFAULT_SEGMENT_SIZE = 32 * 1024 * 1024;
+
+  private static final int SEGMENT_MAGIC = 0x4d4c5131; // "MLQ1"
+  private static final int HEADER_SIZE = 16;
+  private static final int READ_OFFSET_POSITION = 8;
+  private static final int END_OF_SEGMENT = -1;
+  private static final String SEGMENT_SUFFIX = ".mlq";
+
+  private final File directory;
+  private final String prefix;
+  private final int segmentSize;
+  private final ConcurrentLinkedQueue<Segment> segments = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger size = new AtomicInteger();
+  private final Object writeLock = new Object();
+  private final Counter addCounter;
+  private final Counter removeCounter;
+  private final Counter peekCounter;
+
+  // producer state, guarded by writeLock
+  private Segment writeSegment;
+  private long nextSequence;
+  private volatile Listener<List<String>> listener;
+
+  // consumer state
+  private List<String> peeked;
+  private int peekedRecordLength;
+  private byte[] scratch = new byte[256];
+
+  /**
+   * @param baseFile    base name for segment files (segments are created as baseFile.NNNNNNNNNN.mlq).
+   * @param segmentSize size of a segment file in bytes (larger batches get a dedicated segment).
+   */
+  public MappedLineQueue(@NotNull File baseFile, int segmentSize) throws IOException {
+    Preconditions.checkNotNull(baseFile);
+    Preconditions.checkArgument(segmentSize > HEADER_SIZE * 2, "segmentSize is too small");
+    this.directory = baseFile.getAbsoluteFile().getParentFile();
+    this.prefix = baseFile.getName() + ".";
+    this.segmentSize = segmentSize;
+
+    String title = baseFile.getName();
+    this.addCounter = Metrics.newCounter(new MetricName("tape." + title, "", "add"));
+    this.removeCounter = Metrics.newCounter(new MetricName("tape." + title, "", "remove"));
+    this.peekCounter = Metrics.newCounter(new MetricName("tape." + title, "", "peek"));
+    Metrics.newGauge(new MetricName("tape." + title, "", "size"),
+        new Gauge<Integer>() {
+          @Override
+          public Integer value() {
+            return size.get();
+          }
+        });
+
+    recover();
+  }
+
+  /**
+   * Re-opens existing segment files, in sequence order.
+   */
+  private void recover() throws IOException {
+    TreeMap<Long, File> existing = new TreeMap<>();
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        String name = file.getName();
+        if (name.startsWith(prefix) && name.endsWith(SEGMENT_SUFFIX)) {
+          try {
+            existing.put(Long.parseLong(name.substring(prefix.length(), name.length() - SEGMENT_SUFFIX.length())),
+                file);
+          } catch (NumberFormatException e) {
+            // not one of ours
+          }
+        }
+      }
+    }
+    for (File file : existing.values()) {
+      Segment segment = Segment.open(file);
+      if (segment == null) {
+        logger.warning("Ignoring corrupt histogram queue segment " + file);
+        continue;
+      }
+      if (segment.isConsumed()) {
+        segment.delete();
+        continue;
+      }
+      segments.add(segment);
+      size.addAndGet(segment.recordCount);
+      writeSegment = segment;
+    }
+    nextSequence = existing.isEmpty() ? 0 : existing.lastKey() + 1;
+    // anything but the last segment is treated as sealed, even if the end-of-segment marker wasn't written
+    for (Segment segment : segments) {
+      if (segment != writeSegment) {
+        segment.sealed = true;
+      }
+    }
+    if (writeSegment == null || writeSegment.sealed) {
+      writeSegment = newSegment(segmentSize);
+    }
+    if (size.get() > 0) {
+      logger.info("Recovered " + size.get() + " batches from " + segments.size() + " segment(s) for " +
+          prefix.substring(0, prefix.length() - 1));
+    }
+  }
+
+  private Segment newSegment(int capacity) throws IOException {
+    File file = new File(directory, String.format("%s%010d%s", prefix, nextSequence++, SEGMENT_SUFFIX));
+    Segment segment = Segment.create(file, capacity);
+    segments.add(segment);
+    return segment;
+  }
+
+  @Override
+  public int size() {
+    return size.get();
+  }
+
+  @Override
+  public void add(List<String> lines) {
+    addCounter.inc();
+    int recordLength = 4;
+    byte[][] encoded = new byte[lines.size()][];
+    for (int i = 0; i < encoded.length; i++) {
+      encoded[i] = lines.get(i).getBytes(StandardCharsets.UTF_8);
+      recordLength += 4 + encoded[i].length;
+    }
+    synchronized (writeLock) {
+      try {
+        Segment segment = writeSegment;
+        // always leave room for the end-of-segment marker
+        if (segment.committed + 4 + recordLength + 4 > segment.capacity) {
+          Segment next = newSegment(Math.max(segmentSize, HEADER_SIZE + 4 + recordLength + 4));
+          segment.seal();
+          writeSegment = next;
+          segment = next;
+        }
+        ByteBuffer buffer = segment.writeBuffer;
+        int start = segment.committed;
+        buffer.position(start + 8);
+        for (byte[] line : encoded) {
+          buffer.putInt(line.length);
+          buffer.put(line);
+        }
+        buffer.putInt(start + 4, encoded.length);
+        // record length goes last, so a partially written record is never visible after a restart
+        buffer.putInt(start, recordLength);
+        segment.committed = start + 4 + recordLength; // publish
+        size.incrementAndGet();
+      } catch (IOException e) {
+        throw new RuntimeException("Unable to allocate histogram queue segment", e);
+      }
+      if (listener != null) {
+        listener.onAdd(this, lines);
+      }
+    }
+  }
+
+  @Override
+  public List<String> peek() {
+    peekCounter.inc();
+    if (peeked != null) {
+      return peeked;
+    }
+    Segment segment = readableSegment();
+    if (segment == null) {
+      return null;
+    }
+    ByteBuffer buffer = segment.readBuffer;
+    int position = segment.readOffset;
+    int recordLength = buffer.getInt(position);
+    int lineCount = buffer.getInt(position + 4);
+    List<String> lines = new ArrayList<>(lineCount);
+    buffer.position(position + 8);
+    for (int i = 0; i < lineCount; i++) {
+      int length = buffer.getInt();
+      if (scratch.length < length) {
+        scratch = new byte[Math.max(length, scratch.length * 2)];
+      }
+      buffer.get(scratch, 0, length);
+      lines.add(new String(scratch, 0, length, StandardCharsets.UTF_8));
+    }
+    peeked = Collections.unmodifiableList(lines);
+    peekedRecordLength = recordLength;
+    return peeked;
+  }
+
+  @Override
+  public void remove() {
+    removeCounter.inc();
+    Segment segment = readableSegment();
+    if (segment == null) {
+      return;
+    }
+    int recordLength = peeked != null ? peekedRecordLength : segment.readBuffer.getInt(segment.readOffset);
+    peeked = null;
+    segment.readOffset += 4 + recordLength;
+    segment.readBuffer.putLong(READ_OFFSET_POSITION, segment.readOffset);
+    size.decrementAndGet();
+    if (segment.sealed && segment.readOffset >= segment.committed) {
+      segments.poll();
+      segment.delete();
+    }
+    if (listener != null) {
+      listener.onRemove(this);
+    }
+  }
+
+  /**
+   * Returns the head segment if it has unconsumed records, dropping fully consumed sealed segments on the way.
+   */
+  private Segment readableSegment() {
+    Segment segment;
+    while ((segment = segments.peek()) != null) {
+      if (segment.readOffset < segment.committed) {
+        return segment;
+      }
+      if (!segment.sealed) {
+        return null;
+      }
+      // sealed is set after the last record was published, so re-check before dropping it
+      if (segment.readOffset < segment.committed) {
+        return segment;
+      }
+      segments.poll();
+      segment.delete();
+    }
+    return null;
+  }
+
+  /**
+   * Set a listener for queue changes, same as Tape's {@code FileObjectQueue}: the listener is notified of all
+   * batches currently in the queue right away, then of every batch added and removed. Notifications for added
+   * batches are made while producers are blocked, so the listener should return quickly.
+   *
+   * @param listener listener, or null to remove the current one.
+   */
+  @Override
+  public void setListener(Listener<List<String>> listener) {
+    synchronized (writeLock) {
+      if (listener != null) {
+        for (Segment segment : segments) {
+          ByteBuffer buffer = segment.buffer.duplicate();
+          int position = segment.readOffset;
+          while (position < segment.committed) {
+            listener.onAdd(this, readRecord(buffer, position));
+            position += 4 + buffer.getInt(position);
+          }
+        }
+      }
+      this.listener = listener;
+    }
+  }
+
+  private static List<String> readRecord(ByteBuffer buffer, int position) {
+    int lineCount = buffer.getInt(position + 4);
+    List<String> lines = new ArrayList<>(lineCount);
+    buffer.position(position + 8);
+    for (int i = 0; i < lineCount; i++) {
+      byte[] line = new byte[buffer.getInt()];
+      buffer.get(line);
+      lines.add(new String(line, StandardCharsets.UTF_8));
+    }
+    return Collections.unmodifiableList(lines);
+  }
+
+  /**
+   * Flush all segments to disk. The queue can still be used after it's closed, until the proxy exits.
+   */
+  @Override
+  public void close() {
+    synchronized (writeLock) {
+      for (Segment segment : segments) {
+        segment.force();
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "MappedLineQueue{" +
+        "directory=" + directory +
+        ", prefix=" + prefix +
+        ", segments=" + segments.size() +
+        ", size=" + size.get() +
+        '}';
+  }
+
+  private static class Segment {
+    private final File file;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private final ByteBuffer writeBuffer;
+    private final ByteBuffer readBuffer;
+    private volatile int committed;
+    private volatile boolean sealed;
+    private int readOffset;
+    private int recordCount;
+
+    private Segment(File file, MappedByteBuffer buffer, int committed, int readOffset) {
+      this.file = file;
+      this.buffer = buffer;
+      this.capacity = buffer.capacity();
+      this.writeBuffer = buffer.duplicate();
+      this.readBuffer = buffer.duplicate();
+      this.committed = committed;
+      this.readOffset = readOffset;
+    }
+
+    private static MappedByteBuffer map(File file, long length) throws IOException {
+      try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+        if (raf.length() < length) {
+          raf.setLength(length);
+        }
+        return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+      }
+    }
+
+    static Segment create(File file, int capacity) throws IOException {
+      MappedByteBuffer buffer = map(file, capacity);
+      buffer.putInt(0, SEGMENT_MAGIC);
+      buffer.putLong(READ_OFFSET_POSITION, HEADER_SIZE);
+      return new Segment(file, buffer, HEADER_SIZE, HEADER_SIZE);
+    }
+
+    static Segment open(File file) throws IOException {
+      long length = file.length();
+      if (length <= HEADER_SIZE || length > Integer.MAX_VALUE) {
+        return null;
+      }
+      MappedByteBuffer buffer = map(file, length);
+      if (buffer.getInt(0) != SEGMENT_MAGIC) {
+        return null;
+      }
+      long readOffset = buffer.getLong(READ_OFFSET_POSITION);
+      int position = HEADER_SIZE;
+      int recordCount = 0;
+      boolean sealed = false;
+      while (position + 4 <= length) {
+        int recordLength = buffer.getInt(position);
+        if (recordLength == END_OF_SEGMENT) {
+          sealed = true;
+          break;
+        }
+        if (recordLength <= 0 || position + 4L + recordLength > length) {
+          break;
+        }
+        if (position >= readOffset) {
+          recordCount++;
+        }
+        position += 4 + recordLength;
+      }
+      Segment segment = new Segment(file, buffer, position,
+          (int) Math.max(HEADER_SIZE, Math.min(readOffset, position)));
+      segment.recordCount = recordCount;
+      segment.sealed = sealed;
+      return segment;
+    }
+
+    boolean isConsumed() {
+      return sealed && readOffset >= committed;
+    }
+
+    void seal() {
+      writeBuffer.putInt(committed, END_OF_SEGMENT);
+      sealed = true;
+    }
+
+    void force() {
+      buffer.force();
+    }
+
+    void delete() {
+      if (!file.delete()) {
+        logger.warning("Unable to delete consumed histogram queue segment " + file);
+      }
+    }
+  }
+}
@@ -0,0 +1,104 @@
+package com.wavefront.agent.histogram.tape;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+import com.squareup.tape.FileObjectQueue;
+import com.squareup.tape.ObjectQueue;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Factory for {@link MappedLineQueue} instances for this agent. Drop-in replacement for {@link TapeDeck} for
+ * histogram ingestion: if a Tape queue file from a previous version exists at the requested location, its contents
+ * are moved to the new queue and the file is removed.
+ */
+public class MappedQueueDeck {
+  private static final Logger logger = Logger.getLogger(MappedQueueDeck.class.getCanonicalName());
+
+  private final LoadingCache<File, ObjectQueue<List<String>>> queues;
+  private final int segmentSize;
+
+  public MappedQueueDeck() {
+    this(MappedLineQueue.DEFAULT_SEGMENT_SIZE);
+  }
+
+  /**
+   * @param segmentSize size of segment files in bytes.
+   */
+  public MappedQueueDeck(int segmentSize) {
+    this.segmentSize = segmentSize;
+    queues = CacheBuilder.newBuilder().build(new CacheLoader<File, ObjectQueue<List<String>>>() {
+      @Override
+      public ObjectQueue<List<String>> load(@NotNull File file) throws Exception {
+        MappedLineQueue queue;
+        try {
+          queue = new MappedLineQueue(file, segmentSize);
+        } catch (Exception e) {
+          logger.log(Level.SEVERE, "Error while loading persisted histogram queue for " + file +
+              ". Please move or delete " + file + ".*.mlq files and restart the proxy.", e);
+          System.exit(-1);
+          return null;
+        }
+        if (file.exists()) {
+          migrateTape(file, queue);
+        }
+        return queue;
+      }
+    });
+  }
+
+  private static void migrateTape(File file, ObjectQueue<List<String>> target) {
+    try {
+      FileObjectQueue<List<String>> tape = new FileObjectQueue<>(file, TapeStringListConverter.getDefaultInstance());
+      int batches = tape.size();
+      while (tape.size() > 0) {
+        List<String> lines = tape.peek();
+        if (lines != null) {
+          target.add(lines);
+        }
+        tape.remove();
+      }
+      tape.close();
+      if (!file.delete()) {
+        logger.warning("Unable to delete migrated tape file " + file);
+      }
+      logger.info("Migrated " + batches + " batches from tape file " + file);
+    } catch (Exception e) {
+      logger.log(Level.WARNING, "Unable to migrate tape file " + file + ", ignoring", e);
+    }
+  }
+
+  @NotNull
+  public ObjectQueue<List<String>> getTape(@NotNull File f) {
+    try {
+      return queues.get(f);
+    } catch (Exception e) {
+      logger.log(Level.SEVERE, "Error while loading " + f, e);
+      throw new RuntimeException("Unable to provide ObjectQueue", e);
+    }
+  }
+
+  /**
+   * Flush all queues opened by this deck to disk.
+   */
+  public void close() {
+    for (ObjectQueue<List<String>> queue : queues.asMap().values()) {
+      ((MappedLineQueue) queue).close();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "MappedQueueDeck{" +
+        "queues=" + queues +
+        ", segmentSize=" + segmentSize +
+        '}';
+  }
+}
@@ -0,0 +1,144 @@
+package com.wavefront.agent.listeners;
+
+import com.google.common.base.Preconditions;
+
+import com.wavefront.common.NamedThreadFactory;
+import com.wavefront.common.TaggedMetricName;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
+
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import io.netty.channel.Channel;
+
+/**
+ * Worker pool that takes line processing (preprocessing, decoding and handing off to a ReportableEntityHandler)
+ * off Netty I/O threads. I/O threads only frame incoming data and submit batches of lines, so expensive preprocessor
+ * rule sets don't limit how many connections an event loop can serve.
+ * <p/>
+ * When the number of lines waiting to be processed exceeds the limit, the submitting channel stops reading from its
+ * socket (autoRead is disabled), so backpressure propagates to clients through TCP flow control. Paused channels
+ * resume reading once workers have drained the backlog to half the limit.
+ * <p/>
+ * Batches are processed in parallel, so points received over the same connection are not guaranteed to be
+ * reported in the order they were received.
+ */
+public class LineProcessingPipeline {
+  private static final Logger logger = Logger.getLogger(LineProcessingPipeline.class.getCanonicalName());
+
+  private final ExecutorService executor;
+  private final int maxPendingLines;
+  private final int resumeThreshold;
+  private final AtomicInteger pendingLines = new AtomicInteger();
+  private final Set<Channel> pausedChannels = ConcurrentHashMap.newKeySet();
+  private final Counter batchesProcessed;
+  private final Counter channelsPaused;
+
+  /**
+   * @param handle          handle/port number(s) the pipeline serves (for thread names and metrics).
+   * @param threads         number of worker threads.
+   * @param maxPendingLines number of lines waiting to be processed before channels stop reading.
+   */
+  public LineProcessingPipeline(String handle, int threads, int maxPendingLines) {
+    Preconditions.checkArgument(threads > 0, "threads must be positive");
+    Preconditions.checkArgument(maxPendingLines > 0, "maxPendingLines must be positive");
+    this.maxPendingLines = maxPendingLines;
+    this.resumeThreshold = maxPendingLines / 2;
+    this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+        new NamedThreadFactory("line-processing-" + handle));
+    this.batchesProcessed = Metrics.newCounter(new TaggedMetricName("listeners", "pipeline.batches",
+        "port", handle));
+    this.channelsPaused = Metrics.newCounter(new TaggedMetricName("listeners", "pipeline.channels-paused",
+        "port", handle));
+    Metrics.newGauge(new TaggedMetricName("listeners", "pipeline.pending-lines", "port", handle),
+        new Gauge<Integer>() {
+          @Override
+          public Integer value() {
+            return pendingLines.get();
+          }
+        }
+    );
+  }
+
+  /**
+   * Schedule a batch of lines for processing. If the backlog is over the limit, the channel the batch was received
+   * from stops reading until the backlog is drained.
+   *
+   * @param channel channel the lines were received from.
+   * @param lines   number of lines in the batch.
+   * @param task    processes the batch.
+   */
+  public void submit(Channel channel, int lines, Runnable task) {
+    if (pendingLines.addAndGet(lines) > maxPendingLines) {
+      pause(channel);
+    }
+    executor.execute(() -> {
+      try {
+        task.run();
+        batchesProcessed.inc();
+      } finally {
+        if (pendingLines.addAndGet(-lines) <= resumeThreshold) {
+          resumeAll();
+        }
+      }
+    });
+  }
+
+  /**
+   * Get the number of lines submitted, but not yet processed.
+   *
+   * @return number of pending lines
+   */
+  public int getPendingLines() {
+    return pendingLines.get();
+  }
+
+  /**
+   * Stop accepting new batches and wait for already submitted ones to be processed.
+   *
+   * @param timeoutMillis max time to wait, in milliseconds.
+   */
+  public void shutdown(long timeoutMillis) {
+    executor.shutdown();
+    resumeAll();
+    try {
+      if (!executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+        logger.warning("Line processing pipeline didn't finish in " + timeoutMillis + "ms, " +
+            pendingLines.get() + " lines discarded");
+        executor.shutdownNow();
+      }
+    } catch (InterruptedException e) {
+      executor.shutdownNow();
+    }
+  }
+
+  private void pause(Channel channel) {
+    if (channel.config().isAutoRead()) {
+      channel.config().setAutoRead(false);
+      pausedChannels.add(channel);
+      channelsPaused.inc();
+    }
+    // workers may have drained the backlog before the channel was registered as paused
+    if (pendingLines.get() <= resumeThreshold) {
+      resumeAll();
+    }
+  }
+
+  private void resumeAll() {
+    Iterator<Channel> iterator = pausedChannels.iterator();
+    while (iterator.hasNext()) {
+      Channel channel = iterator.next();
+      iterator.remove();
+      channel.config().setAutoRead(true);
+    }
+  }
+}
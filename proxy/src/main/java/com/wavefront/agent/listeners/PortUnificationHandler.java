@@ -17,7 +17,10 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -40,6 +43,7 @@ import io.netty.handler.codec.http.HttpHeaderValues;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.HttpUtil;
 import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.AttributeKey;
 import io.netty.util.CharsetUtil;
 
 import static com.wavefront.agent.Utils.lazySupplier;
@@ -56,6 +60,10 @@ public abstract class PortUnificationHandler extends SimpleChannelInboundHandler
   private static final Logger logger = Logger.getLogger(
       PortUnificationHandler.class.getCanonicalName());
 
+  private static final AttributeKey<List<String>> PENDING_LINES = AttributeKey.valueOf("pendingLines");
+  private static final AttributeKey<CompletableFuture<Void>> LAST_RESPONSE = AttributeKey.valueOf("lastResponse");
+  private static final int MAX_PLAINTEXT_BATCH_SIZE = 1000;
+
   protected final Supplier<Histogram> httpRequestHandleDuration;
   protected final Supplier<Counter> requestsDiscarded;
   protected final Supplier<Counter> pointsDiscarded;
@@ -65,6 +73,9 @@ public abstract class PortUnificationHandler extends SimpleChannelInboundHandler
   protected final boolean plaintextEnabled;
   protected final boolean httpEnabled;
 
+  @Nullable
+  protected LineProcessingPipeline pipeline = null;
+
   /**
    * Create new instance.
    *
@@ -86,11 +97,65 @@ public abstract class PortUnificationHandler extends SimpleChannelInboundHandler
         "items-discarded", "port", this.handle)));
   }
 
+  /**
+   * Process lines on a worker pool instead of Netty I/O threads. Applies to plaintext lines and newline-delimited
+   * HTTP POST bodies handled by this class (subclasses with their own message handling are not affected). HTTP
+   * requests pipelined on the same connection may be processed in parallel, but are answered in the order they
+   * were received.
+   *
+   * @param pipeline worker pool to process lines on, null to process lines inline.
+   * @return this
+   */
+  public PortUnificationHandler withLineProcessingPipeline(@Nullable LineProcessingPipeline pipeline) {
+    this.pipeline = pipeline;
+    return this;
+  }
+
   /**
    * Handles an incoming HTTP message. Accepts HTTP POST on all paths
    */
   protected void handleHttpMessage(final ChannelHandlerContext ctx,
                                    final FullHttpRequest request) {
+    if (pipeline != null) {
+      // the request is released as soon as we return, so only pass on what's needed to respond
+      final String[] lines = StringUtils.split(request.content().toString(CharsetUtil.UTF_8), '\n');
+      final boolean keepAlive = HttpUtil.isKeepAlive(request);
+      final CompletableFuture<Runnable> processed = new CompletableFuture<>();
+      pipeline.submit(ctx.channel(), lines.length, () -> {
+        StringBuilder output = new StringBuilder();
+        HttpResponseStatus status;
+        try {
+          for (String line : lines) {
+            processLine(ctx, line.trim());
+          }
+          status = HttpResponseStatus.NO_CONTENT;
+        } catch (Exception e) {
+          status = HttpResponseStatus.BAD_REQUEST;
+          writeExceptionText(e, output);
+          logWarning("WF-300: Failed to handle HTTP POST", e, ctx);
+        }
+        final HttpResponseStatus responseStatus = status;
+        processed.complete(() -> writeHttpResponse(ctx, responseStatus, output, keepAlive));
+      });
+      // HTTP/1.1 requires responses to pipelined requests in the order the requests were received, so each
+      // response is written on the event loop once the response to the previous request has been written
+      CompletableFuture<Void> previous = ctx.channel().attr(LAST_RESPONSE).get();
+      CompletableFuture<Runnable> ready = previous == null ? processed :
+          previous.thenCombine(processed, (x, respond) -> respond);
+      ctx.channel().attr(LAST_RESPONSE).set(ready.thenCompose(respond -> {
+        CompletableFuture<Void> written = new CompletableFuture<>();
+        ctx.executor().execute(() -> {
+          try {
+            respond.run();
+            ctx.flush();
+          } finally {
+            written.complete(null);
+          }
+        });
+        return written;
+      }));
+      return;
+    }
     StringBuilder output = new StringBuilder();
 
     HttpResponseStatus status;
@@ -122,13 +187,41 @@ public abstract class PortUnificationHandler extends SimpleChannelInboundHandler
           (tokenAuthenticator.authRequired() ? " (authentication enabled)" : ""));
       return;
     }
+    if (pipeline != null) {
+      // lines are batched until the end of the current read and then processed on the pipeline
+      List<String> batch = ctx.channel().attr(PENDING_LINES).get();
+      if (batch == null) {
+        batch = new ArrayList<>();
+        ctx.channel().attr(PENDING_LINES).set(batch);
+      }
+      batch.add(message.trim());
+      if (batch.size() >= MAX_PLAINTEXT_BATCH_SIZE) {
+        submitPendingLines(ctx);
+      }
+      return;
+    }
     processLine(ctx, message.trim());
   }
 
+  private void submitPendingLines(final ChannelHandlerContext ctx) {
+    final List<String> batch = ctx.channel().attr(PENDING_LINES).getAndSet(null);
+    if (batch == null || batch.isEmpty() || pipeline == null) return;
+    pipeline.submit(ctx.channel(), batch.size(), () -> {
+      for (String line : batch) {
+        try {
+          processLine(ctx, line);
+        } catch (final Exception e) {
+          logWarning("Failed to handle message", e, ctx);
+        }
+      }
+    });
+  }
+
   protected abstract void processLine(final ChannelHandlerContext ctx, final String message);
 
   @Override
   public void channelReadComplete(ChannelHandlerContext ctx) {
+    submitPendingLines(ctx);
     ctx.flush();
   }
 
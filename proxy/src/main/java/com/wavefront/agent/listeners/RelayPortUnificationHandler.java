@@ -1,18 +1,30 @@
 package com.wavefront.agent.listeners;
 
+import com.google.common.collect.Lists;
+
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.wavefront.agent.auth.TokenAuthenticator;
+import com.wavefront.agent.handlers.HandlerKey;
+import com.wavefront.agent.handlers.ReportableEntityHandler;
 import com.wavefront.agent.handlers.ReportableEntityHandlerFactory;
 import com.wavefront.agent.preprocessor.ReportableEntityPreprocessor;
+import com.wavefront.agent.sampler.AdaptiveSampler;
+import com.wavefront.agent.sampler.TailSampler;
 import com.wavefront.common.Clock;
 import com.wavefront.data.ReportableEntityType;
 import com.wavefront.ingester.ReportableEntityDecoder;
+import com.wavefront.sdk.entities.tracing.sampling.Sampler;
 
 import org.apache.commons.lang.StringUtils;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.utils.URLEncodedUtils;
 
 import java.net.URI;
+import java.util.List;
 import java.util.Map;
+import java.util.UUID;
+import java.util.function.Function;
 import java.util.logging.Logger;
 
 import javax.annotation.Nullable;
@@ -22,10 +34,16 @@ import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.util.CharsetUtil;
+import wavefront.report.Span;
+
+import static com.wavefront.agent.listeners.tracing.SpanDerivedMetricsUtils.ERROR_SPAN_TAG_KEY;
+import static com.wavefront.agent.listeners.tracing.SpanDerivedMetricsUtils.ERROR_SPAN_TAG_VAL;
+import static com.wavefront.api.agent.Constants.PUSH_FORMAT_TRACING;
 
 /**
  * Process incoming HTTP requests from other proxies (i.e. act as a relay for proxy chaining).
- * Supports metric and histogram data (no source tag or tracing support at this moment).
+ * Supports metric and histogram data (no source tag support at this moment), as well as spans forwarded by
+ * other proxies sharding traces across the fleet ({@code format=trace}).
  * Intended for internal use.
  *
  * @author vasily@wavefront.com
@@ -34,12 +52,63 @@ import io.netty.util.CharsetUtil;
 public class RelayPortUnificationHandler extends WavefrontPortUnificationHandler {
   private static final Logger logger = Logger.getLogger(RelayPortUnificationHandler.class.getCanonicalName());
 
+  private final Map<ReportableEntityType, ReportableEntityDecoder> decoders;
+  private final ReportableEntityHandlerFactory handlerFactory;
+
+  @Nullable
+  private ReportableEntityDecoder<String, Span> spanDecoder = null;
+  @Nullable
+  private ReportableEntityHandler<Span> spanHandler = null;
+  @Nullable
+  private Sampler sampler = null;
+  private boolean alwaysSampleErrors = false;
+  @Nullable
+  private Function<String, TailSampler> tailSamplers = null;
+  @Nullable
+  private AdaptiveSampler adaptiveSampler = null;
+
   public RelayPortUnificationHandler(final String handle,
                                      final TokenAuthenticator tokenAuthenticator,
                                      final Map<ReportableEntityType, ReportableEntityDecoder> decoders,
                                      final ReportableEntityHandlerFactory handlerFactory,
                                      @Nullable final ReportableEntityPreprocessor preprocessor) {
     super(handle, tokenAuthenticator, decoders, handlerFactory, null, preprocessor);
+    this.decoders = decoders;
+    this.handlerFactory = handlerFactory;
+  }
+
+  /**
+   * Accept spans forwarded by other proxies. Forwarded spans have already been preprocessed by the receiving
+   * proxy, so they are only sampled here. Spans are tagged with the handle of the listener they were received on
+   * ({@code port} parameter), and go to the tail sampler of the local listener with the same handle, so all spans
+   * of a trace get a single tail sampling decision. Spans for a handle without a local tail sampler are sampled as
+   * they arrive.
+   *
+   * @param sampler            sampler to use.
+   * @param alwaysSampleErrors always sample spans with error tag.
+   * @param tailSamplers       returns the tail sampler of a local trace listener by its handle, or null.
+   * @return this
+   */
+  @SuppressWarnings("unchecked")
+  public RelayPortUnificationHandler withTraceSampling(Sampler sampler, boolean alwaysSampleErrors,
+                                                       @Nullable Function<String, TailSampler> tailSamplers) {
+    this.spanDecoder = decoders.get(ReportableEntityType.TRACE);
+    this.spanHandler = handlerFactory.getHandler(HandlerKey.of(ReportableEntityType.TRACE, handle));
+    this.sampler = sampler;
+    this.alwaysSampleErrors = alwaysSampleErrors;
+    this.tailSamplers = tailSamplers;
+    return this;
+  }
+
+  /**
+   * Limit sampled spans per application/service/operation, on top of the sampler.
+   *
+   * @param adaptiveSampler adaptive sampler to use, null to disable.
+   * @return this
+   */
+  public RelayPortUnificationHandler withAdaptiveSampler(@Nullable AdaptiveSampler adaptiveSampler) {
+    this.adaptiveSampler = adaptiveSampler;
+    return this;
   }
 
   @Override
@@ -59,10 +128,23 @@ public class RelayPortUnificationHandler extends WavefrontPortUnificationHandler
       return;
     }
 
+    List<NameValuePair> params = URLEncodedUtils.parse(uri, CharsetUtil.UTF_8);
+    boolean isTraceFormat = params.stream().
+        anyMatch(x -> x.getName().equals("format") && PUSH_FORMAT_TRACING.equals(x.getValue()));
     HttpResponseStatus status;
     try {
+      TailSampler tailSampler = null;
+      if (isTraceFormat && tailSamplers != null) {
+        String spanHandle = params.stream().filter(x -> x.getName().equals("port")).
+            map(NameValuePair::getValue).findFirst().orElse(null);
+        tailSampler = spanHandle == null ? null : tailSamplers.apply(spanHandle);
+      }
       for (String line : StringUtils.split(request.content().toString(CharsetUtil.UTF_8), '\n')) {
-        processLine(ctx, line.trim());
+        if (isTraceFormat) {
+          processSpanLine(ctx, line.trim(), tailSampler);
+        } else {
+          processLine(ctx, line.trim());
+        }
       }
       status = HttpResponseStatus.OK;
     } catch (Exception e) {
@@ -72,4 +154,32 @@ public class RelayPortUnificationHandler extends WavefrontPortUnificationHandler
     }
     writeHttpResponse(ctx, status, output, request);
   }
+
+  private void processSpanLine(final ChannelHandlerContext ctx, final String message,
+                               @Nullable final TailSampler tailSampler) {
+    if (message.isEmpty()) return;
+    if (spanHandler == null || spanDecoder == null || sampler == null) {
+      throw new UnsupportedOperationException("Port is not configured to accept forwarded spans!");
+    }
+    List<Span> output = Lists.newArrayListWithCapacity(1);
+    try {
+      spanDecoder.decode(message, output, "dummy");
+    } catch (Exception e) {
+      spanHandler.reject(message, formatErrorMessage("WF-300 Cannot parse: \"" + message + "\"", e, ctx));
+      return;
+    }
+    for (Span span : output) {
+      if (tailSampler != null) {
+        tailSampler.add(span, Clock.now());
+        continue;
+      }
+      boolean sampleError = alwaysSampleErrors && span.getAnnotations().stream().anyMatch(
+          t -> t.getKey().equals(ERROR_SPAN_TAG_KEY) && t.getValue().equals(ERROR_SPAN_TAG_VAL));
+      long traceIdLeastSigBits = UUID.fromString(span.getTraceId()).getLeastSignificantBits();
+      if (sampleError || (sampler.sample(span.getName(), traceIdLeastSigBits, span.getDuration()) &&
+          (adaptiveSampler == null || adaptiveSampler.sample(span, traceIdLeastSigBits)))) {
+        spanHandler.report(span);
+      }
+    }
+  }
 }
@@ -1,5 +1,7 @@
 package com.wavefront.agent.listeners.tracing;
 
+import java.util.Objects;
+
 import javax.annotation.Nonnull;
 
 /**
@@ -15,9 +17,10 @@ public class HeartbeatMetricKey {
   @Nonnull
   private final String cluster;
   @Nonnull
-  private String shard;
+  private final String shard;
   @Nonnull
-  private String source;
+  private final String source;
+  private final int hashCode;
 
   public HeartbeatMetricKey(String application, String service, String cluster, String shard,
                             String source) {
@@ -26,6 +29,8 @@ public class HeartbeatMetricKey {
     this.cluster = cluster;
     this.shard = shard;
     this.source = source;
+    // keys are looked up for every span, so compute the hash once
+    this.hashCode = Objects.hash(application, service, cluster, shard, source);
   }
 
   public String getApplication() {
@@ -59,13 +64,12 @@ public class HeartbeatMetricKey {
     }
 
     HeartbeatMetricKey other = (HeartbeatMetricKey) o;
-    return application.equals(other.application) && service.equals(other.service) &&
+    return hashCode == other.hashCode && application.equals(other.application) && service.equals(other.service) &&
         cluster.equals(other.cluster) && shard.equals(other.shard) && source.equals(other.source);
   }
 
   @Override
   public int hashCode() {
-    return application.hashCode() + 31 * service.hashCode() + 31 * cluster.hashCode() +
-        31 * shard.hashCode() + 31 * source.hashCode();
+    return hashCode;
   }
 }
@@ -0,0 +1,103 @@
+package com.wavefront.agent.listeners.tracing;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.RateLimiter;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.MetricName;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Logger;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Fixed-capacity, lock-free set of heartbeat metric keys discovered since the last heartbeat report.
+ * <p/>
+ * Keys are stored in an open-addressed table (linear probing over precomputed hash codes), so adding a key that
+ * has already been discovered only takes a few reads and no allocations. Keys that don't fit (when the table is
+ * close to full) are dropped (counted in {@code spans.<port>.heartbeats.dropped}), and get discovered again after
+ * the next report empties the table.
+ */
+public class HeartbeatMetricKeySet {
+  private static final Logger logger = Logger.getLogger(HeartbeatMetricKeySet.class.getCanonicalName());
+  private static final int DEFAULT_CAPACITY = 16384;
+  private static final int MAX_PROBES = 16;
+
+  private final AtomicReferenceArray<HeartbeatMetricKey> slots;
+  private final int mask;
+  private final String handle;
+  private final Counter droppedKeys;
+  private final RateLimiter warningLoggerRateLimiter = RateLimiter.create(0.2);
+
+  /**
+   * @param handle handle/port number the keys are discovered on.
+   */
+  public HeartbeatMetricKeySet(String handle) {
+    this(handle, DEFAULT_CAPACITY);
+  }
+
+  /**
+   * @param handle   handle/port number the keys are discovered on.
+   * @param capacity max number of keys to track, rounded up to a power of two.
+   */
+  public HeartbeatMetricKeySet(String handle, int capacity) {
+    Preconditions.checkArgument(capacity > 0, "[capacity] must be positive");
+    this.handle = handle;
+    this.droppedKeys = Metrics.newCounter(new MetricName("spans." + handle + ".heartbeats", "", "dropped"));
+    int size = Integer.highestOneBit(capacity);
+    size = size < capacity ? size << 1 : size;
+    this.slots = new AtomicReferenceArray<>(size);
+    this.mask = size - 1;
+  }
+
+  /**
+   * Add a key to the set.
+   *
+   * @param key heartbeat metric key.
+   * @return false if the set is too full to accept the key.
+   */
+  public boolean add(@Nonnull HeartbeatMetricKey key) {
+    int hash = key.hashCode();
+    int index = (hash ^ (hash >>> 16)) & mask;
+    for (int i = 0; i < MAX_PROBES && i <= mask; i++) {
+      int slot = (index + i) & mask;
+      HeartbeatMetricKey existing = slots.get(slot);
+      if (existing == null) {
+        if (slots.compareAndSet(slot, null, key)) {
+          return true;
+        }
+        existing = slots.get(slot);
+      }
+      if (existing != null && (existing == key || existing.equals(key))) {
+        return true;
+      }
+    }
+    droppedKeys.inc();
+    if (warningLoggerRateLimiter.tryAcquire()) {
+      logger.warning("[" + handle + "] Too many distinct heartbeat metrics, some are not reported until the next " +
+          "heartbeat (" + droppedKeys.count() + " dropped in total)");
+    }
+    return false;
+  }
+
+  /**
+   * Remove and return all keys from the set.
+   *
+   * @return keys discovered since the previous call.
+   */
+  public Collection<HeartbeatMetricKey> drain() {
+    Set<HeartbeatMetricKey> keys = new HashSet<>();
+    for (int i = 0; i <= mask; i++) {
+      if (slots.get(i) != null) {
+        HeartbeatMetricKey key = slots.getAndSet(i, null);
+        // a key may have been added twice if it was re-added while the table was being drained
+        if (key != null) keys.add(key);
+      }
+    }
+    return keys;
+  }
+}
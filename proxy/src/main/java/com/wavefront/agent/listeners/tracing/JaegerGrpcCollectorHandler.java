@@ -0,0 +1,171 @@
+package com.wavefront.agent.listeners.tracing;
+
+import com.google.common.collect.Lists;
+import com.google.protobuf.ByteString;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import io.grpc.stub.StreamObserver;
+import io.jaegertracing.api_v2.Collector;
+import io.jaegertracing.api_v2.CollectorServiceGrpc;
+import io.jaegertracing.api_v2.Model;
+import io.jaegertracing.thriftjava.Batch;
+import io.jaegertracing.thriftjava.Process;
+import io.jaegertracing.thriftjava.SpanRef;
+import io.jaegertracing.thriftjava.SpanRefType;
+import io.jaegertracing.thriftjava.Tag;
+import io.jaegertracing.thriftjava.TagType;
+
+/**
+ * Handler that processes trace data sent to the Jaeger gRPC collector API (protobuf format) and converts them to
+ * Wavefront format. Spans are converted to their Thrift representation one at a time, as they are processed by
+ * the {@link JaegerThriftCollectorHandler} they are delegated to.
+ */
+public class JaegerGrpcCollectorHandler extends CollectorServiceGrpc.CollectorServiceImplBase implements Closeable {
+
+  private final JaegerThriftCollectorHandler delegate;
+
+  /**
+   * @param delegate handler to process converted batches with.
+   */
+  public JaegerGrpcCollectorHandler(JaegerThriftCollectorHandler delegate) {
+    this.delegate = delegate;
+  }
+
+  @Override
+  public void postSpans(Collector.PostSpansRequest request,
+                        StreamObserver<Collector.PostSpansResponse> responseObserver) {
+    Model.Batch batch = request.getBatch();
+    if (batch.getSpansCount() > 0) {
+      // spans may override the batch's process, those are processed as separate batches
+      Map<Model.Process, List<Model.Span>> spansByProcess = new LinkedHashMap<>(1);
+      for (Model.Span span : batch.getSpansList()) {
+        Model.Process process = span.hasProcess() ? span.getProcess() : batch.getProcess();
+        spansByProcess.computeIfAbsent(process, x -> new ArrayList<>(batch.getSpansCount())).add(span);
+      }
+      spansByProcess.forEach((process, spans) -> {
+        Batch thriftBatch = new Batch();
+        thriftBatch.setProcess(toThrift(process));
+        thriftBatch.setSpans(Lists.transform(spans, JaegerGrpcCollectorHandler::toThrift));
+        delegate.submitBatch(thriftBatch);
+      });
+    }
+    responseObserver.onNext(Collector.PostSpansResponse.getDefaultInstance());
+    responseObserver.onCompleted();
+  }
+
+  @Override
+  public void close() throws IOException {
+    delegate.close();
+  }
+
+  private static Process toThrift(Model.Process process) {
+    Process result = new Process(process.getServiceName());
+    if (process.getTagsCount() > 0) {
+      result.setTags(toThrift(process.getTagsList()));
+    }
+    return result;
+  }
+
+  private static io.jaegertracing.thriftjava.Span toThrift(Model.Span span) {
+    ByteString traceId = span.getTraceId();
+    long parentSpanId = 0;
+    List<SpanRef> references = new ArrayList<>(span.getReferencesCount());
+    for (Model.SpanRef reference : span.getReferencesList()) {
+      long spanId = toLong(reference.getSpanId());
+      switch (reference.getRefType()) {
+        case CHILD_OF:
+          // Thrift clients report the parent as parentSpanId, not as a reference
+          if (parentSpanId == 0 && reference.getTraceId().equals(traceId)) {
+            parentSpanId = spanId;
+            continue;
+          }
+          references.add(toThrift(SpanRefType.CHILD_OF, reference.getTraceId(), spanId));
+          continue;
+        case FOLLOWS_FROM:
+          references.add(toThrift(SpanRefType.FOLLOWS_FROM, reference.getTraceId(), spanId));
+          continue;
+        default:
+      }
+    }
+    io.jaegertracing.thriftjava.Span result = new io.jaegertracing.thriftjava.Span(traceIdLow(traceId),
+        traceIdHigh(traceId), toLong(span.getSpanId()), parentSpanId, span.getOperationName(), span.getFlags(),
+        span.getStartTime().getSeconds() * 1_000_000 + span.getStartTime().getNanos() / 1000,
+        span.getDuration().getSeconds() * 1_000_000 + span.getDuration().getNanos() / 1000);
+    if (span.getTagsCount() > 0) {
+      result.setTags(toThrift(span.getTagsList()));
+    }
+    if (!references.isEmpty()) {
+      result.setReferences(references);
+    }
+    return result;
+  }
+
+  private static SpanRef toThrift(SpanRefType refType, ByteString traceId, long spanId) {
+    return new SpanRef(refType, traceIdLow(traceId), traceIdHigh(traceId), spanId);
+  }
+
+  private static List<Tag> toThrift(List<Model.KeyValue> keyValues) {
+    List<Tag> tags = new ArrayList<>(keyValues.size());
+    for (Model.KeyValue keyValue : keyValues) {
+      Tag tag = toThrift(keyValue);
+      if (tag != null) {
+        tags.add(tag);
+      }
+    }
+    return tags;
+  }
+
+  @Nullable
+  private static Tag toThrift(Model.KeyValue keyValue) {
+    switch (keyValue.getVType()) {
+      case STRING:
+        return new Tag(keyValue.getKey(), TagType.STRING).setVStr(keyValue.getVStr());
+      case BOOL:
+        return new Tag(keyValue.getKey(), TagType.BOOL).setVBool(keyValue.getVBool());
+      case INT64:
+        return new Tag(keyValue.getKey(), TagType.LONG).setVLong(keyValue.getVInt64());
+      case FLOAT64:
+        return new Tag(keyValue.getKey(), TagType.DOUBLE).setVDouble(keyValue.getVFloat64());
+      case BINARY:
+        return new Tag(keyValue.getKey(), TagType.BINARY).setVBinary(keyValue.getVBinary().toByteArray());
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * Trace ids are 16 bytes (high, then low 64 bits), or 8 bytes for 64-bit trace ids.
+   */
+  private static long traceIdHigh(ByteString traceId) {
+    int size = traceId.size();
+    return toLong(traceId, Math.max(0, size - 16), Math.max(0, size - 8));
+  }
+
+  private static long traceIdLow(ByteString traceId) {
+    int size = traceId.size();
+    return toLong(traceId, Math.max(0, size - 8), size);
+  }
+
+  private static long toLong(ByteString bytes) {
+    return toLong(bytes, Math.max(0, bytes.size() - 8), bytes.size());
+  }
+
+  /**
+   * Big-endian value of a byte range.
+   */
+  private static long toLong(ByteString bytes, int from, int to) {
+    long result = 0;
+    for (int i = from; i < to; i++) {
+      result = (result << 8) | (bytes.byteAt(i) & 0xFF);
+    }
+    return result;
+  }
+}
@@ -7,10 +7,15 @@ import com.google.common.util.concurrent.RateLimiter;
 import com.uber.tchannel.api.handlers.ThriftRequestHandler;
 import com.uber.tchannel.messages.ThriftRequest;
 import com.uber.tchannel.messages.ThriftResponse;
+import com.wavefront.agent.Utils;
 import com.wavefront.agent.handlers.HandlerKey;
 import com.wavefront.agent.handlers.ReportableEntityHandler;
 import com.wavefront.agent.handlers.ReportableEntityHandlerFactory;
+import com.wavefront.agent.histogram.accumulator.BatchingAccumulator;
 import com.wavefront.agent.preprocessor.ReportableEntityPreprocessor;
+import com.wavefront.agent.sampler.AdaptiveSampler;
+import com.wavefront.agent.sampler.TailSampler;
+import com.wavefront.common.Clock;
 import com.wavefront.common.NamedThreadFactory;
 import com.wavefront.common.TraceConstants;
 import com.wavefront.data.ReportableEntityType;
@@ -27,8 +32,6 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -83,10 +86,18 @@ public class JaegerThriftCollectorHandler extends ThriftRequestHandler<Collector
   private final WavefrontSender wfSender;
   @Nullable
   private final WavefrontInternalReporter wfInternalReporter;
+  @Nullable
+  private SpanDerivedMetricsCache derivedMetrics;
   private final AtomicBoolean traceDisabled;
   private final ReportableEntityPreprocessor preprocessor;
   private final Sampler sampler;
   private final boolean alwaysSampleErrors;
+  @Nullable
+  private TailSampler tailSampler = null;
+  @Nullable
+  private AdaptiveSampler adaptiveSampler = null;
+  @Nullable
+  private TraceShardRouter shardRouter = null;
 
   // log every 5 seconds
   private final RateLimiter warningLoggerRateLimiter = RateLimiter.create(0.2);
@@ -95,7 +106,7 @@ public class JaegerThriftCollectorHandler extends ThriftRequestHandler<Collector
   private final Counter discardedBatches;
   private final Counter processedBatches;
   private final Counter failedBatches;
-  private final ConcurrentMap<HeartbeatMetricKey, Boolean> discoveredHeartbeatMetrics;
+  private final HeartbeatMetricKeySet discoveredHeartbeatMetrics;
   private final ScheduledExecutorService scheduledExecutorService;
 
   @SuppressWarnings("unchecked")
@@ -132,7 +143,7 @@ public class JaegerThriftCollectorHandler extends ThriftRequestHandler<Collector
         new MetricName("spans." + handle + ".batches", "", "processed"));
     this.failedBatches = Metrics.newCounter(
         new MetricName("spans." + handle + ".batches", "", "failed"));
-    this.discoveredHeartbeatMetrics =  new ConcurrentHashMap<>();
+    this.discoveredHeartbeatMetrics = new HeartbeatMetricKeySet(handle);
     this.scheduledExecutorService = Executors.newScheduledThreadPool(1,
         new NamedThreadFactory("jaeger-heart-beater"));
     scheduledExecutorService.scheduleAtFixedRate(this, 1, 1, TimeUnit.MINUTES);
@@ -143,29 +154,85 @@ public class JaegerThriftCollectorHandler extends ThriftRequestHandler<Collector
           build(wfSender);
       // Start the reporter
       wfInternalReporter.start(1, TimeUnit.MINUTES);
+      derivedMetrics = new SpanDerivedMetricsCache(wfInternalReporter);
     } else {
       wfInternalReporter = null;
+      derivedMetrics = null;
+    }
+  }
+
+  /**
+   * Buffer spans by trace and sample complete traces instead of sampling each span as it arrives.
+   *
+   * @param tailSampler tail sampler to use, null to sample spans as they arrive.
+   * @return this
+   */
+  public JaegerThriftCollectorHandler withTailSampler(@Nullable TailSampler tailSampler) {
+    this.tailSampler = tailSampler;
+    return this;
+  }
+
+  /**
+   * Limit sampled spans per application/service/operation, on top of the sampler.
+   *
+   * @param adaptiveSampler adaptive sampler to use, null to disable.
+   * @return this
+   */
+  public JaegerThriftCollectorHandler withAdaptiveSampler(@Nullable AdaptiveSampler adaptiveSampler) {
+    this.adaptiveSampler = adaptiveSampler;
+    return this;
+  }
+
+  /**
+   * Send span duration histograms through the histogram accumulator instead of the internal reporter.
+   *
+   * @param durationAccumulator accumulator for span durations, null to report them through the internal reporter.
+   * @return this
+   */
+  public JaegerThriftCollectorHandler withDurationAccumulator(@Nullable BatchingAccumulator durationAccumulator) {
+    if (wfInternalReporter != null) {
+      this.derivedMetrics = new SpanDerivedMetricsCache(wfInternalReporter, durationAccumulator);
     }
+    return this;
+  }
+
+  /**
+   * Forward spans to the proxy that owns their trace before sampling them.
+   *
+   * @param shardRouter router to use, null to process all spans locally.
+   * @return this
+   */
+  public JaegerThriftCollectorHandler withShardRouter(@Nullable TraceShardRouter shardRouter) {
+    this.shardRouter = shardRouter;
+    return this;
   }
 
   @Override
   public ThriftResponse<Collector.submitBatches_result> handleImpl(
       ThriftRequest<Collector.submitBatches_args> request) {
     for (Batch batch : request.getBody(Collector.submitBatches_args.class).getBatches()) {
-      try {
-        processBatch(batch);
-        processedBatches.inc();
-      } catch (Exception e) {
-        failedBatches.inc();
-        logger.log(Level.WARNING, "Jaeger Thrift batch processing failed",
-            Throwables.getRootCause(e));
-      }
+      submitBatch(batch);
     }
     return new ThriftResponse.Builder<Collector.submitBatches_result>(request)
         .setBody(new Collector.submitBatches_result())
         .build();
   }
 
+  /**
+   * Process a batch of spans, regardless of the protocol it was received over.
+   *
+   * @param batch batch to process. Spans are processed in the order they are returned by the span list's iterator.
+   */
+  void submitBatch(Batch batch) {
+    try {
+      processBatch(batch);
+      processedBatches.inc();
+    } catch (Exception e) {
+      failedBatches.inc();
+      logger.log(Level.WARNING, "Jaeger batch processing failed", Throwables.getRootCause(e));
+    }
+  }
+
   private void processBatch(Batch batch) {
     String serviceName = batch.getProcess().getServiceName();
     String sourceName = null;
@@ -179,9 +246,9 @@ public class JaegerThriftCollectorHandler extends ThriftRequestHandler<Collector
           sourceName = tag.getVStr();
         }
       }
-      if (sourceName == null) {
-        sourceName = DEFAULT_SOURCE;
-      }
+    }
+    if (sourceName == null) {
+      sourceName = DEFAULT_SOURCE;
     }
     if (traceDisabled.get()) {
       if (warningLoggerRateLimiter.tryAcquire()) {
@@ -200,12 +267,13 @@ public class JaegerThriftCollectorHandler extends ThriftRequestHandler<Collector
   private void processSpan(io.jaegertracing.thriftjava.Span span,
                            String serviceName,
                            String sourceName) {
-    List<Annotation> annotations = new ArrayList<>();
+    // service, parent, application, cluster and shard are added besides tags and references
+    List<Annotation> annotations = new ArrayList<>(span.getTagsSize() + span.getReferencesSize() + 5);
     // serviceName is mandatory in Jaeger
     annotations.add(new Annotation(SERVICE_TAG_KEY, serviceName));
     long parentSpanId = span.getParentSpanId();
     if (parentSpanId != 0) {
-      annotations.add(new Annotation("parent", new UUID(0, parentSpanId).toString()));
+      annotations.add(new Annotation("parent", Utils.toUuidString(0, parentSpanId)));
     }
 
     String applicationName = DEFAULT_APPLICATION;
@@ -272,23 +340,24 @@ public class JaegerThriftCollectorHandler extends ThriftRequestHandler<Collector
           case CHILD_OF:
             if (reference.getSpanId() != 0 && reference.getSpanId() != parentSpanId) {
               annotations.add(new Annotation(TraceConstants.PARENT_KEY,
-                  new UUID(0, reference.getSpanId()).toString()));
+                  Utils.toUuidString(0, reference.getSpanId())));
             }
           case FOLLOWS_FROM:
             if (reference.getSpanId() != 0) {
               annotations.add(new Annotation(TraceConstants.FOLLOWS_FROM_KEY,
-                  new UUID(0, reference.getSpanId()).toString()));
+                  Utils.toUuidString(0, reference.getSpanId())));
             }
           default:
         }
       }
     }
+    String traceId = Utils.toUuidString(span.getTraceIdHigh(), span.getTraceIdLow());
     Span wavefrontSpan = Span.newBuilder()
         .setCustomer("dummy")
         .setName(span.getOperationName())
         .setSource(sourceName)
-        .setSpanId(new UUID(0, span.getSpanId()).toString())
-        .setTraceId(new UUID(span.getTraceIdHigh(), span.getTraceIdLow()).toString())
+        .setSpanId(Utils.toUuidString(0, span.getSpanId()))
+        .setTraceId(traceId)
         .setStartMillis(span.getStartTime() / 1000)
         .setDuration(span.getDuration() / 1000)
         .setAnnotations(annotations)
@@ -311,16 +380,31 @@ public class JaegerThriftCollectorHandler extends ThriftRequestHandler<Collector
         return;
       }
     }
-    if ((alwaysSampleErrors && isError) || sampler.sample(wavefrontSpan.getName(),
-        UUID.fromString(wavefrontSpan.getTraceId()).getLeastSignificantBits(), wavefrontSpan.getDuration())) {
-      spanHandler.report(wavefrontSpan);
+    // no need to parse the trace id back unless a preprocessor rule has changed it
+    long traceIdLeastSigBits = traceId.equals(wavefrontSpan.getTraceId()) ? span.getTraceIdLow() :
+        UUID.fromString(wavefrontSpan.getTraceId()).getLeastSignificantBits();
+    if (shardRouter != null) {
+      final boolean error = isError;
+      shardRouter.route(wavefrontSpan, s -> sampleAndReport(s, error, traceIdLeastSigBits));
+    } else {
+      sampleAndReport(wavefrontSpan, isError, traceIdLeastSigBits);
     }
     // report stats irrespective of span sampling.
-    if (wfInternalReporter != null) {
+    if (derivedMetrics != null) {
       // report converted metrics/histograms from the span
-      discoveredHeartbeatMetrics.putIfAbsent(reportWavefrontGeneratedData(wfInternalReporter,
+      discoveredHeartbeatMetrics.add(reportWavefrontGeneratedData(derivedMetrics,
           span.getOperationName(), applicationName, serviceName, cluster, shard, sourceName,
-          componentTagValue, isError, span.getDuration()), true);
+          componentTagValue, isError, span.getDuration()));
+    }
+  }
+
+  private void sampleAndReport(Span wavefrontSpan, boolean isError, long traceIdLeastSigBits) {
+    if (tailSampler != null) {
+      tailSampler.add(wavefrontSpan, Clock.now());
+    } else if ((alwaysSampleErrors && isError) || (sampler.sample(wavefrontSpan.getName(), traceIdLeastSigBits,
+        wavefrontSpan.getDuration()) &&
+        (adaptiveSampler == null || adaptiveSampler.sample(wavefrontSpan, traceIdLeastSigBits)))) {
+      spanHandler.report(wavefrontSpan);
     }
   }
 
@@ -0,0 +1,205 @@
+package com.wavefront.agent.listeners.tracing;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.wavefront.agent.histogram.accumulator.BatchingAccumulator;
+import com.wavefront.internal.reporter.WavefrontInternalReporter;
+import com.wavefront.internal_reporter_java.io.dropwizard.metrics5.Counter;
+import com.wavefront.internal_reporter_java.io.dropwizard.metrics5.Histogram;
+import com.wavefront.internal_reporter_java.io.dropwizard.metrics5.MetricName;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import static com.wavefront.agent.listeners.tracing.SpanDerivedMetricsUtils.TRACING_DERIVED_PREFIX;
+import static com.wavefront.agent.listeners.tracing.SpanDerivedMetricsUtils.sanitize;
+import static com.wavefront.sdk.common.Constants.APPLICATION_TAG_KEY;
+import static com.wavefront.sdk.common.Constants.CLUSTER_TAG_KEY;
+import static com.wavefront.sdk.common.Constants.COMPONENT_TAG_KEY;
+import static com.wavefront.sdk.common.Constants.SERVICE_TAG_KEY;
+import static com.wavefront.sdk.common.Constants.SHARD_TAG_KEY;
+import static com.wavefront.sdk.common.Constants.SOURCE_KEY;
+
+/**
+ * Caches metrics derived from tracing spans, so that metric names and point tags are only built once per
+ * combination of application, service, operation, cluster, shard, source and component, and not for every span.
+ */
+public class SpanDerivedMetricsCache {
+  private final static int MAX_CACHED_OPERATIONS = 100_000;
+  private final static String INVOCATION_SUFFIX = ".invocation";
+  private final static String ERROR_SUFFIX = ".error";
+  private final static String DURATION_SUFFIX = ".duration.micros";
+  private final static String TOTAL_TIME_SUFFIX = ".total_time.millis";
+  private final static String OPERATION_NAME_TAG = "operationName";
+
+  private final WavefrontInternalReporter wfInternalReporter;
+  @Nullable
+  private final BatchingAccumulator durationAccumulator;
+  private final Cache<Key, DerivedMetrics> metrics;
+
+  /**
+   * @param wfInternalReporter reporter to register derived metrics with.
+   */
+  public SpanDerivedMetricsCache(@Nonnull WavefrontInternalReporter wfInternalReporter) {
+    this(wfInternalReporter, null);
+  }
+
+  /**
+   * @param wfInternalReporter  reporter to register derived metrics with.
+   * @param durationAccumulator histogram accumulator for span durations, if null durations are reported as
+   *                            histograms through the reporter.
+   */
+  public SpanDerivedMetricsCache(@Nonnull WavefrontInternalReporter wfInternalReporter,
+                                 @Nullable BatchingAccumulator durationAccumulator) {
+    this.wfInternalReporter = wfInternalReporter;
+    this.durationAccumulator = durationAccumulator;
+    // metrics stay registered with the reporter when evicted, and are looked up again if needed
+    this.metrics = Caffeine.newBuilder().maximumSize(MAX_CACHED_OPERATIONS).build();
+  }
+
+  /**
+   * Get derived metrics for a span, registering them with the reporter if needed.
+   *
+   * @param operationName     span operation name
+   * @param application       name of the application
+   * @param service           name of the service
+   * @param cluster           name of the cluster
+   * @param shard             name of the shard
+   * @param source            reporting source
+   * @param componentTagValue component tag value
+   * @return derived metrics
+   */
+  DerivedMetrics get(String operationName, String application, String service, String cluster, String shard,
+                     String source, String componentTagValue) {
+    return metrics.get(new Key(operationName, application, service, cluster, shard, source, componentTagValue),
+        this::register);
+  }
+
+  private DerivedMetrics register(Key key) {
+    Map<String, String> pointTags = new HashMap<>();
+    pointTags.put(APPLICATION_TAG_KEY, key.application);
+    pointTags.put(SERVICE_TAG_KEY, key.service);
+    pointTags.put(CLUSTER_TAG_KEY, key.cluster);
+    pointTags.put(SHARD_TAG_KEY, key.shard);
+    pointTags.put(OPERATION_NAME_TAG, key.operationName);
+    pointTags.put(COMPONENT_TAG_KEY, key.componentTagValue);
+    pointTags.put(SOURCE_KEY, key.source);
+    String prefix = key.application + "." + key.service + "." + key.operationName;
+    Histogram duration = null;
+    BatchingAccumulator.Series durationSamples = null;
+    // tracing.derived.<application>.<service>.<operation>.duration.micros.m
+    if (durationAccumulator == null) {
+      duration = wfInternalReporter.newWavefrontHistogram(new MetricName(sanitize(prefix + DURATION_SUFFIX),
+          pointTags));
+    } else {
+      Map<String, String> histogramTags = new HashMap<>(pointTags);
+      histogramTags.remove(SOURCE_KEY);
+      durationSamples = durationAccumulator.newSeries(TRACING_DERIVED_PREFIX + "." +
+          sanitize(prefix + DURATION_SUFFIX), key.source, histogramTags);
+    }
+    return new DerivedMetrics(
+        // tracing.derived.<application>.<service>.<operation>.invocation.count
+        wfInternalReporter.newDeltaCounter(new MetricName(sanitize(prefix + INVOCATION_SUFFIX), pointTags)),
+        // tracing.derived.<application>.<service>.<operation>.error.count
+        new MetricName(sanitize(prefix + ERROR_SUFFIX), pointTags),
+        duration,
+        durationSamples,
+        // tracing.derived.<application>.<service>.<operation>.total_time.millis.count
+        wfInternalReporter.newDeltaCounter(new MetricName(sanitize(prefix + TOTAL_TIME_SUFFIX), pointTags)),
+        new HeartbeatMetricKey(key.application, key.service, key.cluster, key.shard, key.source));
+  }
+
+  /**
+   * Metrics derived from spans with the same application, service, operation, cluster, shard, source and component.
+   */
+  class DerivedMetrics {
+    final Counter invocationCount;
+    private final MetricName errorCountName;
+    private volatile Counter errorCount = null;
+    @Nullable
+    private final Histogram duration;
+    @Nullable
+    private final BatchingAccumulator.Series durationSamples;
+    final Counter totalTime;
+    final HeartbeatMetricKey heartbeatMetricKey;
+
+    private DerivedMetrics(Counter invocationCount, MetricName errorCountName, @Nullable Histogram duration,
+                           @Nullable BatchingAccumulator.Series durationSamples, Counter totalTime,
+                           HeartbeatMetricKey heartbeatMetricKey) {
+      this.invocationCount = invocationCount;
+      this.errorCountName = errorCountName;
+      this.duration = duration;
+      this.durationSamples = durationSamples;
+      this.totalTime = totalTime;
+      this.heartbeatMetricKey = heartbeatMetricKey;
+    }
+
+    /**
+     * @return error counter, only registered once the first error span is seen.
+     */
+    Counter errorCount() {
+      Counter counter = errorCount;
+      if (counter == null) {
+        counter = wfInternalReporter.newDeltaCounter(errorCountName);
+        errorCount = counter;
+      }
+      return counter;
+    }
+
+    /**
+     * Record span duration, either in the reporter's histogram or in the histogram accumulator.
+     *
+     * @param durationMicros span duration in microseconds
+     */
+    void updateDuration(long durationMicros) {
+      if (durationSamples != null) {
+        durationSamples.add(durationMicros);
+      } else if (duration != null) {
+        duration.update(durationMicros);
+      }
+    }
+  }
+
+  private static class Key {
+    private final String operationName;
+    private final String application;
+    private final String service;
+    private final String cluster;
+    private final String shard;
+    private final String source;
+    private final String componentTagValue;
+    private final int hashCode;
+
+    Key(String operationName, String application, String service, String cluster, String shard, String source,
+        String componentTagValue) {
+      this.operationName = operationName;
+      this.application = application;
+      this.service = service;
+      this.cluster = cluster;
+      this.shard = shard;
+      this.source = source;
+      this.componentTagValue = componentTagValue;
+      this.hashCode = Objects.hash(operationName, application, service, cluster, shard, source, componentTagValue);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+      Key that = (Key) o;
+      return hashCode == that.hashCode && Objects.equals(operationName, that.operationName) &&
+          Objects.equals(application, that.application) && Objects.equals(service, that.service) &&
+          Objects.equals(cluster, that.cluster) && Objects.equals(shard, that.shard) &&
+          Objects.equals(source, that.source) && Objects.equals(componentTagValue, that.componentTagValue);
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+  }
+}
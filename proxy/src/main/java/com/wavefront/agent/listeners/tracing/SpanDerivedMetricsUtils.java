@@ -1,8 +1,6 @@
 package com.wavefront.agent.listeners.tracing;
 
 import com.wavefront.common.Clock;
-import com.wavefront.internal.reporter.WavefrontInternalReporter;
-import com.wavefront.internal_reporter_java.io.dropwizard.metrics5.MetricName;
 import com.wavefront.sdk.common.WavefrontSender;
 
 import java.io.IOException;
@@ -17,7 +15,6 @@ import static com.wavefront.sdk.common.Constants.COMPONENT_TAG_KEY;
 import static com.wavefront.sdk.common.Constants.HEART_BEAT_METRIC;
 import static com.wavefront.sdk.common.Constants.SERVICE_TAG_KEY;
 import static com.wavefront.sdk.common.Constants.SHARD_TAG_KEY;
-import static com.wavefront.sdk.common.Constants.SOURCE_KEY;
 
 /**
  * Util methods to generate data (metrics/histograms/heartbeats) from tracing spans
@@ -27,17 +24,14 @@ import static com.wavefront.sdk.common.Constants.SOURCE_KEY;
 public class SpanDerivedMetricsUtils {
 
   public final static String TRACING_DERIVED_PREFIX = "tracing.derived";
-  private final static String INVOCATION_SUFFIX = ".invocation";
-  private final static String ERROR_SUFFIX = ".error";
-  private final static String DURATION_SUFFIX = ".duration.micros";
-  private final static String TOTAL_TIME_SUFFIX = ".total_time.millis";
-  private final static String OPERATION_NAME_TAG = "operationName";
   public final static String ERROR_SPAN_TAG_KEY = "error";
   public final static String ERROR_SPAN_TAG_VAL = "true";
+  private final static Pattern WHITESPACE = Pattern.compile("[\\s]+");
 
   /**
    * Report generated metrics and histograms from the wavefront tracing span.
    *
+   * @param derivedMetrics         cache of derived metrics
    * @param operationName          span operation name
    * @param application            name of the application
    * @param service                name of the service
@@ -51,7 +45,7 @@ public class SpanDerivedMetricsUtils {
    * @return HeartbeatMetricKey so that it is added to discovered keys.
    */
   static HeartbeatMetricKey reportWavefrontGeneratedData(
-      WavefrontInternalReporter wfInternalReporter, String operationName, String application,
+      SpanDerivedMetricsCache derivedMetrics, String operationName, String application,
       String service, String cluster, String shard, String source, String componentTagValue,
       boolean isError, long spanDurationMicros) {
     /*
@@ -59,41 +53,18 @@ public class SpanDerivedMetricsUtils {
      * 2) Cannot convert ApplicationTags.customTags unfortunately as those are not well-known.
      * 3) Both Jaeger and Zipkin support error=true tag for erroneous spans
      */
-
-    Map<String, String> pointTags = new HashMap<String, String>() {{
-      put(APPLICATION_TAG_KEY, application);
-      put(SERVICE_TAG_KEY, service);
-      put(CLUSTER_TAG_KEY, cluster);
-      put(SHARD_TAG_KEY, shard);
-      put(OPERATION_NAME_TAG, operationName);
-      put(COMPONENT_TAG_KEY, componentTagValue);
-      put(SOURCE_KEY, source);
-    }};
-
-    // tracing.derived.<application>.<service>.<operation>.invocation.count
-    wfInternalReporter.newDeltaCounter(new MetricName(sanitize(application + "." + service + "." +
-        operationName + INVOCATION_SUFFIX), pointTags)).inc();
-
+    SpanDerivedMetricsCache.DerivedMetrics metrics = derivedMetrics.get(operationName, application, service,
+        cluster, shard, source, componentTagValue);
+    metrics.invocationCount.inc();
     if (isError) {
-      // tracing.derived.<application>.<service>.<operation>.error.count
-      wfInternalReporter.newDeltaCounter(new MetricName(sanitize(application + "." + service + "." +
-          operationName + ERROR_SUFFIX), pointTags)).inc();
+      metrics.errorCount().inc();
     }
-
-    // tracing.derived.<application>.<service>.<operation>.duration.micros.m
-    wfInternalReporter.newWavefrontHistogram(new MetricName(sanitize(application + "." + service + "." +
-        operationName + DURATION_SUFFIX), pointTags)).
-        update(spanDurationMicros);
-
-    // tracing.derived.<application>.<service>.<operation>.total_time.millis.count
-    wfInternalReporter.newDeltaCounter(new MetricName(sanitize(application + "." + service + "." +
-        operationName + TOTAL_TIME_SUFFIX), pointTags)).
-        inc(spanDurationMicros / 1000);
-    return new HeartbeatMetricKey(application, service, cluster, shard, source);
+    metrics.updateDuration(spanDurationMicros);
+    metrics.totalTime.inc(spanDurationMicros / 1000);
+    return metrics.heartbeatMetricKey;
   }
 
-  private static String sanitize(String s) {
-    Pattern WHITESPACE = Pattern.compile("[\\s]+");
+  static String sanitize(String s) {
     final String whitespaceSanitized = WHITESPACE.matcher(s).replaceAll("-");
     if (s.contains("\"") || s.contains("'")) {
       // for single quotes, once we are double-quoted, single quotes can exist happily inside it.
@@ -111,24 +82,30 @@ public class SpanDerivedMetricsUtils {
    */
   static void reportHeartbeats(String component,
       WavefrontSender wavefrontSender,
-      Map<HeartbeatMetricKey, Boolean> discoveredHeartbeatMetrics) throws IOException {
+      HeartbeatMetricKeySet discoveredHeartbeatMetrics) throws IOException {
     if (wavefrontSender == null) {
       // should never happen
       return;
     }
-    Iterator<HeartbeatMetricKey> iter = discoveredHeartbeatMetrics.keySet().iterator();
-    while (iter.hasNext()) {
-      HeartbeatMetricKey key = iter.next();
-      wavefrontSender.sendMetric(HEART_BEAT_METRIC, 1.0, Clock.now(),
-          key.getSource(), new HashMap<String, String>() {{
-        put(APPLICATION_TAG_KEY, key.getApplication());
-        put(SERVICE_TAG_KEY, key.getService());
-        put(CLUSTER_TAG_KEY, key.getCluster());
-        put(SHARD_TAG_KEY, key.getShard());
-        put(COMPONENT_TAG_KEY, component);
-      }});
-      // remove from discovered list so that it is only reported on subsequent discovery
-      discoveredHeartbeatMetrics.remove(key);
+    // report everything discovered in the last interval as one batch with the same timestamp
+    long timestamp = Clock.now();
+    Iterator<HeartbeatMetricKey> keys = discoveredHeartbeatMetrics.drain().iterator();
+    while (keys.hasNext()) {
+      HeartbeatMetricKey key = keys.next();
+      Map<String, String> pointTags = new HashMap<>(8);
+      pointTags.put(APPLICATION_TAG_KEY, key.getApplication());
+      pointTags.put(SERVICE_TAG_KEY, key.getService());
+      pointTags.put(CLUSTER_TAG_KEY, key.getCluster());
+      pointTags.put(SHARD_TAG_KEY, key.getShard());
+      pointTags.put(COMPONENT_TAG_KEY, component);
+      try {
+        wavefrontSender.sendMetric(HEART_BEAT_METRIC, 1.0, timestamp, key.getSource(), pointTags);
+      } catch (IOException e) {
+        // put back whatever hasn't been sent, so it's reported with the next heartbeat
+        discoveredHeartbeatMetrics.add(key);
+        keys.forEachRemaining(discoveredHeartbeatMetrics::add);
+        throw e;
+      }
     }
   }
 }
@@ -9,6 +9,9 @@ import com.wavefront.agent.handlers.ReportableEntityHandler;
 import com.wavefront.agent.handlers.ReportableEntityHandlerFactory;
 import com.wavefront.agent.listeners.PortUnificationHandler;
 import com.wavefront.agent.preprocessor.ReportableEntityPreprocessor;
+import com.wavefront.agent.sampler.AdaptiveSampler;
+import com.wavefront.agent.sampler.TailSampler;
+import com.wavefront.common.Clock;
 import com.wavefront.data.ReportableEntityType;
 import com.wavefront.ingester.ReportableEntityDecoder;
 import com.wavefront.sdk.entities.tracing.sampling.Sampler;
@@ -44,6 +47,12 @@ public class TracePortUnificationHandler extends PortUnificationHandler {
   private final ReportableEntityPreprocessor preprocessor;
   private final Sampler sampler;
   private final boolean alwaysSampleErrors;
+  @Nullable
+  private TailSampler tailSampler = null;
+  @Nullable
+  private AdaptiveSampler adaptiveSampler = null;
+  @Nullable
+  private TraceShardRouter shardRouter = null;
 
   @SuppressWarnings("unchecked")
   public TracePortUnificationHandler(final String handle,
@@ -72,6 +81,39 @@ public class TracePortUnificationHandler extends PortUnificationHandler {
     this.alwaysSampleErrors = alwaysSampleErrors;
   }
 
+  /**
+   * Buffer spans by trace and sample complete traces instead of sampling each span as it arrives.
+   *
+   * @param tailSampler tail sampler to use, null to sample spans as they arrive.
+   * @return this
+   */
+  public TracePortUnificationHandler withTailSampler(@Nullable TailSampler tailSampler) {
+    this.tailSampler = tailSampler;
+    return this;
+  }
+
+  /**
+   * Limit sampled spans per application/service/operation, on top of the sampler.
+   *
+   * @param adaptiveSampler adaptive sampler to use, null to disable.
+   * @return this
+   */
+  public TracePortUnificationHandler withAdaptiveSampler(@Nullable AdaptiveSampler adaptiveSampler) {
+    this.adaptiveSampler = adaptiveSampler;
+    return this;
+  }
+
+  /**
+   * Forward spans to the proxy that owns their trace before sampling them.
+   *
+   * @param shardRouter router to use, null to process all spans locally.
+   * @return this
+   */
+  public TracePortUnificationHandler withShardRouter(@Nullable TraceShardRouter shardRouter) {
+    this.shardRouter = shardRouter;
+    return this;
+  }
+
   @Override
   protected void processLine(final ChannelHandlerContext ctx, String message) {
     // transform the line if needed
@@ -121,16 +163,29 @@ public class TracePortUnificationHandler extends PortUnificationHandler {
           return;
         }
       }
-      boolean sampleError = false;
-      if (alwaysSampleErrors) {
-        // check whether error span tag exists.
-        sampleError = object.getAnnotations().stream().anyMatch(
-            t -> t.getKey().equals(ERROR_SPAN_TAG_KEY) && t.getValue().equals(ERROR_SPAN_TAG_VAL));
-      }
-      if (sampleError || sampler.sample(object.getName(),
-          UUID.fromString(object.getTraceId()).getLeastSignificantBits(), object.getDuration())) {
-        handler.report(object);
+      if (shardRouter != null) {
+        shardRouter.route(object, this::sampleAndReport);
+      } else {
+        sampleAndReport(object);
       }
     }
   }
+
+  private void sampleAndReport(Span object) {
+    if (tailSampler != null) {
+      tailSampler.add(object, Clock.now());
+      return;
+    }
+    boolean sampleError = false;
+    if (alwaysSampleErrors) {
+      // check whether error span tag exists.
+      sampleError = object.getAnnotations().stream().anyMatch(
+          t -> t.getKey().equals(ERROR_SPAN_TAG_KEY) && t.getValue().equals(ERROR_SPAN_TAG_VAL));
+    }
+    long traceIdLeastSigBits = UUID.fromString(object.getTraceId()).getLeastSignificantBits();
+    if (sampleError || (sampler.sample(object.getName(), traceIdLeastSigBits, object.getDuration()) &&
+        (adaptiveSampler == null || adaptiveSampler.sample(object, traceIdLeastSigBits)))) {
+      handler.report(object);
+    }
+  }
 }
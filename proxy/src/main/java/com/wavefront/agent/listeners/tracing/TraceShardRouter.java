@@ -0,0 +1,246 @@
+package com.wavefront.agent.listeners.tracing;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.RateLimiter;
+
+import com.wavefront.common.Clock;
+import com.wavefront.common.NamedThreadFactory;
+import com.wavefront.common.TaggedMetricName;
+import com.wavefront.ingester.SpanSerializer;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.util.EntityUtils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nonnull;
+
+import wavefront.report.Span;
+
+import static com.wavefront.api.agent.Constants.PUSH_FORMAT_TRACING;
+
+/**
+ * Routes spans to the proxy that owns their trace, so that all spans of a trace are processed (sampled) by the same
+ * proxy even when they are received by different proxies behind a load balancer.
+ * <p/>
+ * Trace IDs are consistent-hashed over a list of peers (relay listener addresses of all proxies in the fleet,
+ * including this one), so adding or removing a peer only moves a fraction of traces. Spans owned by other peers are
+ * queued and forwarded in batches to the peer's relay listener over persistent HTTP connections, tagged with the
+ * handle of the listener they were received on, so the peer can sample them together with the spans its own
+ * listener with the same handle received. Spans owned by this proxy, as well as spans that can't be forwarded (the
+ * peer is down or its queue is full, or the router has been shut down), are processed locally.
+ */
+public class TraceShardRouter {
+  private static final Logger logger = Logger.getLogger(TraceShardRouter.class.getCanonicalName());
+
+  private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+  private static final int VIRTUAL_NODES_PER_PEER = 100;
+  private static final int MAX_QUEUED_SPANS_PER_PEER = 100_000;
+  private static final int MAX_BATCH_SIZE = 1_000;
+  private static final long FLUSH_INTERVAL_MILLIS = 100;
+  private static final long RETRY_DELAY_MILLIS = 10_000;
+
+  private final String handle;
+  private final HttpClient httpClient;
+  private final NavigableMap<Long, String> ring = new TreeMap<>();
+  private final Map<String, Peer> peers = new HashMap<>();
+  private final RateLimiter warningLoggerRateLimiter = RateLimiter.create(0.2);
+  private ScheduledExecutorService executor = null;
+  private volatile boolean isShutdown = false;
+
+  private final Counter forwardedSpans;
+  private final Counter localFallbackSpans;
+
+  /**
+   * @param handle     handle/port number (for metrics).
+   * @param peerList   relay listener addresses (host:port) of all proxies sharing trace data, including this one.
+   * @param self       address of this proxy, as it appears in {@code peerList}.
+   * @param httpClient HTTP client to forward spans with.
+   */
+  public TraceShardRouter(String handle, @Nonnull List<String> peerList, @Nonnull String self,
+                          @Nonnull HttpClient httpClient) {
+    Preconditions.checkArgument(peerList.contains(self), "[traceShardingSelf] must be one of the peers");
+    this.handle = handle;
+    this.httpClient = httpClient;
+    for (String address : peerList) {
+      for (int i = 0; i < VIRTUAL_NODES_PER_PEER; i++) {
+        ring.put(HASH_FUNCTION.hashUnencodedChars(address + "#" + i).asLong(), address);
+      }
+      if (!address.equals(self)) {
+        peers.put(address, new Peer(address, handle));
+      }
+    }
+    this.forwardedSpans = Metrics.newCounter(new TaggedMetricName("tracing.sharding", "spans-forwarded",
+        "port", handle));
+    this.localFallbackSpans = Metrics.newCounter(new TaggedMetricName("tracing.sharding", "spans-local-fallback",
+        "port", handle));
+  }
+
+  /**
+   * Start forwarding queued spans in the background.
+   */
+  public void start() {
+    executor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("trace-shard-router-" + handle));
+    executor.scheduleWithFixedDelay(this::flush, FLUSH_INTERVAL_MILLIS, FLUSH_INTERVAL_MILLIS,
+        TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stop forwarding spans and process all queued spans locally. Spans routed after shutdown are processed locally
+   * as well.
+   */
+  public void shutdown() {
+    isShutdown = true;
+    if (executor != null) {
+      try {
+        executor.shutdown();
+        executor.awaitTermination(1000L, TimeUnit.MILLISECONDS);
+      } catch (Throwable t) {
+        logger.log(Level.SEVERE, "Error during shutdown", t);
+      }
+    }
+    List<PendingSpan> batch = new ArrayList<>();
+    for (Peer peer : peers.values()) {
+      while (peer.queue.drainTo(batch, MAX_BATCH_SIZE) > 0) {
+        fallback(batch);
+        batch.clear();
+      }
+    }
+  }
+
+  /**
+   * Forward the span to the proxy that owns its trace, or process it locally.
+   *
+   * @param span  span to route.
+   * @param local processes the span locally, if this proxy owns the trace or the span can't be forwarded.
+   *              May be called later from a different thread.
+   */
+  public void route(@Nonnull Span span, @Nonnull Consumer<Span> local) {
+    Peer peer = peers.get(ownerOf(span.getTraceId()));
+    if (peer == null) {
+      local.accept(span);
+    } else if (isShutdown) {
+      localFallbackSpans.inc();
+      local.accept(span);
+    } else if (Clock.now() < peer.downUntil || !peer.queue.offer(new PendingSpan(span, local))) {
+      localFallbackSpans.inc();
+      local.accept(span);
+    }
+  }
+
+  /**
+   * @param traceId trace ID.
+   * @return address of the peer that owns the trace.
+   */
+  @VisibleForTesting
+  String ownerOf(String traceId) {
+    Map.Entry<Long, String> entry = ring.ceilingEntry(HASH_FUNCTION.hashUnencodedChars(traceId).asLong());
+    return entry == null ? ring.firstEntry().getValue() : entry.getValue();
+  }
+
+  /**
+   * Forward all queued spans.
+   */
+  @VisibleForTesting
+  void flush() {
+    for (Peer peer : peers.values()) {
+      try {
+        flush(peer);
+      } catch (Exception e) {
+        logger.log(Level.WARNING, "Unexpected error forwarding spans to " + peer.address, e);
+      }
+    }
+  }
+
+  private void flush(Peer peer) {
+    List<PendingSpan> batch = new ArrayList<>();
+    while (peer.queue.drainTo(batch, MAX_BATCH_SIZE) > 0) {
+      if (Clock.now() < peer.downUntil) {
+        fallback(batch);
+      } else {
+        try {
+          send(peer, batch);
+          forwardedSpans.inc(batch.size());
+        } catch (IOException e) {
+          peer.downUntil = Clock.now() + RETRY_DELAY_MILLIS;
+          if (warningLoggerRateLimiter.tryAcquire()) {
+            logger.warning("Unable to forward spans to " + peer.address + ", processing locally for the next " +
+                (RETRY_DELAY_MILLIS / 1000) + "s: " + e.getMessage());
+          }
+          fallback(batch);
+        }
+      }
+      batch.clear();
+    }
+  }
+
+  private void send(Peer peer, List<PendingSpan> batch) throws IOException {
+    StringBuilder body = new StringBuilder(batch.size() * 256);
+    for (PendingSpan pendingSpan : batch) {
+      SpanSerializer.appendSpan(pendingSpan.span, body);
+      body.append('\n');
+    }
+    HttpPost request = new HttpPost(peer.uri);
+    request.setEntity(new StringEntity(body.toString(), ContentType.create("text/plain", StandardCharsets.UTF_8)));
+    HttpResponse response = httpClient.execute(request);
+    // consume the response so the connection can be reused
+    EntityUtils.consumeQuietly(response.getEntity());
+    int statusCode = response.getStatusLine().getStatusCode();
+    if (statusCode / 100 != 2) {
+      throw new IOException("HTTP " + statusCode);
+    }
+  }
+
+  private void fallback(List<PendingSpan> batch) {
+    localFallbackSpans.inc(batch.size());
+    for (PendingSpan pendingSpan : batch) {
+      pendingSpan.local.accept(pendingSpan.span);
+    }
+  }
+
+  private static class Peer {
+    private final String address;
+    private final String uri;
+    private final BlockingQueue<PendingSpan> queue = new ArrayBlockingQueue<>(MAX_QUEUED_SPANS_PER_PEER);
+    private volatile long downUntil = 0;
+
+    Peer(String address, String handle) {
+      this.address = address;
+      this.uri = "http://" + address + "/report?format=" + PUSH_FORMAT_TRACING + "&port=" + handle;
+    }
+  }
+
+  private static class PendingSpan {
+    private final Span span;
+    private final Consumer<Span> local;
+
+    PendingSpan(Span span, Consumer<Span> local) {
+      this.span = span;
+      this.local = local;
+    }
+  }
+}
@@ -10,8 +10,12 @@ import com.wavefront.agent.auth.TokenValidationMethod;
 import com.wavefront.agent.handlers.HandlerKey;
 import com.wavefront.agent.handlers.ReportableEntityHandler;
 import com.wavefront.agent.handlers.ReportableEntityHandlerFactory;
+import com.wavefront.agent.histogram.accumulator.BatchingAccumulator;
 import com.wavefront.agent.preprocessor.ReportableEntityPreprocessor;
 import com.wavefront.agent.listeners.PortUnificationHandler;
+import com.wavefront.agent.sampler.AdaptiveSampler;
+import com.wavefront.agent.sampler.TailSampler;
+import com.wavefront.common.Clock;
 import com.wavefront.common.NamedThreadFactory;
 import com.wavefront.common.TraceConstants;
 import com.wavefront.data.ReportableEntityType;
@@ -25,14 +29,15 @@ import com.yammer.metrics.core.MetricName;
 import java.io.Closeable;
 import java.io.IOException;
 import java.net.URI;
+import java.util.AbstractCollection;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -42,6 +47,7 @@ import java.util.logging.Logger;
 
 import javax.annotation.Nullable;
 
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.HttpResponseStatus;
@@ -77,15 +83,23 @@ public class ZipkinPortUnificationHandler extends PortUnificationHandler
   private final WavefrontSender wfSender;
   @Nullable
   private final WavefrontInternalReporter wfInternalReporter;
+  @Nullable
+  private SpanDerivedMetricsCache derivedMetrics;
   private final AtomicBoolean traceDisabled;
   private final ReportableEntityPreprocessor preprocessor;
   private final Sampler sampler;
   private final boolean alwaysSampleErrors;
+  @Nullable
+  private TailSampler tailSampler = null;
+  @Nullable
+  private AdaptiveSampler adaptiveSampler = null;
+  @Nullable
+  private TraceShardRouter shardRouter = null;
   private final RateLimiter warningLoggerRateLimiter = RateLimiter.create(0.2);
   private final Counter discardedBatches;
   private final Counter processedBatches;
   private final Counter failedBatches;
-  private final ConcurrentMap<HeartbeatMetricKey, Boolean> discoveredHeartbeatMetrics;
+  private final HeartbeatMetricKeySet discoveredHeartbeatMetrics;
   private final ScheduledExecutorService scheduledExecutorService;
 
   private final static Set<String> ZIPKIN_VALID_PATHS = ImmutableSet.of(
@@ -136,7 +150,7 @@ public class ZipkinPortUnificationHandler extends PortUnificationHandler
         "spans." + handle + ".batches", "", "processed"));
     this.failedBatches = Metrics.newCounter(new MetricName(
         "spans." + handle + ".batches", "", "failed"));
-    this.discoveredHeartbeatMetrics =  new ConcurrentHashMap<>();
+    this.discoveredHeartbeatMetrics = new HeartbeatMetricKeySet(handle);
     this.scheduledExecutorService = Executors.newScheduledThreadPool(1,
         new NamedThreadFactory("zipkin-heart-beater"));
     scheduledExecutorService.scheduleAtFixedRate(this, 1, 1, TimeUnit.MINUTES);
@@ -147,9 +161,57 @@ public class ZipkinPortUnificationHandler extends PortUnificationHandler
           build(wfSender);
       // Start the reporter
       wfInternalReporter.start(1, TimeUnit.MINUTES);
+      derivedMetrics = new SpanDerivedMetricsCache(wfInternalReporter);
     } else {
       wfInternalReporter = null;
+      derivedMetrics = null;
+    }
+  }
+
+  /**
+   * Buffer spans by trace and sample complete traces instead of sampling each span as it arrives.
+   *
+   * @param tailSampler tail sampler to use, null to sample spans as they arrive.
+   * @return this
+   */
+  public ZipkinPortUnificationHandler withTailSampler(@Nullable TailSampler tailSampler) {
+    this.tailSampler = tailSampler;
+    return this;
+  }
+
+  /**
+   * Limit sampled spans per application/service/operation, on top of the sampler.
+   *
+   * @param adaptiveSampler adaptive sampler to use, null to disable.
+   * @return this
+   */
+  public ZipkinPortUnificationHandler withAdaptiveSampler(@Nullable AdaptiveSampler adaptiveSampler) {
+    this.adaptiveSampler = adaptiveSampler;
+    return this;
+  }
+
+  /**
+   * Send span duration histograms through the histogram accumulator instead of the internal reporter.
+   *
+   * @param durationAccumulator accumulator for span durations, null to report them through the internal reporter.
+   * @return this
+   */
+  public ZipkinPortUnificationHandler withDurationAccumulator(@Nullable BatchingAccumulator durationAccumulator) {
+    if (wfInternalReporter != null) {
+      this.derivedMetrics = new SpanDerivedMetricsCache(wfInternalReporter, durationAccumulator);
     }
+    return this;
+  }
+
+  /**
+   * Forward spans to the proxy that owns their trace before sampling them.
+   *
+   * @param shardRouter router to use, null to process all spans locally.
+   * @return this
+   */
+  public ZipkinPortUnificationHandler withShardRouter(@Nullable TraceShardRouter shardRouter) {
+    this.shardRouter = shardRouter;
+    return this;
   }
 
   @Override
@@ -191,12 +253,10 @@ public class ZipkinPortUnificationHandler extends PortUnificationHandler
     }
 
     try {
-      byte[] bytesArray = new byte[incomingRequest.content().nioBuffer().remaining()];
-      incomingRequest.content().nioBuffer().get(bytesArray, 0, bytesArray.length);
+      byte[] bytesArray = contentBytes(incomingRequest.content());
       BytesDecoder<zipkin2.Span> decoder = SpanBytesDecoderDetector.decoderForListMessage(bytesArray);
-      List<zipkin2.Span> zipkinSpanSink = new ArrayList<>();
-      decoder.decodeList(bytesArray, zipkinSpanSink);
-      processZipkinSpans(zipkinSpanSink);
+      // spans are processed as they are decoded, instead of collecting the whole batch first
+      decoder.decodeList(bytesArray, new ProcessingSpanSink());
       status = HttpResponseStatus.ACCEPTED;
       processedBatches.inc();
     } catch (Exception e) {
@@ -208,9 +268,42 @@ public class ZipkinPortUnificationHandler extends PortUnificationHandler
     writeHttpResponse(ctx, status, output, incomingRequest);
   }
 
-  private void processZipkinSpans(List<zipkin2.Span> zipkinSpans) {
-    for (zipkin2.Span zipkinSpan : zipkinSpans) {
+  /**
+   * Get the request body as a byte array, without copying if the buffer is backed by an array that contains
+   * exactly the request body.
+   */
+  private static byte[] contentBytes(ByteBuf content) {
+    if (content.hasArray() && content.arrayOffset() == 0 && content.readerIndex() == 0 &&
+        content.readableBytes() == content.array().length) {
+      return content.array();
+    }
+    byte[] bytesArray = new byte[content.readableBytes()];
+    content.getBytes(content.readerIndex(), bytesArray);
+    return bytesArray;
+  }
+
+  /**
+   * Decoder output that processes each span as soon as it's decoded, so spans of large batches don't have to be
+   * held in memory all at once.
+   */
+  private class ProcessingSpanSink extends AbstractCollection<zipkin2.Span> {
+    private int size = 0;
+
+    @Override
+    public boolean add(zipkin2.Span zipkinSpan) {
       processZipkinSpan(zipkinSpan);
+      size++;
+      return true;
+    }
+
+    @Override
+    public Iterator<zipkin2.Span> iterator() {
+      return Collections.emptyIterator();
+    }
+
+    @Override
+    public int size() {
+      return size;
     }
   }
 
@@ -342,16 +435,31 @@ public class ZipkinPortUnificationHandler extends PortUnificationHandler
         return;
       }
     }
-    if ((alwaysSampleErrors && isError) || sampler.sample(wavefrontSpan.getName(),
-        UUID.fromString(wavefrontSpan.getTraceId()).getLeastSignificantBits(), wavefrontSpan.getDuration())) {
-      spanHandler.report(wavefrontSpan);
+    if (shardRouter != null) {
+      final boolean error = isError;
+      shardRouter.route(wavefrontSpan, s -> sampleAndReport(s, error));
+    } else {
+      sampleAndReport(wavefrontSpan, isError);
     }
     // report stats irrespective of span sampling.
-    if (wfInternalReporter != null) {
+    if (derivedMetrics != null) {
       // report converted metrics/histograms from the span
-      discoveredHeartbeatMetrics.putIfAbsent(reportWavefrontGeneratedData(wfInternalReporter,
+      discoveredHeartbeatMetrics.add(reportWavefrontGeneratedData(derivedMetrics,
           spanName, applicationName, serviceName, cluster, shard, sourceName, componentTagValue,
-          isError, zipkinSpan.durationAsLong()), true);
+          isError, zipkinSpan.durationAsLong()));
+    }
+  }
+
+  private void sampleAndReport(Span wavefrontSpan, boolean isError) {
+    if (tailSampler != null) {
+      tailSampler.add(wavefrontSpan, Clock.now());
+      return;
+    }
+    long traceIdLeastSigBits = UUID.fromString(wavefrontSpan.getTraceId()).getLeastSignificantBits();
+    if ((alwaysSampleErrors && isError) || (sampler.sample(wavefrontSpan.getName(), traceIdLeastSigBits,
+        wavefrontSpan.getDuration()) &&
+        (adaptiveSampler == null || adaptiveSampler.sample(wavefrontSpan, traceIdLeastSigBits)))) {
+      spanHandler.report(wavefrontSpan);
     }
   }
 
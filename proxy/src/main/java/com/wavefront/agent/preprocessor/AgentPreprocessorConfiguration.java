@@ -1,6 +1,7 @@
 package com.wavefront.agent.preprocessor;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
 import com.google.common.collect.Sets;
 
 import com.wavefront.common.TaggedMetricName;
@@ -10,12 +11,27 @@ import org.apache.commons.lang.StringUtils;
 import org.yaml.snakeyaml.Yaml;
 
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
 import java.util.logging.Logger;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import wavefront.report.Annotation;
+import wavefront.report.ReportPoint;
+import wavefront.report.Span;
+
+import static com.wavefront.agent.Utils.lazySupplier;
 
 /**
  * Parses and stores all preprocessor rules (organized by listening port)
@@ -27,21 +43,88 @@ public class AgentPreprocessorConfiguration {
   private static final Logger logger = Logger.getLogger(AgentPreprocessorConfiguration.class.getCanonicalName());
 
   private final Map<String, ReportableEntityPreprocessor> portMap = new HashMap<>();
+  private final Map<String, SwappableRuleSet> ruleSets = new HashMap<>();
+  private final Map<String, AtomicReference<List<ReportPointRollupRule>>> rollupRules = new HashMap<>();
+  private boolean loaded = false;
+
+  private int matchCacheSize = 0;
+
+  private final PreprocessorProfiler profiler = new PreprocessorProfiler();
 
   @VisibleForTesting
   int totalInvalidRules = 0;
   @VisibleForTesting
   int totalValidRules = 0;
 
-  public ReportableEntityPreprocessor forPort(final String strPort) {
+  public synchronized ReportableEntityPreprocessor forPort(final String strPort) {
     ReportableEntityPreprocessor preprocessor = portMap.get(strPort);
     if (preprocessor == null) {
       preprocessor = new ReportableEntityPreprocessor();
       portMap.put(strPort, preprocessor);
+      if (loaded) {
+        // so that rules for this port can be added on reload
+        ruleSets.put(strPort, new SwappableRuleSet(preprocessor));
+      }
     }
     return preprocessor;
   }
 
+  /**
+   * Rollup rules for a port. Rules are replaced when the configuration is reloaded, so the returned supplier always
+   * provides current rules, even if the port has no rollup rules yet.
+   *
+   * @param strPort port
+   * @return supplier of current rollup rules
+   */
+  public synchronized Supplier<List<ReportPointRollupRule>> rollupRulesFor(final String strPort) {
+    return rollupRules.computeIfAbsent(strPort, x -> new AtomicReference<>(Collections.emptyList()))::get;
+  }
+
+  /**
+   * Profiler for rules loaded from the configuration.
+   *
+   * @return profiler
+   */
+  public PreprocessorProfiler getProfiler() {
+    return profiler;
+  }
+
+  /**
+   * Currently active rules loaded from the configuration for a port (excluding rules added programmatically).
+   *
+   * @param strPort port
+   * @return loaded rules or null if none were loaded for the port
+   */
+  @VisibleForTesting
+  @Nullable
+  synchronized ReportableEntityPreprocessor loadedRules(final String strPort) {
+    SwappableRuleSet ruleSet = ruleSets.get(strPort);
+    return ruleSet == null ? null : ruleSet.get();
+  }
+
+  /**
+   * Enable caching of rule results for metric names, source names and point tag values. Has to be set before
+   * loading rules.
+   *
+   * @param matchCacheSize max number of distinct values to cache results for, per rule. 0 disables caching.
+   */
+  public void setMatchCacheSize(int matchCacheSize) {
+    this.matchCacheSize = matchCacheSize;
+  }
+
+  @Nullable
+  private <V> PreprocessorMatchCache<V> matchCache(String metricGroup, String... tagAndValues) {
+    if (matchCacheSize <= 0) return null;
+    return new PreprocessorMatchCache<>(matchCacheSize,
+        Metrics.newCounter(new TaggedMetricName(metricGroup, "cache.hits", tagAndValues)),
+        Metrics.newCounter(new TaggedMetricName(metricGroup, "cache.misses", tagAndValues)));
+  }
+
+  @Nullable
+  private <V> PreprocessorMatchCache<V> ruleCache(String ruleName, String strPort, boolean validation) {
+    return validation ? null : matchCache("preprocessor." + ruleName, "port", strPort);
+  }
+
   private void requireArguments(@Nonnull Map<String, String> rule, String... arguments) {
     if (rule == null)
       throw new IllegalArgumentException("Rule is empty");
@@ -59,203 +142,398 @@ public class AgentPreprocessorConfiguration {
     }
   }
 
-  public void loadFromStream(InputStream stream) {
-    totalValidRules = 0;
-    totalInvalidRules = 0;
-    Yaml yaml = new Yaml();
+  /**
+   * Merge blacklist and whitelist rules for the same scope into filter groups that evaluate all patterns at once.
+   * When match result caching is enabled, rules of the same kind for the same scope share one cache.
+   *
+   * @param preprocessor rules to optimize
+   * @param strPort      port the rules are for
+   * @param validation   whether the rules are only built for validation (no caches or logging)
+   */
+  private void compileFilters(ReportableEntityPreprocessor preprocessor, String strPort, boolean validation) {
+    int groups = RegexFilterGroup.groupFilters(preprocessor.forPointLine().getFilters(),
+        AgentPreprocessorConfiguration::isPointLineRegexFilter,
+        filter -> filter instanceof PointLineBlacklistRegexFilter ? "pointLine" : null,
+        scope -> pointLine -> pointLine,
+        filter -> ((PointLineBlacklistRegexFilter) filter).getPattern(),
+        filter -> ((PointLineBlacklistRegexFilter) filter).getRuleMetrics(),
+        scope -> null,
+        BlacklistRegexFilterGroup::new);
+    groups += RegexFilterGroup.groupFilters(preprocessor.forPointLine().getFilters(),
+        AgentPreprocessorConfiguration::isPointLineRegexFilter,
+        filter -> filter instanceof PointLineWhitelistRegexFilter ? "pointLine" : null,
+        scope -> pointLine -> pointLine,
+        filter -> ((PointLineWhitelistRegexFilter) filter).getPattern(),
+        filter -> ((PointLineWhitelistRegexFilter) filter).getRuleMetrics(),
+        scope -> null,
+        WhitelistRegexFilterGroup::new);
+    groups += RegexFilterGroup.groupFilters(preprocessor.forReportPoint().getFilters(),
+        AgentPreprocessorConfiguration::isReportPointRegexFilter,
+        filter -> filter instanceof ReportPointBlacklistRegexFilter ?
+            ((ReportPointBlacklistRegexFilter) filter).getScope() : null,
+        PreprocessorUtil::scopeExtractor,
+        filter -> ((ReportPointBlacklistRegexFilter) filter).getPattern(),
+        filter -> ((ReportPointBlacklistRegexFilter) filter).getRuleMetrics(),
+        scope -> validation ? null : matchCache("preprocessor.blacklist", "port", strPort, "scope", scope),
+        BlacklistRegexFilterGroup::new);
+    groups += RegexFilterGroup.groupFilters(preprocessor.forReportPoint().getFilters(),
+        AgentPreprocessorConfiguration::isReportPointRegexFilter,
+        filter -> filter instanceof ReportPointWhitelistRegexFilter ?
+            ((ReportPointWhitelistRegexFilter) filter).getScope() : null,
+        PreprocessorUtil::scopeExtractor,
+        filter -> ((ReportPointWhitelistRegexFilter) filter).getPattern(),
+        filter -> ((ReportPointWhitelistRegexFilter) filter).getRuleMetrics(),
+        scope -> validation ? null : matchCache("preprocessor.whitelist", "port", strPort, "scope", scope),
+        WhitelistRegexFilterGroup::new);
+    if (groups > 0 && !validation) {
+      logger.info("Combined blacklist/whitelist rules into " + groups + " multi-pattern filter(s) for port " +
+          strPort);
+    }
+  }
+
+  private static boolean isPointLineRegexFilter(AnnotatedPredicate<String> filter) {
+    return filter instanceof PointLineBlacklistRegexFilter || filter instanceof PointLineWhitelistRegexFilter ||
+        filter instanceof RegexFilterGroup;
+  }
+
+  private static boolean isReportPointRegexFilter(AnnotatedPredicate<ReportPoint> filter) {
+    return filter instanceof ReportPointBlacklistRegexFilter || filter instanceof ReportPointWhitelistRegexFilter ||
+        filter instanceof RegexFilterGroup;
+  }
+
+  /**
+   * Run the rules against a synthetic point line, point and span to make sure they don't fail at runtime. Rules
+   * passed here should be built for validation only, so that the dry run doesn't show up in rule metrics, match
+   * caches or cardinality trackers of rules that take effect.
+   *
+   * @param rules   rules to validate
+   * @param strPort port the rules are for
+   * @return true if no rule has thrown an exception
+   */
+  private boolean dryRun(ReportableEntityPreprocessor rules, String strPort) {
     try {
-      //noinspection unchecked
-      Map<String, Object> rulesByPort = (Map<String, Object>) yaml.load(stream);
-      for (String strPort : rulesByPort.keySet()) {
-        int validRules = 0;
-        //noinspection unchecked
-        List<Map<String, String>> rules = (List<Map<String, String>>) rulesByPort.get(strPort);
-        for (Map<String, String> rule : rules) {
-          try {
-            requireArguments(rule, "rule", "action");
-            allowArguments(rule, "rule", "action", "scope", "search", "replace", "match", "tag", "key", "newtag",
-                "value", "source", "input", "iterations", "replaceSource", "replaceInput", "actionSubtype", "maxLength",
-                "firstMatchOnly");
-            String ruleName = rule.get("rule").replaceAll("[^a-z0-9_-]", "");
-            PreprocessorRuleMetrics ruleMetrics = new PreprocessorRuleMetrics(
+      String pointLine = rules.forPointLine().transform("preprocessor.validation.metric 0 0 source=localhost");
+      rules.forPointLine().filter(pointLine);
+      ReportPoint point = ReportPoint.newBuilder().setMetric("preprocessor.validation.metric").setHost("localhost").
+          setTimestamp(0L).setValue(0.0d).setAnnotations(new HashMap<>()).build();
+      rules.forReportPoint().filter(rules.forReportPoint().transform(point));
+      Span span = Span.newBuilder().setCustomer("dummy").setName("preprocessor.validation.span").
+          setSource("localhost").setSpanId("0").setTraceId("0").setStartMillis(0L).setDuration(0L).
+          setAnnotations(new ArrayList<Annotation>()).build();
+      rules.forSpan().filter(rules.forSpan().transform(span));
+      return true;
+    } catch (RuntimeException e) {
+      logger.warning("Preprocessor rules for port " + strPort + " failed validation: " + e);
+      return false;
+    }
+  }
+
+  /**
+   * Parse rules for a port.
+   *
+   * @param strPort        port the rules are for
+   * @param rules          rule definitions
+   * @param validation     if true, rules are built for validation only: they don't report metrics, don't use match
+   *                       caches and have their own cardinality trackers, invalid rules are not logged or counted.
+   * @param stagedProfiles rule profiles to add rules to (ignored for validation)
+   * @param stagedRollups  rollup rules to add rules to (ignored for validation)
+   * @return parsed rules
+   */
+  private ReportableEntityPreprocessor parseRules(
+      String strPort, List<Map<String, String>> rules, boolean validation,
+      @Nullable Map<String, List<PreprocessorProfiler.RuleProfile>> stagedProfiles,
+      @Nullable Map<String, List<ReportPointRollupRule>> stagedRollups) {
+    int validRules = 0;
+    ReportableEntityPreprocessor portRules = new ReportableEntityPreprocessor();
+    for (Map<String, String> rule : rules) {
+      try {
+        requireArguments(rule, "rule", "action");
+        allowArguments(rule, "rule", "action", "scope", "search", "replace", "match", "tag", "key", "newtag",
+            "value", "source", "input", "iterations", "replaceSource", "replaceInput", "actionSubtype", "maxLength",
+            "firstMatchOnly", "maxSeries", "windowMinutes", "maxMetrics", "windowSeconds");
+        String ruleName = rule.get("rule").replaceAll("[^a-z0-9_-]", "");
+        PreprocessorRuleMetrics ruleMetrics = validation ? new PreprocessorRuleMetrics(null, null, null) :
+            new PreprocessorRuleMetrics(
                 Metrics.newCounter(new TaggedMetricName("preprocessor." + ruleName, "count", "port", strPort)),
                 Metrics.newCounter(new TaggedMetricName("preprocessor." + ruleName, "cpu_nanos", "port", strPort)),
-                Metrics.newCounter(new TaggedMetricName("preprocessor." + ruleName, "checked.count", "port", strPort)));
+                Metrics.newCounter(new TaggedMetricName("preprocessor." + ruleName, "checked.count", "port",
+                    strPort)),
+                profiler, lazySupplier(() -> Metrics.newHistogram(new TaggedMetricName("preprocessor." + ruleName,
+                    "latency_nanos", "port", strPort))));
 
-            if (rule.get("scope") != null && rule.get("scope").equals("pointLine")) {
-              switch (rule.get("action")) {
-                case "replaceRegex":
-                  allowArguments(rule, "rule", "action", "scope", "search", "replace", "match", "iterations");
-                  this.forPort(strPort).forPointLine().addTransformer(
-                      new PointLineReplaceRegexTransformer(rule.get("search"), rule.get("replace"), rule.get("match"),
-                          Integer.parseInt(rule.getOrDefault("iterations", "1")), ruleMetrics));
-                  break;
-                case "blacklistRegex":
-                  allowArguments(rule, "rule", "action", "scope", "match");
-                  this.forPort(strPort).forPointLine().addFilter(
-                      new PointLineBlacklistRegexFilter(rule.get("match"), ruleMetrics));
-                  break;
-                case "whitelistRegex":
-                  allowArguments(rule, "rule", "action", "scope", "match");
-                  this.forPort(strPort).forPointLine().addFilter(
-                      new PointLineWhitelistRegexFilter(rule.get("match"), ruleMetrics));
-                  break;
-                default:
-                  throw new IllegalArgumentException("Action '" + rule.get("action") +
-                      "' is not valid or cannot be applied to pointLine");
-              }
-            } else {
-              switch (rule.get("action")) {
+        if (rule.get("scope") != null && rule.get("scope").equals("pointLine")) {
+          switch (rule.get("action")) {
+            case "replaceRegex":
+              allowArguments(rule, "rule", "action", "scope", "search", "replace", "match", "iterations");
+              portRules.forPointLine().addTransformer(
+                  new PointLineReplaceRegexTransformer(rule.get("search"), rule.get("replace"), rule.get("match"),
+                      Integer.parseInt(rule.getOrDefault("iterations", "1")), ruleMetrics));
+              break;
+            case "blacklistRegex":
+              allowArguments(rule, "rule", "action", "scope", "match");
+              portRules.forPointLine().addFilter(
+                  new PointLineBlacklistRegexFilter(rule.get("match"), ruleMetrics));
+              break;
+            case "whitelistRegex":
+              allowArguments(rule, "rule", "action", "scope", "match");
+              portRules.forPointLine().addFilter(
+                  new PointLineWhitelistRegexFilter(rule.get("match"), ruleMetrics));
+              break;
+            default:
+              throw new IllegalArgumentException("Action '" + rule.get("action") +
+                  "' is not valid or cannot be applied to pointLine");
+          }
+        } else {
+          switch (rule.get("action")) {
 
-                // Rules for ReportPoint objects
-                case "replaceRegex":
-                  allowArguments(rule, "rule", "action", "scope", "search", "replace", "match", "iterations");
-                  this.forPort(strPort).forReportPoint().addTransformer(
-                      new ReportPointReplaceRegexTransformer(rule.get("scope"), rule.get("search"), rule.get("replace"),
-                          rule.get("match"), Integer.parseInt(rule.getOrDefault("iterations", "1")), ruleMetrics));
-                  break;
-                case "forceLowercase":
-                  allowArguments(rule, "rule", "action", "scope", "match");
-                  this.forPort(strPort).forReportPoint().addTransformer(
-                      new ReportPointForceLowercaseTransformer(rule.get("scope"), rule.get("match"), ruleMetrics));
-                  break;
-                case "addTag":
-                  allowArguments(rule, "rule", "action", "tag", "value");
-                  this.forPort(strPort).forReportPoint().addTransformer(
-                      new ReportPointAddTagTransformer(rule.get("tag"), rule.get("value"), ruleMetrics));
-                  break;
-                case "addTagIfNotExists":
-                  allowArguments(rule, "rule", "action", "tag", "value");
-                  this.forPort(strPort).forReportPoint().addTransformer(
-                      new ReportPointAddTagIfNotExistsTransformer(rule.get("tag"), rule.get("value"), ruleMetrics));
+            // Rules for ReportPoint objects
+            case "replaceRegex":
+              allowArguments(rule, "rule", "action", "scope", "search", "replace", "match", "iterations");
+              portRules.forReportPoint().addTransformer(
+                  new ReportPointReplaceRegexTransformer(rule.get("scope"), rule.get("search"), rule.get("replace"),
+                      rule.get("match"), Integer.parseInt(rule.getOrDefault("iterations", "1")), ruleMetrics,
+                      rule.get("replace") == null || rule.get("replace").contains("{{") ? null :
+                          ruleCache(ruleName, strPort, validation)));
+              break;
+            case "forceLowercase":
+              allowArguments(rule, "rule", "action", "scope", "match");
+              portRules.forReportPoint().addTransformer(
+                  new ReportPointForceLowercaseTransformer(rule.get("scope"), rule.get("match"), ruleMetrics));
+              break;
+            case "addTag":
+              allowArguments(rule, "rule", "action", "tag", "value");
+              portRules.forReportPoint().addTransformer(
+                  new ReportPointAddTagTransformer(rule.get("tag"), rule.get("value"), ruleMetrics));
+              break;
+            case "addTagIfNotExists":
+              allowArguments(rule, "rule", "action", "tag", "value");
+              portRules.forReportPoint().addTransformer(
+                  new ReportPointAddTagIfNotExistsTransformer(rule.get("tag"), rule.get("value"), ruleMetrics));
+              break;
+            case "dropTag":
+              allowArguments(rule, "rule", "action", "tag", "match");
+              portRules.forReportPoint().addTransformer(
+                  new ReportPointDropTagTransformer(rule.get("tag"), rule.get("match"), ruleMetrics));
+              break;
+            case "extractTag":
+              allowArguments(rule, "rule", "action", "tag", "source", "search", "replace", "replaceSource",
+                  "replaceInput", "match");
+              portRules.forReportPoint().addTransformer(
+                  new ReportPointExtractTagTransformer(rule.get("tag"), rule.get("source"), rule.get("search"),
+                      rule.get("replace"), rule.getOrDefault("replaceInput", rule.get("replaceSource")),
+                      rule.get("match"), ruleMetrics));
+              break;
+            case "extractTagIfNotExists":
+              allowArguments(rule, "rule", "action", "tag", "source", "search", "replace", "replaceSource",
+                  "replaceInput", "match");
+              portRules.forReportPoint().addTransformer(
+                  new ReportPointExtractTagIfNotExistsTransformer(rule.get("tag"), rule.get("source"),
+                      rule.get("search"), rule.get("replace"), rule.getOrDefault("replaceInput",
+                      rule.get("replaceSource")), rule.get("match"), ruleMetrics));
+              break;
+            case "renameTag":
+              allowArguments(rule, "rule", "action", "tag", "newtag", "match");
+              portRules.forReportPoint().addTransformer(
+                  new ReportPointRenameTagTransformer(
+                      rule.get("tag"), rule.get("newtag"), rule.get("match"), ruleMetrics));
+              break;
+            case "limitLength":
+              allowArguments(rule, "rule", "action", "scope", "actionSubtype", "maxLength", "match");
+              portRules.forReportPoint().addTransformer(
+                  new ReportPointLimitLengthTransformer(rule.get("scope"), Integer.parseInt(rule.get("maxLength")),
+              LengthLimitActionType.fromString(rule.get("actionSubtype")), rule.get("match"), ruleMetrics));
+              break;
+            case "limitCardinality":
+              allowArguments(rule, "rule", "action", "actionSubtype", "maxSeries", "windowMinutes", "maxMetrics",
+                  "value", "match");
+              SeriesCardinalityTracker tracker = new SeriesCardinalityTracker(ruleName + " (port " + strPort + ")",
+                  Long.parseLong(Preconditions.checkNotNull(rule.get("maxSeries"), "[maxSeries] can't be null")),
+                  TimeUnit.MINUTES.toMillis(Long.parseLong(rule.getOrDefault("windowMinutes", "60"))),
+                  Integer.parseInt(rule.getOrDefault("maxMetrics", "10000")));
+              switch (rule.getOrDefault("actionSubtype", "block")) {
+                case "block":
+                  portRules.forReportPoint().addFilter(
+                      new ReportPointCardinalityLimitFilter(tracker, rule.get("match"), ruleMetrics));
                   break;
                 case "dropTag":
-                  allowArguments(rule, "rule", "action", "tag", "match");
-                  this.forPort(strPort).forReportPoint().addTransformer(
-                      new ReportPointDropTagTransformer(rule.get("tag"), rule.get("match"), ruleMetrics));
-                  break;
-                case "extractTag":
-                  allowArguments(rule, "rule", "action", "tag", "source", "search", "replace", "replaceSource",
-                      "replaceInput", "match");
-                  this.forPort(strPort).forReportPoint().addTransformer(
-                      new ReportPointExtractTagTransformer(rule.get("tag"), rule.get("source"), rule.get("search"),
-                          rule.get("replace"), rule.getOrDefault("replaceInput", rule.get("replaceSource")),
-                          rule.get("match"), ruleMetrics));
-                  break;
-                case "extractTagIfNotExists":
-                  allowArguments(rule, "rule", "action", "tag", "source", "search", "replace", "replaceSource",
-                      "replaceInput", "match");
-                  this.forPort(strPort).forReportPoint().addTransformer(
-                      new ReportPointExtractTagIfNotExistsTransformer(rule.get("tag"), rule.get("source"),
-                          rule.get("search"), rule.get("replace"), rule.getOrDefault("replaceInput",
-                          rule.get("replaceSource")), rule.get("match"), ruleMetrics));
-                  break;
-                case "renameTag":
-                  allowArguments(rule, "rule", "action", "tag", "newtag", "match");
-                  this.forPort(strPort).forReportPoint().addTransformer(
-                      new ReportPointRenameTagTransformer(
-                          rule.get("tag"), rule.get("newtag"), rule.get("match"), ruleMetrics));
-                  break;
-                case "limitLength":
-                  allowArguments(rule, "rule", "action", "scope", "actionSubtype", "maxLength", "match");
-                  this.forPort(strPort).forReportPoint().addTransformer(
-                      new ReportPointLimitLengthTransformer(rule.get("scope"), Integer.parseInt(rule.get("maxLength")),
-                  LengthLimitActionType.fromString(rule.get("actionSubtype")), rule.get("match"), ruleMetrics));
-                  break;
-                case "blacklistRegex":
-                  allowArguments(rule, "rule", "action", "scope", "match");
-                  this.forPort(strPort).forReportPoint().addFilter(
-                      new ReportPointBlacklistRegexFilter(rule.get("scope"), rule.get("match"), ruleMetrics));
-                  break;
-                case "whitelistRegex":
-                  allowArguments(rule, "rule", "action", "scope", "match");
-                  this.forPort(strPort).forReportPoint().addFilter(
-                      new ReportPointWhitelistRegexFilter(rule.get("scope"), rule.get("match"), ruleMetrics));
-                  break;
-
-                // Rules for Span objects
-                case "spanReplaceRegex":
-                  allowArguments(rule, "rule", "action", "scope", "search", "replace", "match", "iterations",
-                      "firstMatchOnly");
-                  this.forPort(strPort).forSpan().addTransformer(
-                      new SpanReplaceRegexTransformer(rule.get("scope"), rule.get("search"), rule.get("replace"),
-                          rule.get("match"), Integer.parseInt(rule.getOrDefault("iterations", "1")),
-                          Boolean.parseBoolean(rule.getOrDefault("firstMatch", "false")), ruleMetrics));
-                  break;
-                case "spanForceLowercase":
-                  allowArguments(rule, "rule", "action", "scope", "match", "firstMatchOnly");
-                  this.forPort(strPort).forSpan().addTransformer(
-                      new SpanForceLowercaseTransformer(rule.get("scope"), rule.get("match"),
-                          Boolean.parseBoolean(rule.getOrDefault("firstMatch", "false")), ruleMetrics));
-                  break;
-                case "spanAddAnnotation":
-                  allowArguments(rule, "rule", "action", "key", "value");
-                  this.forPort(strPort).forSpan().addTransformer(
-                      new SpanAddAnnotationTransformer(rule.get("key"), rule.get("value"), ruleMetrics));
-                  break;
-                case "spanAddAnnotationIfNotExists":
-                  allowArguments(rule, "rule", "action", "key", "value");
-                  this.forPort(strPort).forSpan().addTransformer(
-                      new SpanAddAnnotationIfNotExistsTransformer(rule.get("key"), rule.get("value"), ruleMetrics));
-                  break;
-                case "spanDropAnnotation":
-                  allowArguments(rule, "rule", "action", "key", "match", "firstMatchOnly");
-                  this.forPort(strPort).forSpan().addTransformer(
-                      new SpanDropAnnotationTransformer(rule.get("key"), rule.get("match"),
-                          Boolean.parseBoolean(rule.getOrDefault("firstMatch", "false")), ruleMetrics));
-                  break;
-                case "spanExtractAnnotation":
-                  allowArguments(rule, "rule", "action", "key", "input", "search", "replace", "replaceInput", "match",
-                      "firstMatchOnly");
-                  this.forPort(strPort).forSpan().addTransformer(
-                      new SpanExtractAnnotationTransformer(rule.get("key"), rule.get("input"), rule.get("search"),
-                          rule.get("replace"), rule.get("replaceInput"), rule.get("match"),
-                          Boolean.parseBoolean(rule.getOrDefault("firstMatchOnly", "false")), ruleMetrics));
-                  break;
-                case "spanExtractAnnotationIfNotExists":
-                  allowArguments(rule, "rule", "action", "key", "input", "search", "replace", "replaceInput", "match",
-                      "firstMatchOnly");
-                  this.forPort(strPort).forSpan().addTransformer(
-                      new SpanExtractAnnotationIfNotExistsTransformer(rule.get("key"), rule.get("input"),
-                          rule.get("search"), rule.get("replace"), rule.get("replaceInput"), rule.get("match"),
-                          Boolean.parseBoolean(rule.getOrDefault("firstMatchOnly", "false")), ruleMetrics));
-                  break;
-                case "spanLimitLength":
-                  allowArguments(rule, "rule", "action", "scope", "actionSubtype", "maxLength", "match",
-                      "firstMatchOnly");
-                  this.forPort(strPort).forSpan().addTransformer(
-                      new SpanLimitLengthTransformer(rule.get("scope"), Integer.parseInt(rule.get("maxLength")),
-                          LengthLimitActionType.fromString(rule.get("actionSubtype")), rule.get("match"),
-                          Boolean.parseBoolean(rule.getOrDefault("firstMatchOnly", "false")), ruleMetrics));
-                  break;
-                case "spanBlacklistRegex":
-                  allowArguments(rule, "rule", "action", "scope", "match");
-                  this.forPort(strPort).forSpan().addFilter(
-                      new SpanBlacklistRegexFilter(rule.get("scope"), rule.get("match"), ruleMetrics));
+                  portRules.forReportPoint().addTransformer(
+                      new ReportPointCardinalityLimitTransformer(tracker, rule.get("match"), null, ruleMetrics));
                   break;
-                case "spanWhitelistRegex":
-                  allowArguments(rule, "rule", "action", "scope", "match");
-                  this.forPort(strPort).forSpan().addFilter(
-                      new SpanWhitelistRegexFilter(rule.get("scope"), rule.get("match"), ruleMetrics));
+                case "aggregate":
+                  portRules.forReportPoint().addTransformer(
+                      new ReportPointCardinalityLimitTransformer(tracker, rule.get("match"),
+                          rule.getOrDefault("value", "other"), ruleMetrics));
                   break;
                 default:
-                  throw new IllegalArgumentException("Action '" + rule.get("action") + "' is not valid");
+                  throw new IllegalArgumentException("actionSubtype '" + rule.get("actionSubtype") +
+                      "' is not valid, should be one of: block, dropTag, aggregate");
               }
-            }
-            validRules++;
-          } catch (IllegalArgumentException | NullPointerException ex) {
-            logger.warning("Invalid rule " + (rule == null || rule.get("rule") == null ? "" : rule.get("rule")) +
-                " (port " + strPort + "): " + ex);
-            totalInvalidRules++;
+              break;
+            case "rollup":
+              allowArguments(rule, "rule", "action", "actionSubtype", "windowSeconds", "match");
+              if (!validation) {
+                stagedRollups.computeIfAbsent(strPort, x -> new ArrayList<>()).add(new ReportPointRollupRule(
+                    rule.get("match"), TimeUnit.SECONDS.toMillis(Long.parseLong(Preconditions.checkNotNull(
+                        rule.get("windowSeconds"), "[windowSeconds] can't be null"))),
+                    ReportPointRollupRule.Aggregation.fromString(rule.get("actionSubtype")), ruleMetrics));
+              }
+              break;
+            case "blacklistRegex":
+              allowArguments(rule, "rule", "action", "scope", "match");
+              portRules.forReportPoint().addFilter(
+                  new ReportPointBlacklistRegexFilter(rule.get("scope"), rule.get("match"), ruleMetrics));
+              break;
+            case "whitelistRegex":
+              allowArguments(rule, "rule", "action", "scope", "match");
+              portRules.forReportPoint().addFilter(
+                  new ReportPointWhitelistRegexFilter(rule.get("scope"), rule.get("match"), ruleMetrics));
+              break;
+
+            // Rules for Span objects
+            case "spanReplaceRegex":
+              allowArguments(rule, "rule", "action", "scope", "search", "replace", "match", "iterations",
+                  "firstMatchOnly");
+              portRules.forSpan().addTransformer(
+                  new SpanReplaceRegexTransformer(rule.get("scope"), rule.get("search"), rule.get("replace"),
+                      rule.get("match"), Integer.parseInt(rule.getOrDefault("iterations", "1")),
+                      Boolean.parseBoolean(rule.getOrDefault("firstMatch", "false")), ruleMetrics));
+              break;
+            case "spanForceLowercase":
+              allowArguments(rule, "rule", "action", "scope", "match", "firstMatchOnly");
+              portRules.forSpan().addTransformer(
+                  new SpanForceLowercaseTransformer(rule.get("scope"), rule.get("match"),
+                      Boolean.parseBoolean(rule.getOrDefault("firstMatch", "false")), ruleMetrics));
+              break;
+            case "spanAddAnnotation":
+              allowArguments(rule, "rule", "action", "key", "value");
+              portRules.forSpan().addTransformer(
+                  new SpanAddAnnotationTransformer(rule.get("key"), rule.get("value"), ruleMetrics));
+              break;
+            case "spanAddAnnotationIfNotExists":
+              allowArguments(rule, "rule", "action", "key", "value");
+              portRules.forSpan().addTransformer(
+                  new SpanAddAnnotationIfNotExistsTransformer(rule.get("key"), rule.get("value"), ruleMetrics));
+              break;
+            case "spanDropAnnotation":
+              allowArguments(rule, "rule", "action", "key", "match", "firstMatchOnly");
+              portRules.forSpan().addTransformer(
+                  new SpanDropAnnotationTransformer(rule.get("key"), rule.get("match"),
+                      Boolean.parseBoolean(rule.getOrDefault("firstMatch", "false")), ruleMetrics));
+              break;
+            case "spanExtractAnnotation":
+              allowArguments(rule, "rule", "action", "key", "input", "search", "replace", "replaceInput", "match",
+                  "firstMatchOnly");
+              portRules.forSpan().addTransformer(
+                  new SpanExtractAnnotationTransformer(rule.get("key"), rule.get("input"), rule.get("search"),
+                      rule.get("replace"), rule.get("replaceInput"), rule.get("match"),
+                      Boolean.parseBoolean(rule.getOrDefault("firstMatchOnly", "false")), ruleMetrics));
+              break;
+            case "spanExtractAnnotationIfNotExists":
+              allowArguments(rule, "rule", "action", "key", "input", "search", "replace", "replaceInput", "match",
+                  "firstMatchOnly");
+              portRules.forSpan().addTransformer(
+                  new SpanExtractAnnotationIfNotExistsTransformer(rule.get("key"), rule.get("input"),
+                      rule.get("search"), rule.get("replace"), rule.get("replaceInput"), rule.get("match"),
+                      Boolean.parseBoolean(rule.getOrDefault("firstMatchOnly", "false")), ruleMetrics));
+              break;
+            case "spanLimitLength":
+              allowArguments(rule, "rule", "action", "scope", "actionSubtype", "maxLength", "match",
+                  "firstMatchOnly");
+              portRules.forSpan().addTransformer(
+                  new SpanLimitLengthTransformer(rule.get("scope"), Integer.parseInt(rule.get("maxLength")),
+                      LengthLimitActionType.fromString(rule.get("actionSubtype")), rule.get("match"),
+                      Boolean.parseBoolean(rule.getOrDefault("firstMatchOnly", "false")), ruleMetrics));
+              break;
+            case "spanBlacklistRegex":
+              allowArguments(rule, "rule", "action", "scope", "match");
+              portRules.forSpan().addFilter(
+                  new SpanBlacklistRegexFilter(rule.get("scope"), rule.get("match"), ruleMetrics));
+              break;
+            case "spanWhitelistRegex":
+              allowArguments(rule, "rule", "action", "scope", "match");
+              portRules.forSpan().addFilter(
+                  new SpanWhitelistRegexFilter(rule.get("scope"), rule.get("match"), ruleMetrics));
+              break;
+            default:
+              throw new IllegalArgumentException("Action '" + rule.get("action") + "' is not valid");
           }
         }
-        logger.info("Loaded " + validRules + " rules for port " + strPort);
-        totalValidRules += validRules;
+        validRules++;
+        if (validation) continue;
+        String action = rule.get("action");
+        String chain = "pointLine".equals(rule.get("scope")) ? "pointLine" :
+            action.startsWith("span") ? "span" : action.equals("rollup") ? "rollup" : "reportPoint";
+        stagedProfiles.computeIfAbsent(strPort, x -> new ArrayList<>()).add(new PreprocessorProfiler.RuleProfile(
+            chain, ruleName, action.endsWith("listRegex") || (action.equals("limitCardinality") &&
+            rule.getOrDefault("actionSubtype", "block").equals("block")), ruleMetrics));
+      } catch (IllegalArgumentException | NullPointerException ex) {
+        if (validation) continue;
+        logger.warning("Invalid rule " + (rule == null || rule.get("rule") == null ? "" : rule.get("rule")) +
+            " (port " + strPort + "): " + ex);
+        totalInvalidRules++;
+      }
+    }
+    if (!validation) {
+      logger.info("Loaded " + validRules + " rules for port " + strPort);
+      totalValidRules += validRules;
+    }
+    return portRules;
+  }
+
+  /**
+   * Load preprocessor rules. All rules are parsed, compiled and validated before any of them take effect. If any
+   * rule is invalid, currently active rules are kept and an exception is thrown. Otherwise, loaded rules replace
+   * rules from the previous load (if any) for every port at once.
+   *
+   * @param stream YAML configuration
+   */
+  public synchronized void loadFromStream(InputStream stream) {
+    totalValidRules = 0;
+    totalInvalidRules = 0;
+    Map<String, ReportableEntityPreprocessor> staged = new HashMap<>();
+    Map<String, List<PreprocessorProfiler.RuleProfile>> stagedProfiles = new LinkedHashMap<>();
+    Map<String, List<ReportPointRollupRule>> stagedRollups = new HashMap<>();
+    Yaml yaml = new Yaml();
+    try {
+      //noinspection unchecked
+      Map<String, Object> rulesByPort = (Map<String, Object>) yaml.load(stream);
+      for (String strPort : rulesByPort.keySet()) {
+        //noinspection unchecked
+        List<Map<String, String>> rules = (List<Map<String, String>>) rulesByPort.get(strPort);
+        ReportableEntityPreprocessor portRules = parseRules(strPort, rules, false, stagedProfiles, stagedRollups);
+        staged.put(strPort, portRules);
+        compileFilters(portRules, strPort, false);
+        // validate a separate copy, so that the dry run doesn't touch metrics, caches or trackers of the real rules
+        ReportableEntityPreprocessor validationRules = parseRules(strPort, rules, true, null, null);
+        compileFilters(validationRules, strPort, true);
+        if (!dryRun(validationRules, strPort)) {
+          totalInvalidRules++;
+        }
       }
       logger.info("Total " + totalValidRules + " rules loaded");
       if (totalInvalidRules > 0) {
-        throw new RuntimeException("Total " + totalInvalidRules + " invalid rules detected, aborting start-up");
+        throw new RuntimeException("Total " + totalInvalidRules + " invalid rules detected" +
+            (loaded ? ", keeping current rules" : ", aborting start-up"));
+      }
+      Set<String> ports = new HashSet<>(portMap.keySet());
+      ports.addAll(staged.keySet());
+      for (String strPort : ports) {
+        ReportableEntityPreprocessor target = forPort(strPort);
+        SwappableRuleSet ruleSet = ruleSets.get(strPort);
+        if (ruleSet == null) {
+          ruleSet = new SwappableRuleSet(target);
+          ruleSets.put(strPort, ruleSet);
+        }
+        ruleSet.set(staged.getOrDefault(strPort, new ReportableEntityPreprocessor()));
+      }
+      Set<String> rollupPorts = new HashSet<>(rollupRules.keySet());
+      rollupPorts.addAll(stagedRollups.keySet());
+      for (String strPort : rollupPorts) {
+        rollupRules.computeIfAbsent(strPort, x -> new AtomicReference<>()).
+            set(stagedRollups.getOrDefault(strPort, Collections.emptyList()));
       }
+      profiler.setRules(stagedProfiles);
+      loaded = true;
     } catch (ClassCastException e) {
       throw new RuntimeException("Can't parse preprocessor configuration - aborting start-up");
     }
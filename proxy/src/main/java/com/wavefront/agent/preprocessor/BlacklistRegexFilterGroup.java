@@ -0,0 +1,51 @@
+package com.wavefront.agent.preprocessor;
+
+import java.util.List;
+import java.util.function.Function;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * A group of blacklist regex rules that apply to the same component of an item (point line, metric name, source or
+ * a specific point tag). Rejects an item if any of the patterns matches, evaluating all patterns in a single pass.
+ * Metrics are attributed to individual rules as if they were applied one by one, in order.
+ *
+ * @param <T> item type
+ */
+public class BlacklistRegexFilterGroup<T> extends RegexFilterGroup<T> {
+
+  /**
+   * @param extractor   extracts the value to match the patterns against (may return null).
+   * @param patterns    patterns, in order of rule definition.
+   * @param ruleMetrics metrics for each rule.
+   */
+  public BlacklistRegexFilterGroup(@Nonnull Function<T, String> extractor,
+                                   @Nonnull List<String> patterns,
+                                   @Nonnull List<PreprocessorRuleMetrics> ruleMetrics) {
+    this(extractor, patterns, ruleMetrics, null);
+  }
+
+  /**
+   * @param extractor   extracts the value to match the patterns against (may return null).
+   * @param patterns    patterns, in order of rule definition.
+   * @param ruleMetrics metrics for each rule.
+   * @param matchCache  optional cache for match results.
+   */
+  public BlacklistRegexFilterGroup(@Nonnull Function<T, String> extractor,
+                                   @Nonnull List<String> patterns,
+                                   @Nonnull List<PreprocessorRuleMetrics> ruleMetrics,
+                                   @Nullable PreprocessorMatchCache<Integer> matchCache) {
+    super(extractor, patterns, ruleMetrics, matchCache);
+  }
+
+  @Override
+  protected int firstRejecting(@Nonnull String value) {
+    return matcher.firstMatch(value);
+  }
+
+  @Override
+  protected int firstRejectingMissingValue() {
+    return -1;
+  }
+}
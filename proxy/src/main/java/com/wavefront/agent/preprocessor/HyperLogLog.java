@@ -0,0 +1,84 @@
+package com.wavefront.agent.preprocessor;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Minimal HyperLogLog distinct count estimator over pre-computed 64-bit hashes. Uses {@code 2^precision} one-byte
+ * registers; standard error is about {@code 1.04 / sqrt(2^precision)}.
+ * <p/>
+ * The estimate is maintained incrementally, so reading it doesn't require a pass over all registers. Register
+ * reads are not synchronized, so concurrent updates may occasionally be lost, which only affects accuracy.
+ */
+public class HyperLogLog {
+  private final int precision;
+  private final byte[] registers;
+  private final double alpha;
+  private double inverseSum;
+  private int zeroRegisters;
+  private volatile long estimate = 0;
+
+  /**
+   * @param precision number of index bits (4 to 16).
+   */
+  public HyperLogLog(int precision) {
+    Preconditions.checkArgument(precision >= 4 && precision <= 16, "precision should be between 4 and 16");
+    this.precision = precision;
+    int m = 1 << precision;
+    this.registers = new byte[m];
+    this.inverseSum = m;
+    this.zeroRegisters = m;
+    this.alpha = m == 16 ? 0.673 : m == 32 ? 0.697 : m == 64 ? 0.709 : 0.7213 / (1 + 1.079 / m);
+  }
+
+  /**
+   * Add a hashed value.
+   *
+   * @param hash 64-bit hash of the value.
+   * @return true if the estimate may have changed.
+   */
+  public boolean add(long hash) {
+    int index = (int) (hash >>> (64 - precision));
+    // position of the leftmost 1-bit in the remaining bits, the sentinel bit limits it to 64 - precision + 1
+    byte rank = (byte) (Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1);
+    if (rank <= registers[index]) {
+      return false;
+    }
+    synchronized (this) {
+      byte current = registers[index];
+      if (rank <= current) {
+        return false;
+      }
+      if (current == 0) {
+        zeroRegisters--;
+      }
+      inverseSum += Math.scalb(1.0, -rank) - Math.scalb(1.0, -current);
+      registers[index] = rank;
+      estimate = computeEstimate();
+      return true;
+    }
+  }
+
+  /**
+   * @return estimated number of distinct values added.
+   */
+  public long estimate() {
+    return estimate;
+  }
+
+  /**
+   * @return memory used by registers, in bytes.
+   */
+  public int sizeInBytes() {
+    return registers.length;
+  }
+
+  private long computeEstimate() {
+    int m = registers.length;
+    double raw = alpha * m * m / inverseSum;
+    if (raw <= 2.5 * m && zeroRegisters > 0) {
+      // small range correction: linear counting
+      return Math.round(m * Math.log((double) m / zeroRegisters));
+    }
+    return Math.round(raw);
+  }
+}
@@ -0,0 +1,20 @@
+package com.wavefront.agent.preprocessor;
+
+import javax.annotation.Nonnull;
+
+import wavefront.report.Span;
+
+/**
+ * Span filter rule that looks up annotations through a shared {@link SpanAnnotationIndex}.
+ */
+public interface IndexedSpanFilter {
+
+  /**
+   * Apply the rule to a span.
+   *
+   * @param span        span to check.
+   * @param annotations annotation index for the span.
+   * @return true if the span passes the filter.
+   */
+  boolean apply(@Nonnull Span span, @Nonnull SpanAnnotationIndex annotations);
+}
@@ -0,0 +1,30 @@
+package com.wavefront.agent.preprocessor;
+
+import com.google.common.base.Function;
+
+import javax.annotation.Nonnull;
+
+import wavefront.report.Span;
+
+/**
+ * Span transformation rule that looks up and modifies annotations through a shared {@link SpanAnnotationIndex}.
+ * When applied on its own, the rule builds an index for the span and writes changes back right away.
+ */
+public interface IndexedSpanTransformer extends Function<Span, Span> {
+
+  /**
+   * Apply the rule to a span.
+   *
+   * @param span        span to transform.
+   * @param annotations annotation index for the span, changes to annotations must be made through it.
+   */
+  void apply(@Nonnull Span span, @Nonnull SpanAnnotationIndex annotations);
+
+  @Override
+  default Span apply(@Nonnull Span span) {
+    SpanAnnotationIndex annotations = new SpanAnnotationIndex(span);
+    apply(span, annotations);
+    annotations.writeBack();
+    return span;
+  }
+}
@@ -0,0 +1,199 @@
+package com.wavefront.agent.preprocessor;
+
+import com.google.common.base.Preconditions;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Matches an input against a list of regex patterns in a single pass and returns the index of the first pattern that
+ * matches the whole input (same result as trying each pattern in order).
+ * <p/>
+ * All patterns are compiled into one alternation, with a capturing group around each alternative to find out which
+ * one matched. If every pattern starts with a literal prefix, inputs are first checked against a prefix trie, so that
+ * inputs that can't possibly match skip the regex engine altogether.
+ * <p/>
+ * Can also find the first pattern that doesn't match an input (for rules that all have to match), checking each
+ * pattern's literal prefix before running the regex.
+ */
+public class MultiPatternMatcher {
+  private static final Pattern BACK_REFERENCE = Pattern.compile("\\\\([1-9]|k<)");
+  private static final String META_CHARACTERS = ".[]{}()*+?^$|";
+  private static final String QUANTIFIERS = "*+?{";
+
+  private final Pattern[] patterns;
+  @Nullable
+  private final Pattern combined;
+  private final int[] groupIndex;
+  private final String[] literalPrefixes;
+  @Nullable
+  private final PrefixNode prefixes;
+
+  /**
+   * @param regexes list of patterns, in order of precedence.
+   */
+  public MultiPatternMatcher(@Nonnull List<String> regexes) {
+    Preconditions.checkArgument(!regexes.isEmpty(), "at least one pattern is required");
+    this.patterns = new Pattern[regexes.size()];
+    this.groupIndex = new int[regexes.size()];
+    this.literalPrefixes = new String[regexes.size()];
+    boolean canCombine = regexes.size() > 1;
+    StringBuilder alternation = new StringBuilder();
+    int group = 1;
+    for (int i = 0; i < regexes.size(); i++) {
+      String regex = regexes.get(i);
+      patterns[i] = Pattern.compile(regex);
+      if (BACK_REFERENCE.matcher(regex).find()) {
+        // back references would be off after re-numbering groups
+        canCombine = false;
+      }
+      groupIndex[i] = group;
+      group += 1 + patterns[i].matcher("").groupCount();
+      if (i > 0) {
+        alternation.append('|');
+      }
+      alternation.append('(').append(regex).append(')');
+    }
+    Pattern combinedPattern = null;
+    if (canCombine) {
+      try {
+        combinedPattern = Pattern.compile(alternation.toString());
+      } catch (PatternSyntaxException e) {
+        // e.g. duplicate named groups, fall back to matching one by one
+      }
+    }
+    this.combined = combinedPattern;
+
+    PrefixNode root = new PrefixNode();
+    for (int i = 0; i < regexes.size(); i++) {
+      literalPrefixes[i] = literalPrefix(regexes.get(i));
+      if (literalPrefixes[i].isEmpty()) {
+        root = null;
+      } else if (root != null) {
+        root.add(literalPrefixes[i]);
+      }
+    }
+    this.prefixes = root;
+  }
+
+  /**
+   * Find the first pattern that matches the entire input.
+   *
+   * @param input input string
+   * @return index of the first matching pattern, or -1 if none of the patterns match
+   */
+  public int firstMatch(@Nonnull CharSequence input) {
+    if (prefixes != null && !prefixes.matchesPrefixOf(input)) {
+      return -1;
+    }
+    if (combined == null) {
+      for (int i = 0; i < patterns.length; i++) {
+        if (patterns[i].matcher(input).matches()) {
+          return i;
+        }
+      }
+      return -1;
+    }
+    Matcher matcher = combined.matcher(input);
+    if (!matcher.matches()) {
+      return -1;
+    }
+    for (int i = 0; i < groupIndex.length; i++) {
+      if (matcher.start(groupIndex[i]) != -1) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Find the first pattern that doesn't match the entire input.
+   *
+   * @param input input string
+   * @return index of the first pattern that doesn't match, or -1 if all of the patterns match
+   */
+  public int firstMismatch(@Nonnull String input) {
+    for (int i = 0; i < patterns.length; i++) {
+      if (!input.startsWith(literalPrefixes[i]) || !patterns[i].matcher(input).matches()) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Number of patterns.
+   */
+  public int size() {
+    return patterns.length;
+  }
+
+  /**
+   * Extract the literal prefix any input has to start with to match the pattern.
+   *
+   * @param regex pattern
+   * @return literal prefix (may be empty)
+   */
+  static String literalPrefix(String regex) {
+    if (regex.indexOf('|') >= 0) {
+      return "";
+    }
+    StringBuilder prefix = new StringBuilder();
+    int i = regex.startsWith("^") ? 1 : 0;
+    while (i < regex.length()) {
+      char c = regex.charAt(i);
+      if (c == '\\') {
+        if (i + 1 >= regex.length() || Character.isLetterOrDigit(regex.charAt(i + 1))) {
+          // character class, \Q...\E, back reference, etc.
+          break;
+        }
+        prefix.append(regex.charAt(i + 1));
+        i += 2;
+      } else if (META_CHARACTERS.indexOf(c) >= 0) {
+        break;
+      } else {
+        prefix.append(c);
+        i++;
+      }
+    }
+    // the last literal character is optional/repeated if it's followed by a quantifier
+    if (i < regex.length() && prefix.length() > 0 && QUANTIFIERS.indexOf(regex.charAt(i)) >= 0) {
+      prefix.setLength(prefix.length() - 1);
+    }
+    return prefix.toString();
+  }
+
+  private static class PrefixNode {
+    private final Map<Character, PrefixNode> children = new HashMap<>();
+    private boolean terminal = false;
+
+    void add(String prefix) {
+      PrefixNode node = this;
+      for (int i = 0; i < prefix.length(); i++) {
+        node = node.children.computeIfAbsent(prefix.charAt(i), c -> new PrefixNode());
+      }
+      node.terminal = true;
+    }
+
+    boolean matchesPrefixOf(CharSequence input) {
+      PrefixNode node = this;
+      for (int i = 0; i < input.length(); i++) {
+        if (node.terminal) {
+          return true;
+        }
+        node = node.children.get(input.charAt(i));
+        if (node == null) {
+          return false;
+        }
+      }
+      return node.terminal;
+    }
+  }
+}
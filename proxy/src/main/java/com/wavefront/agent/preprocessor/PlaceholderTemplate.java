@@ -0,0 +1,216 @@
+package com.wavefront.agent.preprocessor;
+
+import com.google.common.base.Preconditions;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import wavefront.report.Annotation;
+import wavefront.report.ReportPoint;
+import wavefront.report.Span;
+
+/**
+ * A string with {{...}} placeholders, parsed once into a list of segments (literal text, metric/span name, source
+ * name or a point tag/annotation lookup), so that expanding placeholders for a point or a span doesn't involve
+ * regex matching.
+ * <p/>
+ * Substituted values are inserted as-is. Placeholders that can't be resolved, as well as empty ones, are left
+ * unchanged.
+ */
+public class PlaceholderTemplate {
+  private static final Pattern PLACEHOLDER = Pattern.compile("\\{\\{(.*?)}}");
+  private static final int MAX_REUSABLE_BUILDER_CAPACITY = 8192;
+  private static final ThreadLocal<StringBuilder> BUILDER = ThreadLocal.withInitial(StringBuilder::new);
+
+  private static final byte LITERAL = 0;
+  private static final byte METRIC_NAME = 1;
+  private static final byte SPAN_NAME = 2;
+  private static final byte SOURCE_NAME = 3;
+  private static final byte TAG = 4;
+
+  private final String template;
+  private final byte[] types;
+  private final String[] names;
+  private final String[] placeholders;
+
+  /**
+   * @param template string with {{...}} placeholders
+   */
+  public PlaceholderTemplate(@Nonnull String template) {
+    this.template = Preconditions.checkNotNull(template);
+    if (!template.contains("{{")) {
+      this.types = null;
+      this.names = null;
+      this.placeholders = null;
+      return;
+    }
+    List<Byte> types = new ArrayList<>();
+    List<String> names = new ArrayList<>();
+    List<String> placeholders = new ArrayList<>();
+    Matcher matcher = PLACEHOLDER.matcher(template);
+    int position = 0;
+    while (matcher.find()) {
+      if (matcher.start() > position) {
+        types.add(LITERAL);
+        names.add(template.substring(position, matcher.start()));
+        placeholders.add(null);
+      }
+      String name = matcher.group(1);
+      if (name.isEmpty()) {
+        types.add(LITERAL);
+        names.add(matcher.group(0));
+        placeholders.add(null);
+      } else {
+        switch (name) {
+          case "metricName":
+            types.add(METRIC_NAME);
+            break;
+          case "spanName":
+            types.add(SPAN_NAME);
+            break;
+          case "sourceName":
+            types.add(SOURCE_NAME);
+            break;
+          default:
+            types.add(TAG);
+        }
+        names.add(name);
+        placeholders.add(matcher.group(0));
+      }
+      position = matcher.end();
+    }
+    if (position < template.length()) {
+      types.add(LITERAL);
+      names.add(template.substring(position));
+      placeholders.add(null);
+    }
+    this.types = new byte[types.size()];
+    for (int i = 0; i < this.types.length; i++) {
+      this.types[i] = types.get(i);
+    }
+    this.names = names.toArray(new String[0]);
+    this.placeholders = placeholders.toArray(new String[0]);
+  }
+
+  /**
+   * Check whether the template has any placeholders, i.e. whether the result depends on the point or span.
+   *
+   * @return true if there are placeholders to expand
+   */
+  public boolean hasPlaceholders() {
+    return types != null;
+  }
+
+  /**
+   * Substitute placeholders with corresponding components of the point.
+   * {{metricName}} {{sourceName}} are replaced with the metric name and source respectively,
+   * {{anyTagK}} is replaced with the value of the anyTagK point tag.
+   *
+   * @param reportPoint ReportPoint object to extract components from
+   * @return string with substituted placeholders
+   */
+  public String render(@Nonnull ReportPoint reportPoint) {
+    if (types == null) {
+      return template;
+    }
+    StringBuilder result = builder();
+    for (int i = 0; i < types.length; i++) {
+      String substitution;
+      switch (types[i]) {
+        case LITERAL:
+          result.append(names[i]);
+          continue;
+        case METRIC_NAME:
+          substitution = reportPoint.getMetric();
+          break;
+        case SOURCE_NAME:
+          substitution = reportPoint.getHost();
+          break;
+        default:
+          Map<String, String> annotations = reportPoint.getAnnotations();
+          substitution = annotations == null ? null : annotations.get(names[i]);
+      }
+      result.append(substitution == null ? placeholders[i] : substitution);
+    }
+    return toString(result);
+  }
+
+  /**
+   * Substitute placeholders with corresponding components of a span.
+   * {{spanName}} {{sourceName}} are replaced with the span name and source respectively,
+   * {{anyKey}} is replaced with the value of an annotation with anyKey key.
+   *
+   * @param span Span object to extract components from
+   * @return string with substituted placeholders
+   */
+  public String render(@Nonnull Span span) {
+    return render(span, null);
+  }
+
+  /**
+   * Substitute placeholders with corresponding components of a span, looking up annotations in an index.
+   *
+   * @param span        Span object to extract components from
+   * @param annotations annotation index for the span, if available
+   * @return string with substituted placeholders
+   */
+  public String render(@Nonnull Span span, @Nullable SpanAnnotationIndex annotations) {
+    if (types == null) {
+      return template;
+    }
+    StringBuilder result = builder();
+    for (int i = 0; i < types.length; i++) {
+      String substitution;
+      switch (types[i]) {
+        case LITERAL:
+          result.append(names[i]);
+          continue;
+        case SPAN_NAME:
+          substitution = span.getName();
+          break;
+        case SOURCE_NAME:
+          substitution = span.getSource();
+          break;
+        default:
+          substitution = null;
+          if (annotations != null) {
+            substitution = annotations.getValue(names[i]);
+          } else if (span.getAnnotations() != null) {
+            for (Annotation annotation : span.getAnnotations()) {
+              if (annotation.getKey().equals(names[i])) {
+                substitution = annotation.getValue();
+                break;
+              }
+            }
+          }
+      }
+      result.append(substitution == null ? placeholders[i] : substitution);
+    }
+    return toString(result);
+  }
+
+  private static StringBuilder builder() {
+    StringBuilder builder = BUILDER.get();
+    builder.setLength(0);
+    return builder;
+  }
+
+  private static String toString(StringBuilder builder) {
+    String result = builder.toString();
+    if (builder.capacity() > MAX_REUSABLE_BUILDER_CAPACITY) {
+      BUILDER.remove();
+    }
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    return template;
+  }
+}
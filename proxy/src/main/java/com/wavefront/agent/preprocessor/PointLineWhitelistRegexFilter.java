@@ -32,6 +32,14 @@ public class PointLineWhitelistRegexFilter extends AnnotatedPredicate<String> {
     this.ruleMetrics = ruleMetrics;
   }
 
+  Pattern getPattern() {
+    return compiledPattern;
+  }
+
+  PreprocessorRuleMetrics getRuleMetrics() {
+    return ruleMetrics;
+  }
+
   @Override
   public boolean apply(String pointLine) {
   long startNanos = ruleMetrics.ruleStart();
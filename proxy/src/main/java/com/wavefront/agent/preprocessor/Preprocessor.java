@@ -54,7 +54,13 @@ public class Preprocessor<T> {
    * @return true if it has at least one filter
    */
   public boolean hasFilters() {
-    return !filters.isEmpty();
+    for (AnnotatedPredicate<T> filter : filters) {
+      if (!(filter instanceof SwappableRuleSet.DelegatingFilter) ||
+          !((SwappableRuleSet.DelegatingFilter<T>) filter).isEmpty()) {
+        return true;
+      }
+    }
+    return false;
   }
 
   /**
@@ -62,7 +68,13 @@ public class Preprocessor<T> {
    * @return true if it has at least one transformer
    */
   public boolean hasTransformers() {
-    return !transformers.isEmpty();
+    for (Function<T, T> transformer : transformers) {
+      if (!(transformer instanceof SwappableRuleSet.DelegatingTransformer) ||
+          !((SwappableRuleSet.DelegatingTransformer<T>) transformer).isEmpty()) {
+        return true;
+      }
+    }
+    return false;
   }
 
   /**
@@ -74,6 +86,14 @@ public class Preprocessor<T> {
     return message;
   }
 
+  /**
+   * Set the detailed message for the result of the last filter() operation
+   * @param message message
+   */
+  void setLastFilterResult(@Nullable String message) {
+    this.message = message;
+  }
+
   /**
    * Register a transformation rule
    * @param transformer rule
@@ -90,6 +110,22 @@ public class Preprocessor<T> {
     filters.add(filter);
   }
 
+  /**
+   * Registered transformation rules, in the order they are applied
+   * @return mutable list of transformers
+   */
+  List<Function<T, T>> getTransformers() {
+    return transformers;
+  }
+
+  /**
+   * Registered filter rules, in the order they are applied
+   * @return mutable list of filters
+   */
+  List<AnnotatedPredicate<T>> getFilters() {
+    return filters;
+  }
+
   /**
    * Register a transformation rule and place it at a specific index
    * @param index zero-based index
@@ -0,0 +1,58 @@
+package com.wavefront.agent.preprocessor;
+
+import com.google.common.base.Preconditions;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.MetricName;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.logging.Logger;
+
+/**
+ * Checks the preprocessor configuration file for changes and reloads rules when it's modified, without restarting
+ * listeners. A configuration with invalid rules is rejected as a whole and currently active rules stay in effect
+ * until the file is modified again.
+ */
+public class PreprocessorConfigReloader implements Runnable {
+  private static final Logger logger = Logger.getLogger(PreprocessorConfigReloader.class.getCanonicalName());
+
+  private final AgentPreprocessorConfiguration config;
+  private final File file;
+  private final Counter reloadCounter;
+  private final Counter reloadErrorCounter;
+  private long lastModified;
+
+  /**
+   * Should be created before the initial load, so changes made after it are picked up.
+   *
+   * @param config preprocessor configuration to reload.
+   * @param file   configuration file to watch.
+   */
+  public PreprocessorConfigReloader(AgentPreprocessorConfiguration config, File file) {
+    this.config = Preconditions.checkNotNull(config);
+    this.file = Preconditions.checkNotNull(file);
+    this.lastModified = file.lastModified();
+    this.reloadCounter = Metrics.newCounter(new MetricName("preprocessor", "", "config-reloads"));
+    this.reloadErrorCounter = Metrics.newCounter(new MetricName("preprocessor", "", "config-reload-errors"));
+  }
+
+  @Override
+  public void run() {
+    long modified = file.lastModified();
+    if (modified == 0 || modified == lastModified) {
+      return;
+    }
+    lastModified = modified;
+    try (InputStream stream = new FileInputStream(file)) {
+      config.loadFromStream(stream);
+      reloadCounter.inc();
+      logger.info("Preprocessor configuration reloaded from " + file);
+    } catch (Exception e) {
+      reloadErrorCounter.inc();
+      logger.warning("Unable to reload preprocessor configuration from " + file + ": " + e.getMessage());
+    }
+  }
+}
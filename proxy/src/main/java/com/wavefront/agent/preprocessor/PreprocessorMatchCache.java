@@ -0,0 +1,63 @@
+package com.wavefront.agent.preprocessor;
+
+import com.google.common.base.Preconditions;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.yammer.metrics.core.Counter;
+
+import java.util.function.Function;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Bounded cache of rule results keyed by the value of the component the rule is applied to (metric name, source name
+ * or a point tag value). Cardinality of these components is typically much lower than the number of points, so
+ * remembering results avoids running the same regex over and over again.
+ *
+ * @param <V> cached result type
+ */
+public class PreprocessorMatchCache<V> {
+
+  private final Cache<String, V> cache;
+  @Nullable
+  private final Counter hitCounter;
+  @Nullable
+  private final Counter missCounter;
+
+  /**
+   * @param maxSize     max number of entries to keep.
+   * @param hitCounter  counter for cache hits (optional).
+   * @param missCounter counter for cache misses (optional).
+   */
+  public PreprocessorMatchCache(long maxSize, @Nullable Counter hitCounter, @Nullable Counter missCounter) {
+    Preconditions.checkArgument(maxSize > 0, "maxSize must be positive");
+    this.cache = Caffeine.newBuilder().maximumSize(maxSize).build();
+    this.hitCounter = hitCounter;
+    this.missCounter = missCounter;
+  }
+
+  /**
+   * Get the cached result for the value, computing and caching it if it's not there.
+   *
+   * @param value  component value
+   * @param loader function to compute the result
+   * @return result
+   */
+  public V get(@Nonnull String value, @Nonnull Function<String, V> loader) {
+    V result = cache.getIfPresent(value);
+    if (result != null) {
+      if (hitCounter != null) {
+        hitCounter.inc();
+      }
+      return result;
+    }
+    if (missCounter != null) {
+      missCounter.inc();
+    }
+    result = loader.apply(value);
+    cache.put(value, result);
+    return result;
+  }
+}
@@ -0,0 +1,186 @@
+package com.wavefront.agent.preprocessor;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+
+import com.yammer.metrics.core.Histogram;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+/**
+ * Sampling profiler for preprocessor rules. While enabled, 1 in {@code sampleRate} rule invocations is timed and
+ * recorded in a per-rule latency histogram (CPU time counters are then estimated from sampled invocations); while
+ * disabled, only CPU time counters are updated, estimated from a small fixed sample of invocations. Can be turned on
+ * and off at runtime through JMX.
+ * <p/>
+ * The report lists, for each port and each rule chain:
+ * <ul>
+ *   <li>latency percentiles for sampled invocations;</li>
+ *   <li>selectivity: how often the rule was applied (for filters - how often it rejected an item);</li>
+ *   <li>for filters, the fraction of items that never reached the rule because an earlier filter had already
+ *   rejected them;</li>
+ *   <li>a suggested filter order. Filters are independent, so ordering them by expected cost per rejected item
+ *   (mean latency / rejection rate) minimizes total evaluation time without changing results.</li>
+ * </ul>
+ */
+public class PreprocessorProfiler implements PreprocessorProfilerMBean {
+  private static final Logger logger = Logger.getLogger(PreprocessorProfiler.class.getCanonicalName());
+
+  /**
+   * Returned instead of the start time when a rule invocation is not timed.
+   */
+  public static final long NOT_TIMED = Long.MIN_VALUE;
+
+  private volatile int sampleRate;
+  private volatile Map<String, List<RuleProfile>> rulesByPort = Collections.emptyMap();
+
+  public PreprocessorProfiler() {
+    this(0);
+  }
+
+  /**
+   * @param sampleRate time 1 in sampleRate rule invocations, 0 to disable profiling.
+   */
+  public PreprocessorProfiler(int sampleRate) {
+    setSampleRate(sampleRate);
+  }
+
+  @Override
+  public int getSampleRate() {
+    return sampleRate;
+  }
+
+  @Override
+  public void setSampleRate(int sampleRate) {
+    Preconditions.checkArgument(sampleRate >= 0, "sampleRate can't be negative");
+    if (this.sampleRate != sampleRate) {
+      logger.info(sampleRate == 0 ? "Preprocessor profiling disabled" :
+          "Preprocessor profiling enabled, sampling 1 in " + sampleRate + " rule invocations");
+    }
+    this.sampleRate = sampleRate;
+  }
+
+  /**
+   * Replace the set of profiled rules (called when preprocessor rules are loaded).
+   *
+   * @param rulesByPort rules for each port, in order of definition.
+   */
+  void setRules(Map<String, List<RuleProfile>> rulesByPort) {
+    this.rulesByPort = rulesByPort;
+  }
+
+  @Override
+  public String getReport() {
+    StringBuilder report = new StringBuilder();
+    for (Map.Entry<String, List<RuleProfile>> entry : rulesByPort.entrySet()) {
+      Map<String, List<RuleProfile>> chains = new LinkedHashMap<>();
+      for (RuleProfile rule : entry.getValue()) {
+        chains.computeIfAbsent(rule.chain, x -> new ArrayList<>()).add(rule);
+      }
+      for (Map.Entry<String, List<RuleProfile>> chain : chains.entrySet()) {
+        report.append("Port ").append(entry.getKey()).append(", ").append(chain.getKey()).append(" rules:\n");
+        appendChainReport(report, chain.getValue());
+      }
+    }
+    return report.length() == 0 ? "No preprocessor rules loaded\n" : report.toString();
+  }
+
+  private static void appendChainReport(StringBuilder report, List<RuleProfile> rules) {
+    long entered = 0;
+    for (RuleProfile rule : rules) {
+      if (rule.filter) {
+        entered = Math.max(entered, rule.metrics.getCheckedCount());
+      }
+    }
+    List<RuleProfile> filters = new ArrayList<>();
+    for (RuleProfile rule : rules) {
+      long checked = rule.metrics.getCheckedCount();
+      long applied = rule.metrics.getAppliedCount();
+      report.append("  ").append(rule.name).append(rule.filter ? " (filter)" : "").
+          append(": checked ").append(checked).
+          append(rule.filter ? ", rejected " : ", applied ").append(applied).
+          append(" (").append(percent(applied, checked)).append(")");
+      if (rule.filter) {
+        filters.add(rule);
+        report.append(", short-circuited ").append(percent(entered - checked, entered));
+      }
+      Histogram histogram = rule.metrics.getLatencyHistogram();
+      if (histogram != null && histogram.count() > 0) {
+        report.append(String.format(", latency mean/p50/p99: %.0f/%.0f/%.0f ns (%d samples)", histogram.mean(),
+            histogram.getSnapshot().getMedian(), histogram.getSnapshot().get99thPercentile(), histogram.count()));
+      }
+      report.append("\n");
+    }
+    if (filters.size() > 1) {
+      List<RuleProfile> suggested = suggestFilterOrder(filters);
+      if (suggested == null) {
+        report.append("  Not enough samples to suggest filter order\n");
+      } else if (!suggested.equals(filters)) {
+        report.append("  Suggested filter order:");
+        for (RuleProfile rule : suggested) {
+          report.append(" ").append(rule.name);
+        }
+        report.append("\n");
+      }
+    }
+  }
+
+  /**
+   * Order filters by expected cost per rejected item, cheapest first.
+   *
+   * @param filters filters in current order.
+   * @return filters in suggested order, or null if not all filters have been sampled.
+   */
+  @VisibleForTesting
+  @Nullable
+  static List<RuleProfile> suggestFilterOrder(List<RuleProfile> filters) {
+    Map<RuleProfile, Double> rank = new LinkedHashMap<>();
+    for (RuleProfile rule : filters) {
+      Histogram histogram = rule.metrics.getLatencyHistogram();
+      long checked = rule.metrics.getCheckedCount();
+      if (histogram == null || histogram.count() == 0 || checked == 0) {
+        return null;
+      }
+      double rejectionRate = (double) rule.metrics.getAppliedCount() / checked;
+      rank.put(rule, rejectionRate == 0 ? Double.POSITIVE_INFINITY : histogram.mean() / rejectionRate);
+    }
+    List<RuleProfile> suggested = new ArrayList<>(filters);
+    suggested.sort(Comparator.comparing(rank::get));
+    return suggested;
+  }
+
+  private static String percent(long value, long total) {
+    return total == 0 ? "n/a" : String.format("%.1f%%", 100.0 * value / total);
+  }
+
+  /**
+   * A rule as configured in the preprocessor rules file.
+   */
+  static class RuleProfile {
+    final String chain;
+    final String name;
+    final boolean filter;
+    final PreprocessorRuleMetrics metrics;
+
+    /**
+     * @param chain   rule chain (pointLine, reportPoint or span).
+     * @param name    rule name.
+     * @param filter  whether the rule is a filter (as opposed to a transformer).
+     * @param metrics rule metrics.
+     */
+    RuleProfile(String chain, String name, boolean filter, PreprocessorRuleMetrics metrics) {
+      this.chain = chain;
+      this.name = name;
+      this.filter = filter;
+      this.metrics = metrics;
+    }
+  }
+}
@@ -0,0 +1,22 @@
+package com.wavefront.agent.preprocessor;
+
+/**
+ * JMX interface for {@link PreprocessorProfiler}, allows turning profiling on and off at runtime.
+ */
+public interface PreprocessorProfilerMBean {
+
+  /**
+   * @return 1 in how many rule invocations are timed, 0 if profiling is disabled.
+   */
+  int getSampleRate();
+
+  /**
+   * @param sampleRate time 1 in sampleRate rule invocations, 0 to disable profiling.
+   */
+  void setSampleRate(int sampleRate);
+
+  /**
+   * @return per-rule statistics and suggested filter order for every port.
+   */
+  String getReport();
+}
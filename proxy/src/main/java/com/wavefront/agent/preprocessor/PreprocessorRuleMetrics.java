@@ -1,6 +1,9 @@
 package com.wavefront.agent.preprocessor;
 
 import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Histogram;
+
+import java.util.function.Supplier;
 
 import javax.annotation.Nullable;
 
@@ -8,22 +11,49 @@ import javax.annotation.Nullable;
  * A helper class for instrumenting preprocessor rules.
  * Tracks two counters: number of times the rule has been successfully applied, and counter of CPU time (nanos)
  * spent on applying the rule to troubleshoot possible performance issues.
+ * <p/>
+ * When created with a {@link PreprocessorProfiler}, rule execution is only timed for a sample of rule invocations,
+ * and CPU time is estimated from sampled invocations: 1 in {@code sampleRate} while profiling is enabled (sampled
+ * latencies are also recorded in a histogram), 1 in {@value #CPU_TIME_SAMPLE_RATE} while it's disabled.
  *
  * @author vasily@wavefront.com
  */
 public class PreprocessorRuleMetrics {
+  private static final int CPU_TIME_SAMPLE_RATE = 64;
+
   @Nullable
   private final Counter ruleAppliedCounter;
   @Nullable
   private final Counter ruleCpuTimeNanosCounter;
   @Nullable
   private final Counter ruleCheckedCounter;
+  @Nullable
+  private final PreprocessorProfiler profiler;
+  @Nullable
+  private final Supplier<Histogram> ruleLatencyHistogram;
+  // not synchronized: only used to pick a sample of invocations, an occasional lost update doesn't matter
+  private int invocations = 0;
 
   public PreprocessorRuleMetrics(@Nullable Counter ruleAppliedCounter, @Nullable Counter ruleCpuTimeNanosCounter,
                                  @Nullable Counter ruleCheckedCounter) {
+    this(ruleAppliedCounter, ruleCpuTimeNanosCounter, ruleCheckedCounter, null, null);
+  }
+
+  /**
+   * @param ruleAppliedCounter      counter for the number of times the rule has been applied.
+   * @param ruleCpuTimeNanosCounter counter for CPU time spent on the rule.
+   * @param ruleCheckedCounter      counter for the number of times the rule has been checked.
+   * @param profiler                profiler that controls whether (and how often) rule execution is timed.
+   * @param ruleLatencyHistogram    histogram for sampled rule execution time (created on first use).
+   */
+  public PreprocessorRuleMetrics(@Nullable Counter ruleAppliedCounter, @Nullable Counter ruleCpuTimeNanosCounter,
+                                 @Nullable Counter ruleCheckedCounter, @Nullable PreprocessorProfiler profiler,
+                                 @Nullable Supplier<Histogram> ruleLatencyHistogram) {
     this.ruleAppliedCounter = ruleAppliedCounter;
     this.ruleCpuTimeNanosCounter = ruleCpuTimeNanosCounter;
     this.ruleCheckedCounter = ruleCheckedCounter;
+    this.profiler = profiler;
+    this.ruleLatencyHistogram = ruleLatencyHistogram;
   }
 
   @Deprecated
@@ -60,24 +90,85 @@ public class PreprocessorRuleMetrics {
   /**
    * Measure rule execution time and add it to ruleCpuTimeNanosCounter (if available)
    *
-   * @param ruleStartTime rule start time
+   * @param ruleStartTime rule start time, as returned by {@link #ruleStart()}
    */
   public void ruleEnd(long ruleStartTime) {
-    if (this.ruleCpuTimeNanosCounter != null) {
-      this.ruleCpuTimeNanosCounter.inc(System.nanoTime() - ruleStartTime);
+    if (ruleStartTime != PreprocessorProfiler.NOT_TIMED) {
+      recordCpuNanos(System.nanoTime() - ruleStartTime);
     }
   }
 
-
   /**
    * Mark rule start time, increment ruleCheckedCounter (if available) by 1
    *
-   * @return start time in nanos
+   * @return start time in nanos, or {@link PreprocessorProfiler#NOT_TIMED} if this invocation is not timed
    */
   public long ruleStart() {
     if (this.ruleCheckedCounter != null) {
       this.ruleCheckedCounter.inc();
     }
+    return timerStart();
+  }
+
+  /**
+   * Increment ruleCheckedCounter (if available) by 1 and add {@code cpuNanos} to ruleCpuTimeNanosCounter
+   * (if available). Used when several rules are evaluated at once and time is attributed to each of them.
+   *
+   * @param cpuNanos time spent on this rule, or {@link PreprocessorProfiler#NOT_TIMED} if not timed
+   */
+  public void ruleChecked(long cpuNanos) {
+    if (this.ruleCheckedCounter != null) {
+      this.ruleCheckedCounter.inc();
+    }
+    if (cpuNanos != PreprocessorProfiler.NOT_TIMED) {
+      recordCpuNanos(cpuNanos);
+    }
+  }
+
+  /**
+   * Mark start time if this invocation should be timed, without counting it as checked. Used when several rules
+   * are evaluated at once, the result is passed to {@link #ruleChecked(long)} for each of them.
+   *
+   * @return start time in nanos, or {@link PreprocessorProfiler#NOT_TIMED} if this invocation is not timed
+   */
+  long timerStart() {
+    if (profiler == null) {
+      return System.nanoTime();
+    }
+    int sampleRate = profiler.getSampleRate();
+    if (++invocations % (sampleRate > 0 ? sampleRate : CPU_TIME_SAMPLE_RATE) != 0) {
+      return PreprocessorProfiler.NOT_TIMED;
+    }
     return System.nanoTime();
   }
+
+  long getCheckedCount() {
+    return ruleCheckedCounter == null ? 0 : ruleCheckedCounter.count();
+  }
+
+  long getAppliedCount() {
+    return ruleAppliedCounter == null ? 0 : ruleAppliedCounter.count();
+  }
+
+  @Nullable
+  Histogram getLatencyHistogram() {
+    return ruleLatencyHistogram == null ? null : ruleLatencyHistogram.get();
+  }
+
+  private void recordCpuNanos(long cpuNanos) {
+    if (profiler == null) {
+      if (this.ruleCpuTimeNanosCounter != null) {
+        this.ruleCpuTimeNanosCounter.inc(cpuNanos);
+      }
+      return;
+    }
+    int sampleRate = profiler.getSampleRate();
+    if (this.ruleCpuTimeNanosCounter != null) {
+      // only 1 in sampleRate invocations is timed
+      this.ruleCpuTimeNanosCounter.inc(cpuNanos * (sampleRate > 0 ? sampleRate : CPU_TIME_SAMPLE_RATE));
+    }
+    if (sampleRate > 0 && this.ruleLatencyHistogram != null) {
+      this.ruleLatencyHistogram.get().update(cpuNanos);
+    }
+  }
 }
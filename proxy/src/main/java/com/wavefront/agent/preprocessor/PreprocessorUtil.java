@@ -1,11 +1,9 @@
 package com.wavefront.agent.preprocessor;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.function.Function;
 
 import javax.annotation.Nonnull;
 
-import wavefront.report.Annotation;
 import wavefront.report.ReportPoint;
 import wavefront.report.Span;
 
@@ -16,86 +14,52 @@ import wavefront.report.Span;
  */
 public abstract class PreprocessorUtil {
 
+  /**
+   * Resolve a "scope" parameter into a function that extracts the corresponding component of the point:
+   * metric name for "metricName", source for "sourceName", or the point tag value otherwise (null if the
+   * point doesn't have such tag).
+   *
+   * @param scope scope parameter of the rule
+   * @return extractor function
+   */
+  static Function<ReportPoint, String> scopeExtractor(@Nonnull String scope) {
+    switch (scope) {
+      case "metricName":
+        return ReportPoint::getMetric;
+      case "sourceName":
+        return ReportPoint::getHost;
+      default:
+        return reportPoint -> reportPoint.getAnnotations() == null ? null : reportPoint.getAnnotations().get(scope);
+    }
+  }
+
   /**
    * Substitute {{...}} placeholders with corresponding components of the point
    * {{metricName}} {{sourceName}} are replaced with the metric name and source respectively
    * {{anyTagK}} is replaced with the value of the anyTagK point tag
+   * <p/>
+   * Parses the template on every call, rules should use a {@link PlaceholderTemplate} created at load time instead.
    *
    * @param input        input string with {{...}} placeholders
    * @param reportPoint  ReportPoint object to extract components from
    * @return string with substituted placeholders
    */
   public static String expandPlaceholders(String input, @Nonnull ReportPoint reportPoint) {
-    if (input.contains("{{")) {
-      StringBuffer result = new StringBuffer();
-      Matcher placeholders = Pattern.compile("\\{\\{(.*?)}}").matcher(input);
-      while (placeholders.find()) {
-        if (placeholders.group(1).isEmpty()) {
-          placeholders.appendReplacement(result, placeholders.group(0));
-        } else {
-          String substitution;
-          switch (placeholders.group(1)) {
-            case "metricName":
-              substitution = reportPoint.getMetric();
-              break;
-            case "sourceName":
-              substitution = reportPoint.getHost();
-              break;
-            default:
-              substitution = reportPoint.getAnnotations().get(placeholders.group(1));
-          }
-          if (substitution != null) {
-            placeholders.appendReplacement(result, substitution);
-          } else {
-            placeholders.appendReplacement(result, placeholders.group(0));
-          }
-        }
-      }
-      placeholders.appendTail(result);
-      return result.toString();
-    }
-    return input;
+    return new PlaceholderTemplate(input).render(reportPoint);
   }
 
   /**
    * Substitute {{...}} placeholders with corresponding components of a Span
    * {{spanName}} {{sourceName}} are replaced with the span name and source respectively
    * {{anyKey}} is replaced with the value of an annotation with anyKey key
+   * <p/>
+   * Parses the template on every call, rules should use a {@link PlaceholderTemplate} created at load time instead.
    *
    * @param input input string with {{...}} placeholders
    * @param span  Span object to extract components from
    * @return string with substituted placeholders
    */
   public static String expandPlaceholders(String input, @Nonnull Span span) {
-    if (input.contains("{{")) {
-      StringBuffer result = new StringBuffer();
-      Matcher placeholders = Pattern.compile("\\{\\{(.*?)}}").matcher(input);
-      while (placeholders.find()) {
-        if (placeholders.group(1).isEmpty()) {
-          placeholders.appendReplacement(result, placeholders.group(0));
-        } else {
-          String substitution;
-          switch (placeholders.group(1)) {
-            case "spanName":
-              substitution = span.getName();
-              break;
-            case "sourceName":
-              substitution = span.getSource();
-              break;
-            default:
-              substitution = span.getAnnotations().stream().filter(a -> a.getKey().equals(placeholders.group(1))).
-                  map(Annotation::getValue).findFirst().orElse(null);
-          }
-          if (substitution != null) {
-            placeholders.appendReplacement(result, substitution);
-          } else {
-            placeholders.appendReplacement(result, placeholders.group(0));
-          }
-        }
-      }
-      placeholders.appendTail(result);
-      return result.toString();
-    }
-    return input;
+    return new PlaceholderTemplate(input).render(span);
   }
 }
@@ -0,0 +1,181 @@
+package com.wavefront.agent.preprocessor;
+
+import com.google.common.base.Preconditions;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * A group of regex filter rules of the same kind that apply to the same component of an item (point line, metric
+ * name, source or a specific point tag). The component is extracted once per item, and all patterns are evaluated
+ * by a single {@link MultiPatternMatcher}. Metrics are attributed to individual rules as if they were applied one
+ * by one, in order.
+ *
+ * @param <T> item type
+ */
+public abstract class RegexFilterGroup<T> extends AnnotatedPredicate<T> {
+
+  private final Function<T, String> extractor;
+  protected final MultiPatternMatcher matcher;
+  private final PreprocessorRuleMetrics[] ruleMetrics;
+  @Nullable
+  private final PreprocessorMatchCache<Integer> matchCache;
+
+  /**
+   * @param extractor   extracts the value to match the patterns against (may return null).
+   * @param patterns    patterns, in order of rule definition.
+   * @param ruleMetrics metrics for each rule.
+   * @param matchCache  optional cache for match results.
+   */
+  protected RegexFilterGroup(@Nonnull Function<T, String> extractor,
+                             @Nonnull List<String> patterns,
+                             @Nonnull List<PreprocessorRuleMetrics> ruleMetrics,
+                             @Nullable PreprocessorMatchCache<Integer> matchCache) {
+    Preconditions.checkArgument(patterns.size() == ruleMetrics.size(),
+        "Number of patterns and rule metrics must match");
+    this.extractor = Preconditions.checkNotNull(extractor, "extractor can't be null");
+    this.matcher = new MultiPatternMatcher(patterns);
+    this.ruleMetrics = ruleMetrics.toArray(new PreprocessorRuleMetrics[0]);
+    this.matchCache = matchCache;
+  }
+
+  /**
+   * Find the first rule that rejects a value.
+   *
+   * @param value value extracted from the item.
+   * @return index of the first rule that rejects the value, or -1 if the value passes all rules.
+   */
+  protected abstract int firstRejecting(@Nonnull String value);
+
+  /**
+   * @return index of the first rule that rejects an item without a value to match, or -1 if it passes all rules.
+   */
+  protected abstract int firstRejectingMissingValue();
+
+  @Override
+  public boolean apply(@Nonnull T item) {
+    long startNanos = ruleMetrics[0].timerStart();
+    String value = extractor.apply(item);
+    int rejecting;
+    if (value == null) {
+      rejecting = firstRejectingMissingValue();
+    } else if (matchCache == null) {
+      rejecting = firstRejecting(value);
+    } else {
+      rejecting = matchCache.get(value, this::firstRejecting);
+    }
+    int checked = rejecting < 0 ? ruleMetrics.length : rejecting + 1;
+    long cpuNanosPerRule = startNanos == PreprocessorProfiler.NOT_TIMED ? PreprocessorProfiler.NOT_TIMED :
+        (System.nanoTime() - startNanos) / checked;
+    for (int i = 0; i < checked; i++) {
+      ruleMetrics[i].ruleChecked(cpuNanosPerRule);
+    }
+    if (rejecting >= 0) {
+      ruleMetrics[rejecting].incrementRuleAppliedCounter();
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Number of rules in this group.
+   */
+  public int size() {
+    return ruleMetrics.length;
+  }
+
+  /**
+   * Creates a filter group.
+   */
+  interface Factory<T> {
+    RegexFilterGroup<T> create(Function<T, String> extractor, List<String> patterns,
+                               List<PreprocessorRuleMetrics> ruleMetrics,
+                               @Nullable PreprocessorMatchCache<Integer> matchCache);
+  }
+
+  /**
+   * Replaces filters of the same kind that apply to the same component with a single filter group, placed at the
+   * position of the first filter in the group. If a match cache is provided for the component, a single filter is
+   * wrapped as well. Only filters within a run of adjacent regex filters are grouped: regex filters don't depend on
+   * each other's side effects, so reordering them within a run doesn't change the outcome, but other filters (like
+   * cardinality limits) may record the items they see, so regex filters are never moved across them.
+   *
+   * @param filters       list of filters to optimize in place.
+   * @param isRegexFilter returns true for regex filters (of any kind, grouped or not) that can be reordered.
+   * @param groupKey      returns the grouping key (scope) for a filter, or null if the filter can't be grouped.
+   * @param extractorFor  resolves a grouping key into a value extractor.
+   * @param patternOf     pattern of a groupable filter.
+   * @param metricsOf     rule metrics of a groupable filter.
+   * @param cacheFor      creates a match result cache for a grouping key (may return null).
+   * @param factory       creates a filter group.
+   * @return number of groups created.
+   */
+  static <T> int groupFilters(List<AnnotatedPredicate<T>> filters,
+                              Predicate<AnnotatedPredicate<T>> isRegexFilter,
+                              Function<AnnotatedPredicate<T>, String> groupKey,
+                              Function<String, Function<T, String>> extractorFor,
+                              Function<AnnotatedPredicate<T>, Pattern> patternOf,
+                              Function<AnnotatedPredicate<T>, PreprocessorRuleMetrics> metricsOf,
+                              Function<String, PreprocessorMatchCache<Integer>> cacheFor,
+                              Factory<T> factory) {
+    int created = 0;
+    int start = 0;
+    while (start < filters.size()) {
+      int end = start;
+      while (end < filters.size() && isRegexFilter.test(filters.get(end))) {
+        end++;
+      }
+      if (end > start) {
+        List<AnnotatedPredicate<T>> run = filters.subList(start, end);
+        created += groupRun(run, groupKey, extractorFor, patternOf, metricsOf, cacheFor, factory);
+        end = start + run.size();
+      }
+      // skip the filter that ended the run
+      start = end + 1;
+    }
+    return created;
+  }
+
+  private static <T> int groupRun(List<AnnotatedPredicate<T>> filters,
+                                  Function<AnnotatedPredicate<T>, String> groupKey,
+                                  Function<String, Function<T, String>> extractorFor,
+                                  Function<AnnotatedPredicate<T>, Pattern> patternOf,
+                                  Function<AnnotatedPredicate<T>, PreprocessorRuleMetrics> metricsOf,
+                                  Function<String, PreprocessorMatchCache<Integer>> cacheFor,
+                                  Factory<T> factory) {
+    Map<String, List<AnnotatedPredicate<T>>> groups = new LinkedHashMap<>();
+    for (AnnotatedPredicate<T> filter : filters) {
+      String key = groupKey.apply(filter);
+      if (key != null) {
+        groups.computeIfAbsent(key, k -> new ArrayList<>()).add(filter);
+      }
+    }
+    int created = 0;
+    for (Map.Entry<String, List<AnnotatedPredicate<T>>> entry : groups.entrySet()) {
+      List<AnnotatedPredicate<T>> members = entry.getValue();
+      // single rules are only worth wrapping when their results can be cached
+      PreprocessorMatchCache<Integer> matchCache = cacheFor.apply(entry.getKey());
+      if (members.size() < 2 && matchCache == null) continue;
+      List<String> patterns = new ArrayList<>(members.size());
+      List<PreprocessorRuleMetrics> metrics = new ArrayList<>(members.size());
+      for (AnnotatedPredicate<T> member : members) {
+        patterns.add(patternOf.apply(member).pattern());
+        metrics.add(metricsOf.apply(member));
+      }
+      RegexFilterGroup<T> group = factory.create(extractorFor.apply(entry.getKey()), patterns, metrics, matchCache);
+      int index = filters.indexOf(members.get(0));
+      filters.set(index, group);
+      filters.removeAll(members.subList(1, members.size()));
+      created++;
+    }
+    return created;
+  }
+}
@@ -36,7 +36,7 @@ public class ReportPointAddTagIfNotExistsTransformer extends ReportPointAddTagTr
       reportPoint.setAnnotations(Maps.<String, String>newHashMap());
     }
     if (reportPoint.getAnnotations().get(tag) == null) {
-      reportPoint.getAnnotations().put(tag, PreprocessorUtil.expandPlaceholders(value, reportPoint));
+      reportPoint.getAnnotations().put(tag, valueTemplate.render(reportPoint));
       ruleMetrics.incrementRuleAppliedCounter();
     }
     ruleMetrics.ruleEnd(startNanos);
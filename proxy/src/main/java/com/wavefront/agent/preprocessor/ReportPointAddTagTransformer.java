@@ -20,6 +20,7 @@ public class ReportPointAddTagTransformer implements Function<ReportPoint, Repor
 
   protected final String tag;
   protected final String value;
+  protected final PlaceholderTemplate valueTemplate;
   protected final PreprocessorRuleMetrics ruleMetrics;
 
   @Deprecated
@@ -36,6 +37,7 @@ public class ReportPointAddTagTransformer implements Function<ReportPoint, Repor
     this.value = Preconditions.checkNotNull(value, "[value] can't be null");
     Preconditions.checkArgument(!tag.isEmpty(), "[tag] can't be blank");
     Preconditions.checkArgument(!value.isEmpty(), "[value] can't be blank");
+    this.valueTemplate = new PlaceholderTemplate(value);
     Preconditions.checkNotNull(ruleMetrics, "PreprocessorRuleMetrics can't be null");
     this.ruleMetrics = ruleMetrics;
   }
@@ -46,7 +48,7 @@ public class ReportPointAddTagTransformer implements Function<ReportPoint, Repor
     if (reportPoint.getAnnotations() == null) {
       reportPoint.setAnnotations(Maps.<String, String>newHashMap());
     }
-    reportPoint.getAnnotations().put(tag, PreprocessorUtil.expandPlaceholders(value, reportPoint));
+    reportPoint.getAnnotations().put(tag, valueTemplate.render(reportPoint));
     ruleMetrics.incrementRuleAppliedCounter();
     ruleMetrics.ruleEnd(startNanos);
     return reportPoint;
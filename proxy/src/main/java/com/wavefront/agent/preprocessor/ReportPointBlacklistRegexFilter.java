@@ -4,6 +4,7 @@ import com.google.common.base.Preconditions;
 
 import com.yammer.metrics.core.Counter;
 
+import java.util.function.Function;
 import java.util.regex.Pattern;
 
 import javax.annotation.Nullable;
@@ -20,6 +21,7 @@ import wavefront.report.ReportPoint;
 public class ReportPointBlacklistRegexFilter extends AnnotatedPredicate<ReportPoint> {
 
   private final String scope;
+  private final Function<ReportPoint, String> scopeExtractor;
   private final Pattern compiledPattern;
   private final PreprocessorRuleMetrics ruleMetrics;
 
@@ -39,37 +41,29 @@ public class ReportPointBlacklistRegexFilter extends AnnotatedPredicate<ReportPo
     Preconditions.checkArgument(!scope.isEmpty(), "[scope] can't be blank");
     Preconditions.checkNotNull(ruleMetrics, "PreprocessorRuleMetrics can't be null");
     this.ruleMetrics = ruleMetrics;
+    this.scopeExtractor = PreprocessorUtil.scopeExtractor(scope);
+  }
+
+  String getScope() {
+    return scope;
+  }
+
+  Pattern getPattern() {
+    return compiledPattern;
+  }
+
+  PreprocessorRuleMetrics getRuleMetrics() {
+    return ruleMetrics;
   }
 
   @Override
   public boolean apply(@Nonnull ReportPoint reportPoint) {
     long startNanos = ruleMetrics.ruleStart();
-    switch (scope) {
-      case "metricName":
-        if (compiledPattern.matcher(reportPoint.getMetric()).matches()) {
-          ruleMetrics.incrementRuleAppliedCounter();
-          ruleMetrics.ruleEnd(startNanos);
-          return false;
-        }
-        break;
-      case "sourceName":
-        if (compiledPattern.matcher(reportPoint.getHost()).matches()) {
-          ruleMetrics.incrementRuleAppliedCounter();
-          ruleMetrics.ruleEnd(startNanos);
-          return false;
-        }
-        break;
-      default:
-        if (reportPoint.getAnnotations() != null) {
-          String tagValue = reportPoint.getAnnotations().get(scope);
-          if (tagValue != null) {
-            if (compiledPattern.matcher(tagValue).matches()) {
-              ruleMetrics.incrementRuleAppliedCounter();
-              ruleMetrics.ruleEnd(startNanos);
-              return false;
-            }
-          }
-        }
+    String value = scopeExtractor.apply(reportPoint);
+    if (value != null && compiledPattern.matcher(value).matches()) {
+      ruleMetrics.incrementRuleAppliedCounter();
+      ruleMetrics.ruleEnd(startNanos);
+      return false;
     }
     ruleMetrics.ruleEnd(startNanos);
     return true;
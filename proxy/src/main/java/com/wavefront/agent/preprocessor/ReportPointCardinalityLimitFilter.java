@@ -0,0 +1,53 @@
+package com.wavefront.agent.preprocessor;
+
+import com.google.common.base.Preconditions;
+
+import java.util.regex.Pattern;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import wavefront.report.ReportPoint;
+
+/**
+ * Blocks points for new series of metrics that have reached the number of distinct series allowed within the
+ * current time window. Series admitted earlier in the window keep flowing. New series are detected
+ * probabilistically (see {@link SeriesCardinalityTracker#admit}), so the limit is approximate.
+ */
+public class ReportPointCardinalityLimitFilter extends AnnotatedPredicate<ReportPoint> {
+
+  private final SeriesCardinalityTracker tracker;
+  @Nullable
+  private final Pattern compiledMetricPattern;
+  private final PreprocessorRuleMetrics ruleMetrics;
+
+  /**
+   * @param tracker      series cardinality tracker.
+   * @param patternMatch optional regex for metric names the limit applies to (all metrics if null).
+   * @param ruleMetrics  rule metrics.
+   */
+  public ReportPointCardinalityLimitFilter(final SeriesCardinalityTracker tracker,
+                                           @Nullable final String patternMatch,
+                                           final PreprocessorRuleMetrics ruleMetrics) {
+    this.tracker = Preconditions.checkNotNull(tracker, "SeriesCardinalityTracker can't be null");
+    this.compiledMetricPattern = patternMatch != null ? Pattern.compile(patternMatch) : null;
+    Preconditions.checkNotNull(ruleMetrics, "PreprocessorRuleMetrics can't be null");
+    this.ruleMetrics = ruleMetrics;
+  }
+
+  @Override
+  public boolean apply(@Nonnull ReportPoint reportPoint) {
+    long startNanos = ruleMetrics.ruleStart();
+    if (compiledMetricPattern != null && !compiledMetricPattern.matcher(reportPoint.getMetric()).matches()) {
+      ruleMetrics.ruleEnd(startNanos);
+      return true;
+    }
+    if (!tracker.admit(reportPoint)) {
+      ruleMetrics.incrementRuleAppliedCounter();
+      ruleMetrics.ruleEnd(startNanos);
+      return false;
+    }
+    ruleMetrics.ruleEnd(startNanos);
+    return true;
+  }
+}
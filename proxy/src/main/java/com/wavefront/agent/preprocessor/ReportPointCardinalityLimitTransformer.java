@@ -0,0 +1,69 @@
+package com.wavefront.agent.preprocessor;
+
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import wavefront.report.ReportPoint;
+
+/**
+ * Reduces cardinality of metrics that have more distinct series than allowed within the current time window, by
+ * either removing the point tag with the most distinct values, or replacing its value with a constant (so that
+ * offending series are aggregated into one).
+ */
+public class ReportPointCardinalityLimitTransformer implements Function<ReportPoint, ReportPoint> {
+
+  private final SeriesCardinalityTracker tracker;
+  @Nullable
+  private final Pattern compiledMetricPattern;
+  @Nullable
+  private final String aggregateValue;
+  private final PreprocessorRuleMetrics ruleMetrics;
+
+  /**
+   * @param tracker        series cardinality tracker.
+   * @param patternMatch   optional regex for metric names the limit applies to (all metrics if null).
+   * @param aggregateValue value to replace the offending tag's values with, or null to remove the tag.
+   * @param ruleMetrics    rule metrics.
+   */
+  public ReportPointCardinalityLimitTransformer(final SeriesCardinalityTracker tracker,
+                                                @Nullable final String patternMatch,
+                                                @Nullable final String aggregateValue,
+                                                final PreprocessorRuleMetrics ruleMetrics) {
+    this.tracker = Preconditions.checkNotNull(tracker, "SeriesCardinalityTracker can't be null");
+    this.compiledMetricPattern = patternMatch != null ? Pattern.compile(patternMatch) : null;
+    Preconditions.checkArgument(aggregateValue == null || !aggregateValue.isEmpty(), "[value] can't be blank");
+    this.aggregateValue = aggregateValue;
+    Preconditions.checkNotNull(ruleMetrics, "PreprocessorRuleMetrics can't be null");
+    this.ruleMetrics = ruleMetrics;
+  }
+
+  @Override
+  public ReportPoint apply(@Nonnull ReportPoint reportPoint) {
+    long startNanos = ruleMetrics.ruleStart();
+    if (compiledMetricPattern != null && !compiledMetricPattern.matcher(reportPoint.getMetric()).matches()) {
+      ruleMetrics.ruleEnd(startNanos);
+      return reportPoint;
+    }
+    SeriesCardinalityTracker.MetricCardinality offender = tracker.track(reportPoint);
+    Map<String, String> annotations = reportPoint.getAnnotations();
+    if (offender != null && annotations != null) {
+      String tag = offender.getHighestCardinalityTag();
+      if (tag != null && annotations.containsKey(tag)) {
+        if (aggregateValue == null) {
+          annotations.remove(tag);
+        } else {
+          annotations.put(tag, aggregateValue);
+        }
+        ruleMetrics.incrementRuleAppliedCounter();
+      }
+    }
+    ruleMetrics.ruleEnd(startNanos);
+    return reportPoint;
+  }
+}
@@ -24,11 +24,14 @@ public class ReportPointExtractTagTransformer implements Function<ReportPoint, R
   protected final String tag;
   protected final String source;
   protected final String patternReplace;
+  protected final PlaceholderTemplate replaceTemplate;
   protected final Pattern compiledSearchPattern;
   @Nullable
   protected final Pattern compiledMatchPattern;
   @Nullable
   protected final String patternReplaceSource;
+  @Nullable
+  protected final PlaceholderTemplate replaceSourceTemplate;
   protected final PreprocessorRuleMetrics ruleMetrics;
 
   @Deprecated
@@ -58,6 +61,8 @@ public class ReportPointExtractTagTransformer implements Function<ReportPoint, R
     Preconditions.checkArgument(!patternSearch.isEmpty(), "[search] can't be blank");
     this.compiledMatchPattern = patternMatch != null ? Pattern.compile(patternMatch) : null;
     this.patternReplaceSource = replaceSource;
+    this.replaceTemplate = new PlaceholderTemplate(patternReplace);
+    this.replaceSourceTemplate = replaceSource != null ? new PlaceholderTemplate(replaceSource) : null;
     Preconditions.checkNotNull(ruleMetrics, "PreprocessorRuleMetrics can't be null");
     this.ruleMetrics = ruleMetrics;
   }
@@ -74,7 +79,7 @@ public class ReportPointExtractTagTransformer implements Function<ReportPoint, R
     if (reportPoint.getAnnotations() == null) {
       reportPoint.setAnnotations(Maps.<String, String>newHashMap());
     }
-    String value = patternMatcher.replaceAll(PreprocessorUtil.expandPlaceholders(patternReplace, reportPoint));
+    String value = patternMatcher.replaceAll(replaceTemplate.render(reportPoint));
     if (!value.isEmpty()) {
       reportPoint.getAnnotations().put(tag, value);
       ruleMetrics.incrementRuleAppliedCounter();
@@ -87,13 +92,13 @@ public class ReportPointExtractTagTransformer implements Function<ReportPoint, R
       case "metricName":
         if (extractTag(reportPoint, reportPoint.getMetric()) && patternReplaceSource != null) {
           reportPoint.setMetric(compiledSearchPattern.matcher(reportPoint.getMetric()).
-              replaceAll(PreprocessorUtil.expandPlaceholders(patternReplaceSource, reportPoint)));
+              replaceAll(replaceSourceTemplate.render(reportPoint)));
         }
         break;
       case "sourceName":
         if (extractTag(reportPoint, reportPoint.getHost()) && patternReplaceSource != null) {
           reportPoint.setHost(compiledSearchPattern.matcher(reportPoint.getHost()).
-              replaceAll(PreprocessorUtil.expandPlaceholders(patternReplaceSource, reportPoint)));
+              replaceAll(replaceSourceTemplate.render(reportPoint)));
         }
         break;
       default:
@@ -101,7 +106,7 @@ public class ReportPointExtractTagTransformer implements Function<ReportPoint, R
           if (extractTag(reportPoint, reportPoint.getAnnotations().get(source)) && patternReplaceSource != null) {
             reportPoint.getAnnotations().put(source,
                 compiledSearchPattern.matcher(reportPoint.getAnnotations().get(source)).
-                    replaceAll(PreprocessorUtil.expandPlaceholders(patternReplaceSource, reportPoint)));
+                    replaceAll(replaceSourceTemplate.render(reportPoint)));
           }
         }
     }
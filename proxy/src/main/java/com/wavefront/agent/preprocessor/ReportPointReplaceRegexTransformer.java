@@ -5,6 +5,7 @@ import com.google.common.base.Preconditions;
 
 import com.yammer.metrics.core.Counter;
 
+import java.util.Optional;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -22,12 +23,15 @@ import wavefront.report.ReportPoint;
 public class ReportPointReplaceRegexTransformer implements Function<ReportPoint, ReportPoint> {
 
   private final String patternReplace;
+  private final PlaceholderTemplate replaceTemplate;
   private final String scope;
   private final Pattern compiledSearchPattern;
   private final Integer maxIterations;
   @Nullable
   private final Pattern compiledMatchPattern;
   private final PreprocessorRuleMetrics ruleMetrics;
+  @Nullable
+  private final PreprocessorMatchCache<Optional<String>> replaceCache;
 
   @Deprecated
   public ReportPointReplaceRegexTransformer(final String scope,
@@ -45,16 +49,32 @@ public class ReportPointReplaceRegexTransformer implements Function<ReportPoint,
                                             @Nullable final String patternMatch,
                                             @Nullable final Integer maxIterations,
                                             final PreprocessorRuleMetrics ruleMetrics) {
+    this(scope, patternSearch, patternReplace, patternMatch, maxIterations, ruleMetrics, null);
+  }
+
+  /**
+   * @param replaceCache optional cache for replacement results. Only used when the replacement string has no
+   *                     {{...}} placeholders, as the result doesn't depend on other components of the point then.
+   */
+  public ReportPointReplaceRegexTransformer(final String scope,
+                                            final String patternSearch,
+                                            final String patternReplace,
+                                            @Nullable final String patternMatch,
+                                            @Nullable final Integer maxIterations,
+                                            final PreprocessorRuleMetrics ruleMetrics,
+                                            @Nullable final PreprocessorMatchCache<Optional<String>> replaceCache) {
     this.compiledSearchPattern = Pattern.compile(Preconditions.checkNotNull(patternSearch, "[search] can't be null"));
     Preconditions.checkArgument(!patternSearch.isEmpty(), "[search] can't be blank");
     this.scope = Preconditions.checkNotNull(scope, "[scope] can't be null");
     Preconditions.checkArgument(!scope.isEmpty(), "[scope] can't be blank");
     this.patternReplace = Preconditions.checkNotNull(patternReplace, "[replace] can't be null");
+    this.replaceTemplate = new PlaceholderTemplate(patternReplace);
     this.compiledMatchPattern = patternMatch != null ? Pattern.compile(patternMatch) : null;
     this.maxIterations = maxIterations != null ? maxIterations : 1;
     Preconditions.checkArgument(this.maxIterations > 0, "[iterations] must be > 0");
     Preconditions.checkNotNull(ruleMetrics, "PreprocessorRuleMetrics can't be null");
     this.ruleMetrics = ruleMetrics;
+    this.replaceCache = replaceTemplate.hasPlaceholders() ? null : replaceCache;
   }
 
   private String replaceString(@Nonnull ReportPoint reportPoint, String content) {
@@ -65,7 +85,7 @@ public class ReportPointReplaceRegexTransformer implements Function<ReportPoint,
     }
     ruleMetrics.incrementRuleAppliedCounter();
 
-    String replacement = PreprocessorUtil.expandPlaceholders(patternReplace, reportPoint);
+    String replacement = replaceTemplate.render(reportPoint);
 
     int currentIteration = 0;
     while (currentIteration < maxIterations) {
@@ -79,9 +99,62 @@ public class ReportPointReplaceRegexTransformer implements Function<ReportPoint,
     return content;
   }
 
+  /**
+   * Apply match condition and search/replace to a value that doesn't require placeholder expansion.
+   *
+   * @return replaced value, or empty if the rule doesn't apply to the value
+   */
+  private Optional<String> replaceValue(String content) {
+    if (compiledMatchPattern != null && !compiledMatchPattern.matcher(content).matches()) {
+      return Optional.empty();
+    }
+    Matcher patternMatcher = compiledSearchPattern.matcher(content);
+    if (!patternMatcher.find()) {
+      return Optional.empty();
+    }
+    int currentIteration = 0;
+    while (currentIteration < maxIterations) {
+      content = patternMatcher.replaceAll(patternReplace);
+      patternMatcher = compiledSearchPattern.matcher(content);
+      if (!patternMatcher.find()) {
+        break;
+      }
+      currentIteration++;
+    }
+    return Optional.of(content);
+  }
+
+  private String replaceCached(String content) {
+    Optional<String> result = replaceCache.get(content, this::replaceValue);
+    if (!result.isPresent()) {
+      return content;
+    }
+    ruleMetrics.incrementRuleAppliedCounter();
+    return result.get();
+  }
+
   @Override
   public ReportPoint apply(@Nonnull ReportPoint reportPoint) {
     long startNanos = ruleMetrics.ruleStart();
+    if (replaceCache != null) {
+      switch (scope) {
+        case "metricName":
+          reportPoint.setMetric(replaceCached(reportPoint.getMetric()));
+          break;
+        case "sourceName":
+          reportPoint.setHost(replaceCached(reportPoint.getHost()));
+          break;
+        default:
+          if (reportPoint.getAnnotations() != null) {
+            String tagValue = reportPoint.getAnnotations().get(scope);
+            if (tagValue != null) {
+              reportPoint.getAnnotations().put(scope, replaceCached(tagValue));
+            }
+          }
+      }
+      ruleMetrics.ruleEnd(startNanos);
+      return reportPoint;
+    }
     switch (scope) {
       case "metricName":
         if (compiledMatchPattern != null && !compiledMatchPattern.matcher(reportPoint.getMetric()).matches()) {
@@ -0,0 +1,73 @@
+package com.wavefront.agent.preprocessor;
+
+import com.google.common.base.Preconditions;
+
+import java.util.regex.Pattern;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Rollup rule: aggregate points for metrics matching a regex (or all metrics) over a time window. Rules are only
+ * parsed here, aggregation itself is performed by the point handler.
+ */
+public class ReportPointRollupRule {
+  @Nullable
+  private final Pattern compiledPattern;
+  private final long windowMillis;
+  private final Aggregation aggregation;
+  private final PreprocessorRuleMetrics ruleMetrics;
+
+  /**
+   * @param patternMatch optional regex for metric names to aggregate (full match), all metrics if null.
+   * @param windowMillis aggregation window in milliseconds.
+   * @param aggregation  aggregation function.
+   * @param ruleMetrics  rule metrics, the applied counter is incremented for every aggregated point.
+   */
+  public ReportPointRollupRule(@Nullable String patternMatch, long windowMillis, @Nonnull Aggregation aggregation,
+                               @Nonnull PreprocessorRuleMetrics ruleMetrics) {
+    Preconditions.checkArgument(windowMillis > 0, "[windowSeconds] must be positive");
+    this.compiledPattern = patternMatch == null ? null : Pattern.compile(patternMatch);
+    this.windowMillis = windowMillis;
+    this.aggregation = Preconditions.checkNotNull(aggregation);
+    this.ruleMetrics = Preconditions.checkNotNull(ruleMetrics, "PreprocessorRuleMetrics can't be null");
+  }
+
+  /**
+   * @param metric metric name.
+   * @return true if the rule applies to the metric.
+   */
+  public boolean matches(@Nonnull String metric) {
+    return compiledPattern == null || compiledPattern.matcher(metric).matches();
+  }
+
+  public long getWindowMillis() {
+    return windowMillis;
+  }
+
+  public Aggregation getAggregation() {
+    return aggregation;
+  }
+
+  public PreprocessorRuleMetrics getRuleMetrics() {
+    return ruleMetrics;
+  }
+
+  /**
+   * Aggregation function.
+   */
+  public enum Aggregation {
+    LAST, SUM, MIN, MAX, AVG, COUNT;
+
+    public static Aggregation fromString(@Nullable String input) {
+      if (input == null) return LAST;
+      for (Aggregation aggregation : Aggregation.values()) {
+        if (aggregation.name().equalsIgnoreCase(input)) {
+          return aggregation;
+        }
+      }
+      throw new IllegalArgumentException("Aggregation '" + input + "' is not valid, should be one of: " +
+          "last, sum, min, max, avg, count");
+    }
+  }
+}
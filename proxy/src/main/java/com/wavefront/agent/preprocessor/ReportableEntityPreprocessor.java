@@ -14,7 +14,7 @@ public class ReportableEntityPreprocessor {
 
   private final Preprocessor<String> pointLinePreprocessor = new Preprocessor<>();
   private final Preprocessor<ReportPoint> reportPointPreprocessor = new Preprocessor<>();
-  private final Preprocessor<Span> spanPreprocessor = new Preprocessor<>();
+  private final Preprocessor<Span> spanPreprocessor = new SpanPreprocessor();
 
   public Preprocessor<String> forPointLine() {
     return pointLinePreprocessor;
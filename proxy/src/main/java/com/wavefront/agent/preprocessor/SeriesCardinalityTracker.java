@@ -0,0 +1,247 @@
+package com.wavefront.agent.preprocessor;
+
+import com.google.common.base.Preconditions;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.wavefront.common.Clock;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import wavefront.report.ReportPoint;
+
+/**
+ * Tracks the number of distinct series (metric + source + point tags) per metric name, using a HyperLogLog sketch
+ * per metric and a smaller sketch per point tag key to find which tag contributes most to the cardinality. Memory
+ * is bounded: at most {@code maxMetrics} metrics are tracked (least recently seen are evicted), with at most
+ * {@value #MAX_TAGS_PER_METRIC} tag sketches each. Sketches are reset every {@code windowMillis}, so limits apply to
+ * the number of distinct series seen within a time window. Rules that block new series also keep Bloom filters of
+ * the series they admitted, which grow with the number of admitted series (about 2 bytes per series).
+ */
+public class SeriesCardinalityTracker {
+  private static final Logger logger = Logger.getLogger(SeriesCardinalityTracker.class.getCanonicalName());
+  private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
+  private static final int SERIES_PRECISION = 10; // 1KB per metric, ~3% error
+  private static final int TAG_PRECISION = 6; // 64 bytes per tag key, ~13% error
+  private static final int MAX_TAGS_PER_METRIC = 32;
+  private static final int TOP_OFFENDERS = 10;
+
+  private final String name;
+  private final long maxSeries;
+  private final long windowMillis;
+  private final int maxMetrics;
+  private final AtomicLong nextReset;
+  private volatile Cache<String, MetricCardinality> metrics;
+
+  /**
+   * @param name         name of the rule (for logging).
+   * @param maxSeries    max number of distinct series per metric.
+   * @param windowMillis how long to accumulate distinct series for before starting over, in milliseconds.
+   * @param maxMetrics   max number of metrics to track.
+   */
+  public SeriesCardinalityTracker(String name, long maxSeries, long windowMillis, int maxMetrics) {
+    Preconditions.checkArgument(maxSeries > 0, "[maxSeries] must be positive");
+    Preconditions.checkArgument(windowMillis > 0, "[windowMinutes] must be positive");
+    Preconditions.checkArgument(maxMetrics > 0, "[maxMetrics] must be positive");
+    this.name = name;
+    this.maxSeries = maxSeries;
+    this.windowMillis = windowMillis;
+    this.maxMetrics = maxMetrics;
+    this.nextReset = new AtomicLong(Clock.now() + windowMillis);
+    this.metrics = newCache();
+  }
+
+  /**
+   * Register a point and check whether its metric exceeds the series limit.
+   *
+   * @param point point to register.
+   * @return cardinality state of the point's metric if it's over the limit, null otherwise.
+   */
+  @Nullable
+  public MetricCardinality track(@Nonnull ReportPoint point) {
+    MetricCardinality state = stateFor(point.getMetric());
+    register(point, state);
+    return state.series.estimate() > maxSeries ? state : null;
+  }
+
+  /**
+   * Register a point and check whether its series may still be sent: series admitted earlier in the current window
+   * always are, new series only until {@code maxSeries} series have been admitted for the metric. Admitted series
+   * are kept in Bloom filters, so once the limit is reached about 2% of new series are mistaken for admitted ones and
+   * let through.
+   *
+   * @param point point to register.
+   * @return true if the point's series is within the limit.
+   */
+  public boolean admit(@Nonnull ReportPoint point) {
+    MetricCardinality state = stateFor(point.getMetric());
+    long seriesHash = register(point, state);
+    return state.getAdmitted().admit(seriesHash, maxSeries);
+  }
+
+  private MetricCardinality stateFor(String metric) {
+    long now = Clock.now();
+    long reset = nextReset.get();
+    if (now >= reset && nextReset.compareAndSet(reset, now + windowMillis)) {
+      logTopOffenders();
+      metrics = newCache();
+    }
+    return metrics.get(metric, x -> new MetricCardinality());
+  }
+
+  private static long register(ReportPoint point, MetricCardinality state) {
+    long seriesHash = HASH_FUNCTION.newHasher().putUnencodedChars(point.getMetric()).putChar('\0').
+        putUnencodedChars(point.getHost()).hash().asLong();
+    Map<String, String> annotations = point.getAnnotations();
+    if (annotations != null) {
+      for (Map.Entry<String, String> tag : annotations.entrySet()) {
+        long tagHash = HASH_FUNCTION.newHasher().putUnencodedChars(tag.getKey()).putChar('=').
+            putUnencodedChars(tag.getValue()).hash().asLong();
+        // tag order doesn't matter for series identity, combine tag hashes commutatively
+        seriesHash += tagHash * 0x9E3779B97F4A7C15L;
+        state.addTag(tag.getKey(), tagHash);
+      }
+    }
+    state.series.add(seriesHash);
+    return seriesHash;
+  }
+
+  /**
+   * Get metrics with the highest number of distinct series in the current window.
+   *
+   * @param n number of metrics to return.
+   * @return metric names and estimated series counts, highest first.
+   */
+  public List<Map.Entry<String, Long>> getTopMetrics(int n) {
+    return metrics.asMap().entrySet().stream().
+        map(e -> (Map.Entry<String, Long>) new AbstractMap.SimpleImmutableEntry<>(e.getKey(),
+            e.getValue().series.estimate())).
+        sorted(Comparator.comparing((Map.Entry<String, Long> e) -> e.getValue()).reversed()).
+        limit(n).
+        collect(Collectors.toList());
+  }
+
+  private void logTopOffenders() {
+    List<String> offenders = new ArrayList<>();
+    for (Map.Entry<String, Long> entry : getTopMetrics(TOP_OFFENDERS)) {
+      if (entry.getValue() > maxSeries) {
+        offenders.add(entry.getKey() + " (~" + entry.getValue() + " series)");
+      }
+    }
+    if (!offenders.isEmpty()) {
+      logger.warning("Cardinality limit (" + maxSeries + " series per metric) exceeded by rule " + name +
+          ", top offending metrics: " + String.join(", ", offenders));
+    }
+  }
+
+  private Cache<String, MetricCardinality> newCache() {
+    return Caffeine.newBuilder().maximumSize(maxMetrics).build();
+  }
+
+  /**
+   * Cardinality sketches for a single metric.
+   */
+  public static class MetricCardinality {
+    private final HyperLogLog series = new HyperLogLog(SERIES_PRECISION);
+    private final Map<String, HyperLogLog> tags = new ConcurrentHashMap<>();
+    private volatile AdmittedSeries admitted;
+
+    private void addTag(String key, long hash) {
+      HyperLogLog sketch = tags.get(key);
+      if (sketch == null) {
+        if (tags.size() >= MAX_TAGS_PER_METRIC) return;
+        sketch = tags.computeIfAbsent(key, x -> new HyperLogLog(TAG_PRECISION));
+      }
+      sketch.add(hash);
+    }
+
+    private AdmittedSeries getAdmitted() {
+      AdmittedSeries result = admitted;
+      if (result == null) {
+        synchronized (this) {
+          result = admitted;
+          if (result == null) {
+            result = new AdmittedSeries();
+            admitted = result;
+          }
+        }
+      }
+      return result;
+    }
+
+    /**
+     * @return estimated number of distinct series.
+     */
+    public long getSeriesEstimate() {
+      return series.estimate();
+    }
+
+    /**
+     * @return point tag key with the highest estimated number of distinct values, or null if there are no tags.
+     */
+    @Nullable
+    public String getHighestCardinalityTag() {
+      String result = null;
+      long max = 0;
+      for (Map.Entry<String, HyperLogLog> entry : tags.entrySet()) {
+        long estimate = entry.getValue().estimate();
+        if (estimate > max) {
+          max = estimate;
+          result = entry.getKey();
+        }
+      }
+      return result;
+    }
+  }
+
+  /**
+   * Series admitted for a single metric. Starts with a small Bloom filter and adds filters of twice the capacity
+   * (and half the false positive rate) as it fills up, so memory is proportional to the number of admitted series
+   * and the overall false positive rate stays below twice the rate of the first filter.
+   */
+  private static class AdmittedSeries {
+    private static final int INITIAL_CAPACITY = 64;
+    private static final double INITIAL_FPP = 0.01;
+
+    private final List<BloomFilter<Long>> filters = new CopyOnWriteArrayList<>();
+    private volatile long count = 0;
+    private long capacity = 0;
+
+    boolean admit(long seriesHash, long maxSeries) {
+      for (BloomFilter<Long> filter : filters) {
+        if (filter.mightContain(seriesHash)) return true;
+      }
+      if (count >= maxSeries) return false;
+      synchronized (this) {
+        if (count >= maxSeries) return false;
+        if (count >= capacity) {
+          int size = filters.size();
+          long expected = Math.min((long) INITIAL_CAPACITY << size, maxSeries - count);
+          filters.add(BloomFilter.create(Funnels.longFunnel(), expected, Math.scalb(INITIAL_FPP, -size)));
+          capacity += expected;
+        }
+        if (filters.get(filters.size() - 1).put(seriesHash)) {
+          count++;
+        }
+        return true;
+      }
+    }
+  }
+}
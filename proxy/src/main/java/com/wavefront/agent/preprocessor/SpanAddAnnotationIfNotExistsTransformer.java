@@ -1,7 +1,5 @@
 package com.wavefront.agent.preprocessor;
 
-import com.google.common.collect.Lists;
-
 import javax.annotation.Nonnull;
 
 import wavefront.report.Annotation;
@@ -22,16 +20,12 @@ public class SpanAddAnnotationIfNotExistsTransformer extends SpanAddAnnotationTr
   }
 
   @Override
-  public Span apply(@Nonnull Span span) {
+  public void apply(@Nonnull Span span, @Nonnull SpanAnnotationIndex annotations) {
     long startNanos = ruleMetrics.ruleStart();
-    if (span.getAnnotations() == null) {
-      span.setAnnotations(Lists.newArrayList());
-    }
-    if (span.getAnnotations().stream().noneMatch(a -> a.getKey().equals(key))) {
-      span.getAnnotations().add(new Annotation(key, PreprocessorUtil.expandPlaceholders(value, span)));
+    if (!annotations.containsKey(key)) {
+      annotations.add(new Annotation(key, valueTemplate.render(span, annotations)));
       ruleMetrics.incrementRuleAppliedCounter();
     }
     ruleMetrics.ruleEnd(startNanos);
-    return span;
   }
 }
@@ -1,8 +1,6 @@
 package com.wavefront.agent.preprocessor;
 
-import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
-import com.google.common.collect.Lists;
 
 import javax.annotation.Nonnull;
 
@@ -14,10 +12,11 @@ import wavefront.report.Span;
  *
  * @author vasily@wavefront.com
  */
-public class SpanAddAnnotationTransformer implements Function<Span, Span> {
+public class SpanAddAnnotationTransformer implements IndexedSpanTransformer {
 
   protected final String key;
   protected final String value;
+  protected final PlaceholderTemplate valueTemplate;
   protected final PreprocessorRuleMetrics ruleMetrics;
 
   public SpanAddAnnotationTransformer(final String key,
@@ -27,19 +26,16 @@ public class SpanAddAnnotationTransformer implements Function<Span, Span> {
     this.value = Preconditions.checkNotNull(value, "[value] can't be null");
     Preconditions.checkArgument(!key.isEmpty(), "[key] can't be blank");
     Preconditions.checkArgument(!value.isEmpty(), "[value] can't be blank");
+    this.valueTemplate = new PlaceholderTemplate(value);
     Preconditions.checkNotNull(ruleMetrics, "PreprocessorRuleMetrics can't be null");
     this.ruleMetrics = ruleMetrics;
   }
 
   @Override
-  public Span apply(@Nonnull Span span) {
+  public void apply(@Nonnull Span span, @Nonnull SpanAnnotationIndex annotations) {
     long startNanos = ruleMetrics.ruleStart();
-    if (span.getAnnotations() == null) {
-      span.setAnnotations(Lists.newArrayList());
-    }
-    span.getAnnotations().add(new Annotation(key, PreprocessorUtil.expandPlaceholders(value, span)));
+    annotations.add(new Annotation(key, valueTemplate.render(span, annotations)));
     ruleMetrics.incrementRuleAppliedCounter();
     ruleMetrics.ruleEnd(startNanos);
-    return span;
   }
 }
@@ -0,0 +1,194 @@
+package com.wavefront.agent.preprocessor;
+
+import com.google.common.collect.Iterables;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import wavefront.report.Annotation;
+import wavefront.report.Span;
+
+/**
+ * Annotations of a span grouped by key, so that span preprocessor rules can look up annotations without scanning the
+ * whole annotation list. The index is built on first lookup and shared by all rules applied to the span.
+ * <p/>
+ * Annotation values can be changed in place. Annotations added or removed through the index are visible to
+ * lookups right away, but are only written back to the span (in a single pass, preserving annotation order) by
+ * {@link #writeBack()}.
+ */
+public class SpanAnnotationIndex {
+
+  private final Span span;
+  @Nullable
+  private Map<String, List<Annotation>> byKey = null;
+  @Nullable
+  private List<Annotation> added = null;
+  @Nullable
+  private Set<Annotation> removed = null;
+
+  /**
+   * @param span span to index annotations for.
+   */
+  public SpanAnnotationIndex(@Nonnull Span span) {
+    this.span = span;
+  }
+
+  /**
+   * Get annotations with a specific key, in the order they appear on the span.
+   *
+   * @param key annotation key.
+   * @return read-only list of annotations, empty if there are none.
+   */
+  @Nonnull
+  public List<Annotation> get(String key) {
+    List<Annotation> annotations = index().get(key);
+    return annotations == null ? Collections.emptyList() : Collections.unmodifiableList(annotations);
+  }
+
+  /**
+   * Get the value of the first annotation with a specific key.
+   *
+   * @param key annotation key.
+   * @return annotation value or null if there is no such annotation.
+   */
+  @Nullable
+  public String getValue(String key) {
+    List<Annotation> annotations = index().get(key);
+    return annotations == null ? null : annotations.get(0).getValue();
+  }
+
+  /**
+   * @param key annotation key.
+   * @return true if there is at least one annotation with this key.
+   */
+  public boolean containsKey(String key) {
+    return index().containsKey(key);
+  }
+
+  /**
+   * @return distinct annotation keys, in the order they first appear on the span.
+   */
+  @Nonnull
+  public Set<String> keys() {
+    return Collections.unmodifiableSet(index().keySet());
+  }
+
+  /**
+   * All current annotations in span order. Annotations can be removed through the index while iterating.
+   *
+   * @return annotations.
+   */
+  @Nonnull
+  public Iterable<Annotation> all() {
+    Iterable<Annotation> annotations = span.getAnnotations() == null ? Collections.emptyList() :
+        span.getAnnotations();
+    if (added != null) {
+      annotations = Iterables.concat(annotations, added);
+    }
+    if (removed == null) {
+      return annotations;
+    }
+    final Set<Annotation> removedAnnotations = removed;
+    return Iterables.filter(annotations, x -> !removedAnnotations.contains(x));
+  }
+
+  /**
+   * Add an annotation after all existing ones.
+   *
+   * @param annotation annotation to add.
+   */
+  public void add(@Nonnull Annotation annotation) {
+    if (added == null) {
+      added = new ArrayList<>();
+    }
+    added.add(annotation);
+    index().computeIfAbsent(annotation.getKey(), x -> new ArrayList<>(1)).add(annotation);
+  }
+
+  /**
+   * Remove an annotation.
+   *
+   * @param annotation annotation to remove (compared by identity).
+   */
+  public void remove(@Nonnull Annotation annotation) {
+    List<Annotation> annotations = index().get(annotation.getKey());
+    if (annotations == null) return;
+    for (int i = 0; i < annotations.size(); i++) {
+      if (annotations.get(i) == annotation) {
+        annotations.remove(i);
+        if (annotations.isEmpty()) {
+          index().remove(annotation.getKey());
+        }
+        if (removed == null) {
+          removed = Collections.newSetFromMap(new IdentityHashMap<>());
+        }
+        removed.add(annotation);
+        return;
+      }
+    }
+  }
+
+  /**
+   * Remove annotations with a specific key that satisfy a predicate.
+   *
+   * @param key        annotation key.
+   * @param predicate  condition for removal.
+   * @param firstOnly  whether to stop after the first removed annotation.
+   * @return number of removed annotations.
+   */
+  public int removeIf(String key, Predicate<Annotation> predicate, boolean firstOnly) {
+    List<Annotation> annotations = index().get(key);
+    if (annotations == null) return 0;
+    List<Annotation> toRemove = null;
+    for (Annotation annotation : annotations) {
+      if (predicate.test(annotation)) {
+        if (toRemove == null) {
+          toRemove = new ArrayList<>(1);
+        }
+        toRemove.add(annotation);
+        if (firstOnly) break;
+      }
+    }
+    if (toRemove == null) return 0;
+    for (Annotation annotation : toRemove) {
+      remove(annotation);
+    }
+    return toRemove.size();
+  }
+
+  /**
+   * Update the span's annotation list with annotations added or removed through the index, if any. The index can
+   * still be used afterwards.
+   */
+  public void writeBack() {
+    if (added == null && removed == null && span.getAnnotations() != null) {
+      return;
+    }
+    List<Annotation> result = new ArrayList<>();
+    Iterables.addAll(result, all());
+    span.setAnnotations(result);
+    added = null;
+    removed = null;
+  }
+
+  private Map<String, List<Annotation>> index() {
+    if (byKey == null) {
+      byKey = new LinkedHashMap<>();
+      if (span.getAnnotations() != null) {
+        for (Annotation annotation : span.getAnnotations()) {
+          byKey.computeIfAbsent(annotation.getKey(), x -> new ArrayList<>(1)).add(annotation);
+        }
+      }
+    }
+    return byKey;
+  }
+}
@@ -15,7 +15,7 @@ import wavefront.report.Span;
  *
  * @author vasily@wavefront.com
  */
-public class SpanBlacklistRegexFilter extends AnnotatedPredicate<Span> {
+public class SpanBlacklistRegexFilter extends AnnotatedPredicate<Span> implements IndexedSpanFilter {
 
   private final String scope;
   private final Pattern compiledPattern;
@@ -34,6 +34,11 @@ public class SpanBlacklistRegexFilter extends AnnotatedPredicate<Span> {
 
   @Override
   public boolean apply(@Nonnull Span span) {
+    return apply(span, new SpanAnnotationIndex(span));
+  }
+
+  @Override
+  public boolean apply(@Nonnull Span span, @Nonnull SpanAnnotationIndex annotations) {
     long startNanos = ruleMetrics.ruleStart();
     switch (scope) {
       case "spanName":
@@ -51,13 +56,11 @@ public class SpanBlacklistRegexFilter extends AnnotatedPredicate<Span> {
         }
         break;
       default:
-        if (span.getAnnotations() != null) {
-          for (Annotation annotation : span.getAnnotations()) {
-            if (annotation.getKey().equals(scope) && compiledPattern.matcher(annotation.getValue()).matches()) {
-              ruleMetrics.incrementRuleAppliedCounter();
-              ruleMetrics.ruleEnd(startNanos);
-              return false;
-            }
+        for (Annotation annotation : annotations.get(scope)) {
+          if (compiledPattern.matcher(annotation.getValue()).matches()) {
+            ruleMetrics.incrementRuleAppliedCounter();
+            ruleMetrics.ruleEnd(startNanos);
+            return false;
           }
         }
     }
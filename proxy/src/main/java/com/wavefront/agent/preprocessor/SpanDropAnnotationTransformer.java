@@ -1,11 +1,8 @@
 package com.wavefront.agent.preprocessor;
 
-import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
 
 import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.List;
 import java.util.regex.Pattern;
 
 import javax.annotation.Nonnull;
@@ -19,7 +16,7 @@ import wavefront.report.Span;
  *
  * @author vasily@wavefront.com
  */
-public class SpanDropAnnotationTransformer implements Function<Span, Span> {
+public class SpanDropAnnotationTransformer implements IndexedSpanTransformer {
 
   @Nullable
   private final Pattern compiledKeyPattern;
@@ -40,32 +37,33 @@ public class SpanDropAnnotationTransformer implements Function<Span, Span> {
     this.ruleMetrics = ruleMetrics;
   }
 
+  private boolean valueMatches(Annotation annotation) {
+    return compiledValuePattern == null || compiledValuePattern.matcher(annotation.getValue()).matches();
+  }
+
   @Override
-  public Span apply(@Nonnull Span span) {
+  public void apply(@Nonnull Span span, @Nonnull SpanAnnotationIndex annotations) {
     long startNanos = ruleMetrics.ruleStart();
-    if (span.getAnnotations() == null || compiledKeyPattern == null) {
-      ruleMetrics.ruleEnd(startNanos);
-      return span;
-    }
-    List<Annotation> annotations = new ArrayList<>(span.getAnnotations());
-    Iterator<Annotation> iterator = annotations.iterator();
-    boolean changed = false;
-    while (iterator.hasNext()) {
-      Annotation entry = iterator.next();
-      if (compiledKeyPattern.matcher(entry.getKey()).matches() && (compiledValuePattern == null ||
-          compiledValuePattern.matcher(entry.getValue()).matches())) {
-        changed = true;
-        iterator.remove();
-        ruleMetrics.incrementRuleAppliedCounter();
-        if (firstMatchOnly) {
+    if (firstMatchOnly) {
+      // the first matching annotation in span order, which may be under any matching key
+      for (Annotation entry : annotations.all()) {
+        if (compiledKeyPattern.matcher(entry.getKey()).matches() && valueMatches(entry)) {
+          annotations.remove(entry);
+          ruleMetrics.incrementRuleAppliedCounter();
           break;
         }
       }
-    }
-    if (changed) {
-      span.setAnnotations(annotations);
+    } else {
+      // match the key pattern once per distinct key
+      for (String key : new ArrayList<>(annotations.keys())) {
+        if (compiledKeyPattern.matcher(key).matches()) {
+          int removed = annotations.removeIf(key, this::valueMatches, false);
+          for (int i = 0; i < removed; i++) {
+            ruleMetrics.incrementRuleAppliedCounter();
+          }
+        }
+      }
     }
     ruleMetrics.ruleEnd(startNanos);
-    return span;
   }
 }
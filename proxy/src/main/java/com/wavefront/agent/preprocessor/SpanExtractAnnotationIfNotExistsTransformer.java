@@ -1,7 +1,5 @@
 package com.wavefront.agent.preprocessor;
 
-import com.google.common.collect.Lists;
-
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
@@ -26,15 +24,11 @@ public class SpanExtractAnnotationIfNotExistsTransformer extends SpanExtractAnno
   }
 
   @Override
-  public Span apply(@Nonnull Span span) {
+  public void apply(@Nonnull Span span, @Nonnull SpanAnnotationIndex annotations) {
     long startNanos = ruleMetrics.ruleStart();
-    if (span.getAnnotations() == null) {
-      span.setAnnotations(Lists.newArrayList());
-    }
-    if (span.getAnnotations().stream().noneMatch(a -> a.getKey().equals(key))) {
-      internalApply(span);
+    if (!annotations.containsKey(key)) {
+      internalApply(span, annotations);
     }
     ruleMetrics.ruleEnd(startNanos);
-    return span;
   }
 }
@@ -1,9 +1,8 @@
 package com.wavefront.agent.preprocessor;
 
-import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
-import com.google.common.collect.Lists;
 
+import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -18,16 +17,19 @@ import wavefront.report.Span;
  *
  * @author vasily@wavefront.com
  */
-public class SpanExtractAnnotationTransformer implements Function<Span, Span>{
+public class SpanExtractAnnotationTransformer implements IndexedSpanTransformer {
 
   protected final String key;
   protected final String input;
   protected final String patternReplace;
+  protected final PlaceholderTemplate replaceTemplate;
   protected final Pattern compiledSearchPattern;
   @Nullable
   protected final Pattern compiledMatchPattern;
   @Nullable
   protected final String patternReplaceInput;
+  @Nullable
+  protected final PlaceholderTemplate replaceInputTemplate;
   protected final boolean firstMatchOnly;
   protected final PreprocessorRuleMetrics ruleMetrics;
 
@@ -48,12 +50,15 @@ public class SpanExtractAnnotationTransformer implements Function<Span, Span>{
     Preconditions.checkArgument(!patternSearch.isEmpty(), "[search] can't be blank");
     this.compiledMatchPattern = patternMatch != null ? Pattern.compile(patternMatch) : null;
     this.patternReplaceInput = replaceInput;
+    this.replaceTemplate = new PlaceholderTemplate(patternReplace);
+    this.replaceInputTemplate = replaceInput != null ? new PlaceholderTemplate(replaceInput) : null;
     this.firstMatchOnly = firstMatchOnly;
     Preconditions.checkNotNull(ruleMetrics, "PreprocessorRuleMetrics can't be null");
     this.ruleMetrics = ruleMetrics;
   }
 
-  protected boolean extractAnnotation(@Nonnull Span span, final String extractFrom) {
+  protected boolean extractAnnotation(@Nonnull Span span, @Nonnull SpanAnnotationIndex annotations,
+                                      final String extractFrom) {
     Matcher patternMatcher;
     if (extractFrom == null || (compiledMatchPattern != null && !compiledMatchPattern.matcher(extractFrom).matches())) {
       return false;
@@ -62,42 +67,41 @@ public class SpanExtractAnnotationTransformer implements Function<Span, Span>{
     if (!patternMatcher.find()) {
       return false;
     }
-    if (span.getAnnotations() == null) {
-      span.setAnnotations(Lists.newArrayList());
-    }
-    String value = patternMatcher.replaceAll(PreprocessorUtil.expandPlaceholders(patternReplace, span));
+    String value = patternMatcher.replaceAll(replaceTemplate.render(span, annotations));
     if (!value.isEmpty()) {
-      span.getAnnotations().add(new Annotation(key, value));
+      annotations.add(new Annotation(key, value));
       ruleMetrics.incrementRuleAppliedCounter();
     }
     return true;
   }
 
-  protected void internalApply(@Nonnull Span span) {
+  protected void internalApply(@Nonnull Span span, @Nonnull SpanAnnotationIndex annotations) {
     switch (input) {
       case "spanName":
-        if (extractAnnotation(span, span.getName()) && patternReplaceInput != null) {
+        if (extractAnnotation(span, annotations, span.getName()) && patternReplaceInput != null) {
           span.setName(compiledSearchPattern.matcher(span.getName()).
-              replaceAll(PreprocessorUtil.expandPlaceholders(patternReplaceInput, span)));
+              replaceAll(replaceInputTemplate.render(span, annotations)));
         }
         break;
       case "sourceName":
-        if (extractAnnotation(span, span.getSource()) && patternReplaceInput != null) {
+        if (extractAnnotation(span, annotations, span.getSource()) && patternReplaceInput != null) {
           span.setSource(compiledSearchPattern.matcher(span.getSource()).
-              replaceAll(PreprocessorUtil.expandPlaceholders(patternReplaceInput, span)));
+              replaceAll(replaceInputTemplate.render(span, annotations)));
         }
         break;
       default:
-        for (Annotation a : span.getAnnotations()) {
-          if (a.getKey().equals(input)) {
-            if (extractAnnotation(span, a.getValue())) {
-              if (patternReplaceInput != null) {
-                a.setValue(compiledSearchPattern.matcher(a.getValue()).
-                    replaceAll(PreprocessorUtil.expandPlaceholders(patternReplaceInput, span)));
-              }
-              if (firstMatchOnly) {
-                break;
-              }
+        List<Annotation> inputAnnotations = annotations.get(input);
+        // annotations extracted into the same key are appended, don't process them
+        int size = inputAnnotations.size();
+        for (int i = 0; i < size; i++) {
+          Annotation a = inputAnnotations.get(i);
+          if (extractAnnotation(span, annotations, a.getValue())) {
+            if (patternReplaceInput != null) {
+              a.setValue(compiledSearchPattern.matcher(a.getValue()).
+                  replaceAll(replaceInputTemplate.render(span, annotations)));
+            }
+            if (firstMatchOnly) {
+              break;
             }
           }
         }
@@ -105,13 +109,9 @@ public class SpanExtractAnnotationTransformer implements Function<Span, Span>{
   }
 
   @Override
-  public Span apply(@Nonnull Span span) {
+  public void apply(@Nonnull Span span, @Nonnull SpanAnnotationIndex annotations) {
     long startNanos = ruleMetrics.ruleStart();
-    if (span.getAnnotations() == null) {
-      span.setAnnotations(Lists.newArrayList());
-    }
-    internalApply(span);
+    internalApply(span, annotations);
     ruleMetrics.ruleEnd(startNanos);
-    return span;
   }
 }
@@ -1,6 +1,5 @@
 package com.wavefront.agent.preprocessor;
 
-import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
 
 import java.util.regex.Pattern;
@@ -17,7 +16,7 @@ import wavefront.report.Span;
  *
  * @author vasily@wavefront.com
  */
-public class SpanForceLowercaseTransformer implements Function<Span, Span> {
+public class SpanForceLowercaseTransformer implements IndexedSpanTransformer {
 
   private final String scope;
   @Nullable
@@ -38,7 +37,7 @@ public class SpanForceLowercaseTransformer implements Function<Span, Span> {
   }
 
   @Override
-  public Span apply(@Nonnull Span span) {
+  public void apply(@Nonnull Span span, @Nonnull SpanAnnotationIndex annotations) {
     long startNanos = ruleMetrics.ruleStart();
     switch (scope) {
       case "spanName":
@@ -56,9 +55,8 @@ public class SpanForceLowercaseTransformer implements Function<Span, Span> {
         ruleMetrics.incrementRuleAppliedCounter();
         break;
       default:
-        for (Annotation x : span.getAnnotations()) {
-          if (x.getKey().equals(scope) && (compiledMatchPattern == null ||
-              compiledMatchPattern.matcher(x.getValue()).matches())) {
+        for (Annotation x : annotations.get(scope)) {
+          if (compiledMatchPattern == null || compiledMatchPattern.matcher(x.getValue()).matches()) {
             x.setValue(x.getValue().toLowerCase());
             ruleMetrics.incrementRuleAppliedCounter();
             if (firstMatchOnly) {
@@ -68,6 +66,5 @@ public class SpanForceLowercaseTransformer implements Function<Span, Span> {
         }
     }
     ruleMetrics.ruleEnd(startNanos);
-    return span;
   }
 }
@@ -1,11 +1,7 @@
 package com.wavefront.agent.preprocessor;
 
-import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
 
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.List;
 import java.util.regex.Pattern;
 
 import javax.annotation.Nonnull;
@@ -14,7 +10,7 @@ import javax.annotation.Nullable;
 import wavefront.report.Annotation;
 import wavefront.report.Span;
 
-public class SpanLimitLengthTransformer implements Function<Span, Span> {
+public class SpanLimitLengthTransformer implements IndexedSpanTransformer {
 
   private final String scope;
   private final int maxLength;
@@ -58,7 +54,13 @@ public class SpanLimitLengthTransformer implements Function<Span, Span> {
     }
   }
 
-  public Span apply(@Nonnull Span span) {
+  private boolean shouldLimit(Annotation annotation) {
+    return annotation.getValue().length() > maxLength &&
+        (compiledMatchPattern == null || compiledMatchPattern.matcher(annotation.getValue()).matches());
+  }
+
+  @Override
+  public void apply(@Nonnull Span span, @Nonnull SpanAnnotationIndex annotations) {
     long startNanos = ruleMetrics.ruleStart();
     switch (scope) {
       case "spanName":
@@ -72,31 +74,22 @@ public class SpanLimitLengthTransformer implements Function<Span, Span> {
         }
         break;
       default:
-        List<Annotation> annotations = new ArrayList<>(span.getAnnotations());
-        Iterator<Annotation> iterator = annotations.iterator();
-        boolean changed = false;
-        while (iterator.hasNext()) {
-          Annotation entry = iterator.next();
-          if (entry.getKey().equals(scope) && entry.getValue().length() > maxLength) {
-            if (compiledMatchPattern == null || compiledMatchPattern.matcher(entry.getValue()).matches()) {
-              changed = true;
-              if (actionSubtype == LengthLimitActionType.DROP) {
-                iterator.remove();
-                ruleMetrics.incrementRuleAppliedCounter();
-              } else {
-                entry.setValue(truncate(entry.getValue()));
-              }
+        if (actionSubtype == LengthLimitActionType.DROP) {
+          int removed = annotations.removeIf(scope, this::shouldLimit, firstMatchOnly);
+          for (int i = 0; i < removed; i++) {
+            ruleMetrics.incrementRuleAppliedCounter();
+          }
+        } else {
+          for (Annotation entry : annotations.get(scope)) {
+            if (shouldLimit(entry)) {
+              entry.setValue(truncate(entry.getValue()));
               if (firstMatchOnly) {
                 break;
               }
             }
           }
         }
-        if (changed) {
-          span.setAnnotations(annotations);
-        }
     }
     ruleMetrics.ruleEnd(startNanos);
-    return span;
   }
 }
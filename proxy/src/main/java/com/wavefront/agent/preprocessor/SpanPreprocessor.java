@@ -0,0 +1,62 @@
+package com.wavefront.agent.preprocessor;
+
+import com.google.common.base.Function;
+
+import javax.annotation.Nonnull;
+
+import wavefront.report.Span;
+
+/**
+ * Container for span rules. Builds a {@link SpanAnnotationIndex} once per span and shares it between all
+ * {@link IndexedSpanTransformer} and {@link IndexedSpanFilter} rules, so that annotation lookups don't require
+ * scanning the annotation list for every rule, and annotation changes are written back to the span once, after
+ * all transformation rules are applied.
+ */
+public class SpanPreprocessor extends Preprocessor<Span> {
+
+  @Override
+  public Span transform(@Nonnull Span span) {
+    SpanAnnotationIndex annotations = null;
+    for (final Function<Span, Span> func : getTransformers()) {
+      if (func instanceof IndexedSpanTransformer) {
+        if (annotations == null) {
+          annotations = new SpanAnnotationIndex(span);
+        }
+        ((IndexedSpanTransformer) func).apply(span, annotations);
+      } else {
+        // rule works with the span directly, make pending changes visible to it and re-index afterwards
+        if (annotations != null) {
+          annotations.writeBack();
+          annotations = null;
+        }
+        span = func.apply(span);
+      }
+    }
+    if (annotations != null) {
+      annotations.writeBack();
+    }
+    return span;
+  }
+
+  @Override
+  public boolean filter(@Nonnull Span span) {
+    setLastFilterResult(null);
+    SpanAnnotationIndex annotations = null;
+    for (final AnnotatedPredicate<Span> predicate : getFilters()) {
+      boolean result;
+      if (predicate instanceof IndexedSpanFilter) {
+        if (annotations == null) {
+          annotations = new SpanAnnotationIndex(span);
+        }
+        result = ((IndexedSpanFilter) predicate).apply(span, annotations);
+      } else {
+        result = predicate.apply(span);
+      }
+      if (!result) {
+        setLastFilterResult(predicate.getMessage(span));
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -1,6 +1,5 @@
 package com.wavefront.agent.preprocessor;
 
-import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
 
 import java.util.regex.Matcher;
@@ -18,9 +17,10 @@ import wavefront.report.Span;
  *
  * @author vasily@wavefront.com
  */
-public class SpanReplaceRegexTransformer implements Function<Span, Span> {
+public class SpanReplaceRegexTransformer implements IndexedSpanTransformer {
 
   private final String patternReplace;
+  private final PlaceholderTemplate replaceTemplate;
   private final String scope;
   private final Pattern compiledSearchPattern;
   private final Integer maxIterations;
@@ -41,6 +41,7 @@ public class SpanReplaceRegexTransformer implements Function<Span, Span> {
     this.scope = Preconditions.checkNotNull(scope, "[scope] can't be null");
     Preconditions.checkArgument(!scope.isEmpty(), "[scope] can't be blank");
     this.patternReplace = Preconditions.checkNotNull(patternReplace, "[replace] can't be null");
+    this.replaceTemplate = new PlaceholderTemplate(patternReplace);
     this.compiledMatchPattern = patternMatch != null ? Pattern.compile(patternMatch) : null;
     this.maxIterations = maxIterations != null ? maxIterations : 1;
     Preconditions.checkArgument(this.maxIterations > 0, "[iterations] must be > 0");
@@ -49,7 +50,7 @@ public class SpanReplaceRegexTransformer implements Function<Span, Span> {
     this.ruleMetrics = ruleMetrics;
   }
 
-  private String replaceString(@Nonnull Span span, String content) {
+  private String replaceString(@Nonnull Span span, @Nonnull SpanAnnotationIndex annotations, String content) {
     Matcher patternMatcher;
     patternMatcher = compiledSearchPattern.matcher(content);
     if (!patternMatcher.find()) {
@@ -57,7 +58,7 @@ public class SpanReplaceRegexTransformer implements Function<Span, Span> {
     }
     ruleMetrics.incrementRuleAppliedCounter();
 
-    String replacement = PreprocessorUtil.expandPlaceholders(patternReplace, span);
+    String replacement = replaceTemplate.render(span, annotations);
 
     int currentIteration = 0;
     while (currentIteration < maxIterations) {
@@ -72,26 +73,25 @@ public class SpanReplaceRegexTransformer implements Function<Span, Span> {
   }
 
   @Override
-  public Span apply(@Nonnull Span span) {
+  public void apply(@Nonnull Span span, @Nonnull SpanAnnotationIndex annotations) {
     long startNanos = ruleMetrics.ruleStart();
     switch (scope) {
       case "spanName":
         if (compiledMatchPattern != null && !compiledMatchPattern.matcher(span.getName()).matches()) {
           break;
         }
-        span.setName(replaceString(span, span.getName()));
+        span.setName(replaceString(span, annotations, span.getName()));
         break;
       case "sourceName":
         if (compiledMatchPattern != null && !compiledMatchPattern.matcher(span.getSource()).matches()) {
           break;
         }
-        span.setSource(replaceString(span, span.getSource()));
+        span.setSource(replaceString(span, annotations, span.getSource()));
         break;
       default:
-        for (Annotation x : span.getAnnotations()) {
-          if (x.getKey().equals(scope) && (compiledMatchPattern == null ||
-              compiledMatchPattern.matcher(x.getValue()).matches())) {
-            String newValue = replaceString(span, x.getValue());
+        for (Annotation x : annotations.get(scope)) {
+          if (compiledMatchPattern == null || compiledMatchPattern.matcher(x.getValue()).matches()) {
+            String newValue = replaceString(span, annotations, x.getValue());
             if (!newValue.equals(x.getValue())) {
               x.setValue(newValue);
               if (firstMatchOnly) {
@@ -102,6 +102,5 @@ public class SpanReplaceRegexTransformer implements Function<Span, Span> {
         }
     }
     ruleMetrics.ruleEnd(startNanos);
-    return span;
   }
 }
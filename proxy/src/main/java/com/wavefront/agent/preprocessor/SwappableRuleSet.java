@@ -0,0 +1,128 @@
+package com.wavefront.agent.preprocessor;
+
+import com.google.common.base.Function;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Holds the active set of rules loaded from the preprocessor configuration file for a port. The rules are plugged
+ * into the port's preprocessor chains as a single delegating transformer and filter, so a new rule set can be
+ * installed with one atomic reference swap.
+ * <p/>
+ * Each item is processed by a single rule set, even if it is swapped while the item is being processed: the active
+ * rule set is pinned (per thread) by the first stage that sees an item, and reused by the stages that follow it -
+ * the point line transformer and filter, then the point or span transformer and filter for the entity parsed from
+ * that line, and the filter's message.
+ */
+class SwappableRuleSet {
+
+  private final AtomicReference<ReportableEntityPreprocessor> active =
+      new AtomicReference<>(new ReportableEntityPreprocessor());
+  private final ThreadLocal<Pin> pins = ThreadLocal.withInitial(Pin::new);
+
+  /**
+   * @param target port preprocessor to plug the rules into.
+   */
+  SwappableRuleSet(ReportableEntityPreprocessor target) {
+    install(target.forPointLine(), ReportableEntityPreprocessor::forPointLine, true);
+    install(target.forReportPoint(), ReportableEntityPreprocessor::forReportPoint, false);
+    install(target.forSpan(), ReportableEntityPreprocessor::forSpan, false);
+  }
+
+  ReportableEntityPreprocessor get() {
+    return active.get();
+  }
+
+  void set(ReportableEntityPreprocessor rules) {
+    active.set(rules);
+  }
+
+  private <T> void install(Preprocessor<T> target, Function<ReportableEntityPreprocessor, Preprocessor<T>> chain,
+                           boolean pointLine) {
+    target.addTransformer(new DelegatingTransformer<>(chain, pointLine));
+    target.addFilter(new DelegatingFilter<>(chain, pointLine));
+  }
+
+  private enum Stage {
+    NONE, LINE_TRANSFORMED, LINE_PASSED, ENTITY_TRANSFORMED
+  }
+
+  /**
+   * Rule set used for the item currently processed by a thread.
+   */
+  private static class Pin {
+    private ReportableEntityPreprocessor rules;
+    private Stage stage = Stage.NONE;
+    @Nullable
+    private String message;
+  }
+
+  /**
+   * Pin the active rule set for a new item, unless the current item is still being processed.
+   */
+  private Pin pin(boolean keepCurrent) {
+    Pin pin = pins.get();
+    if (!keepCurrent || pin.rules == null) {
+      pin.rules = active.get();
+    }
+    return pin;
+  }
+
+  class DelegatingTransformer<T> implements Function<T, T> {
+    private final Function<ReportableEntityPreprocessor, Preprocessor<T>> chain;
+    private final boolean pointLine;
+
+    DelegatingTransformer(Function<ReportableEntityPreprocessor, Preprocessor<T>> chain, boolean pointLine) {
+      this.chain = chain;
+      this.pointLine = pointLine;
+    }
+
+    boolean isEmpty() {
+      return !chain.apply(active.get()).hasTransformers();
+    }
+
+    @Override
+    public T apply(@Nonnull T input) {
+      // a point line always starts a new item, a point or span continues the line it was parsed from
+      Pin pin = pin(!pointLine && pins.get().stage == Stage.LINE_PASSED);
+      pin.stage = pointLine ? Stage.LINE_TRANSFORMED : Stage.ENTITY_TRANSFORMED;
+      return chain.apply(pin.rules).transform(input);
+    }
+  }
+
+  class DelegatingFilter<T> extends AnnotatedPredicate<T> {
+    private final Function<ReportableEntityPreprocessor, Preprocessor<T>> chain;
+    private final boolean pointLine;
+
+    DelegatingFilter(Function<ReportableEntityPreprocessor, Preprocessor<T>> chain, boolean pointLine) {
+      this.chain = chain;
+      this.pointLine = pointLine;
+    }
+
+    boolean isEmpty() {
+      return !chain.apply(active.get()).hasFilters();
+    }
+
+    @Override
+    public boolean apply(T input) {
+      Stage stage = pins.get().stage;
+      // filters may be used without a transformer, in which case they start a new item
+      Pin pin = pin(pointLine ? stage == Stage.LINE_TRANSFORMED :
+          stage == Stage.ENTITY_TRANSFORMED || stage == Stage.LINE_PASSED);
+      Preprocessor<T> rules = chain.apply(pin.rules);
+      boolean result = rules.filter(input);
+      pin.message = result ? null : rules.getLastFilterResult();
+      pin.stage = pointLine && result ? Stage.LINE_PASSED : Stage.NONE;
+      return result;
+    }
+
+    @Nullable
+    @Override
+    public String getMessage(T input) {
+      return pins.get().message;
+    }
+  }
+}
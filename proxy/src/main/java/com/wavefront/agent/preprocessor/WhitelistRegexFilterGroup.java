@@ -0,0 +1,42 @@
+package com.wavefront.agent.preprocessor;
+
+import java.util.List;
+import java.util.function.Function;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * A group of whitelist regex rules that apply to the same component of an item (point line, metric name, source or
+ * a specific point tag). Rejects an item unless all of the patterns match (or if the component is missing). The
+ * component is extracted and looked up in the match cache once for the whole group, and patterns whose literal
+ * prefix doesn't match are rejected without running the regex engine. Metrics are attributed to individual rules as
+ * if they were applied one by one, in order.
+ *
+ * @param <T> item type
+ */
+public class WhitelistRegexFilterGroup<T> extends RegexFilterGroup<T> {
+
+  /**
+   * @param extractor   extracts the value to match the patterns against (may return null).
+   * @param patterns    patterns, in order of rule definition.
+   * @param ruleMetrics metrics for each rule.
+   * @param matchCache  optional cache for match results.
+   */
+  public WhitelistRegexFilterGroup(@Nonnull Function<T, String> extractor,
+                                   @Nonnull List<String> patterns,
+                                   @Nonnull List<PreprocessorRuleMetrics> ruleMetrics,
+                                   @Nullable PreprocessorMatchCache<Integer> matchCache) {
+    super(extractor, patterns, ruleMetrics, matchCache);
+  }
+
+  @Override
+  protected int firstRejecting(@Nonnull String value) {
+    return matcher.firstMismatch(value);
+  }
+
+  @Override
+  protected int firstRejectingMissingValue() {
+    return 0;
+  }
+}
@@ -0,0 +1,261 @@
+package com.wavefront.agent.sampler;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.wavefront.common.Clock;
+import com.wavefront.common.NamedThreadFactory;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.MetricName;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import wavefront.report.Annotation;
+import wavefront.report.Span;
+
+import static com.wavefront.sdk.common.Constants.APPLICATION_TAG_KEY;
+import static com.wavefront.sdk.common.Constants.NULL_TAG_VAL;
+import static com.wavefront.sdk.common.Constants.SERVICE_TAG_KEY;
+
+/**
+ * Samples spans so that each (application, service, operation) combination gets at most a configured number of
+ * spans per second, regardless of how much traffic other operations get. Observed span rates are recomputed every
+ * few seconds: operations under their budget keep all their spans, busier ones are sampled down proportionally.
+ * Decisions are keyed by trace ID, so an operation sampled at a lower rate keeps a subset of the traces kept by
+ * operations sampled at a higher rate.
+ * <p/>
+ * Budgets can be overridden per service or per operation in a policy file (in {@link Properties} format), which is
+ * reloaded when modified, without restarting listeners:
+ * <pre>
+ * # budget for operations not listed below
+ * default=10
+ * # budget for each operation of a service: &lt;application&gt;/&lt;service&gt;
+ * beachshirts/shopping=100
+ * # budget for an operation: &lt;application&gt;/&lt;service&gt;/&lt;operation&gt; (escape spaces with \)
+ * beachshirts/shopping/checkout=1000
+ * </pre>
+ */
+public class AdaptiveSampler {
+  private static final Logger logger = Logger.getLogger(AdaptiveSampler.class.getCanonicalName());
+
+  private static final int MAX_TRACKED_OPERATIONS = 100_000;
+  private static final long RECOMPUTE_INTERVAL_MILLIS = 5_000;
+  // weight of the latest interval in the smoothed span rate
+  private static final double SMOOTHING_FACTOR = 0.5;
+  private static final String DEFAULT_POLICY_KEY = "default";
+
+  private final Cache<Key, Stats> operations;
+  private final double defaultSpansPerSecond;
+  @Nullable
+  private final File policyFile;
+  private long policyFileLastModified = 0;
+  private volatile Policy policy;
+  private long lastRecomputeMillis;
+
+  private final Counter sampledSpans;
+  private final Counter droppedSpans;
+
+  /**
+   * @param spansPerSecond default budget, in spans per second per application/service/operation.
+   * @param policyFile     optional file with per-service/per-operation budgets, reloaded when modified.
+   * @param now            current time in millis.
+   */
+  public AdaptiveSampler(double spansPerSecond, @Nullable File policyFile, long now) {
+    Preconditions.checkArgument(spansPerSecond > 0 || policyFile != null,
+        "[spansPerSecond] must be positive unless a policy file is provided");
+    this.operations = Caffeine.newBuilder().maximumSize(MAX_TRACKED_OPERATIONS).build();
+    this.defaultSpansPerSecond = spansPerSecond;
+    this.policy = new Policy(spansPerSecond, ImmutableMap.of());
+    this.policyFile = policyFile;
+    this.lastRecomputeMillis = now;
+    this.sampledSpans = Metrics.newCounter(new MetricName("tracing.adaptive-sampling", "", "spans-sampled"));
+    this.droppedSpans = Metrics.newCounter(new MetricName("tracing.adaptive-sampling", "", "spans-dropped"));
+    if (policyFile != null) {
+      // unlike later reloads, an invalid policy file on startup is an error
+      this.policyFileLastModified = policyFile.lastModified();
+      try (InputStream stream = new FileInputStream(policyFile)) {
+        this.policy = loadPolicy(stream, spansPerSecond);
+      } catch (IOException e) {
+        throw new IllegalArgumentException("Unable to load adaptive sampling policy from " + policyFile, e);
+      }
+    }
+  }
+
+  /**
+   * Recompute sampling rates (and reload the policy file if it's modified) in the background.
+   */
+  public void start() {
+    ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+        new NamedThreadFactory("adaptive-sampler"));
+    executor.scheduleWithFixedDelay(() -> {
+      try {
+        reloadPolicy();
+        recompute(Clock.now());
+      } catch (Exception e) {
+        logger.log(Level.WARNING, "Unexpected error recomputing sampling rates", e);
+      }
+    }, RECOMPUTE_INTERVAL_MILLIS, RECOMPUTE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Count the span towards its operation's budget and decide whether it should be kept.
+   *
+   * @param span    span to sample.
+   * @param traceId least significant bits of the span's trace ID.
+   * @return true if the span should be kept.
+   */
+  public boolean sample(@Nonnull Span span, long traceId) {
+    String application = NULL_TAG_VAL;
+    String service = NULL_TAG_VAL;
+    for (Annotation annotation : span.getAnnotations()) {
+      if (annotation.getKey().equals(APPLICATION_TAG_KEY)) {
+        application = annotation.getValue();
+      } else if (annotation.getKey().equals(SERVICE_TAG_KEY)) {
+        service = annotation.getValue();
+      }
+    }
+    Stats stats = operations.get(new Key(application, service, span.getName()), k -> new Stats());
+    stats.count.increment();
+    double rate = stats.rate;
+    // spread trace IDs evenly over [0, 1)
+    if (rate >= 1.0d || ((traceId * 0x9E3779B97F4A7C15L) >>> 11) * 0x1.0p-53 < rate) {
+      sampledSpans.inc();
+      return true;
+    }
+    droppedSpans.inc();
+    return false;
+  }
+
+  /**
+   * Recompute sampling rates from span counts since the previous call.
+   *
+   * @param now current time in millis.
+   */
+  @VisibleForTesting
+  synchronized void recompute(long now) {
+    double elapsedSeconds = (now - lastRecomputeMillis) / 1000.0d;
+    if (elapsedSeconds <= 0) return;
+    lastRecomputeMillis = now;
+    Policy current = policy;
+    for (Map.Entry<Key, Stats> entry : operations.asMap().entrySet()) {
+      Stats stats = entry.getValue();
+      double observed = stats.count.sumThenReset() / elapsedSeconds;
+      stats.spansPerSecond = stats.spansPerSecond < 0 ? observed :
+          SMOOTHING_FACTOR * observed + (1 - SMOOTHING_FACTOR) * stats.spansPerSecond;
+      double budget = current.budgetFor(entry.getKey());
+      stats.rate = stats.spansPerSecond <= budget ? 1.0d : budget / stats.spansPerSecond;
+    }
+  }
+
+  private void reloadPolicy() {
+    if (policyFile == null) return;
+    long modified = policyFile.lastModified();
+    if (modified == 0 || modified == policyFileLastModified) return;
+    policyFileLastModified = modified;
+    try (InputStream stream = new FileInputStream(policyFile)) {
+      policy = loadPolicy(stream, defaultSpansPerSecond);
+      logger.info("Adaptive sampling policy loaded from " + policyFile);
+    } catch (IOException | IllegalArgumentException e) {
+      logger.warning("Unable to load adaptive sampling policy from " + policyFile + ": " + e.getMessage());
+    }
+  }
+
+  @VisibleForTesting
+  static Policy loadPolicy(InputStream stream, double defaultBudget) throws IOException {
+    Properties properties = new Properties();
+    properties.load(stream);
+    ImmutableMap.Builder<String, Double> overrides = ImmutableMap.builder();
+    for (String key : properties.stringPropertyNames()) {
+      double budget;
+      try {
+        budget = Double.parseDouble(properties.getProperty(key).trim());
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("Invalid budget for " + key + ": " + properties.getProperty(key));
+      }
+      Preconditions.checkArgument(budget > 0, "Budget for %s must be positive", key);
+      if (key.equals(DEFAULT_POLICY_KEY)) {
+        defaultBudget = budget;
+      } else {
+        overrides.put(key, budget);
+      }
+    }
+    Preconditions.checkArgument(defaultBudget > 0, "Default budget must be set");
+    return new Policy(defaultBudget, overrides.build());
+  }
+
+  @VisibleForTesting
+  static class Policy {
+    private final double defaultBudget;
+    private final Map<String, Double> overrides;
+
+    Policy(double defaultBudget, Map<String, Double> overrides) {
+      this.defaultBudget = defaultBudget;
+      this.overrides = overrides;
+    }
+
+    double budgetFor(Key key) {
+      if (overrides.isEmpty()) return defaultBudget;
+      String service = key.application + "/" + key.service;
+      Double budget = overrides.get(service + "/" + key.operation);
+      if (budget == null) {
+        budget = overrides.getOrDefault(service, defaultBudget);
+      }
+      return budget;
+    }
+  }
+
+  private static class Stats {
+    private final LongAdder count = new LongAdder();
+    // new operations keep all their spans until their rate is known
+    private volatile double rate = 1.0d;
+    private double spansPerSecond = -1;
+  }
+
+  @VisibleForTesting
+  static class Key {
+    private final String application;
+    private final String service;
+    private final String operation;
+    private final int hashCode;
+
+    Key(String application, String service, String operation) {
+      this.application = application;
+      this.service = service;
+      this.operation = operation;
+      this.hashCode = Objects.hash(application, service, operation);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+      Key that = (Key) o;
+      return hashCode == that.hashCode && application.equals(that.application) && service.equals(that.service) &&
+          Objects.equals(operation, that.operation);
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+  }
+}
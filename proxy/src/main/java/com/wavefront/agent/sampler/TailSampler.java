@@ -0,0 +1,321 @@
+package com.wavefront.agent.sampler;
+
+import com.google.common.base.Preconditions;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.wavefront.agent.handlers.ReportableEntityHandler;
+import com.wavefront.common.Clock;
+import com.wavefront.common.NamedThreadFactory;
+import com.wavefront.common.TaggedMetricName;
+import com.wavefront.sdk.entities.tracing.sampling.Sampler;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import wavefront.report.Annotation;
+import wavefront.report.Span;
+
+import static com.wavefront.agent.listeners.tracing.SpanDerivedMetricsUtils.ERROR_SPAN_TAG_KEY;
+import static com.wavefront.agent.listeners.tracing.SpanDerivedMetricsUtils.ERROR_SPAN_TAG_VAL;
+import static com.wavefront.sdk.common.Constants.SERVICE_TAG_KEY;
+
+/**
+ * Tail-based trace sampler: buffers spans by trace ID and makes one sampling decision per trace once no new spans
+ * have been received for the trace for {@code waitMillis}. A trace is kept if any of its spans is an error, if the
+ * trace latency (from the earliest span start to the latest span end) is above the configured threshold, or if it
+ * contains a rare service/operation (seen fewer than the configured number of times in the current minute).
+ * Other traces are sampled with the head sampler, keyed by trace ID, so all spans of a trace share the same fate.
+ * <p/>
+ * The number of buffered spans is capped: once the cap is reached, new spans are not buffered and are sampled on
+ * their own as they arrive. Decisions are remembered for a while after they are made, so spans that arrive late
+ * follow their trace's decision.
+ */
+public class TailSampler {
+  private static final Logger logger = Logger.getLogger(TailSampler.class.getCanonicalName());
+
+  private static final int MAX_TRACKED_OPERATIONS = 10_000;
+  private static final long OPERATION_COUNT_WINDOW_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+  private final String handle;
+  private final ReportableEntityHandler<Span> spanHandler;
+  private final Sampler headSampler;
+  private final long waitMillis;
+  private final long maxTraceAgeMillis;
+  private final long latencyThresholdMillis;
+  private final int rareOperationThreshold;
+  private final int maxBufferedSpans;
+
+  private final Map<String, Trace> traces = new ConcurrentHashMap<>();
+  private final AtomicInteger bufferedSpans = new AtomicInteger();
+  private final Cache<String, Boolean> decisions;
+  private final Map<String, AtomicLong> operationCounts = new ConcurrentHashMap<>();
+  private volatile long operationCountsResetAt;
+  @Nullable
+  private ScheduledExecutorService executor;
+
+  private final Counter sampledTraces;
+  private final Counter droppedTraces;
+  private final Counter lateSpans;
+  private final Counter overflowSpans;
+
+  /**
+   * @param handle                 handle/port number (for metrics).
+   * @param spanHandler            handler to report sampled spans to.
+   * @param headSampler            sampler for traces that are not kept by any of the tail sampling criteria.
+   * @param waitMillis             how long to wait for more spans of a trace before making a decision.
+   * @param latencyThresholdMillis keep traces with latency at or above this value, 0 to disable.
+   * @param rareOperationThreshold keep traces with a service/operation seen fewer than this number of times
+   *                               per minute, 0 to disable.
+   * @param maxBufferedSpans       max number of spans to buffer at once.
+   * @param now                    current time in millis.
+   */
+  public TailSampler(String handle, @Nonnull ReportableEntityHandler<Span> spanHandler,
+                     @Nonnull Sampler headSampler, long waitMillis, long latencyThresholdMillis,
+                     int rareOperationThreshold, int maxBufferedSpans, long now) {
+    Preconditions.checkArgument(waitMillis > 0, "waitMillis must be positive");
+    Preconditions.checkArgument(maxBufferedSpans > 0, "maxBufferedSpans must be positive");
+    this.handle = handle;
+    this.spanHandler = Preconditions.checkNotNull(spanHandler);
+    this.headSampler = Preconditions.checkNotNull(headSampler);
+    this.waitMillis = waitMillis;
+    // don't hold traces that keep receiving spans forever
+    this.maxTraceAgeMillis = waitMillis * 10;
+    this.latencyThresholdMillis = latencyThresholdMillis;
+    this.rareOperationThreshold = rareOperationThreshold;
+    this.maxBufferedSpans = maxBufferedSpans;
+    this.decisions = Caffeine.newBuilder().
+        expireAfterWrite(Math.max(maxTraceAgeMillis, OPERATION_COUNT_WINDOW_MILLIS), TimeUnit.MILLISECONDS).
+        maximumSize(maxBufferedSpans).
+        build();
+    this.operationCountsResetAt = now + OPERATION_COUNT_WINDOW_MILLIS;
+    this.sampledTraces = Metrics.newCounter(new TaggedMetricName("tail-sampling", "traces-sampled",
+        "port", handle));
+    this.droppedTraces = Metrics.newCounter(new TaggedMetricName("tail-sampling", "traces-dropped",
+        "port", handle));
+    this.lateSpans = Metrics.newCounter(new TaggedMetricName("tail-sampling", "late-spans", "port", handle));
+    this.overflowSpans = Metrics.newCounter(new TaggedMetricName("tail-sampling", "spans-not-buffered",
+        "port", handle));
+  }
+
+  /**
+   * Start making decisions for buffered traces in the background.
+   */
+  public void start() {
+    executor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("tail-sampler-" + handle));
+    executor.scheduleWithFixedDelay(() -> {
+      try {
+        flush(Clock.now());
+      } catch (Exception e) {
+        logger.log(Level.WARNING, "Tail sampling failed", e);
+      }
+    }, 1, 1, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Stop making decisions in the background and make decisions for all buffered traces, so that spans of sampled
+   * traces are reported before the proxy exits.
+   */
+  public void shutdown() {
+    if (executor != null) {
+      try {
+        executor.shutdownNow();
+        executor.awaitTermination(1000L, TimeUnit.MILLISECONDS);
+      } catch (Throwable t) {
+        logger.log(Level.SEVERE, "Error during shutdown", t);
+      }
+    }
+    flushAll();
+  }
+
+  /**
+   * Buffer a span until a decision is made for its trace, or report it right away if its trace has already been
+   * sampled.
+   *
+   * @param span span to sample.
+   * @param now  current time in millis.
+   */
+  public void add(@Nonnull Span span, long now) {
+    String traceId = span.getTraceId();
+    Boolean decision = decisions.getIfPresent(traceId);
+    if (decision != null) {
+      reportLate(span, decision);
+      return;
+    }
+    boolean rare = isRareOperation(span);
+    if (bufferedSpans.get() >= maxBufferedSpans) {
+      overflowSpans.inc();
+      if (rare || isError(span) || (latencyThresholdMillis > 0 && span.getDuration() >= latencyThresholdMillis) ||
+          headSampler.sample(span.getName(), traceIdBits(span), span.getDuration())) {
+        spanHandler.report(span);
+      }
+      return;
+    }
+    Boolean[] decided = new Boolean[1];
+    traces.compute(traceId, (k, trace) -> {
+      if (trace == null) {
+        // the trace may have been decided since we last checked
+        decided[0] = decisions.getIfPresent(k);
+        if (decided[0] != null) return null;
+        trace = new Trace(now);
+      }
+      trace.add(span, now, rare);
+      bufferedSpans.incrementAndGet();
+      return trace;
+    });
+    if (decided[0] != null) {
+      reportLate(span, decided[0]);
+    }
+  }
+
+  /**
+   * Make decisions for traces that have not received new spans for the wait period, and report spans of sampled
+   * traces.
+   *
+   * @param now current time in millis.
+   */
+  public void flush(long now) {
+    if (now >= operationCountsResetAt) {
+      operationCounts.clear();
+      operationCountsResetAt = now + OPERATION_COUNT_WINDOW_MILLIS;
+    }
+    decide(now, false);
+  }
+
+  /**
+   * Make decisions for all buffered traces regardless of wait period.
+   */
+  public void flushAll() {
+    decide(Long.MAX_VALUE, true);
+  }
+
+  /**
+   * @return number of spans currently buffered.
+   */
+  public int bufferedSpans() {
+    return bufferedSpans.get();
+  }
+
+  private void decide(long now, boolean all) {
+    List<Trace> sampled = new ArrayList<>();
+    for (String traceId : traces.keySet()) {
+      traces.computeIfPresent(traceId, (k, trace) -> {
+        if (!all && now - trace.lastSeenMillis < waitMillis && now - trace.firstSeenMillis < maxTraceAgeMillis) {
+          return trace;
+        }
+        boolean keep = keep(trace);
+        decisions.put(k, keep);
+        bufferedSpans.addAndGet(-trace.spans.size());
+        if (keep) {
+          sampled.add(trace);
+        } else {
+          droppedTraces.inc();
+        }
+        return null;
+      });
+    }
+    for (Trace trace : sampled) {
+      sampledTraces.inc();
+      trace.spans.forEach(spanHandler::report);
+    }
+  }
+
+  private boolean keep(Trace trace) {
+    if (trace.hasError || trace.hasRareOperation) {
+      return true;
+    }
+    if (latencyThresholdMillis > 0 && trace.maxEndMillis - trace.minStartMillis >= latencyThresholdMillis) {
+      return true;
+    }
+    Span span = trace.spans.get(0);
+    return headSampler.sample(span.getName(), traceIdBits(span), trace.maxDurationMillis);
+  }
+
+  private void reportLate(Span span, boolean sampled) {
+    lateSpans.inc();
+    if (sampled) {
+      spanHandler.report(span);
+    }
+  }
+
+  private boolean isRareOperation(Span span) {
+    if (rareOperationThreshold <= 0) {
+      return false;
+    }
+    String service = null;
+    if (span.getAnnotations() != null) {
+      for (Annotation annotation : span.getAnnotations()) {
+        if (annotation.getKey().equals(SERVICE_TAG_KEY)) {
+          service = annotation.getValue();
+          break;
+        }
+      }
+    }
+    String operation = service + "\0" + span.getName();
+    AtomicLong count = operationCounts.get(operation);
+    if (count == null) {
+      if (operationCounts.size() >= MAX_TRACKED_OPERATIONS) {
+        // too many distinct operations to tell rare ones apart
+        return false;
+      }
+      count = operationCounts.computeIfAbsent(operation, x -> new AtomicLong());
+    }
+    return count.incrementAndGet() <= rareOperationThreshold;
+  }
+
+  private static boolean isError(Span span) {
+    if (span.getAnnotations() == null) {
+      return false;
+    }
+    for (Annotation annotation : span.getAnnotations()) {
+      if (annotation.getKey().equals(ERROR_SPAN_TAG_KEY) && annotation.getValue().equals(ERROR_SPAN_TAG_VAL)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static long traceIdBits(Span span) {
+    return UUID.fromString(span.getTraceId()).getLeastSignificantBits();
+  }
+
+  private static class Trace {
+    private final List<Span> spans = new ArrayList<>();
+    private final long firstSeenMillis;
+    private long lastSeenMillis;
+    private long minStartMillis = Long.MAX_VALUE;
+    private long maxEndMillis = Long.MIN_VALUE;
+    private long maxDurationMillis = 0;
+    private boolean hasError = false;
+    private boolean hasRareOperation = false;
+
+    Trace(long firstSeenMillis) {
+      this.firstSeenMillis = firstSeenMillis;
+    }
+
+    void add(Span span, long now, boolean rare) {
+      spans.add(span);
+      lastSeenMillis = now;
+      minStartMillis = Math.min(minStartMillis, span.getStartMillis());
+      maxEndMillis = Math.max(maxEndMillis, span.getStartMillis() + span.getDuration());
+      maxDurationMillis = Math.max(maxDurationMillis, span.getDuration());
+      hasError |= isError(span);
+      hasRareOperation |= rare;
+    }
+  }
+}
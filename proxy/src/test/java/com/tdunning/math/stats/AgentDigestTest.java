@@ -0,0 +1,116 @@
+package com.tdunning.math.stats;
+
+import com.tdunning.math.stats.AgentDigest.AgentDigestCompactMarshaller;
+
+import net.openhft.chronicle.bytes.Bytes;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import wavefront.report.Histogram;
+
+import static com.google.common.truth.Truth.assertThat;
+
+/**
+ * Unit tests around {@link AgentDigest}
+ */
+public class AgentDigestTest {
+  private static final short[] COMPRESSIONS = {32, 100, 200};
+
+  private static AgentDigest randomDigest(short compression, Random random, int count, double offset) {
+    AgentDigest digest = new AgentDigest(compression, 0L);
+    for (int i = 0; i < count; i++) {
+      digest.add(offset + random.nextGaussian() * 100, 1);
+    }
+    return digest;
+  }
+
+  @Test
+  public void testMergeDigests() {
+    for (short compression : COMPRESSIONS) {
+      Random random = new Random(compression);
+      AgentDigest digestA = randomDigest(compression, random, 10000, 0);
+      AgentDigest digestB = randomDigest(compression, random, 5000, 50);
+
+      digestA.add(digestB);
+
+      assertThat(digestA.size()).isEqualTo(15000L);
+      // throws on egregiously oversized centroids
+      digestA.checkWeights();
+      Histogram histogram = digestA.toHistogram(60000);
+      assertThat(histogram.getBins()).isOrdered();
+      assertThat(histogram.getBins().size()).isEqualTo(digestA.centroidCount());
+      assertThat(digestA.centroidCount()).isAtMost((int) (Math.PI * compression + 0.5));
+    }
+  }
+
+  @Test
+  public void testMergeMatchesGenericPath() {
+    for (short compression : COMPRESSIONS) {
+      AgentDigest fast = randomDigest(compression, new Random(1), 2000, 0);
+      AgentDigest slow = randomDigest(compression, new Random(1), 2000, 0);
+      fast.add(randomDigest(compression, new Random(2), 3000, 25));
+      ((TDigest) slow).add(randomDigest(compression, new Random(2), 3000, 25));
+
+      assertThat(fast.size()).isEqualTo(slow.size());
+      assertThat(Math.abs(fast.centroidCount() - slow.centroidCount())).isAtMost(compression / 4);
+    }
+  }
+
+  @Test
+  public void testMergeEmptyDigests() {
+    AgentDigest digestA = new AgentDigest((short) 100, 0L);
+    AgentDigest digestB = new AgentDigest((short) 100, 0L);
+    digestA.add(digestB);
+    assertThat(digestA.centroidCount()).isEqualTo(0);
+
+    digestB.add(10D, 1);
+    digestB.add(20D, 2);
+    digestA.add(digestB);
+    assertThat(digestA.size()).isEqualTo(3L);
+    assertThat(digestA.centroidCount()).isEqualTo(2);
+
+    new AgentDigest((short) 100, 0L).add(digestA);
+    digestA.add(new AgentDigest((short) 100, 0L));
+    assertThat(digestA.size()).isEqualTo(3L);
+  }
+
+  private static AgentDigest roundTrip(AgentDigest digest) {
+    AgentDigestCompactMarshaller marshaller = AgentDigestCompactMarshaller.get();
+    Bytes bytes = Bytes.elasticByteBuffer();
+    long size = marshaller.size(digest);
+    marshaller.write(bytes, size, digest);
+    assertThat(bytes.readRemaining()).isEqualTo(size);
+    return marshaller.read(bytes, size, null);
+  }
+
+  @Test
+  public void testCompactEncodingRoundTrip() {
+    for (short compression : COMPRESSIONS) {
+      AgentDigest digest = randomDigest(compression, new Random(compression), 5000, -50);
+      digest.add(1e12, 3);
+      AgentDigest decoded = roundTrip(digest);
+
+      assertThat(decoded.compression()).isEqualTo(digest.compression());
+      assertThat(decoded.getDispatchTimeMillis()).isEqualTo(digest.getDispatchTimeMillis());
+      assertThat(decoded.size()).isEqualTo(digest.size());
+      Histogram expected = digest.toHistogram(60000);
+      Histogram actual = decoded.toHistogram(60000);
+      assertThat(actual.getCounts()).isEqualTo(expected.getCounts());
+      for (int i = 0; i < expected.getBins().size(); i++) {
+        assertThat(actual.getBins().get(i)).isEqualTo((double) expected.getBins().get(i).floatValue());
+      }
+      // should always beat the fixed-size float pair encoding
+      assertThat(AgentDigestCompactMarshaller.get().size(digest)).isLessThan(10L + 8 * digest.centroidCount());
+    }
+  }
+
+  @Test
+  public void testCompactEncodingEmptyDigest() {
+    AgentDigest digest = new AgentDigest((short) 100, 12345L);
+    AgentDigest decoded = roundTrip(digest);
+    assertThat(decoded.centroidCount()).isEqualTo(0);
+    assertThat(decoded.getDispatchTimeMillis()).isEqualTo(12345L);
+  }
+}
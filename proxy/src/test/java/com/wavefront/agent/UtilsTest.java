@@ -0,0 +1,36 @@
+package com.wavefront.agent;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Unit tests for {@link Utils}
+ */
+public class UtilsTest {
+
+  @Test
+  public void testConvertToUuidString() {
+    assertEquals("00000000-0000-0000-0000-00000000007b", Utils.convertToUuidString("7b"));
+    assertEquals("cced093a-76ee-a418-ffdc-9bb9a6453df3",
+        Utils.convertToUuidString("cced093a76eea418ffdc9bb9a6453df3"));
+    assertEquals("cced093a-76ee-a418-ffdc-9bb9a6453df3",
+        Utils.convertToUuidString("cced093a-76ee-a418-ffdc-9bb9a6453df3"));
+  }
+
+  @Test
+  public void testToUuidString() {
+    assertEquals("00000000-0000-0000-0000-000000000000", Utils.toUuidString(0, 0));
+    assertEquals("ffffffff-ffff-ffff-ffff-ffffffffffff", Utils.toUuidString(-1, -1));
+    assertEquals("00000000-0000-0000-0000-00000012d687", Utils.toUuidString(0, 1234567));
+    Random random = new Random(42);
+    for (int i = 0; i < 1000; i++) {
+      long mostSigBits = random.nextLong();
+      long leastSigBits = random.nextLong();
+      assertEquals(new UUID(mostSigBits, leastSigBits).toString(), Utils.toUuidString(mostSigBits, leastSigBits));
+    }
+  }
+}
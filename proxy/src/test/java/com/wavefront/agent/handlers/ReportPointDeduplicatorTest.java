@@ -0,0 +1,72 @@
+package com.wavefront.agent.handlers;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import wavefront.report.Histogram;
+import wavefront.report.HistogramType;
+import wavefront.report.ReportPoint;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link ReportPointDeduplicator}
+ */
+public class ReportPointDeduplicatorTest {
+
+  private static ReportPoint point(String metric, long timestamp, Object value, String... tags) {
+    HashMap<String, String> annotations = new HashMap<>();
+    for (int i = 0; i < tags.length; i += 2) {
+      annotations.put(tags[i], tags[i + 1]);
+    }
+    return ReportPoint.newBuilder().setTable("dummy").setMetric(metric).setHost("host").setTimestamp(timestamp).
+        setValue(value).setAnnotations(annotations).build();
+  }
+
+  @Test
+  public void testDuplicates() {
+    ReportPointDeduplicator deduplicator = new ReportPointDeduplicator("test", 60000, 10000, 0.000001, 0);
+    assertFalse(deduplicator.isDuplicate(point("metric", 1000L, 1.0d, "a", "1", "b", "2"), 0));
+    assertTrue(deduplicator.isDuplicate(point("metric", 1000L, 1.0d, "a", "1", "b", "2"), 1000));
+    // tag order doesn't matter
+    assertTrue(deduplicator.isDuplicate(point("metric", 1000L, 1.0d, "b", "2", "a", "1"), 1000));
+    // any difference makes it a different point
+    assertFalse(deduplicator.isDuplicate(point("metric", 1000L, 2.0d, "a", "1", "b", "2"), 1000));
+    assertFalse(deduplicator.isDuplicate(point("metric", 1001L, 1.0d, "a", "1", "b", "2"), 1000));
+    assertFalse(deduplicator.isDuplicate(point("metric", 1000L, 1.0d, "a", "1", "b", "3"), 1000));
+    assertFalse(deduplicator.isDuplicate(point("metric", 1000L, 1.0d, "a", "1"), 1000));
+    assertFalse(deduplicator.isDuplicate(point("metric2", 1000L, 1.0d, "a", "1", "b", "2"), 1000));
+
+    int falsePositives = 0;
+    for (int i = 0; i < 10000; i++) {
+      if (deduplicator.isDuplicate(point("metric", i + 2000L, 1.0d), 2000)) falsePositives++;
+    }
+    assertEquals(0, falsePositives);
+  }
+
+  @Test
+  public void testWindow() {
+    ReportPointDeduplicator deduplicator = new ReportPointDeduplicator("test", 60000, 10000, 0.000001, 0);
+    assertFalse(deduplicator.isDuplicate(point("metric", 1000L, 1.0d), 50000));
+    // still remembered after one rotation
+    assertTrue(deduplicator.isDuplicate(point("metric", 1000L, 1.0d), 70000));
+    assertFalse(deduplicator.isDuplicate(point("metric", 2000L, 1.0d), 70000));
+    // forgotten after two rotations
+    assertFalse(deduplicator.isDuplicate(point("metric", 1000L, 1.0d), 130000));
+    // forgotten after a long pause
+    assertFalse(deduplicator.isDuplicate(point("metric", 2000L, 1.0d), 400000));
+  }
+
+  @Test
+  public void testHistogramsIgnored() {
+    ReportPointDeduplicator deduplicator = new ReportPointDeduplicator("test", 60000, 10000, 0.000001, 0);
+    Histogram histogram = Histogram.newBuilder().setType(HistogramType.TDIGEST).setDuration(60000).
+        setBins(new ArrayList<>()).setCounts(new ArrayList<>()).build();
+    assertFalse(deduplicator.isDuplicate(point("metric", 1000L, histogram), 0));
+    assertFalse(deduplicator.isDuplicate(point("metric", 1000L, histogram), 0));
+  }
+}
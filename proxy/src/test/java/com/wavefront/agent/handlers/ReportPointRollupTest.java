@@ -0,0 +1,161 @@
+package com.wavefront.agent.handlers;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import com.wavefront.agent.preprocessor.AgentPreprocessorConfiguration;
+import com.wavefront.agent.preprocessor.PreprocessorRuleMetrics;
+import com.wavefront.agent.preprocessor.ReportPointRollupRule;
+import com.wavefront.agent.preprocessor.ReportPointRollupRule.Aggregation;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import wavefront.report.ReportPoint;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link ReportPointRollup}
+ */
+public class ReportPointRollupTest {
+
+  private static final PreprocessorRuleMetrics metrics = new PreprocessorRuleMetrics(null, null, null);
+
+  private static ReportPoint point(String metric, long timestamp, Object value, String... tags) {
+    HashMap<String, String> annotations = new HashMap<>();
+    for (int i = 0; i < tags.length; i += 2) {
+      annotations.put(tags[i], tags[i + 1]);
+    }
+    return ReportPoint.newBuilder().setTable("dummy").setMetric(metric).setHost("host").setTimestamp(timestamp).
+        setValue(value).setAnnotations(annotations).build();
+  }
+
+  private static ReportPointRollup rollup(int maxSeries, ReportPointRollupRule rule) {
+    return new ReportPointRollup("test", maxSeries, () -> ImmutableList.of(rule));
+  }
+
+  @Test
+  public void testAggregations() {
+    for (Aggregation aggregation : Aggregation.values()) {
+      ReportPointRollup rollup = rollup(1000, new ReportPointRollupRule(null, 10000, aggregation, metrics));
+      assertTrue(rollup.absorb(point("test.metric", 100003L, 4.0d), 0));
+      assertTrue(rollup.absorb(point("test.metric", 100005L, 1.0d), 0));
+      assertTrue(rollup.absorb(point("test.metric", 100001L, 10.0d), 0));
+      List<ReportPoint> emitted = new ArrayList<>();
+      rollup.flush(114999, emitted::add);
+      assertEquals(0, emitted.size());
+      rollup.flush(115000, emitted::add);
+      assertEquals(1, emitted.size());
+      rollup.flush(125000, emitted::add);
+      assertEquals(1, emitted.size());
+      assertEquals(0, rollup.size());
+      ReportPoint result = emitted.get(0);
+      assertEquals(100000L, (long) result.getTimestamp());
+      assertEquals("test.metric", result.getMetric());
+      switch (aggregation) {
+        case LAST:
+          assertEquals(1.0d, result.getValue());
+          break;
+        case SUM:
+          assertEquals(15.0d, result.getValue());
+          break;
+        case MIN:
+          assertEquals(1.0d, result.getValue());
+          break;
+        case MAX:
+          assertEquals(10.0d, result.getValue());
+          break;
+        case AVG:
+          assertEquals(5.0d, result.getValue());
+          break;
+        case COUNT:
+          assertEquals(3L, result.getValue());
+          break;
+      }
+    }
+  }
+
+  @Test
+  public void testSeriesAndBuckets() {
+    ReportPointRollup rollup = rollup(1000, new ReportPointRollupRule("^cpu\\..*", 60000, Aggregation.SUM, metrics));
+    assertFalse(rollup.absorb(point("mem.free", 0L, 1.0d), 0));
+    assertTrue(rollup.absorb(point("cpu.idle", 1000L, 1.0d, "a", "1", "b", "2"), 0));
+    assertTrue(rollup.absorb(point("cpu.idle", 2000L, 1.0d, "b", "2", "a", "1"), 0));
+    assertTrue(rollup.absorb(point("cpu.idle", 3000L, 1.0d, "a", "2"), 0));
+    assertTrue(rollup.absorb(point("cpu.idle", 61000L, 1.0d, "a", "2"), 0));
+    assertEquals(3, rollup.size());
+    List<ReportPoint> emitted = new ArrayList<>();
+    rollup.flushAll(emitted::add);
+    assertEquals(3, emitted.size());
+    double total = 0;
+    for (ReportPoint point : emitted) {
+      total += (Double) point.getValue();
+      if (point.getAnnotations().equals(ImmutableMap.of("a", "1", "b", "2"))) {
+        assertEquals(2.0d, point.getValue());
+      }
+    }
+    assertEquals(4.0d, total, 0);
+  }
+
+  @Test
+  public void testLatePoints() {
+    ReportPointRollup rollup = rollup(1000, new ReportPointRollupRule(null, 10000, Aggregation.SUM, metrics));
+    assertTrue(rollup.absorb(point("metric1", 1000L, 1.0d), 1000));
+    assertTrue(rollup.absorb(point("metric1", 9000L, 1.0d), 14000));
+    List<ReportPoint> emitted = new ArrayList<>();
+    // bucket has ended, but a point for it has just been received
+    rollup.flush(15000, emitted::add);
+    assertEquals(0, emitted.size());
+    rollup.flush(19000, emitted::add);
+    assertEquals(1, emitted.size());
+    assertEquals(2.0d, emitted.get(0).getValue());
+
+    // points for an emitted bucket are dropped
+    assertTrue(rollup.absorb(point("metric1", 2000L, 1.0d), 20000));
+    rollup.flushAll(emitted::add);
+    assertEquals(1, emitted.size());
+    assertEquals(0, rollup.size());
+  }
+
+  @Test
+  public void testMaxSeries() {
+    ReportPointRollup rollup = rollup(2, new ReportPointRollupRule(null, 60000, Aggregation.LAST, metrics));
+    assertTrue(rollup.absorb(point("metric1", 0L, 1.0d), 0));
+    assertTrue(rollup.absorb(point("metric2", 0L, 1.0d), 0));
+    assertFalse(rollup.absorb(point("metric3", 0L, 1.0d), 0));
+    assertTrue(rollup.absorb(point("metric1", 0L, 2.0d), 0));
+  }
+
+  @Test
+  public void testRollupRules() {
+    AgentPreprocessorConfiguration config = new AgentPreprocessorConfiguration();
+    ReportPointRollup rollup = new ReportPointRollup("7101", 1000, config.rollupRulesFor("7101"));
+    assertFalse(rollup.hasRules());
+    String rules = "'7101':\n" +
+        "  - rule: test-rollup\n" +
+        "    action: rollup\n" +
+        "    match: \"^cpu\\\\..*\"\n" +
+        "    windowSeconds: \"10\"\n" +
+        "    actionSubtype: max\n";
+    config.loadFromStream(new ByteArrayInputStream(rules.getBytes(StandardCharsets.UTF_8)));
+    assertTrue(rollup.hasRules());
+    assertTrue(rollup.absorb(point("cpu.idle", 0L, 1.0d), 0));
+    assertTrue(rollup.absorb(point("cpu.idle", 0L, 3.0d), 0));
+    assertFalse(rollup.absorb(point("mem.free", 0L, 1.0d), 0));
+    List<ReportPoint> emitted = new ArrayList<>();
+    rollup.flush(15000, emitted::add);
+    assertEquals(1, emitted.size());
+    assertEquals(3.0d, emitted.get(0).getValue());
+
+    config.loadFromStream(new ByteArrayInputStream("'7102': []\n".getBytes(StandardCharsets.UTF_8)));
+    assertFalse(rollup.hasRules());
+  }
+}
@@ -0,0 +1,94 @@
+package com.wavefront.agent.handlers;
+
+import com.google.common.collect.ImmutableList;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.UUID;
+
+import wavefront.report.Annotation;
+import wavefront.report.Span;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link SpanDeduplicator}
+ */
+public class SpanDeduplicatorTest {
+
+  private static Span span(String traceId, String spanId) {
+    return Span.newBuilder().setCustomer("dummy").setStartMillis(1000L).setDuration(10L).setName("op").
+        setSource("host").setTraceId(traceId).setSpanId(spanId).setAnnotations(new ArrayList<>()).build();
+  }
+
+  @Test
+  public void testDuplicates() {
+    SpanDeduplicator deduplicator = new SpanDeduplicator("test", 60000, 10000, 0);
+    String traceId = UUID.randomUUID().toString();
+    String spanId = UUID.randomUUID().toString();
+    assertFalse(deduplicator.isDuplicate(span(traceId, spanId), 0));
+    assertTrue(deduplicator.isDuplicate(span(traceId, spanId), 1000));
+    assertFalse(deduplicator.isDuplicate(span(traceId, UUID.randomUUID().toString()), 1000));
+    assertFalse(deduplicator.isDuplicate(span(UUID.randomUUID().toString(), spanId), 1000));
+
+    int duplicates = 0;
+    for (int i = 0; i < 10000; i++) {
+      if (deduplicator.isDuplicate(span(traceId, UUID.randomUUID().toString()), 2000)) duplicates++;
+    }
+    assertEquals(0, duplicates);
+  }
+
+  @Test
+  public void testSharedSpan() {
+    SpanDeduplicator deduplicator = new SpanDeduplicator("test", 60000, 10000, 0);
+    String traceId = UUID.randomUUID().toString();
+    String spanId = UUID.randomUUID().toString();
+    // client and server halves of an RPC share trace and span IDs in Zipkin's shared span model
+    Span client = Span.newBuilder().setCustomer("dummy").setStartMillis(1000L).setDuration(10L).setName("op").
+        setSource("client").setTraceId(traceId).setSpanId(spanId).
+        setAnnotations(ImmutableList.of(new Annotation("span.kind", "client"))).build();
+    Span server = Span.newBuilder().setCustomer("dummy").setStartMillis(1002L).setDuration(6L).setName("op").
+        setSource("server").setTraceId(traceId).setSpanId(spanId).
+        setAnnotations(ImmutableList.of(new Annotation("span.kind", "server"))).build();
+    Span serverSameTiming = Span.newBuilder(server).setStartMillis(1000L).setDuration(10L).setSource("client").
+        build();
+    assertFalse(deduplicator.isDuplicate(client, 0));
+    assertFalse(deduplicator.isDuplicate(server, 0));
+    assertFalse(deduplicator.isDuplicate(serverSameTiming, 0));
+    assertTrue(deduplicator.isDuplicate(Span.newBuilder(client).build(), 0));
+    assertTrue(deduplicator.isDuplicate(Span.newBuilder(server).build(), 0));
+  }
+
+  @Test
+  public void testWindow() {
+    SpanDeduplicator deduplicator = new SpanDeduplicator("test", 60000, 10000, 0);
+    Span span = span(UUID.randomUUID().toString(), UUID.randomUUID().toString());
+    assertFalse(deduplicator.isDuplicate(span, 50000));
+    // still remembered after one rotation
+    assertTrue(deduplicator.isDuplicate(span, 70000));
+    // forgotten after two rotations
+    assertFalse(deduplicator.isDuplicate(span, 130000));
+    // forgotten after a long pause
+    assertFalse(deduplicator.isDuplicate(span, 1000000));
+    assertTrue(deduplicator.isDuplicate(span, 1000000));
+  }
+
+  @Test
+  public void testFullTable() {
+    SpanDeduplicator deduplicator = new SpanDeduplicator("test", 60000, 1, 0);
+    String traceId = UUID.randomUUID().toString();
+    // 64 stripes of 16 slots, up to 12 spans per stripe
+    for (int i = 0; i < 2000; i++) {
+      assertFalse(deduplicator.isDuplicate(span(traceId, String.valueOf(i)), 0));
+    }
+    int duplicates = 0;
+    for (int i = 0; i < 2000; i++) {
+      if (deduplicator.isDuplicate(span(traceId, String.valueOf(i)), 0)) duplicates++;
+    }
+    assertTrue(duplicates <= 64 * 12);
+    assertTrue(duplicates > 0);
+  }
+}
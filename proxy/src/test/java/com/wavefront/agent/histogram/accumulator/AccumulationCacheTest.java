@@ -11,6 +11,7 @@ import net.openhft.chronicle.map.ChronicleMap;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.Iterator;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
@@ -119,4 +120,169 @@ public class AccumulationCacheTest {
     }
     assertThat(hasFailed.get()).isTrue();
   }
+
+  @Test
+  public void testIndexPersistedBackingStore() throws InterruptedException {
+    ConcurrentMap<HistogramKey, AgentDigest> chronicleMap = ChronicleMap.of(HistogramKey.class, AgentDigest.class).
+        keyMarshaller(Utils.HistogramKeyMarshaller.get()).
+        valueMarshaller(AgentDigest.AgentDigestCompactMarshaller.get()).
+        entries(1000)
+        .averageKeySize(20)
+        .averageValueSize(100)
+        .create();
+    for (int i = 0; i < 100; i++) {
+      AgentDigest digest = new AgentDigest(COMPRESSION, i < 50 ? 100L : 100000L);
+      digest.add(i, 1);
+      chronicleMap.put(TestUtils.makeKey("key-" + i), digest);
+    }
+    AccumulationCache ac = new AccumulationCache(chronicleMap, 10, tickerTime::get);
+
+    int ripe = 0;
+    for (int attempt = 0; attempt < 100 && ripe < 50; attempt++) {
+      Thread.sleep(10);
+      ripe = 0;
+      Iterator<HistogramKey> iterator = ac.getRipeDigestsIterator(() -> 1000L);
+      while (iterator.hasNext()) {
+        assertThat(iterator.next().getMetric()).startsWith("key-");
+        ripe++;
+      }
+    }
+    assertThat(ripe).isEqualTo(50);
+  }
+
+  @Test
+  public void testChronicleMapOverflowSpill() {
+    ConcurrentMap<HistogramKey, AgentDigest> chronicleMap = ChronicleMap.of(HistogramKey.class, AgentDigest.class).
+        keyMarshaller(Utils.HistogramKeyMarshaller.get()).
+        valueMarshaller(AgentDigest.AgentDigestMarshaller.get()).
+        entries(10)
+        .averageKeySize(20)
+        .averageValueSize(20)
+        .maxBloatFactor(10)
+        .create();
+    AtomicBoolean hasFailed = new AtomicBoolean(false);
+    AccumulationCache ac = new AccumulationCache(chronicleMap, 10, 5, tickerTime::get, () -> hasFailed.set(true));
+
+    int i = 0;
+    while (!hasFailed.get() && i < 1000) {
+      AgentDigest digest = new AgentDigest(COMPRESSION, 100L);
+      digest.add(i, 1);
+      ac.put(TestUtils.makeKey("key-" + i), digest);
+      ac.getResolveTask().run();
+      i++;
+    }
+    assertThat(hasFailed.get()).isTrue();
+    assertThat(ac.getSpillSize()).isEqualTo(5L);
+
+    // spilled digests survive a failed dispatch
+    Iterator<HistogramKey> failing = ac.getRipeDigestsIterator(() -> 1000L);
+    while (failing.hasNext()) {
+      try {
+        ac.compute(failing.next(), (k, v) -> {
+          throw new IllegalStateException("dispatch failed");
+        });
+      } catch (IllegalStateException expected) {
+      }
+    }
+    assertThat(ac.getSpillSize()).isEqualTo(5L);
+
+    // spilled digests are still dispatched
+    AtomicLong dispatched = new AtomicLong(0);
+    Iterator<HistogramKey> iterator = ac.getRipeDigestsIterator(() -> 1000L);
+    while (iterator.hasNext()) {
+      ac.compute(iterator.next(), (k, v) -> {
+        if (v != null) {
+          dispatched.addAndGet(v.size());
+        }
+        iterator.remove();
+        return null;
+      });
+    }
+    assertThat(ac.getSpillSize()).isEqualTo(0L);
+    assertThat(dispatched.get()).isEqualTo(i - 1);
+  }
+
+  @Test
+  public void testEarlyDispatchedBinIsMerged() {
+    AccumulationCache ac = new AccumulationCache(backingStore, 0, 10, tickerTime::get);
+    ac.setDegraded(true, 30000L);
+    AgentDigest digest = new AgentDigest(COMPRESSION, 50000L);
+    digest.add(1.0D, 1);
+    ac.put(keyA, digest);
+    digest = new AgentDigest(COMPRESSION, 50000L);
+    digest.add(1.0D, 1);
+    ac.put(keyB, digest);
+    ac.getResolveTask().run();
+    assertThat(dispatchAll(ac, 30000L)).isEqualTo(2L);
+
+    // keyA is re-opened before its dispatch time, keyB only after
+    digest = new AgentDigest(COMPRESSION, 70000L);
+    digest.add(2.0D, 1);
+    ac.put(keyA, digest);
+    ac.getResolveTask().run();
+    ac.setDegraded(false, 0);
+    assertThat(dispatchAll(ac, 60000L)).isEqualTo(0L);
+    digest = new AgentDigest(COMPRESSION, 70000L);
+    digest.add(2.0D, 1);
+    ac.put(keyB, digest);
+    ac.getResolveTask().run();
+
+    // keyA is shipped with the data that was dispatched early, keyB wasn't tracked anymore
+    AtomicLong keyASize = new AtomicLong();
+    Iterator<HistogramKey> iterator = ac.getRipeDigestsIterator(() -> 80000L);
+    while (iterator.hasNext()) {
+      ac.compute(iterator.next(), (k, v) -> {
+        if (k.equals(keyA)) keyASize.set(v.size());
+        iterator.remove();
+        return null;
+      });
+    }
+    assertThat(keyASize.get()).isEqualTo(2L);
+    assertThat(backingStore).isEmpty();
+  }
+
+  private static long dispatchAll(AccumulationCache ac, long now) {
+    AtomicLong dispatched = new AtomicLong(0);
+    Iterator<HistogramKey> iterator = ac.getRipeDigestsIterator(() -> now);
+    while (iterator.hasNext()) {
+      ac.compute(iterator.next(), (k, v) -> {
+        if (v != null) {
+          dispatched.addAndGet(v.size());
+        }
+        iterator.remove();
+        return null;
+      });
+    }
+    return dispatched.get();
+  }
+
+  @Test
+  public void testPressureMonitor() {
+    AtomicLong clock = new AtomicLong(0L);
+    AccumulationCache ac = new AccumulationCache(backingStore, 0, tickerTime::get);
+    AccumulatorPressureMonitor monitor = new AccumulatorPressureMonitor(ac, Utils.Granularity.MINUTE, 4, 1.0,
+        30000L, clock::get);
+    HistogramKey[] keys = {keyA, keyB, keyC, TestUtils.makeKey("keyD"), TestUtils.makeKey("keyE")};
+    for (int i = 0; i < 3; i++) {
+      ac.put(keys[i], 1.0D, COMPRESSION, 60000L);
+    }
+    ac.getResolveTask().run();
+    monitor.run();
+    assertThat(ac.isDegraded()).isFalse();
+
+    ac.put(keys[3], 1.0D, COMPRESSION, 60000L);
+    ac.getResolveTask().run();
+    clock.set(10000L);
+    monitor.run();
+    assertThat(ac.isDegraded()).isTrue();
+
+    // new bins get reduced compression
+    ac.put(keys[4], 1.0D, COMPRESSION, 60000L);
+    ac.getResolveTask().run();
+    assertThat(backingStore.get(keys[4]).compression()).isEqualTo(COMPRESSION / 2D);
+
+    backingStore.clear();
+    monitor.run();
+    assertThat(ac.isDegraded()).isFalse();
+  }
 }
@@ -0,0 +1,92 @@
+package com.wavefront.agent.histogram.accumulator;
+
+import com.google.common.collect.ImmutableMap;
+
+import com.tdunning.math.stats.AgentDigest;
+import com.wavefront.agent.histogram.Utils;
+import com.wavefront.agent.histogram.Utils.HistogramKey;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.truth.Truth.assertThat;
+
+/**
+ * Unit tests for {@link BatchingAccumulator}
+ */
+public class BatchingAccumulatorTest {
+  private final static short COMPRESSION = 100;
+
+  private ConcurrentMap<HistogramKey, AgentDigest> backingStore;
+  private AccumulationCache cache;
+  private AtomicLong clock;
+  private BatchingAccumulator accumulator;
+  private BatchingAccumulator.Series series;
+  private HistogramKey key;
+
+  @Before
+  public void setup() {
+    backingStore = new ConcurrentHashMap<>();
+    cache = new AccumulationCache(backingStore, 100, null);
+    clock = new AtomicLong(120_000L);
+    accumulator = new BatchingAccumulator(cache, Utils.Granularity.MINUTE, COMPRESSION, 70_000L, 4, clock::get);
+    series = accumulator.newSeries("metric", "source", ImmutableMap.of("tagk", "tagv"));
+    key = Utils.makeKey("metric", "source", ImmutableMap.of("tagk", "tagv"), 120_000L, Utils.Granularity.MINUTE);
+  }
+
+  @Test
+  public void testSamplesAreMergedInBatches() {
+    series.add(100);
+    series.add(100);
+    series.add(200);
+    cache.getResolveTask().run();
+    assertThat(backingStore).isEmpty();
+
+    accumulator.run();
+    cache.getResolveTask().run();
+    assertThat(backingStore.keySet()).containsExactly(key);
+    AgentDigest digest = backingStore.get(key);
+    assertThat(digest.size()).isEqualTo(3L);
+    assertThat(digest.centroidCount()).isEqualTo(2);
+
+    // nothing left to merge
+    accumulator.run();
+    cache.getResolveTask().run();
+    assertThat(backingStore.get(key).size()).isEqualTo(3L);
+  }
+
+  @Test
+  public void testFullBatchIsMerged() {
+    for (int i = 0; i < 4; i++) {
+      series.add(i);
+    }
+    cache.getResolveTask().run();
+    assertThat(backingStore.get(key).size()).isEqualTo(4L);
+
+    series.add(5);
+    accumulator.run();
+    cache.getResolveTask().run();
+    assertThat(backingStore.get(key).size()).isEqualTo(5L);
+  }
+
+  @Test
+  public void testNewBinMergesPreviousBatch() {
+    series.add(100);
+    clock.set(180_000L);
+    series.add(200);
+    cache.getResolveTask().run();
+    assertThat(backingStore.keySet()).containsExactly(key);
+    assertThat(backingStore.get(key).size()).isEqualTo(1L);
+
+    accumulator.run();
+    cache.getResolveTask().run();
+    HistogramKey nextKey = Utils.makeKey("metric", "source", ImmutableMap.of("tagk", "tagv"), 180_000L,
+        Utils.Granularity.MINUTE);
+    assertThat(backingStore.keySet()).containsExactly(key, nextKey);
+    assertThat(backingStore.get(nextKey).size()).isEqualTo(1L);
+  }
+}
@@ -0,0 +1,150 @@
+package com.wavefront.agent.histogram.tape;
+
+import com.google.common.collect.ImmutableList;
+
+import com.squareup.tape.FileObjectQueue;
+import com.squareup.tape.ObjectQueue;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.truth.Truth.assertThat;
+
+/**
+ * Unit tests around {@link MappedLineQueue} and {@link MappedQueueDeck}
+ */
+public class MappedLineQueueTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private File file;
+
+  @Before
+  public void setup() throws IOException {
+    file = new File(folder.getRoot(), "Port_2878_0");
+  }
+
+  @Test
+  public void testAddPeekRemove() throws IOException {
+    MappedLineQueue queue = new MappedLineQueue(file, 4096);
+    assertThat(queue.size()).isEqualTo(0);
+    assertThat(queue.peek()).isNull();
+
+    queue.add(ImmutableList.of("test 1", "tést 2"));
+    queue.add(ImmutableList.of());
+    queue.add(ImmutableList.of("test 3"));
+    assertThat(queue.size()).isEqualTo(3);
+    assertThat(queue.peek()).containsExactly("test 1", "tést 2").inOrder();
+    assertThat(queue.peek()).containsExactly("test 1", "tést 2").inOrder();
+    queue.remove();
+    assertThat(queue.peek()).isEmpty();
+    queue.remove();
+    assertThat(queue.peek()).containsExactly("test 3");
+    queue.remove();
+    assertThat(queue.size()).isEqualTo(0);
+    assertThat(queue.peek()).isNull();
+  }
+
+  @Test
+  public void testListener() throws IOException {
+    MappedLineQueue queue = new MappedLineQueue(file, 256);
+    queue.add(ImmutableList.of("line 1"));
+    queue.add(ImmutableList.of("line 2", "line 3"));
+    queue.remove();
+    List<List<String>> added = new ArrayList<>();
+    AtomicInteger removed = new AtomicInteger();
+    queue.setListener(new ObjectQueue.Listener<List<String>>() {
+      @Override
+      public void onAdd(ObjectQueue<List<String>> queue, List<String> entry) {
+        added.add(entry);
+      }
+
+      @Override
+      public void onRemove(ObjectQueue<List<String>> queue) {
+        removed.incrementAndGet();
+      }
+    });
+    // existing batches are replayed
+    assertThat(added).containsExactly(ImmutableList.of("line 2", "line 3"));
+    queue.add(ImmutableList.of("line 4"));
+    queue.remove();
+    assertThat(added).containsExactly(ImmutableList.of("line 2", "line 3"), ImmutableList.of("line 4")).inOrder();
+    assertThat(removed.get()).isEqualTo(1);
+
+    queue.setListener(null);
+    queue.add(ImmutableList.of("line 5"));
+    assertThat(added).hasSize(2);
+  }
+
+  @Test
+  public void testSegmentRollover() throws IOException {
+    MappedLineQueue queue = new MappedLineQueue(file, 256);
+    for (int i = 0; i < 100; i++) {
+      queue.add(ImmutableList.of("metric.name " + i + " 1500000000", "another line"));
+    }
+    // batch larger than a segment
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 100; i++) {
+      sb.append("0123456789");
+    }
+    queue.add(ImmutableList.of(sb.toString()));
+    assertThat(queue.size()).isEqualTo(101);
+    assertThat(folder.getRoot().listFiles().length).isGreaterThan(1);
+
+    for (int i = 0; i < 100; i++) {
+      assertThat(queue.peek()).containsExactly("metric.name " + i + " 1500000000", "another line").inOrder();
+      queue.remove();
+    }
+    assertThat(queue.peek()).containsExactly(sb.toString());
+    queue.remove();
+    assertThat(queue.size()).isEqualTo(0);
+    // only the current write segment is left
+    assertThat(folder.getRoot().listFiles()).hasLength(1);
+  }
+
+  @Test
+  public void testPersistence() throws IOException {
+    MappedLineQueue queue = new MappedLineQueue(file, 256);
+    for (int i = 0; i < 20; i++) {
+      queue.add(ImmutableList.of("line " + i));
+    }
+    for (int i = 0; i < 5; i++) {
+      queue.remove();
+    }
+    queue.close();
+
+    queue = new MappedLineQueue(file, 256);
+    assertThat(queue.size()).isEqualTo(15);
+    for (int i = 5; i < 20; i++) {
+      assertThat(queue.peek()).containsExactly("line " + i);
+      queue.remove();
+    }
+    assertThat(queue.peek()).isNull();
+    queue.add(ImmutableList.of("line 20"));
+    assertThat(queue.peek()).containsExactly("line 20");
+  }
+
+  @Test
+  public void testTapeMigration() throws IOException {
+    FileObjectQueue<List<String>> tape = new FileObjectQueue<>(file,
+        TapeStringListConverter.getCompressionEnabledInstance());
+    tape.add(ImmutableList.of("line 1", "line 2"));
+    tape.add(ImmutableList.of("line 3"));
+    tape.close();
+
+    ObjectQueue<List<String>> queue = new MappedQueueDeck(4096).getTape(file);
+    assertThat(file.exists()).isFalse();
+    assertThat(queue.size()).isEqualTo(2);
+    assertThat(queue.peek()).containsExactly("line 1", "line 2").inOrder();
+    queue.remove();
+    assertThat(queue.peek()).containsExactly("line 3");
+  }
+}
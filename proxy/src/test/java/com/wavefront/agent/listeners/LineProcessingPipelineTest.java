@@ -0,0 +1,62 @@
+package com.wavefront.agent.listeners;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link LineProcessingPipeline}
+ */
+public class LineProcessingPipelineTest {
+
+  @Test
+  public void testProcessesAllBatches() {
+    LineProcessingPipeline pipeline = new LineProcessingPipeline("test-all", 4, 1000);
+    EmbeddedChannel channel = new EmbeddedChannel();
+    AtomicInteger processed = new AtomicInteger();
+    for (int i = 0; i < 100; i++) {
+      pipeline.submit(channel, 10, () -> processed.addAndGet(10));
+    }
+    pipeline.shutdown(TimeUnit.SECONDS.toMillis(10));
+    assertEquals(1000, processed.get());
+    assertEquals(0, pipeline.getPendingLines());
+    assertTrue(channel.config().isAutoRead());
+  }
+
+  @Test
+  public void testBackpressure() throws InterruptedException {
+    LineProcessingPipeline pipeline = new LineProcessingPipeline("test-backpressure", 1, 100);
+    EmbeddedChannel channel = new EmbeddedChannel();
+    CountDownLatch blocked = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(3);
+    pipeline.submit(channel, 60, () -> {
+      try {
+        blocked.await();
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+      done.countDown();
+    });
+    assertTrue(channel.config().isAutoRead());
+    pipeline.submit(channel, 30, done::countDown);
+    assertTrue(channel.config().isAutoRead());
+    // backlog exceeds the limit, channel stops reading
+    pipeline.submit(channel, 30, done::countDown);
+    assertFalse(channel.config().isAutoRead());
+    assertEquals(120, pipeline.getPendingLines());
+
+    blocked.countDown();
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    pipeline.shutdown(TimeUnit.SECONDS.toMillis(10));
+    assertEquals(0, pipeline.getPendingLines());
+    assertTrue(channel.config().isAutoRead());
+  }
+}
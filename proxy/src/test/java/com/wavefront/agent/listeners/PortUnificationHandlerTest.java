@@ -0,0 +1,111 @@
+package com.wavefront.agent.listeners;
+
+import com.google.common.collect.ImmutableList;
+
+import com.wavefront.agent.auth.TokenAuthenticatorBuilder;
+import com.wavefront.common.TaggedMetricName;
+import com.yammer.metrics.Metrics;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.CharsetUtil;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link PortUnificationHandler} with a {@link LineProcessingPipeline}
+ */
+public class PortUnificationHandlerTest {
+
+  @Test
+  public void testPlaintextLinesAreBatchedPerRead() {
+    LineProcessingPipeline pipeline = new LineProcessingPipeline("test-handler-plaintext", 1, 1000);
+    TestHandler handler = new TestHandler();
+    handler.withLineProcessingPipeline(pipeline);
+    EmbeddedChannel channel = new EmbeddedChannel(handler);
+
+    // lines are only submitted at the end of each read
+    channel.writeInbound("line1 ", "line2", "line3");
+    channel.writeInbound("line4");
+    pipeline.shutdown(TimeUnit.SECONDS.toMillis(10));
+
+    assertEquals(ImmutableList.of("line1", "line2", "line3", "line4"), handler.lines);
+    assertEquals(2, Metrics.newCounter(new TaggedMetricName("listeners", "pipeline.batches", "port",
+        "test-handler-plaintext")).count());
+  }
+
+  @Test
+  public void testPipelinedHttpRequestsAreAnsweredInOrder() {
+    LineProcessingPipeline pipeline = new LineProcessingPipeline("test-handler-http", 2, 1000);
+    TestHandler handler = new TestHandler();
+    handler.withLineProcessingPipeline(pipeline);
+    EmbeddedChannel channel = new EmbeddedChannel(handler);
+
+    // the first request only finishes processing after the second one has failed
+    channel.writeInbound(request("slow"), request("bad"));
+    pipeline.shutdown(TimeUnit.SECONDS.toMillis(10));
+    channel.runPendingTasks();
+
+    FullHttpResponse first = channel.readOutbound();
+    assertEquals(HttpResponseStatus.NO_CONTENT, first.status());
+    FullHttpResponse second = channel.readOutbound();
+    assertEquals(HttpResponseStatus.BAD_REQUEST, second.status());
+    assertTrue(second.content().toString(CharsetUtil.UTF_8).contains("bad line"));
+    assertNull(channel.readOutbound());
+    assertEquals(ImmutableList.of("slow"), handler.lines);
+  }
+
+  private static FullHttpRequest request(String body) {
+    return new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "/",
+        Unpooled.copiedBuffer(body, CharsetUtil.UTF_8));
+  }
+
+  private static class TestHandler extends PortUnificationHandler {
+    private final List<String> lines = Collections.synchronizedList(new ArrayList<>());
+    private final CountDownLatch badLineProcessed = new CountDownLatch(1);
+
+    TestHandler() {
+      super(TokenAuthenticatorBuilder.create().build(), "test", true, true);
+    }
+
+    @Override
+    protected void processLine(ChannelHandlerContext ctx, String message) {
+      if (message.equals("bad")) {
+        badLineProcessed.countDown();
+        throw new IllegalArgumentException("bad line");
+      }
+      if (message.equals("slow")) {
+        try {
+          badLineProcessed.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+      }
+      lines.add(message);
+    }
+
+    @Override
+    protected void logWarning(String message, @Nullable Throwable e, @Nullable ChannelHandlerContext ctx) {
+      // embedded channels don't have socket addresses to log
+    }
+  }
+}
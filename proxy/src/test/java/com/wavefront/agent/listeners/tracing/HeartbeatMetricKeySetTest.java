@@ -0,0 +1,84 @@
+package com.wavefront.agent.listeners.tracing;
+
+import com.google.common.collect.ImmutableSet;
+import com.wavefront.sdk.common.WavefrontSender;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.MetricName;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Collection;
+
+import static com.wavefront.sdk.common.Constants.HEART_BEAT_METRIC;
+import static org.easymock.EasyMock.anyDouble;
+import static org.easymock.EasyMock.anyLong;
+import static org.easymock.EasyMock.anyObject;
+import static org.easymock.EasyMock.anyString;
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.eq;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for {@link HeartbeatMetricKeySet}
+ */
+public class HeartbeatMetricKeySetTest {
+
+  @Test
+  public void testAddAndDrain() {
+    HeartbeatMetricKeySet set = new HeartbeatMetricKeySet("test", 16);
+    HeartbeatMetricKey key1 = new HeartbeatMetricKey("app", "service1", "cluster", "shard", "source");
+    HeartbeatMetricKey key2 = new HeartbeatMetricKey("app", "service2", "cluster", "shard", "source");
+    assertTrue(set.add(key1));
+    assertTrue(set.add(key2));
+    assertTrue(set.add(new HeartbeatMetricKey("app", "service1", "cluster", "shard", "source")));
+    assertEquals(ImmutableSet.of(key1, key2), ImmutableSet.copyOf(set.drain()));
+    assertTrue(set.drain().isEmpty());
+    assertTrue(set.add(key1));
+    assertEquals(ImmutableSet.of(key1), ImmutableSet.copyOf(set.drain()));
+  }
+
+  @Test
+  public void testCapacity() {
+    HeartbeatMetricKeySet set = new HeartbeatMetricKeySet("capacity", 5);
+    int added = 0;
+    for (int i = 0; i < 10; i++) {
+      if (set.add(new HeartbeatMetricKey("app", "service" + i, "cluster", "shard", "source"))) {
+        added++;
+      }
+    }
+    assertEquals(8, added);
+    assertFalse(set.add(new HeartbeatMetricKey("app", "service10", "cluster", "shard", "source")));
+    assertEquals(3, Metrics.newCounter(new MetricName("spans.capacity.heartbeats", "", "dropped")).count());
+    Collection<HeartbeatMetricKey> keys = set.drain();
+    assertEquals(8, keys.size());
+    assertTrue(set.add(new HeartbeatMetricKey("app", "service10", "cluster", "shard", "source")));
+  }
+
+  @Test
+  public void testUnsentKeysAreKeptOnSendFailure() throws IOException {
+    HeartbeatMetricKeySet set = new HeartbeatMetricKeySet("test", 16);
+    for (int i = 0; i < 3; i++) {
+      set.add(new HeartbeatMetricKey("app", "service" + i, "cluster", "shard", "source"));
+    }
+    WavefrontSender sender = createMock(WavefrontSender.class);
+    sender.sendMetric(eq(HEART_BEAT_METRIC), anyDouble(), anyLong(), anyString(), anyObject());
+    expectLastCall();
+    sender.sendMetric(eq(HEART_BEAT_METRIC), anyDouble(), anyLong(), anyString(), anyObject());
+    expectLastCall().andThrow(new IOException("connection reset"));
+    replay(sender);
+    try {
+      SpanDerivedMetricsUtils.reportHeartbeats("test", sender, set);
+      fail();
+    } catch (IOException expected) {
+    }
+    verify(sender);
+    assertEquals(2, set.drain().size());
+  }
+}
@@ -0,0 +1,172 @@
+package com.wavefront.agent.listeners.tracing;
+
+import com.google.common.collect.ImmutableList;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Duration;
+import com.google.protobuf.Timestamp;
+
+import com.wavefront.agent.handlers.MockReportableEntityHandlerFactory;
+import com.wavefront.agent.handlers.ReportableEntityHandler;
+import com.wavefront.sdk.entities.tracing.sampling.RateSampler;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import io.grpc.stub.StreamObserver;
+import io.jaegertracing.api_v2.Collector;
+import io.jaegertracing.api_v2.Model;
+import wavefront.report.Annotation;
+import wavefront.report.Span;
+
+import static org.easymock.EasyMock.anyObject;
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.reset;
+import static org.easymock.EasyMock.verify;
+
+public class JaegerGrpcCollectorHandlerTest {
+  private ReportableEntityHandler<Span> mockTraceHandler =
+      MockReportableEntityHandlerFactory.getMockTraceHandler();
+  private long startTime = System.currentTimeMillis();
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testJaegerGrpcCollector() throws Exception {
+    reset(mockTraceHandler);
+    mockTraceHandler.report(Span.newBuilder().setCustomer("dummy").setStartMillis(startTime)
+        .setDuration(1234)
+        .setName("HTTP GET")
+        .setSource("10.0.0.1")
+        .setSpanId("00000000-0000-0000-0000-00000012d687")
+        .setTraceId("00000000-4996-02d2-0000-011f71fb04cb")
+        // Note: Order of annotations list matters for this unit test.
+        .setAnnotations(ImmutableList.of(
+            new Annotation("service", "frontend"),
+            new Annotation("component", "db"),
+            new Annotation("application", "Jaeger"),
+            new Annotation("cluster", "none"),
+            new Annotation("shard", "none")))
+        .build());
+    expectLastCall();
+
+    mockTraceHandler.report(Span.newBuilder().setCustomer("dummy").setStartMillis(startTime)
+        .setDuration(2345)
+        .setName("HTTP GET /")
+        .setSource("10.0.0.1")
+        .setSpanId("00000000-0000-0000-0000-00000023cace")
+        .setTraceId("00000000-4996-02d2-0000-011f71fb04cb")
+        // Note: Order of annotations list matters for this unit test.
+        .setAnnotations(ImmutableList.of(
+            new Annotation("service", "frontend"),
+            new Annotation("parent", "00000000-0000-0000-0000-00000012d687"),
+            new Annotation("component", "db"),
+            new Annotation("application", "Jaeger"),
+            new Annotation("cluster", "none"),
+            new Annotation("shard", "none")))
+        .build());
+    expectLastCall();
+
+    // span with its own process and a 64-bit trace id
+    mockTraceHandler.report(Span.newBuilder().setCustomer("dummy").setStartMillis(startTime)
+        .setDuration(3456)
+        .setName("HTTP GET /")
+        .setSource("backend-host")
+        .setSpanId("00000000-0000-0000-9a12-b85901d53397")
+        .setTraceId("00000000-0000-0000-fea4-87ee36e58cab")
+        // Note: Order of annotations list matters for this unit test.
+        .setAnnotations(ImmutableList.of(
+            new Annotation("service", "backend"),
+            new Annotation("parent", "00000000-0000-0000-fea4-87ee36e58cab"),
+            new Annotation("component", "db"),
+            new Annotation("application", "Jaeger"),
+            new Annotation("cluster", "none"),
+            new Annotation("shard", "none")))
+        .build());
+    expectLastCall();
+
+    replay(mockTraceHandler);
+
+    JaegerGrpcCollectorHandler handler = new JaegerGrpcCollectorHandler(new JaegerThriftCollectorHandler("9876",
+        mockTraceHandler, null, new AtomicBoolean(false), null, new RateSampler(1.0D), false));
+
+    Model.KeyValue ipTag = Model.KeyValue.newBuilder().setKey("ip").setVType(Model.ValueType.STRING).
+        setVStr("10.0.0.1").build();
+    Model.KeyValue componentTag = Model.KeyValue.newBuilder().setKey("component").
+        setVType(Model.ValueType.STRING).setVStr("db").build();
+
+    Model.Span span1 = Model.Span.newBuilder().
+        setTraceId(toByteString(1234567890L, 1234567890123L)).
+        setSpanId(toByteString(1234567L)).
+        setOperationName("HTTP GET").
+        setStartTime(timestamp(startTime)).
+        setDuration(duration(1234)).
+        addTags(componentTag).
+        build();
+
+    Model.Span span2 = Model.Span.newBuilder().
+        setTraceId(toByteString(1234567890L, 1234567890123L)).
+        setSpanId(toByteString(2345678L)).
+        setOperationName("HTTP GET /").
+        setStartTime(timestamp(startTime)).
+        setDuration(duration(2345)).
+        addTags(componentTag).
+        addReferences(Model.SpanRef.newBuilder().
+            setTraceId(toByteString(1234567890L, 1234567890123L)).
+            setSpanId(toByteString(1234567L)).
+            setRefType(Model.SpanRefType.CHILD_OF)).
+        build();
+
+    // check negative span IDs too
+    Model.Span span3 = Model.Span.newBuilder().
+        setTraceId(toByteString(-97803834702328661L)).
+        setSpanId(toByteString(-7344605349865507945L)).
+        setOperationName("HTTP GET /").
+        setStartTime(timestamp(startTime)).
+        setDuration(duration(3456)).
+        addTags(componentTag).
+        addReferences(Model.SpanRef.newBuilder().
+            setTraceId(toByteString(-97803834702328661L)).
+            setSpanId(toByteString(-97803834702328661L)).
+            setRefType(Model.SpanRefType.CHILD_OF)).
+        setProcess(Model.Process.newBuilder().setServiceName("backend").addTags(Model.KeyValue.newBuilder().
+            setKey("hostname").setVType(Model.ValueType.STRING).setVStr("backend-host"))).
+        build();
+
+    Model.Batch batch = Model.Batch.newBuilder().
+        setProcess(Model.Process.newBuilder().setServiceName("frontend").addTags(ipTag)).
+        addSpans(span1).
+        addSpans(span2).
+        addSpans(span3).
+        build();
+
+    StreamObserver<Collector.PostSpansResponse> responseObserver = createMock(StreamObserver.class);
+    responseObserver.onNext(anyObject());
+    expectLastCall();
+    responseObserver.onCompleted();
+    expectLastCall();
+    replay(responseObserver);
+
+    handler.postSpans(Collector.PostSpansRequest.newBuilder().setBatch(batch).build(), responseObserver);
+
+    verify(mockTraceHandler, responseObserver);
+  }
+
+  private static ByteString toByteString(long high, long low) {
+    return ByteString.copyFrom(ByteBuffer.allocate(16).putLong(high).putLong(low).array());
+  }
+
+  private static ByteString toByteString(long value) {
+    return ByteString.copyFrom(ByteBuffer.allocate(8).putLong(value).array());
+  }
+
+  private static Timestamp timestamp(long millis) {
+    return Timestamp.newBuilder().setSeconds(millis / 1000).setNanos((int) (millis % 1000) * 1_000_000).build();
+  }
+
+  private static Duration duration(long millis) {
+    return Duration.newBuilder().setSeconds(millis / 1000).setNanos((int) (millis % 1000) * 1_000_000).build();
+  }
+}
@@ -123,4 +123,42 @@ public class JaegerThriftCollectorHandlerTest {
 
     verify(mockTraceHandler);
   }
+
+  @Test
+  public void testJaegerThriftCollectorWithoutProcessTags() throws Exception {
+    reset(mockTraceHandler);
+    mockTraceHandler.report(Span.newBuilder().setCustomer("dummy").setStartMillis(startTime)
+        .setDuration(1234)
+        .setName("HTTP GET")
+        .setSource("jaeger")
+        .setSpanId("00000000-0000-0000-0000-00000012d687")
+        .setTraceId("00000000-4996-02d2-0000-011f71fb04cb")
+        .setAnnotations(ImmutableList.of(
+            new Annotation("service", "frontend"),
+            new Annotation("application", "Jaeger"),
+            new Annotation("cluster", "none"),
+            new Annotation("shard", "none")))
+        .build());
+    expectLastCall();
+    replay(mockTraceHandler);
+
+    JaegerThriftCollectorHandler handler = new JaegerThriftCollectorHandler("9877", mockTraceHandler,
+        null, new AtomicBoolean(false), null, new RateSampler(1.0D), false);
+
+    io.jaegertracing.thriftjava.Span span = new io.jaegertracing.thriftjava.Span(1234567890123L, 1234567890L,
+        1234567L, 0L, "HTTP GET", 1, startTime * 1000, 1234 * 1000);
+
+    Batch testBatch = new Batch();
+    testBatch.process = new Process();
+    testBatch.process.serviceName = "frontend";
+    testBatch.setSpans(ImmutableList.of(span));
+
+    Collector.submitBatches_args batches = new Collector.submitBatches_args();
+    batches.addToBatches(testBatch);
+    ThriftRequest<Collector.submitBatches_args> request = new ThriftRequest.Builder<Collector.submitBatches_args>(
+        "jaeger-collector", "Collector::submitBatches").setBody(batches).build();
+    handler.handleImpl(request);
+
+    verify(mockTraceHandler);
+  }
 }
@@ -0,0 +1,85 @@
+package com.wavefront.agent.listeners.tracing;
+
+import com.google.common.collect.ImmutableMap;
+
+import com.tdunning.math.stats.AgentDigest;
+import com.wavefront.agent.histogram.Utils;
+import com.wavefront.agent.histogram.accumulator.AccumulationCache;
+import com.wavefront.agent.histogram.accumulator.BatchingAccumulator;
+import com.wavefront.internal.reporter.WavefrontInternalReporter;
+import com.wavefront.sdk.common.WavefrontSender;
+
+import org.easymock.EasyMock;
+import org.junit.Test;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Unit tests for {@link SpanDerivedMetricsCache}
+ */
+public class SpanDerivedMetricsCacheTest {
+
+  private final WavefrontInternalReporter reporter = new WavefrontInternalReporter.Builder().
+      prefixedWith("tracing.derived").withSource("test").reportMinuteDistribution().
+      build(EasyMock.createMock(WavefrontSender.class));
+  private final SpanDerivedMetricsCache cache = new SpanDerivedMetricsCache(reporter);
+
+  @Test
+  public void testMetricsAreCached() {
+    SpanDerivedMetricsCache.DerivedMetrics metrics = cache.get("op", "app", "service", "cluster", "shard",
+        "source", "component");
+    assertSame(metrics, cache.get("op", "app", "service", "cluster", "shard", "source", "component"));
+    assertSame(metrics.errorCount(), metrics.errorCount());
+    assertEquals(new HeartbeatMetricKey("app", "service", "cluster", "shard", "source"),
+        metrics.heartbeatMetricKey);
+    assertNotSame(metrics, cache.get("op", "app", "service", "cluster", "shard", "source", "other"));
+    assertNotSame(metrics, cache.get("op2", "app", "service", "cluster", "shard", "source", "component"));
+  }
+
+  @Test
+  public void testReportWavefrontGeneratedData() {
+    HeartbeatMetricKey key = SpanDerivedMetricsUtils.reportWavefrontGeneratedData(cache, "op", "app", "service",
+        "cluster", "shard", "source", "component", true, 5000);
+    assertSame(key, SpanDerivedMetricsUtils.reportWavefrontGeneratedData(cache, "op", "app", "service",
+        "cluster", "shard", "source", "component", false, 3000));
+    SpanDerivedMetricsCache.DerivedMetrics metrics = cache.get("op", "app", "service", "cluster", "shard",
+        "source", "component");
+    assertEquals(2, metrics.invocationCount.getCount());
+    assertEquals(1, metrics.errorCount().getCount());
+    assertEquals(8, metrics.totalTime.getCount());
+  }
+
+  @Test
+  public void testDurationsInAccumulator() {
+    ConcurrentMap<Utils.HistogramKey, AgentDigest> backingStore = new ConcurrentHashMap<>();
+    AccumulationCache accumulationCache = new AccumulationCache(backingStore, 100, null);
+    BatchingAccumulator durationAccumulator = new BatchingAccumulator(accumulationCache, Utils.Granularity.MINUTE,
+        (short) 100, 70000, 100);
+    SpanDerivedMetricsCache accumulatorCache = new SpanDerivedMetricsCache(reporter, durationAccumulator);
+    SpanDerivedMetricsUtils.reportWavefrontGeneratedData(accumulatorCache, "op", "app", "service",
+        "cluster", "shard", "source", "component", false, 5000);
+    SpanDerivedMetricsUtils.reportWavefrontGeneratedData(accumulatorCache, "op", "app", "service",
+        "cluster", "shard", "source", "component", false, 3000);
+    durationAccumulator.run();
+    accumulationCache.getResolveTask().run();
+    assertEquals(1, backingStore.size());
+    Utils.HistogramKey key = backingStore.keySet().iterator().next();
+    assertEquals("tracing.derived.app.service.op.duration.micros", key.getMetric());
+    assertEquals("source", key.getSource());
+    assertEquals(ImmutableMap.builder().put("application", "app").put("service", "service").
+        put("cluster", "cluster").put("shard", "shard").put("operationName", "op").put("component", "component").
+        build(), key.getTagsAsMap());
+    assertEquals(2, backingStore.get(key).size());
+  }
+
+  @Test
+  public void testSanitize() {
+    assertEquals("app.my-service.GET-/", SpanDerivedMetricsUtils.sanitize("app.my service.GET  /"));
+    assertEquals("app.\\\"quoted\\\"", SpanDerivedMetricsUtils.sanitize("app.\"quoted\""));
+  }
+}
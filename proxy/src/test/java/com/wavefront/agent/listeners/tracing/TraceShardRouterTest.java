@@ -0,0 +1,131 @@
+package com.wavefront.agent.listeners.tracing;
+
+import com.google.common.collect.ImmutableList;
+
+import org.apache.http.HttpVersion;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.message.BasicHttpResponse;
+import org.easymock.Capture;
+import org.easymock.EasyMock;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import wavefront.report.Span;
+
+import static org.easymock.EasyMock.anyObject;
+import static org.easymock.EasyMock.capture;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link TraceShardRouter}
+ */
+public class TraceShardRouterTest {
+  private static final List<String> PEERS = ImmutableList.of("proxy1:2978", "proxy2:2978", "proxy3:2978");
+
+  @Test
+  public void testOwnership() {
+    TraceShardRouter router = new TraceShardRouter("test", PEERS, "proxy1:2978",
+        EasyMock.createMock(HttpClient.class));
+    TraceShardRouter otherRouter = new TraceShardRouter("test", PEERS, "proxy2:2978",
+        EasyMock.createMock(HttpClient.class));
+    Map<String, Integer> ownedTraces = new HashMap<>();
+    for (int i = 0; i < 3000; i++) {
+      String traceId = UUID.randomUUID().toString();
+      String owner = router.ownerOf(traceId);
+      // every proxy agrees on the owner
+      assertEquals(owner, otherRouter.ownerOf(traceId));
+      ownedTraces.merge(owner, 1, Integer::sum);
+    }
+    assertEquals(3, ownedTraces.size());
+    for (int count : ownedTraces.values()) {
+      assertTrue(count > 500);
+    }
+  }
+
+  @Test
+  public void testForwarding() throws Exception {
+    HttpClient httpClient = EasyMock.createMock(HttpClient.class);
+    Capture<HttpUriRequest> request = EasyMock.newCapture();
+    expect(httpClient.execute(capture(request))).
+        andReturn(new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK")).once();
+    replay(httpClient);
+    TraceShardRouter router = new TraceShardRouter("test", PEERS, "proxy1:2978", httpClient);
+    List<Span> local = new ArrayList<>();
+    Span localSpan = spanOwnedBy(router, "proxy1:2978");
+    router.route(localSpan, local::add);
+    assertEquals(ImmutableList.of(localSpan), local);
+
+    router.route(spanOwnedBy(router, "proxy2:2978"), local::add);
+    router.route(spanOwnedBy(router, "proxy2:2978"), local::add);
+    router.flush();
+    assertEquals(1, local.size());
+    verify(httpClient);
+    // the peer samples forwarded spans with the tail sampler of its own listener with the same handle
+    assertEquals("http://proxy2:2978/report?format=trace&port=test", request.getValue().getURI().toString());
+  }
+
+  @Test
+  public void testShutdown() {
+    HttpClient httpClient = EasyMock.createMock(HttpClient.class);
+    replay(httpClient);
+    TraceShardRouter router = new TraceShardRouter("test", PEERS, "proxy1:2978", httpClient);
+    List<Span> local = new ArrayList<>();
+    Span span1 = spanOwnedBy(router, "proxy2:2978");
+    Span span2 = spanOwnedBy(router, "proxy3:2978");
+    router.route(span1, local::add);
+    router.route(span2, local::add);
+    assertEquals(0, local.size());
+
+    // queued spans are processed locally instead of being lost
+    router.shutdown();
+    assertEquals(2, local.size());
+    assertTrue(local.contains(span1));
+    assertTrue(local.contains(span2));
+    Span span3 = spanOwnedBy(router, "proxy2:2978");
+    router.route(span3, local::add);
+    assertEquals(span3, local.get(2));
+    verify(httpClient);
+  }
+
+  @Test
+  public void testLocalFallback() throws Exception {
+    HttpClient httpClient = EasyMock.createMock(HttpClient.class);
+    expect(httpClient.execute(anyObject(HttpUriRequest.class))).andThrow(new IOException("refused")).once();
+    replay(httpClient);
+    TraceShardRouter router = new TraceShardRouter("test", PEERS, "proxy1:2978", httpClient);
+    List<Span> local = new ArrayList<>();
+    Span span = spanOwnedBy(router, "proxy3:2978");
+    router.route(span, local::add);
+    assertEquals(0, local.size());
+    router.flush();
+    assertEquals(ImmutableList.of(span), local);
+
+    // the peer is marked as down, so spans are processed locally right away
+    Span nextSpan = spanOwnedBy(router, "proxy3:2978");
+    router.route(nextSpan, local::add);
+    assertEquals(ImmutableList.of(span, nextSpan), local);
+    router.flush();
+    verify(httpClient);
+  }
+
+  private static Span spanOwnedBy(TraceShardRouter router, String owner) {
+    String traceId;
+    do {
+      traceId = UUID.randomUUID().toString();
+    } while (!router.ownerOf(traceId).equals(owner));
+    return Span.newBuilder().setCustomer("dummy").setStartMillis(1000L).setDuration(10L).setName("op").
+        setSource("host").setSpanId(UUID.randomUUID().toString()).setTraceId(traceId).
+        setAnnotations(new ArrayList<>()).build();
+  }
+}
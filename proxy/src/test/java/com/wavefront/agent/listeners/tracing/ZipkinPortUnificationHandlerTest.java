@@ -9,6 +9,7 @@ import com.wavefront.sdk.entities.tracing.sampling.RateSampler;
 import org.easymock.EasyMock;
 import org.junit.Test;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -74,9 +75,14 @@ public class ZipkinPortUnificationHandlerTest {
 
     List<zipkin2.Span> zipkinSpanList = ImmutableList.of(spanServer1, spanServer2);
 
-    // Validate all codecs i.e. JSON_V1, JSON_V2, THRIFT and PROTO3.
+    // Validate all codecs i.e. JSON_V1, JSON_V2, THRIFT and PROTO3, with heap and direct buffers.
+    List<ByteBuf> contents = new ArrayList<>();
     for (SpanBytesEncoder encoder : SpanBytesEncoder.values()) {
-      ByteBuf content = Unpooled.copiedBuffer(encoder.encodeList(zipkinSpanList));
+      byte[] bytes = encoder.encodeList(zipkinSpanList);
+      contents.add(Unpooled.copiedBuffer(bytes));
+      contents.add(Unpooled.directBuffer(bytes.length).writeBytes(bytes));
+    }
+    for (ByteBuf content : contents) {
       // take care of mocks.
       doMockLifecycle(mockTraceHandler);
       ChannelHandlerContext mockCtx = createNiceMock(ChannelHandlerContext.class);
@@ -1,10 +1,17 @@
 package com.wavefront.agent.preprocessor;
 
+import com.wavefront.common.TaggedMetricName;
+import com.yammer.metrics.Metrics;
+
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 public class AgentConfigurationTest {
@@ -30,4 +37,113 @@ public class AgentConfigurationTest {
     Assert.assertEquals(0, config.totalInvalidRules);
     Assert.assertEquals(34, config.totalValidRules);
   }
+
+  @Test
+  public void testReloadRules() {
+    AgentPreprocessorConfiguration config = new AgentPreprocessorConfiguration();
+    config.loadFromStream(yaml("'2001':\n" +
+        "  - rule: test-blacklist\n" +
+        "    action: blacklistRegex\n" +
+        "    match: \"^foo.*\"\n"));
+    ReportableEntityPreprocessor preprocessor = config.forPort("2001");
+    // rules added programmatically survive reloads
+    preprocessor.forPointLine().addFilter(new PointLineBlacklistRegexFilter("^baz.*",
+        new PreprocessorRuleMetrics(null)));
+    assertFalse(preprocessor.forPointLine().filter("foo.metric 1 source=host"));
+    assertTrue(preprocessor.forPointLine().filter("bar.metric 1 source=host"));
+    assertFalse(preprocessor.forPointLine().filter("baz.metric 1 source=host"));
+
+    config.loadFromStream(yaml("'2001':\n" +
+        "  - rule: test-blacklist\n" +
+        "    action: blacklistRegex\n" +
+        "    match: \"^bar.*\"\n" +
+        "'2002':\n" +
+        "  - rule: test-blacklist\n" +
+        "    action: blacklistRegex\n" +
+        "    match: \"^foo.*\"\n"));
+    assertTrue(preprocessor.forPointLine().filter("foo.metric 1 source=host"));
+    assertFalse(preprocessor.forPointLine().filter("bar.metric 1 source=host"));
+    assertFalse(preprocessor.forPointLine().filter("baz.metric 1 source=host"));
+    assertFalse(config.forPort("2002").forPointLine().filter("foo.metric 1 source=host"));
+
+    // ports removed from the configuration lose their rules
+    config.loadFromStream(yaml("'2002':\n" +
+        "  - rule: test-blacklist\n" +
+        "    action: blacklistRegex\n" +
+        "    match: \"^bar.*\"\n"));
+    assertTrue(preprocessor.forPointLine().filter("bar.metric 1 source=host"));
+    assertFalse(preprocessor.forPointLine().filter("baz.metric 1 source=host"));
+    assertTrue(config.forPort("2002").forPointLine().filter("foo.metric 1 source=host"));
+    assertFalse(config.forPort("2002").forPointLine().filter("bar.metric 1 source=host"));
+  }
+
+  @Test
+  public void testReloadDuringProcessingUsesOneRuleSet() {
+    AgentPreprocessorConfiguration config = new AgentPreprocessorConfiguration();
+    config.loadFromStream(yaml("'2001':\n" +
+        "  - rule: test-blacklist\n" +
+        "    action: blacklistRegex\n" +
+        "    match: \"^foo.*\"\n"));
+    ReportableEntityPreprocessor preprocessor = config.forPort("2001");
+    String pointLine = preprocessor.forPointLine().transform("foo.metric 1 source=host");
+    config.loadFromStream(yaml("'2001':\n" +
+        "  - rule: test-blacklist\n" +
+        "    action: blacklistRegex\n" +
+        "    match: \"^bar.*\"\n"));
+    // the item was transformed with the old rules, so it's filtered with them as well
+    assertFalse(preprocessor.forPointLine().filter(pointLine));
+    // the next item uses the new rules
+    pointLine = preprocessor.forPointLine().transform("foo.metric 1 source=host");
+    assertTrue(preprocessor.forPointLine().filter(pointLine));
+    pointLine = preprocessor.forPointLine().transform("bar.metric 1 source=host");
+    assertFalse(preprocessor.forPointLine().filter(pointLine));
+  }
+
+  @Test
+  public void testReloadInvalidRulesKeepsCurrentRules() {
+    AgentPreprocessorConfiguration config = new AgentPreprocessorConfiguration();
+    config.loadFromStream(yaml("'2001':\n" +
+        "  - rule: test-blacklist\n" +
+        "    action: blacklistRegex\n" +
+        "    match: \"^foo.*\"\n"));
+    ReportableEntityPreprocessor preprocessor = config.forPort("2001");
+    try {
+      config.loadFromStream(yaml("'2001':\n" +
+          "  - rule: test-blacklist\n" +
+          "    action: blacklistRegex\n" +
+          "    match: \"^bar.*\"\n" +
+          "  - rule: test-invalid\n" +
+          "    action: blacklistRegex\n"));
+      fail("Invalid rules did not cause an exception");
+    } catch (RuntimeException ex) {
+      Assert.assertEquals(1, config.totalInvalidRules);
+    }
+    assertFalse(preprocessor.forPointLine().filter("foo.metric 1 source=host"));
+    assertTrue(preprocessor.forPointLine().filter("bar.metric 1 source=host"));
+  }
+
+  @Test
+  public void testValidationDoesNotAffectRuleMetrics() {
+    AgentPreprocessorConfiguration config = new AgentPreprocessorConfiguration();
+    config.setMatchCacheSize(100);
+    config.loadFromStream(yaml("'2010':\n" +
+        "  - rule: test-addtag\n" +
+        "    action: addTag\n" +
+        "    tag: foo\n" +
+        "    value: bar\n" +
+        "  - rule: test-whitelist\n" +
+        "    action: whitelistRegex\n" +
+        "    scope: metricName\n" +
+        "    match: \"^preprocessor.*\"\n"));
+    Assert.assertEquals(0, Metrics.newCounter(new TaggedMetricName("preprocessor.test-addtag", "count",
+        "port", "2010")).count());
+    Assert.assertEquals(0, Metrics.newCounter(new TaggedMetricName("preprocessor.test-whitelist", "checked.count",
+        "port", "2010")).count());
+    Assert.assertEquals(0, Metrics.newCounter(new TaggedMetricName("preprocessor.test-whitelist", "cache.misses",
+        "port", "2010")).count());
+  }
+
+  private static InputStream yaml(String rules) {
+    return new ByteArrayInputStream(rules.getBytes(StandardCharsets.UTF_8));
+  }
 }
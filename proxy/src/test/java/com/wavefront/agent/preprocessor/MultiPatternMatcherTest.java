@@ -0,0 +1,70 @@
+package com.wavefront.agent.preprocessor;
+
+import com.google.common.collect.ImmutableList;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Unit tests for {@link MultiPatternMatcher}
+ */
+public class MultiPatternMatcherTest {
+
+  @Test
+  public void testFirstMatch() {
+    MultiPatternMatcher matcher = new MultiPatternMatcher(ImmutableList.of("foo\\..*", "(bar|baz)\\.(.*)",
+        "foo\\.bar", ".*\\.qux"));
+    assertEquals(0, matcher.firstMatch("foo.bar"));
+    assertEquals(1, matcher.firstMatch("bar.foo"));
+    assertEquals(1, matcher.firstMatch("baz.qux"));
+    assertEquals(3, matcher.firstMatch("something.qux"));
+    assertEquals(-1, matcher.firstMatch("foo"));
+    assertEquals(-1, matcher.firstMatch(""));
+    assertEquals(4, matcher.size());
+  }
+
+  @Test
+  public void testPrefixFilter() {
+    MultiPatternMatcher matcher = new MultiPatternMatcher(ImmutableList.of("^dev\\..*", "test\\.[a-z]+", "tx?z",
+        "stage[0-9]{2}"));
+    assertEquals(0, matcher.firstMatch("dev.corp"));
+    assertEquals(1, matcher.firstMatch("test.corp"));
+    assertEquals(-1, matcher.firstMatch("test.123"));
+    assertEquals(2, matcher.firstMatch("tz"));
+    assertEquals(2, matcher.firstMatch("txz"));
+    assertEquals(3, matcher.firstMatch("stage01"));
+    assertEquals(-1, matcher.firstMatch("prod.corp"));
+    assertEquals(-1, matcher.firstMatch("de"));
+  }
+
+  @Test
+  public void testFirstMismatch() {
+    MultiPatternMatcher matcher = new MultiPatternMatcher(ImmutableList.of("prod\\..*", ".*\\.corp", "[a-z.]+"));
+    assertEquals(-1, matcher.firstMismatch("prod.corp"));
+    assertEquals(0, matcher.firstMismatch("dev.corp"));
+    assertEquals(1, matcher.firstMismatch("prod.com"));
+    assertEquals(2, matcher.firstMismatch("prod.01.corp"));
+    assertEquals(0, matcher.firstMismatch(""));
+  }
+
+  @Test
+  public void testBackReferences() {
+    MultiPatternMatcher matcher = new MultiPatternMatcher(ImmutableList.of("(a+)b\\1", "(x)(y)\\2"));
+    assertEquals(0, matcher.firstMatch("aabaa"));
+    assertEquals(-1, matcher.firstMatch("aaba"));
+    assertEquals(1, matcher.firstMatch("xyy"));
+  }
+
+  @Test
+  public void testLiteralPrefix() {
+    assertEquals("dev.", MultiPatternMatcher.literalPrefix("^dev\\..*"));
+    assertEquals("", MultiPatternMatcher.literalPrefix(".*stop.*"));
+    assertEquals("", MultiPatternMatcher.literalPrefix("a|b"));
+    assertEquals("", MultiPatternMatcher.literalPrefix("\\d+"));
+    assertEquals("", MultiPatternMatcher.literalPrefix("(?i)foo"));
+    assertEquals("fo", MultiPatternMatcher.literalPrefix("foo*"));
+    assertEquals("fo", MultiPatternMatcher.literalPrefix("foo{2}"));
+    assertEquals("foo", MultiPatternMatcher.literalPrefix("foo"));
+  }
+}
@@ -0,0 +1,64 @@
+package com.wavefront.agent.preprocessor;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.Test;
+
+import wavefront.report.Annotation;
+import wavefront.report.ReportPoint;
+import wavefront.report.Span;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link PlaceholderTemplate}
+ */
+public class PlaceholderTemplateTest {
+
+  private final ReportPoint point = ReportPoint.newBuilder().setMetric("some.metric").setHost("host1").
+      setTimestamp(1469751813000L).setValue(1.0d).setAnnotations(ImmutableMap.of("foo", "bar", "dollar", "$1")).
+      build();
+
+  private final Span span = Span.newBuilder().setCustomer("dummy").setStartMillis(1532012145123L).
+      setDuration(1000).setName("testSpanName").setSource("testsource").setSpanId("testspanid").
+      setTraceId("testtraceid").setAnnotations(ImmutableList.of(new Annotation("foo", "bar1"),
+          new Annotation("foo", "bar2"))).build();
+
+  @Test
+  public void testNoPlaceholders() {
+    String template = "no placeholders {here}";
+    PlaceholderTemplate compiled = new PlaceholderTemplate(template);
+    assertFalse(compiled.hasPlaceholders());
+    assertSame(template, compiled.render(point));
+    assertSame(template, compiled.render(span));
+  }
+
+  @Test
+  public void testReportPoint() {
+    PlaceholderTemplate compiled = new PlaceholderTemplate("{{sourceName}}.{{metricName}}-{{foo}}{{}}{{missing}}" +
+        "{{spanName}} {{dollar}}");
+    assertTrue(compiled.hasPlaceholders());
+    assertEquals("host1.some.metric-bar{{}}{{missing}}{{spanName}} $1", compiled.render(point));
+    // the same template renders consistently on repeated use
+    assertEquals("host1.some.metric-bar{{}}{{missing}}{{spanName}} $1", compiled.render(point));
+    assertEquals("a bar", new PlaceholderTemplate("a {{foo}}").render(point));
+    assertEquals("bar.", new PlaceholderTemplate("{{foo}}.").render(point));
+    assertEquals("{{{foo}}}", new PlaceholderTemplate("{{{foo}}}").render(point));
+  }
+
+  @Test
+  public void testSpan() {
+    PlaceholderTemplate compiled = new PlaceholderTemplate("{{sourceName}}.{{spanName}}-{{foo}}-{{metricName}}");
+    assertEquals("testsource.testSpanName-bar1-{{metricName}}", compiled.render(span));
+  }
+
+  @Test
+  public void testPreprocessorUtil() {
+    assertEquals("host1-bar", PreprocessorUtil.expandPlaceholders("{{sourceName}}-{{foo}}", point));
+    assertEquals("testSpanName-bar1", PreprocessorUtil.expandPlaceholders("{{spanName}}-{{foo}}", span));
+  }
+}
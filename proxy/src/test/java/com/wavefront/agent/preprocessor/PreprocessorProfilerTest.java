@@ -0,0 +1,155 @@
+package com.wavefront.agent.preprocessor;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Histogram;
+import com.yammer.metrics.core.MetricName;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+
+import wavefront.report.ReportPoint;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link PreprocessorProfiler}
+ */
+public class PreprocessorProfilerTest {
+
+  private static Counter counter(String name) {
+    return Metrics.newCounter(new MetricName("preprocessor.profiler.test", "", name));
+  }
+
+  private static Histogram histogram(String name) {
+    return Metrics.newHistogram(new MetricName("preprocessor.profiler.test", "", name));
+  }
+
+  @Test
+  public void testSampling() {
+    PreprocessorProfiler profiler = new PreprocessorProfiler();
+    Counter checked = counter("sampling.checked");
+    Counter cpuNanos = counter("sampling.cpu_nanos");
+    Histogram latency = histogram("sampling.latency");
+    PreprocessorRuleMetrics metrics = new PreprocessorRuleMetrics(counter("sampling.count"), cpuNanos, checked,
+        profiler, () -> latency);
+
+    // disabled: no timing at all
+    for (int i = 0; i < 10; i++) {
+      long start = metrics.ruleStart();
+      assertEquals(PreprocessorProfiler.NOT_TIMED, start);
+      metrics.ruleEnd(start);
+    }
+    assertEquals(10, checked.count());
+    assertEquals(0, cpuNanos.count());
+    assertEquals(0, latency.count());
+
+    // ... except for 1 in 64 invocations, scaled up to estimate cpu_nanos, latency is not recorded
+    int timed = 0;
+    for (int i = 0; i < 118; i++) {
+      long start = metrics.ruleStart();
+      if (start != PreprocessorProfiler.NOT_TIMED) timed++;
+      metrics.ruleEnd(start);
+    }
+    assertEquals(2, timed);
+    long cpuNanosBefore = cpuNanos.count();
+    metrics.ruleChecked(1000L);
+    assertEquals(64000L, cpuNanos.count() - cpuNanosBefore);
+    assertEquals(129, checked.count());
+    assertEquals(0, latency.count());
+
+    // enabled: 1 in 5 invocations is timed
+    profiler.setSampleRate(5);
+    timed = 0;
+    for (int i = 0; i < 100; i++) {
+      long start = metrics.ruleStart();
+      if (start != PreprocessorProfiler.NOT_TIMED) timed++;
+      metrics.ruleEnd(start);
+    }
+    assertEquals(20, timed);
+    assertEquals(229, checked.count());
+    assertEquals(20, latency.count());
+
+    // disabled again
+    profiler.setSampleRate(0);
+    assertEquals(PreprocessorProfiler.NOT_TIMED, metrics.ruleStart());
+  }
+
+  @Test
+  public void testWithoutProfilerAlwaysTimes() {
+    PreprocessorRuleMetrics metrics = new PreprocessorRuleMetrics(null, null, null);
+    assertNotEquals(PreprocessorProfiler.NOT_TIMED, metrics.ruleStart());
+  }
+
+  @Test
+  public void testSuggestFilterOrder() {
+    PreprocessorProfiler profiler = new PreprocessorProfiler(1);
+    // expensive, rarely rejects
+    PreprocessorProfiler.RuleProfile slow = profile(profiler, "slow", 100, 10, 5000);
+    // cheap, often rejects
+    PreprocessorProfiler.RuleProfile cheap = profile(profiler, "cheap", 900, 300, 100);
+    // never rejects
+    PreprocessorProfiler.RuleProfile useless = profile(profiler, "useless", 600, 0, 10);
+
+    List<PreprocessorProfiler.RuleProfile> suggested =
+        PreprocessorProfiler.suggestFilterOrder(ImmutableList.of(slow, useless, cheap));
+    assertEquals(ImmutableList.of(cheap, slow, useless), suggested);
+
+    PreprocessorProfiler.RuleProfile unsampled = new PreprocessorProfiler.RuleProfile("reportPoint", "unsampled",
+        true, new PreprocessorRuleMetrics(null, null, null, profiler, null));
+    assertNull(PreprocessorProfiler.suggestFilterOrder(ImmutableList.of(slow, unsampled)));
+  }
+
+  @Test
+  public void testReport() {
+    AgentPreprocessorConfiguration config = new AgentPreprocessorConfiguration();
+    config.getProfiler().setSampleRate(1);
+    String rules = "'6001':\n" +
+        "  - rule: profiler-test-tag\n" +
+        "    action: blacklistRegex\n" +
+        "    scope: foo\n" +
+        "    match: \"bar\"\n" +
+        "  - rule: profiler-test-metric\n" +
+        "    action: blacklistRegex\n" +
+        "    scope: metricName\n" +
+        "    match: \"^test.*\"\n" +
+        "  - rule: profiler-test-add-tag\n" +
+        "    action: addTag\n" +
+        "    tag: added\n" +
+        "    value: \"true\"\n";
+    config.loadFromStream(new ByteArrayInputStream(rules.getBytes(StandardCharsets.UTF_8)));
+    ReportableEntityPreprocessor preprocessor = config.forPort("6001");
+    for (int i = 0; i < 10; i++) {
+      ReportPoint point = ReportPoint.newBuilder().setMetric("test.metric").setHost("host").setTimestamp(0L).
+          setValue(1.0d).setAnnotations(new HashMap<>(ImmutableMap.of("foo", "baz"))).build();
+      preprocessor.forReportPoint().filter(preprocessor.forReportPoint().transform(point));
+    }
+    String report = config.getProfiler().getReport();
+    assertTrue(report, report.contains("Port 6001, reportPoint rules:"));
+    assertTrue(report, report.contains("profiler-test-tag (filter)"));
+    assertTrue(report, report.contains("profiler-test-add-tag: checked"));
+    assertTrue(report, report.contains("Suggested filter order: profiler-test-metric profiler-test-tag"));
+  }
+
+  private static PreprocessorProfiler.RuleProfile profile(PreprocessorProfiler profiler, String name, long checked,
+                                                          long rejected, long latencyNanos) {
+    Counter checkedCounter = counter(name + ".checked");
+    checkedCounter.inc(checked);
+    Counter appliedCounter = counter(name + ".count");
+    appliedCounter.inc(rejected);
+    Histogram latency = histogram(name + ".latency");
+    latency.update(latencyNanos);
+    return new PreprocessorProfiler.RuleProfile("reportPoint", name, true, new PreprocessorRuleMetrics(
+        appliedCounter, null, checkedCounter, profiler, () -> latency));
+  }
+}
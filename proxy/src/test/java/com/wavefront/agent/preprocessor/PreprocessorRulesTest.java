@@ -2,15 +2,19 @@ package com.wavefront.agent.preprocessor;
 
 import com.google.common.collect.Lists;
 
+import com.wavefront.common.TaggedMetricName;
 import com.wavefront.ingester.GraphiteDecoder;
+import com.yammer.metrics.Metrics;
 
 import org.junit.Assert;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.InvocationTargetException;
+import java.nio.charset.StandardCharsets;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -397,6 +401,145 @@ public class PreprocessorRulesTest {
     assertFalse(applyAllFilters("loadavg.1m 7 1459527231 source=h.prod.corp foo=bar boo=baz", "1111"));
   }
 
+  @Test
+  public void testGroupedBlacklistFilters() {
+    String rules = "'5555':\n" +
+        "  - {rule: group-line-1, action: blacklistRegex, scope: pointLine, match: \".*stop.*\"}\n" +
+        "  - {rule: group-line-2, action: blacklistRegex, scope: pointLine, match: \"^halt.*\"}\n" +
+        "  - {rule: group-source-1, action: blacklistRegex, scope: sourceName, match: \"dev\\\\..*\"}\n" +
+        "  - {rule: group-metric-1, action: whitelistRegex, scope: metricName, match: \"valid\\\\..*\"}\n" +
+        "  - {rule: group-source-2, action: blacklistRegex, scope: sourceName, match: \"test\\\\..*\"}\n" +
+        "  - {rule: group-source-3, action: blacklistRegex, scope: sourceName, match: \"(a|b)\\\\.corp\"}\n" +
+        "  - {rule: group-tag-1, action: blacklistRegex, scope: foo, match: \"bar\"}\n";
+    AgentPreprocessorConfiguration config = new AgentPreprocessorConfiguration();
+    config.loadFromStream(new ByteArrayInputStream(rules.getBytes(StandardCharsets.UTF_8)));
+    assertEquals(7, config.totalValidRules);
+
+    ReportableEntityPreprocessor preprocessor = config.loadedRules("5555");
+    assertEquals(1, preprocessor.forPointLine().getFilters().size());
+    assertTrue(preprocessor.forPointLine().getFilters().get(0) instanceof BlacklistRegexFilterGroup);
+    // sourceName group, whitelist and single tag blacklist
+    assertEquals(3, preprocessor.forReportPoint().getFilters().size());
+    assertTrue(preprocessor.forReportPoint().getFilters().get(0) instanceof BlacklistRegexFilterGroup);
+    assertEquals(3, ((BlacklistRegexFilterGroup) preprocessor.forReportPoint().getFilters().get(0)).size());
+
+    String pointLine = "valid.metric 7 1459527231 source=%s foo=%s";
+    assertTrue(applyAllFilters(config, String.format(pointLine, "prod.corp", "baz"), "5555"));
+    assertFalse(applyAllFilters(config, String.format(pointLine, "prod.corp", "bar"), "5555"));
+    assertFalse(applyAllFilters(config, String.format(pointLine, "dev.corp", "baz"), "5555"));
+    assertFalse(applyAllFilters(config, String.format(pointLine, "test.corp", "baz"), "5555"));
+    assertFalse(applyAllFilters(config, String.format(pointLine, "b.corp", "baz"), "5555"));
+    assertTrue(applyAllFilters(config, String.format(pointLine, "c.corp", "baz"), "5555"));
+    assertFalse(applyAllFilters(config, String.format(pointLine, "stop.corp", "baz"), "5555"));
+    assertFalse(applyAllFilters(config, "halt.metric 7 1459527231 source=prod.corp", "5555"));
+    assertFalse(applyAllFilters(config, "invalid.metric 7 1459527231 source=prod.corp", "5555"));
+
+    // metrics are still attributed to individual rules
+    assertEquals(1, Metrics.newCounter(new TaggedMetricName("preprocessor.group-source-1", "count", "port",
+        "5555")).count());
+    assertEquals(1, Metrics.newCounter(new TaggedMetricName("preprocessor.group-source-2", "count", "port",
+        "5555")).count());
+    assertEquals(1, Metrics.newCounter(new TaggedMetricName("preprocessor.group-source-3", "count", "port",
+        "5555")).count());
+    assertEquals(1, Metrics.newCounter(new TaggedMetricName("preprocessor.group-line-1", "count", "port",
+        "5555")).count());
+  }
+
+  @Test
+  public void testGroupedWhitelistFilters() {
+    String rules = "'5557':\n" +
+        "  - {rule: group-wl-line-1, action: whitelistRegex, scope: pointLine, match: \".*source=.*\"}\n" +
+        "  - {rule: group-wl-line-2, action: whitelistRegex, scope: pointLine, match: \"^valid.*\"}\n" +
+        "  - {rule: group-wl-metric-1, action: whitelistRegex, scope: metricName, match: \"valid\\\\..*\"}\n" +
+        "  - {rule: group-bl-source-1, action: blacklistRegex, scope: sourceName, match: \"dev\\\\..*\"}\n" +
+        "  - {rule: group-wl-metric-2, action: whitelistRegex, scope: metricName, match: \".*\\\\.metric\"}\n" +
+        "  - {rule: group-wl-source-1, action: whitelistRegex, scope: sourceName, match: \".*\\\\.corp\"}\n";
+    AgentPreprocessorConfiguration config = new AgentPreprocessorConfiguration();
+    config.loadFromStream(new ByteArrayInputStream(rules.getBytes(StandardCharsets.UTF_8)));
+    assertEquals(6, config.totalValidRules);
+
+    ReportableEntityPreprocessor preprocessor = config.loadedRules("5557");
+    assertEquals(1, preprocessor.forPointLine().getFilters().size());
+    assertTrue(preprocessor.forPointLine().getFilters().get(0) instanceof WhitelistRegexFilterGroup);
+    // metricName group, single sourceName blacklist and single sourceName whitelist
+    assertEquals(3, preprocessor.forReportPoint().getFilters().size());
+    assertTrue(preprocessor.forReportPoint().getFilters().get(0) instanceof WhitelistRegexFilterGroup);
+    assertEquals(2, ((WhitelistRegexFilterGroup) preprocessor.forReportPoint().getFilters().get(0)).size());
+
+    // a point has to match all whitelist rules for the same scope
+    assertTrue(applyAllFilters(config, "valid.metric 7 1459527231 source=prod.corp", "5557"));
+    assertFalse(applyAllFilters(config, "valid.other 7 1459527231 source=prod.corp", "5557"));
+    assertFalse(applyAllFilters(config, "invalid.metric 7 1459527231 source=prod.corp", "5557"));
+    assertFalse(applyAllFilters(config, "valid.metric 7 1459527231 source=prod.com", "5557"));
+    assertFalse(applyAllFilters(config, "valid.metric 7 1459527231 source=dev.corp", "5557"));
+
+    // metrics are attributed to the first rule that rejects a point
+    assertEquals(1, Metrics.newCounter(new TaggedMetricName("preprocessor.group-wl-line-2", "count", "port",
+        "5557")).count());
+    assertEquals(0, Metrics.newCounter(new TaggedMetricName("preprocessor.group-wl-metric-1", "count", "port",
+        "5557")).count());
+    assertEquals(1, Metrics.newCounter(new TaggedMetricName("preprocessor.group-wl-metric-2", "count", "port",
+        "5557")).count());
+    assertEquals(1, Metrics.newCounter(new TaggedMetricName("preprocessor.group-wl-source-1", "count", "port",
+        "5557")).count());
+  }
+
+  @Test
+  public void testFiltersAreNotGroupedAcrossOtherFilters() {
+    String rules = "'5558':\n" +
+        "  - {rule: group-run-source-1, action: blacklistRegex, scope: sourceName, match: \"dev\\\\..*\"}\n" +
+        "  - {rule: group-run-limit, action: limitCardinality, maxSeries: \"5\"}\n" +
+        "  - {rule: group-run-source-2, action: blacklistRegex, scope: sourceName, match: \"test\\\\..*\"}\n" +
+        "  - {rule: group-run-source-3, action: blacklistRegex, scope: sourceName, match: \"qa\\\\..*\"}\n";
+    AgentPreprocessorConfiguration config = new AgentPreprocessorConfiguration();
+    config.loadFromStream(new ByteArrayInputStream(rules.getBytes(StandardCharsets.UTF_8)));
+    assertEquals(4, config.totalValidRules);
+
+    // the cardinality limit records admitted series, so blacklist rules after it are never moved in front of it
+    List<AnnotatedPredicate<ReportPoint>> filters = config.loadedRules("5558").forReportPoint().getFilters();
+    assertEquals(3, filters.size());
+    assertTrue(filters.get(0) instanceof ReportPointBlacklistRegexFilter);
+    assertTrue(filters.get(1) instanceof ReportPointCardinalityLimitFilter);
+    assertTrue(filters.get(2) instanceof BlacklistRegexFilterGroup);
+    assertEquals(2, ((BlacklistRegexFilterGroup) filters.get(2)).size());
+  }
+
+  @Test
+  public void testMatchCache() {
+    String rules = "'5556':\n" +
+        "  - {rule: cache-whitelist, action: whitelistRegex, scope: metricName, match: \"valid\\\\..*\"}\n" +
+        "  - {rule: cache-blacklist, action: blacklistRegex, scope: sourceName, match: \"dev\\\\..*\"}\n" +
+        "  - {rule: cache-replace, action: replaceRegex, scope: sourceName, search: \"corp\", replace: \"com\"}\n" +
+        "  - {rule: cache-replace-tag, action: replaceRegex, scope: foo, search: \"b\", replace: \"{{sourceName}}\"}\n";
+    AgentPreprocessorConfiguration config = new AgentPreprocessorConfiguration();
+    config.setMatchCacheSize(100);
+    config.loadFromStream(new ByteArrayInputStream(rules.getBytes(StandardCharsets.UTF_8)));
+    assertEquals(4, config.totalValidRules);
+
+    String pointLine = "valid.metric 7 1459527231 source=%s foo=bar";
+    for (int i = 0; i < 3; i++) {
+      assertTrue(applyAllFilters(config, String.format(pointLine, "prod.corp"), "5556"));
+      assertFalse(applyAllFilters(config, String.format(pointLine, "dev.corp"), "5556"));
+      assertFalse(applyAllFilters(config, "invalid.metric 7 1459527231 source=prod.corp", "5556"));
+      assertEquals("\"valid.metric\" 7.0 1459527231 source=\"prod.com\" \"foo\"=\"prod.comar\"",
+          applyAllTransformers(config, String.format(pointLine, "prod.corp"), "5556"));
+    }
+    assertEquals(3, counter("cache-whitelist", "count", "5556"));
+    assertEquals(2, Metrics.newCounter(new TaggedMetricName("preprocessor.whitelist", "cache.misses", "port", "5556",
+        "scope", "metricName")).count());
+    assertEquals(7, Metrics.newCounter(new TaggedMetricName("preprocessor.whitelist", "cache.hits", "port", "5556",
+        "scope", "metricName")).count());
+    assertEquals(3, counter("cache-blacklist", "count", "5556"));
+    assertEquals(3, counter("cache-replace", "count", "5556"));
+    assertEquals(1, counter("cache-replace", "cache.misses", "5556"));
+    assertEquals(2, counter("cache-replace", "cache.hits", "5556"));
+    assertEquals(2, Metrics.newCounter(new TaggedMetricName("preprocessor.blacklist", "cache.misses", "port", "5556",
+        "scope", "sourceName")).count());
+    // placeholders depend on the whole point, so results are not cached
+    assertEquals(0, counter("cache-replace-tag", "cache.misses", "5556"));
+    assertEquals(3, counter("cache-replace-tag", "count", "5556"));
+  }
+
   @Test(expected = IllegalArgumentException.class)
   public void testReportPointLimitRuleDropMetricNameThrows() {
     new ReportPointLimitLengthTransformer(METRIC_NAME, 10, LengthLimitActionType.DROP, null, metrics);
@@ -483,7 +626,15 @@ public class PreprocessorRulesTest {
     assertNull(point.getAnnotations().get("bar"));
   }
 
+  private static long counter(String ruleName, String name, String strPort) {
+    return Metrics.newCounter(new TaggedMetricName("preprocessor." + ruleName, name, "port", strPort)).count();
+  }
+
   private boolean applyAllFilters(String pointLine, String strPort) {
+    return applyAllFilters(config, pointLine, strPort);
+  }
+
+  private boolean applyAllFilters(AgentPreprocessorConfiguration config, String pointLine, String strPort) {
     if (!config.forPort(strPort).forPointLine().filter(pointLine))
       return false;
     ReportPoint point = parsePointLine(pointLine);
@@ -491,6 +642,10 @@ public class PreprocessorRulesTest {
   }
 
   private String applyAllTransformers(String pointLine, String strPort) {
+    return applyAllTransformers(config, pointLine, strPort);
+  }
+
+  private String applyAllTransformers(AgentPreprocessorConfiguration config, String pointLine, String strPort) {
     String transformedPointLine = config.forPort(strPort).forPointLine().transform(pointLine);
     ReportPoint point = parsePointLine(transformedPointLine);
     config.forPort(strPort).forReportPoint().transform(point);
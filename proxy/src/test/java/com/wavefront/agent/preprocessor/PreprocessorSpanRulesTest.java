@@ -14,6 +14,9 @@ import wavefront.report.Annotation;
 import wavefront.report.Span;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 public class PreprocessorSpanRulesTest {
@@ -413,6 +416,68 @@ public class PreprocessorSpanRulesTest {
             collect(Collectors.toList()));
   }
 
+  @Test
+  public void testSpanAnnotationIndex() {
+    String spanLine = "testSpanName source=spanSourceName spanId=4217104a-690d-4927-baff-d9aa779414c2 " +
+        "traceId=d5355bf7-fc8d-48d1-b761-75b170f396e0 foo=bar1 boo=baz foo=bar2 1532012145123 1532012146234";
+    Span span = parseSpan(spanLine);
+    List<Annotation> original = span.getAnnotations();
+    SpanAnnotationIndex index = new SpanAnnotationIndex(span);
+    assertEquals("bar1", index.getValue(FOO));
+    assertEquals(2, index.get(FOO).size());
+    assertEquals(ImmutableList.of(FOO, "boo"), ImmutableList.copyOf(index.keys()));
+    assertNull(index.getValue("nope"));
+
+    index.add(new Annotation("new", "value"));
+    index.remove(index.get(FOO).get(0));
+    assertEquals("bar2", index.getValue(FOO));
+    assertEquals("value", index.getValue("new"));
+    // changes are not visible on the span until written back
+    assertSame(original, span.getAnnotations());
+    assertEquals(3, span.getAnnotations().size());
+
+    assertEquals(1, index.removeIf("boo", x -> x.getValue().equals("baz"), false));
+    assertFalse(index.containsKey("boo"));
+    index.writeBack();
+    assertEquals(ImmutableList.of(new Annotation(FOO, "bar2"), new Annotation("new", "value")),
+        span.getAnnotations());
+
+    // no changes, annotations are not copied
+    original = span.getAnnotations();
+    new SpanAnnotationIndex(span).writeBack();
+    assertSame(original, span.getAnnotations());
+  }
+
+  @Test
+  public void testSpanPreprocessorSharesAnnotationIndex() {
+    String spanLine = "testSpanName source=spanSourceName spanId=4217104a-690d-4927-baff-d9aa779414c2 " +
+        "traceId=d5355bf7-fc8d-48d1-b761-75b170f396e0 foo=bar1-1234567890 boo=baz 1532012145123 1532012146234";
+    SpanPreprocessor preprocessor = new SpanPreprocessor();
+    preprocessor.addTransformer(new SpanAddAnnotationTransformer("added", "{{boo}}", metrics));
+    preprocessor.addTransformer(new SpanExtractAnnotationTransformer("extracted", FOO, "(....)-(.*)$",
+        "$2-{{added}}", "$1", null, false, metrics));
+    preprocessor.addTransformer(new SpanDropAnnotationTransformer("boo", null, false, metrics));
+    // a rule that works with the span directly sees all changes made so far
+    preprocessor.addTransformer(span -> {
+      assertEquals(ImmutableList.of(new Annotation(FOO, "bar1"), new Annotation("added", "baz"),
+          new Annotation("extracted", "1234567890-baz")), span.getAnnotations());
+      span.getAnnotations().add(new Annotation("direct", "true"));
+      return span;
+    });
+    preprocessor.addTransformer(new SpanAddAnnotationIfNotExistsTransformer("direct", "false", metrics));
+    preprocessor.addTransformer(new SpanForceLowercaseTransformer(SPAN_NAME, null, false, metrics));
+    preprocessor.addFilter(new SpanWhitelistRegexFilter("direct", "true", metrics));
+    preprocessor.addFilter(new SpanBlacklistRegexFilter("extracted", ".*-baz", metrics));
+
+    Span span = preprocessor.transform(parseSpan(spanLine));
+    assertEquals("testspanname", span.getName());
+    assertEquals(ImmutableList.of(new Annotation(FOO, "bar1"), new Annotation("added", "baz"),
+        new Annotation("extracted", "1234567890-baz"), new Annotation("direct", "true")), span.getAnnotations());
+    assertFalse(preprocessor.filter(span));
+    span.getAnnotations().get(2).setValue("other");
+    assertTrue(preprocessor.filter(span));
+  }
+
   private Span parseSpan(String line) {
     List<Span> out = Lists.newArrayListWithExpectedSize(1);
     new SpanDecoder("unknown").decode(line, out, "dummy");
@@ -0,0 +1,170 @@
+package com.wavefront.agent.preprocessor;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Hashing;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import wavefront.report.ReportPoint;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for {@link SeriesCardinalityTracker}, {@link HyperLogLog} and cardinality limiting rules.
+ */
+public class SeriesCardinalityTrackerTest {
+
+  private static final PreprocessorRuleMetrics metrics = new PreprocessorRuleMetrics(null, null, null);
+
+  private static ReportPoint point(String metric, String... tags) {
+    Map<String, String> annotations = new HashMap<>();
+    for (int i = 0; i < tags.length; i += 2) {
+      annotations.put(tags[i], tags[i + 1]);
+    }
+    return ReportPoint.newBuilder().setMetric(metric).setHost("host").setTimestamp(0L).setValue(1.0d).
+        setAnnotations(annotations).build();
+  }
+
+  @Test
+  public void testHyperLogLogAccuracy() {
+    for (int n : new int[] {10, 1000, 100000}) {
+      HyperLogLog hll = new HyperLogLog(10);
+      for (int i = 0; i < n; i++) {
+        long hash = Hashing.murmur3_128().hashInt(i).asLong();
+        hll.add(hash);
+        hll.add(hash);
+      }
+      assertEquals(n, hll.estimate(), n * 0.1);
+    }
+    assertEquals(1024, new HyperLogLog(10).sizeInBytes());
+  }
+
+  @Test
+  public void testTracker() {
+    SeriesCardinalityTracker tracker = new SeriesCardinalityTracker("test", 100, 60000, 1000);
+    // same series over and over, tag order doesn't matter
+    for (int i = 0; i < 1000; i++) {
+      assertNull(tracker.track(point("metric.ok", "a", "1", "b", "2")));
+      assertNull(tracker.track(point("metric.ok", "b", "2", "a", "1")));
+    }
+    SeriesCardinalityTracker.MetricCardinality offender = null;
+    for (int i = 0; i < 1000; i++) {
+      SeriesCardinalityTracker.MetricCardinality result =
+          tracker.track(point("metric.bad", "a", "1", "requestId", "req" + i));
+      if (result != null) offender = result;
+    }
+    assertNotNull(offender);
+    assertEquals(1000, offender.getSeriesEstimate(), 100);
+    assertEquals("requestId", offender.getHighestCardinalityTag());
+
+    List<Map.Entry<String, Long>> top = tracker.getTopMetrics(10);
+    assertEquals(2, top.size());
+    assertEquals("metric.bad", top.get(0).getKey());
+    assertEquals("metric.ok", top.get(1).getKey());
+    assertEquals(1L, (long) top.get(1).getValue());
+  }
+
+  @Test
+  public void testLimitCardinalityFilter() {
+    ReportPointCardinalityLimitFilter filter = new ReportPointCardinalityLimitFilter(
+        new SeriesCardinalityTracker("test", 10, 60000, 1000), "^limited.*", metrics);
+    int blocked = 0;
+    for (int i = 0; i < 100; i++) {
+      assertTrue(filter.apply(point("unlimited.metric", "id", "id" + i)));
+      if (!filter.apply(point("limited.metric", "id", "id" + i))) blocked++;
+    }
+    assertTrue(blocked > 80);
+  }
+
+  @Test
+  public void testLimitCardinalityFilterKeepsAdmittedSeries() {
+    ReportPointCardinalityLimitFilter filter = new ReportPointCardinalityLimitFilter(
+        new SeriesCardinalityTracker("test", 10, 60000, 1000), null, metrics);
+    List<Integer> admitted = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      if (filter.apply(point("limited.metric", "id", "id" + i))) admitted.add(i);
+    }
+    assertTrue(admitted.size() < 20);
+    // series admitted before the limit was reached keep flowing
+    for (int i : admitted) {
+      assertTrue(filter.apply(point("limited.metric", "id", "id" + i)));
+    }
+  }
+
+  @Test
+  public void testLimitCardinalityTransformer() {
+    SeriesCardinalityTracker tracker = new SeriesCardinalityTracker("test", 10, 60000, 1000);
+    ReportPointCardinalityLimitTransformer dropTag = new ReportPointCardinalityLimitTransformer(tracker, null, null,
+        metrics);
+    ReportPoint point = null;
+    for (int i = 0; i < 100; i++) {
+      point = dropTag.apply(point("some.metric", "env", "prod", "id", "id" + i));
+    }
+    assertEquals(ImmutableMap.of("env", "prod"), point.getAnnotations());
+
+    ReportPointCardinalityLimitTransformer aggregate = new ReportPointCardinalityLimitTransformer(
+        new SeriesCardinalityTracker("test", 10, 60000, 1000), null, "other", metrics);
+    for (int i = 0; i < 100; i++) {
+      point = aggregate.apply(point("some.metric", "env", "prod", "id", "id" + i));
+    }
+    assertEquals(ImmutableMap.of("env", "prod", "id", "other"), point.getAnnotations());
+  }
+
+  @Test
+  public void testLimitCardinalityRules() {
+    AgentPreprocessorConfiguration config = new AgentPreprocessorConfiguration();
+    String rules = "'7001':\n" +
+        "  - rule: test-limit-cardinality\n" +
+        "    action: limitCardinality\n" +
+        "    actionSubtype: aggregate\n" +
+        "    maxSeries: \"5\"\n" +
+        "    windowMinutes: \"10\"\n" +
+        "    value: overflow\n" +
+        "'7002':\n" +
+        "  - rule: test-limit-cardinality-block\n" +
+        "    action: limitCardinality\n" +
+        "    maxSeries: \"5\"\n" +
+        "    match: \"^limited.*\"\n";
+    config.loadFromStream(new ByteArrayInputStream(rules.getBytes(StandardCharsets.UTF_8)));
+    assertEquals(2, config.totalValidRules);
+    ReportableEntityPreprocessor aggregate = config.forPort("7001");
+    ReportPoint point = null;
+    for (int i = 0; i < 50; i++) {
+      point = aggregate.forReportPoint().transform(point("test.metric", "id", "id" + i));
+    }
+    assertEquals("overflow", point.getAnnotations().get("id"));
+    ReportableEntityPreprocessor block = config.forPort("7002");
+    for (int i = 0; i < 50; i++) {
+      assertTrue(block.forReportPoint().filter(point("test.metric", "id", "id" + i)));
+    }
+    int blocked = 0;
+    for (int i = 0; i < 50; i++) {
+      if (!block.forReportPoint().filter(point("limited.metric", "id", "id" + i))) blocked++;
+    }
+    assertTrue(blocked > 40);
+
+    String invalid = "'7003':\n" +
+        "  - rule: test-limit-cardinality-invalid\n" +
+        "    action: limitCardinality\n" +
+        "    actionSubtype: ignore\n" +
+        "    maxSeries: \"5\"\n";
+    try {
+      new AgentPreprocessorConfiguration().loadFromStream(
+          new ByteArrayInputStream(invalid.getBytes(StandardCharsets.UTF_8)));
+      fail("Invalid rule did not cause an exception");
+    } catch (RuntimeException expected) {
+      // expected
+    }
+  }
+}
@@ -0,0 +1,82 @@
+package com.wavefront.agent.sampler;
+
+import com.google.common.collect.ImmutableList;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import wavefront.report.Annotation;
+import wavefront.report.Span;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link AdaptiveSampler}
+ */
+public class AdaptiveSamplerTest {
+
+  private static Span span(String service, String operation) {
+    return Span.newBuilder().setCustomer("dummy").setStartMillis(1000L).setDuration(10L).setName(operation).
+        setSource("host").setTraceId("trace").setSpanId("span").
+        setAnnotations(ImmutableList.of(new Annotation("application", "app"), new Annotation("service", service))).
+        build();
+  }
+
+  private static int sample(AdaptiveSampler sampler, Span span, int count, Random random) {
+    int sampled = 0;
+    for (int i = 0; i < count; i++) {
+      if (sampler.sample(span, random.nextLong())) sampled++;
+    }
+    return sampled;
+  }
+
+  @Test
+  public void testBudget() {
+    AdaptiveSampler sampler = new AdaptiveSampler(10, null, 0);
+    Random random = new Random(42);
+    Span busy = span("busy", "op");
+    Span rare = span("rare", "op");
+    // all spans are kept until rates are known
+    assertEquals(10000, sample(sampler, busy, 10000, random));
+    assertEquals(20, sample(sampler, rare, 20, random));
+    sampler.recompute(10000);
+    // 1000 spans/s against a budget of 10 spans/s
+    int sampled = sample(sampler, busy, 10000, random);
+    assertTrue("sampled " + sampled, sampled > 70 && sampled < 130);
+    assertEquals(20, sample(sampler, rare, 20, random));
+    // traffic went down, so the rate goes back up once the smoothed span rate is under budget
+    for (int i = 2; i <= 10; i++) {
+      sample(sampler, busy, 10, random);
+      sampler.recompute(i * 10000);
+    }
+    assertEquals(50, sample(sampler, busy, 50, random));
+  }
+
+  @Test
+  public void testPolicy() throws Exception {
+    AdaptiveSampler.Policy policy = AdaptiveSampler.loadPolicy(new ByteArrayInputStream(
+        ("default=5\n" +
+            "app/busy=100\n" +
+            "app/busy/GET\\ /checkout=1000\n").getBytes(StandardCharsets.UTF_8)), 10);
+    assertEquals(5, policy.budgetFor(new AdaptiveSampler.Key("app", "other", "op")), 0);
+    assertEquals(100, policy.budgetFor(new AdaptiveSampler.Key("app", "busy", "op")), 0);
+    assertEquals(1000, policy.budgetFor(new AdaptiveSampler.Key("app", "busy", "GET /checkout")), 0);
+    policy = AdaptiveSampler.loadPolicy(new ByteArrayInputStream("app/busy=100".getBytes(StandardCharsets.UTF_8)),
+        10);
+    assertEquals(10, policy.budgetFor(new AdaptiveSampler.Key("app", "other", "op")), 0);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidPolicy() throws Exception {
+    AdaptiveSampler.loadPolicy(new ByteArrayInputStream("app/busy=lots".getBytes(StandardCharsets.UTF_8)), 10);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testPolicyWithoutDefault() throws Exception {
+    AdaptiveSampler.loadPolicy(new ByteArrayInputStream("app/busy=100".getBytes(StandardCharsets.UTF_8)), 0);
+  }
+}
@@ -0,0 +1,150 @@
+package com.wavefront.agent.sampler;
+
+import com.google.common.collect.ImmutableList;
+
+import com.wavefront.agent.handlers.MockReportableEntityHandlerFactory;
+import com.wavefront.agent.handlers.ReportableEntityHandler;
+import com.wavefront.sdk.entities.tracing.sampling.DurationSampler;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import wavefront.report.Annotation;
+import wavefront.report.Span;
+
+import static org.easymock.EasyMock.expectLastCall;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.reset;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Unit tests for {@link TailSampler}
+ */
+public class TailSamplerTest {
+  private ReportableEntityHandler<Span> mockTraceHandler =
+      MockReportableEntityHandlerFactory.getMockTraceHandler();
+
+  private static Span span(String traceId, String name, long startMillis, long duration, boolean error) {
+    List<Annotation> annotations = new ArrayList<>();
+    annotations.add(new Annotation("service", "test"));
+    if (error) {
+      annotations.add(new Annotation("error", "true"));
+    }
+    return Span.newBuilder().setCustomer("dummy").setName(name).setSource("source").
+        setSpanId("00000000-0000-0000-0000-00000000000" + (startMillis % 10)).setTraceId(traceId).
+        setStartMillis(startMillis).setDuration(duration).setAnnotations(annotations).build();
+  }
+
+  @Test
+  public void testTraceDecisions() {
+    String traceA = "00000000-0000-0000-0000-00000000000a";
+    String traceB = "00000000-0000-0000-0000-00000000000b";
+    String traceC = "00000000-0000-0000-0000-00000000000c";
+    String traceD = "00000000-0000-0000-0000-00000000000d";
+    List<Span> sampled = ImmutableList.of(
+        span(traceB, "op", 0, 10, false),
+        span(traceB, "op", 1, 10, true),
+        span(traceC, "op", 0, 100, false),
+        span(traceC, "op", 5000, 100, false),
+        span(traceD, "op", 0, 20000, false),
+        span(traceB, "op", 2, 10, false));
+    reset(mockTraceHandler);
+    for (Span span : sampled) {
+      mockTraceHandler.report(span);
+      expectLastCall();
+    }
+    replay(mockTraceHandler);
+
+    TailSampler tailSampler = new TailSampler("test", mockTraceHandler, new DurationSampler(10000), 1000, 5000,
+        0, 100, 0);
+    // no errors, short trace
+    tailSampler.add(span(traceA, "op", 0, 10, false), 0);
+    tailSampler.add(span(traceA, "op", 5, 10, false), 100);
+    // error in one of the spans
+    tailSampler.add(span(traceB, "op", 0, 10, false), 0);
+    tailSampler.add(span(traceB, "op", 1, 10, true), 100);
+    // long trace made of short spans
+    tailSampler.add(span(traceC, "op", 0, 100, false), 0);
+    tailSampler.add(span(traceC, "op", 5000, 100, false), 500);
+    // kept by the head sampler
+    tailSampler.add(span(traceD, "op", 0, 20000, false), 0);
+    assertEquals(7, tailSampler.bufferedSpans());
+
+    tailSampler.flush(1100);
+    // trace C has received a span within the wait period
+    assertEquals(2, tailSampler.bufferedSpans());
+    tailSampler.flush(1500);
+    assertEquals(0, tailSampler.bufferedSpans());
+
+    // late spans follow the trace decision
+    tailSampler.add(span(traceA, "op", 2, 10, false), 2000);
+    tailSampler.add(span(traceB, "op", 2, 10, false), 2000);
+    assertEquals(0, tailSampler.bufferedSpans());
+    verify(mockTraceHandler);
+  }
+
+  @Test
+  public void testShutdown() {
+    String traceA = "00000000-0000-0000-0000-00000000000a";
+    reset(mockTraceHandler);
+    mockTraceHandler.report(span(traceA, "op", 0, 10, true));
+    expectLastCall();
+    replay(mockTraceHandler);
+
+    TailSampler tailSampler = new TailSampler("test", mockTraceHandler, new DurationSampler(10000), 60000, 0,
+        0, 100, 0);
+    tailSampler.start();
+    tailSampler.add(span(traceA, "op", 0, 10, true), 0);
+    // buffered traces are decided on shutdown without waiting
+    tailSampler.shutdown();
+    assertEquals(0, tailSampler.bufferedSpans());
+    verify(mockTraceHandler);
+  }
+
+  @Test
+  public void testRareOperations() {
+    String traceA = "00000000-0000-0000-0000-00000000000a";
+    String traceB = "00000000-0000-0000-0000-00000000000b";
+    String traceC = "00000000-0000-0000-0000-00000000000c";
+    reset(mockTraceHandler);
+    mockTraceHandler.report(span(traceA, "op", 0, 10, false));
+    expectLastCall();
+    mockTraceHandler.report(span(traceC, "op", 0, 10, false));
+    expectLastCall();
+    replay(mockTraceHandler);
+
+    TailSampler tailSampler = new TailSampler("test", mockTraceHandler, new DurationSampler(10000), 1000, 0,
+        1, 100, 0);
+    tailSampler.add(span(traceA, "op", 0, 10, false), 0);
+    tailSampler.add(span(traceB, "op", 0, 10, false), 0);
+    tailSampler.flushAll();
+    // operation counts are reset every minute
+    tailSampler.flush(60000);
+    tailSampler.add(span(traceC, "op", 0, 10, false), 60000);
+    tailSampler.flushAll();
+    verify(mockTraceHandler);
+  }
+
+  @Test
+  public void testMaxBufferedSpans() {
+    String traceA = "00000000-0000-0000-0000-00000000000a";
+    String traceB = "00000000-0000-0000-0000-00000000000b";
+    reset(mockTraceHandler);
+    mockTraceHandler.report(span(traceB, "op", 1, 10, true));
+    expectLastCall();
+    replay(mockTraceHandler);
+
+    TailSampler tailSampler = new TailSampler("test", mockTraceHandler, new DurationSampler(10000), 1000, 0,
+        0, 2, 0);
+    tailSampler.add(span(traceA, "op", 0, 10, false), 0);
+    tailSampler.add(span(traceA, "op", 1, 10, false), 0);
+    // buffer is full, spans are sampled as they arrive
+    tailSampler.add(span(traceB, "op", 0, 10, false), 0);
+    tailSampler.add(span(traceB, "op", 1, 10, true), 0);
+    assertEquals(2, tailSampler.bufferedSpans());
+    verify(mockTraceHandler);
+  }
+}